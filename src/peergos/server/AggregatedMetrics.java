@@ -32,6 +32,8 @@ public class AggregatedMetrics {
 
     public static final Counter MUTABLE_POINTERS_SET  = build("mutable_pointers_set", "Total mutable-pointers set calls.");
     public static final Counter MUTABLE_POINTERS_GET  = build("mutable_pointers_get", "Total mutable-pointers get calls.");
+    public static final Counter MUTABLE_POINTERS_GET_MANY  = build("mutable_pointers_get_many", "Total mutable-pointers bulk get calls.");
+    public static final Counter MUTABLE_POINTERS_WATCH  = build("mutable_pointers_watch", "Total mutable-pointers watch calls.");
 
     public static final Counter GET_ALL_USERNAMES  = build("core_node_get_all_usernames", "Total get-all-usernames calls.");
     public static final Counter GET_USERNAME  = build("core_node_get_username", "Total get-username calls.");
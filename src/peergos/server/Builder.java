@@ -8,6 +8,7 @@ import peergos.server.crypto.hash.*;
 import peergos.server.crypto.random.*;
 import peergos.server.crypto.symmetric.*;
 import peergos.server.mutable.*;
+import peergos.server.net.*;
 import peergos.server.space.*;
 import peergos.server.sql.*;
 import peergos.server.storage.*;
@@ -116,9 +117,9 @@ public class Builder {
         }
     }
 
-    public static JavaPoster buildIpfsApi(Args a) {
+    public static HttpPoster buildIpfsApi(Args a) {
         URL ipfsApiAddress = AddressUtil.getAddress(new MultiAddress(a.getArg("ipfs-api-address")));
-        return new JavaPoster(ipfsApiAddress, false);
+        return buildAsyncPoster(a, ipfsApiAddress);
     }
 
     /**
@@ -126,9 +127,14 @@ public class Builder {
      * @param a
      * @return This returns the P2P HTTP proxy, which is in the IPFS gateway
      */
-    public static JavaPoster buildP2pHttpProxy(Args a) {
+    public static HttpPoster buildP2pHttpProxy(Args a) {
         URL ipfsGatewayAddress = AddressUtil.getAddress(new MultiAddress(a.getArg("ipfs-gateway-address")));
-        return new JavaPoster(ipfsGatewayAddress, false);
+        return buildAsyncPoster(a, ipfsGatewayAddress);
+    }
+
+    private static HttpPoster buildAsyncPoster(Args a, URL target) {
+        int maxInFlight = a.getInt("max-http-requests-per-host", AsyncJavaPoster.DEFAULT_MAX_IN_FLIGHT_PER_HOST);
+        return new AsyncJavaPoster(target, false, maxInFlight, AsyncJavaPoster.DEFAULT_TIMEOUT);
     }
 
     /**
@@ -145,7 +151,9 @@ public class Builder {
                                                                       TransactionStore transactions) {
         boolean useIPFS = a.getBoolean("useIPFS");
         boolean enableGC = a.getBoolean("enable-gc", false);
-        JavaPoster ipfsApi = buildIpfsApi(a);
+        if (a.getBoolean("ram-blockstore", false) && (useIPFS || S3Config.useS3(a)))
+            throw new IllegalStateException("ram-blockstore can only be used with useIPFS=false and without S3!");
+        HttpPoster ipfsApi = buildIpfsApi(a);
         if (useIPFS) {
             DeletableContentAddressedStorage.HTTP ipfs = new DeletableContentAddressedStorage.HTTP(ipfsApi, false);
             if (enableGC) {
@@ -166,12 +174,30 @@ public class Builder {
                 Optional<String> authedUrl = Optional.of("https://" + config.getHost() + "/");
                 BlockStoreProperties props = new BlockStoreProperties(directWrites, publicReads, authedReads, publicReadUrl, authedUrl);
                 return new S3BlockStorage(config, Cid.decode(a.getArg("ipfs.id")), props, transactions, ipfs);
+            } else if (a.getBoolean("ram-blockstore", false)) {
+                return buildRamStorage(a);
             } else {
                 return new FileContentAddressedStorage(blockstorePath(a), transactions);
             }
         }
     }
 
+    private static final Map<Path, RAMStorage> ramStores = new ConcurrentHashMap<>();
+
+    /** An in memory block store for benchmarking, which is shared by everything using the same peergos dir, in
+     *  particular the pki bootstrap and the daemon.
+     *
+     * @param a
+     * @return
+     */
+    public static RAMStorage buildRamStorage(Args a) {
+        return ramStores.computeIfAbsent(blockstorePath(a), p -> new RAMStorage(
+                a.getLong("ram-blockstore-max-bytes", Long.MAX_VALUE),
+                a.getInt("ram-blockstore-read-latency", 0),
+                a.getInt("ram-blockstore-write-latency", 0),
+                a.getLong("ram-blockstore-bandwidth", 0)));
+    }
+
     public static SqlSupplier getSqlCommands(Args a) {
         boolean usePostgres = a.getBoolean("use-postgres", false);
         return usePostgres ? new PostgresCommands() : new SqliteCommands();
@@ -258,14 +284,18 @@ public class Builder {
     }
 
     public static JdbcIpnsAndSocial buildRawPointers(Args a) {
-        return new JdbcIpnsAndSocial(getDBConnector(a, "mutable-pointers-file"), getSqlCommands(a));
+        long syncPeriod = a.getLong("mutable-pointers-sync-period", 0);
+        // S3 GC runs in a separate process, which can't see unsynced pointers and would delete the blocks they reference
+        if (syncPeriod > 0 && S3Config.useS3(a))
+            throw new IllegalStateException("mutable-pointers-sync-period can't be used with S3, as S3 GC is run separately!");
+        return new JdbcIpnsAndSocial(getDBConnector(a, "mutable-pointers-file"), getSqlCommands(a), syncPeriod);
     }
 
 
     public static CompletableFuture<NetworkAccess> buildJavaNetworkAccess(URL apiAddress, URL proxyAddress, String pkiNodeId) {
         Multihash pkiServerNodeId = Cid.decode(pkiNodeId);
-        JavaPoster p2pPoster = new JavaPoster(proxyAddress, false);
-        JavaPoster apiPoster = new JavaPoster(apiAddress, false);
+        HttpPoster p2pPoster = new AsyncJavaPoster(proxyAddress, false);
+        HttpPoster apiPoster = new AsyncJavaPoster(apiAddress, false);
         return NetworkAccess.build(apiPoster, p2pPoster, pkiServerNodeId, NetworkAccess.buildLocalDht(apiPoster, true), new ScryptJava(), false);
     }
 
@@ -275,12 +305,27 @@ public class Builder {
     }
 
     public static CompletableFuture<NetworkAccess> buildNonCachingJavaNetworkAccess(URL target, boolean isPublicServer) {
-        JavaPoster poster = new JavaPoster(target, isPublicServer);
+        HttpPoster poster = new AsyncJavaPoster(target, isPublicServer);
         Multihash pkiNodeId = null; // This is not required when talking to a Peergos server
         ContentAddressedStorage localDht = NetworkAccess.buildLocalDht(poster, true);
         return NetworkAccess.build(poster, poster, pkiNodeId, localDht, new ScryptJava(), false);
     }
 
+    /** Add a persistent block cache to a client's network access, if enabled with the block-cache arg
+     *
+     * @param network
+     * @param a
+     * @return
+     */
+    public static NetworkAccess withBlockCache(NetworkAccess network, Args a) {
+        if (! a.getBoolean("block-cache", false))
+            return network;
+        Path cacheDir = Paths.get(a.getArg("block-cache-dir",
+                Paths.get(System.getProperty("user.home"), ".peergos", "block-cache").toString()));
+        long maxBytes = a.getLong("block-cache-size", 1024 * 1024 * 1024L);
+        return network.withStorage(dht -> new FileBlockCache(dht, cacheDir, maxBytes));
+    }
+
     public static CompletableFuture<NetworkAccess> buildLocalJavaNetworkAccess(int targetPort) {
         try {
             return buildJavaNetworkAccess(new URL("http://localhost:" + targetPort + "/"), false);
@@ -1,78 +1,339 @@
 package peergos.server;
 
+import peergos.server.util.*;
 import peergos.shared.*;
 import peergos.shared.user.*;
 import peergos.shared.user.fs.*;
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
 import java.nio.file.*;
+import java.time.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.function.*;
+import java.util.stream.*;
 
+/** Download a subtree of a Peergos filesystem to a local directory.
+ *
+ *  Files are downloaded in parallel, and large files are split into chunks which are also fetched in parallel, each
+ *  one seeking directly to its chunk, and written in place. Files which already exist locally with the same size and
+ *  modification time are skipped, and each completed chunk is recorded in a progress file in the target directory, so
+ *  an interrupted download can be resumed by running it again.
+ */
 public class Downloader {
+    public static final String PROGRESS_FILENAME = ".peergos-download-progress";
+
+    private final NetworkAccess network;
+    private final Crypto crypto;
+    private final int parallelChunks;
+    private final AtomicLong bytesDownloaded = new AtomicLong(0);
+    // already present locally, from a previous run
+    private final AtomicLong bytesSkipped = new AtomicLong(0);
+    private final AtomicLong totalBytes = new AtomicLong(0);
+    private final AtomicInteger filesDone = new AtomicInteger(0);
+    private final AtomicInteger filesSkipped = new AtomicInteger(0);
+    private final AtomicInteger totalFiles = new AtomicInteger(0);
+    private final AtomicInteger errors = new AtomicInteger(0);
+
+    /**
+     *
+     * @param network
+     * @param crypto
+     * @param parallelChunks the maximum number of chunks to download at once, which bounds memory use to this many
+     *                       times the chunk size
+     */
+    public Downloader(NetworkAccess network, Crypto crypto, int parallelChunks) {
+        this.network = network;
+        this.crypto = crypto;
+        this.parallelChunks = parallelChunks;
+    }
 
     public static void main(String[] args) throws Exception {
         Crypto crypto = Main.initCrypto();
-        NetworkAccess network = Builder.buildJavaNetworkAccess(new URL("https://demo.peergos.net"), true).get();
         String username = args[0];
         String fromPath = args[1];
         String toPath = args[2];
+        // any further args are options, e.g. -block-cache true
+        Args options = Args.parse(Arrays.copyOfRange(args, 3, args.length));
+        NetworkAccess network = Builder.withBlockCache(
+                Builder.buildJavaNetworkAccess(new URL("https://demo.peergos.net"), true).get(), options);
         Console console = System.console();
         String password = new String(console.readPassword("Enter password for " + username + ":"));
         UserContext context = UserContext.signIn(username, password, network, crypto).get();
-        ForkJoinPool pool = new ForkJoinPool(50);
+        Downloader downloader = new Downloader(context.network, crypto, options.getInt("parallel-chunks", 20));
         long t1 = System.currentTimeMillis();
-        downloadTo(context, fromPath, Paths.get(toPath), props -> true, pool);
+        downloader.downloadTo(context, fromPath, Paths.get(toPath), props -> true);
         long t2 = System.currentTimeMillis();
         System.out.println("Download took " + (t2-t1) + " mS");
     }
 
+    /** A file to download and where to put it
+     */
+    private static class FileTask {
+        public final FileWrapper source;
+        public final Path target;
+        public final String key;
+
+        public FileTask(FileWrapper source, Path target, String key) {
+            this.source = source;
+            this.target = target;
+            this.key = key;
+        }
+    }
+
+    /** Records completed chunks, keyed by relative path, size and modification time, so that a remote file which
+     *  changed since is downloaded from scratch
+     */
+    private static class Progress implements Closeable {
+        private final Path file;
+        private final Set<String> completed = new HashSet<>();
+        private final Writer out;
+
+        public Progress(Path file) throws IOException {
+            this.file = file;
+            if (file.toFile().exists())
+                completed.addAll(Files.readAllLines(file, StandardCharsets.UTF_8));
+            this.out = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(file.toFile(), true), StandardCharsets.UTF_8));
+        }
+
+        public synchronized boolean isDone(String fileKey, int chunk) {
+            return completed.contains(fileKey + "\t" + chunk);
+        }
+
+        public synchronized void done(String fileKey, int chunk) {
+            String line = fileKey + "\t" + chunk;
+            if (! completed.add(line))
+                return;
+            try {
+                out.write(line + "\n");
+                out.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        public void delete() throws IOException {
+            close();
+            Files.deleteIfExists(file);
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            out.close();
+        }
+    }
+
+    private static long modifiedMillis(FileProperties props) {
+        return props.modified.toInstant(ZonedDateTime.now().getOffset()).toEpochMilli();
+    }
+
+    private static boolean alreadyDownloaded(FileProperties props, File local) {
+        // file systems may only store modification times to the second
+        return local.exists() && local.length() == props.size &&
+                local.lastModified() / 1000 == modifiedMillis(props) / 1000;
+    }
+
+    private static String toKey(Path relative, FileProperties props) {
+        return relative.toString().replace('\t', ' ') + "\t" + props.size + "\t" + modifiedMillis(props);
+    }
+
     /**
      *
      * @param source the peergos filesystem view to download from
      * @param origin the root peergos path to download the subtree of
      * @param targetDir the local destination directory
      * @param saveFile filter the files to save
-     * @param pool thread pool
      * @throws Exception
      */
-    public static void downloadTo(UserContext source, String origin, Path targetDir,
-                                  Predicate<FileProperties> saveFile, ForkJoinPool pool) throws Exception {
+    public void downloadTo(UserContext source, String origin, Path targetDir,
+                           Predicate<FileProperties> saveFile) throws Exception {
         if (! targetDir.toFile().exists() && ! targetDir.toFile().mkdirs())
             throw new IllegalStateException("Couldn't create " + targetDir);
         Optional<FileWrapper> file = source.getByPath(origin).get();
-        pool.submit(() -> file.ifPresent(f -> downloadTo(f, targetDir, source.network, source.crypto, saveFile))).get();
+        if (file.isEmpty())
+            throw new IllegalStateException("Couldn't find " + origin);
+        downloadTo(file.get(), targetDir, saveFile);
     }
 
-    public static void downloadTo(FileWrapper source, Path target, NetworkAccess network, Crypto crypto,
-                                  Predicate<FileProperties> saveFile) {
-        Path us = target.resolve(source.getName());
-        if (source.isDirectory()) {
-            try {
-                Set<FileWrapper> children = source.getChildren(crypto.hasher, network).get();
-                if (! us.toFile().exists() && !us.toFile().mkdir())
-                    throw new IllegalStateException("Couldn't create directory: " + us);
-                children.stream().parallel().forEach(child -> downloadTo(child, us, network, crypto, saveFile));
-            } catch (Exception e) {
-                System.err.println("Error downloading children of " + source.getName());
-                e.printStackTrace();
+    public void downloadTo(FileWrapper source, Path targetDir, Predicate<FileProperties> saveFile) throws Exception {
+        long t0 = System.currentTimeMillis();
+        ForkJoinPool listingPool = new ForkJoinPool(Math.max(4, parallelChunks));
+        List<FileTask> files = listingPool.submit(() -> collectFiles(source, targetDir, Paths.get(""), saveFile)).get();
+        listingPool.shutdown();
+        totalFiles.set(files.size());
+        totalBytes.set(files.stream().mapToLong(f -> f.source.getSize()).sum());
+        System.out.println("Found " + files.size() + " files totalling " + totalBytes.get() + " bytes");
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        reporter.scheduleAtFixedRate(() -> printProgress(t0), 5, 5, TimeUnit.SECONDS);
+        ExecutorService chunkPool = Executors.newFixedThreadPool(parallelChunks);
+        try (Progress progress = new Progress(targetDir.resolve(PROGRESS_FILENAME))) {
+            List<CompletableFuture<Boolean>> all = files.stream()
+                    .map(f -> downloadFile(f, progress, chunkPool))
+                    .collect(Collectors.toList());
+            all.forEach(CompletableFuture::join);
+            if (errors.get() == 0)
+                progress.delete();
+        } finally {
+            chunkPool.shutdown();
+            reporter.shutdown();
+        }
+        printProgress(t0);
+        if (errors.get() > 0)
+            System.err.println(errors.get() + " files failed to download, run again to resume");
+    }
+
+    public int filesDownloaded() {
+        return filesDone.get();
+    }
+
+    public int filesSkipped() {
+        return filesSkipped.get();
+    }
+
+    public long bytesDownloaded() {
+        return bytesDownloaded.get();
+    }
+
+    public int errors() {
+        return errors.get();
+    }
+
+    private void printProgress(long startTime) {
+        long duration = Math.max(1, System.currentTimeMillis() - startTime);
+        long bytes = bytesDownloaded.get();
+        System.out.println(String.format("%d/%d files (%d skipped), %d/%d MiB (%d MiB already present), %.2f MiB/s",
+                filesDone.get() + filesSkipped.get(), totalFiles.get(), filesSkipped.get(),
+                (bytes + bytesSkipped.get()) / 1024 / 1024, totalBytes.get() / 1024 / 1024,
+                bytesSkipped.get() / 1024 / 1024, bytes * 1000.0 / 1024 / 1024 / duration));
+    }
+
+    private List<FileTask> collectFiles(FileWrapper source, Path targetParent, Path relativeParent,
+                                        Predicate<FileProperties> saveFile) {
+        Path us = targetParent.resolve(source.getName());
+        Path relative = relativeParent.resolve(source.getName());
+        if (! source.isDirectory()) {
+            if (! saveFile.test(source.getFileProperties()))
+                return Collections.emptyList();
+            return Collections.singletonList(new FileTask(source, us, toKey(relative, source.getFileProperties())));
+        }
+        if (! us.toFile().exists() && ! us.toFile().mkdirs())
+            throw new IllegalStateException("Couldn't create directory: " + us);
+        Set<FileWrapper> children = source.getChildren(crypto.hasher, network).join();
+        return children.stream()
+                .parallel()
+                .flatMap(child -> collectFiles(child, us, relative, saveFile).stream())
+                .collect(Collectors.toList());
+    }
+
+    /** The reader and local file for a download in progress, which are only opened once the first chunk is
+     *  downloaded, so there are only as many open files as chunks in flight
+     */
+    private class OpenFile {
+        private final FileTask task;
+        private CompletableFuture<AsyncReader> reader;
+        private FileChannel channel;
+
+        public OpenFile(FileTask task) {
+            this.task = task;
+        }
+
+        /**
+         *
+         * @return a reader at the start of the file, which is shared and must only be used to seek from
+         */
+        public synchronized CompletableFuture<AsyncReader> reader() {
+            if (reader == null)
+                reader = task.source.getInputStream(network, crypto, x -> {}).thenApply(r -> r);
+            return reader;
+        }
+
+        public synchronized FileChannel channel() throws IOException {
+            if (channel == null) {
+                channel = FileChannel.open(task.target, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                if (channel.size() > task.source.getSize())
+                    channel.truncate(task.source.getSize());
             }
-        } else if (saveFile.test(source.getFileProperties())) {
-            try (FileOutputStream fout = new FileOutputStream(us.toFile())) {
-                long size = source.getSize();
-                if (size > Integer.MAX_VALUE)
-                    throw new IllegalStateException("Need to implement streaming for files bigger than 2GiB");
-                byte[] buf = new byte[(int)size];
-                AsyncReader reader = source.getInputStream(network, crypto, c -> {}).get();
-                reader.readIntoArray(buf, 0, buf.length)
-                        .get();
-                fout.write(buf);
-            } catch (Exception e) {
-                System.err.println("Error downloading " + source.getName());
-                e.printStackTrace();
+            return channel;
+        }
+
+        public synchronized void close() throws IOException {
+            if (channel != null)
+                channel.close();
+            else // empty files, or all chunks were already downloaded
+                channel().close();
+        }
+    }
+
+    private CompletableFuture<Boolean> downloadFile(FileTask task, Progress progress, ExecutorService chunkPool) {
+        FileProperties props = task.source.getFileProperties();
+        File local = task.target.toFile();
+        if (alreadyDownloaded(props, local)) {
+            filesSkipped.incrementAndGet();
+            bytesSkipped.addAndGet(props.size);
+            return CompletableFuture.completedFuture(true);
+        }
+        OpenFile file = new OpenFile(task);
+        int nChunks = (int) ((props.size + Chunk.MAX_SIZE - 1) / Chunk.MAX_SIZE);
+        List<CompletableFuture<Boolean>> chunks = new ArrayList<>();
+        for (int i = 0; i < nChunks; i++) {
+            int chunk = i;
+            if (progress.isDone(task.key, chunk)) {
+                bytesSkipped.addAndGet(chunkLength(props.size, chunk));
+                continue;
             }
+            chunks.add(CompletableFuture.supplyAsync(() -> downloadChunk(file, props.size, chunk), chunkPool)
+                    .thenApply(x -> {
+                        progress.done(task.key, chunk);
+                        return true;
+                    }));
+        }
+        return CompletableFuture.allOf(chunks.toArray(new CompletableFuture<?>[0]))
+                .handle((x, t) -> {
+                    try {
+                        file.close();
+                        if (t != null)
+                            throw t;
+                        local.setLastModified(modifiedMillis(props));
+                        filesDone.incrementAndGet();
+                        return true;
+                    } catch (Throwable e) {
+                        errors.incrementAndGet();
+                        System.err.println("Error downloading " + task.target + ": " + e.getMessage());
+                        return false;
+                    }
+                });
+    }
+
+    private static int chunkLength(long fileSize, int chunk) {
+        return (int) Math.min(Chunk.MAX_SIZE, fileSize - (long) chunk * Chunk.MAX_SIZE);
+    }
+
+    private boolean downloadChunk(OpenFile file, long fileSize, int chunk) {
+        long offset = (long) chunk * Chunk.MAX_SIZE;
+        int length = chunkLength(fileSize, chunk);
+        byte[] buf = new byte[length];
+        // each chunk seeks directly to its location, computed from the stream secret
+        file.reader()
+                .thenCompose(r -> r.seek(offset))
+                .thenCompose(r -> r.readIntoArray(buf, 0, length))
+                .join();
+        try {
+            FileChannel channel = file.channel();
+            ByteBuffer data = ByteBuffer.wrap(buf);
+            long position = offset;
+            while (data.hasRemaining())
+                position += channel.write(data, position);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
+        bytesDownloaded.addAndGet(length);
+        return true;
     }
 }
@@ -9,6 +9,7 @@ import peergos.shared.*;
 import peergos.server.corenode.*;
 import peergos.server.fuse.*;
 import peergos.server.mutable.*;
+import peergos.server.net.*;
 import peergos.server.storage.*;
 import peergos.server.util.*;
 import peergos.shared.cbor.*;
@@ -118,16 +119,26 @@ public class Main extends Builder {
                     new Command.Arg("domain", "Domain name to bind to,", false, "localhost"),
                     new Command.Arg("max-users", "The maximum number of local users", false, "1"),
                     new Command.Arg("useIPFS", "Use IPFS for storage or a local disk store", false, "true"),
+                    new Command.Arg("ram-blockstore", "Store blocks in memory rather than on disk, for benchmarking. Requires useIPFS=false and no S3", false, "false"),
+                    new Command.Arg("ram-blockstore-max-bytes", "The maximum size of the in memory block store", false),
+                    new Command.Arg("ram-blockstore-read-latency", "The latency added to each read from the in memory block store in milliseconds", false, "0"),
+                    new Command.Arg("ram-blockstore-write-latency", "The latency added to each write to the in memory block store in milliseconds", false, "0"),
+                    new Command.Arg("ram-blockstore-bandwidth", "The bandwidth of the in memory block store in bytes per second, or 0 for unlimited", false, "0"),
                     new Command.Arg("mutable-pointers-file", "The filename for the mutable pointers datastore", true, "mutable.sql"),
+                    new Command.Arg("max-http-requests-per-host", "The maximum number of concurrent outgoing requests to the ipfs api or gateway", false, "" + AsyncJavaPoster.DEFAULT_MAX_IN_FLIGHT_PER_HOST),
+                    new Command.Arg("mutable-pointers-sync-period", "How often to write mutable pointer updates to the datastore in milliseconds, or 0 to write each update before acknowledging it. If non zero, acknowledged updates are lost on a crash, and are invisible to other processes using the datastore until synced, so it can't be used with S3, or with any GC run outside this server", false, "0"),
                     new Command.Arg("social-sql-file", "The filename for the follow requests datastore", true, "social.sql"),
                     new Command.Arg("space-requests-sql-file", "The filename for the space requests datastore", true, "space-requests.sql"),
                     new Command.Arg("space-usage-sql-file", "The filename for the space usage datastore", true, "space-usage.sql"),
+                    new Command.Arg("block-metadata-sql-file", "The filename for the block metadata datastore", true, "block-metadata.sql"),
                     new Command.Arg("server-messages-sql-file", "The filename for the server messages datastore", true, "server-messages.sql"),
                     new Command.Arg("transactions-sql-file", "The filename for the transactions datastore", false, "transactions.sql"),
                     new Command.Arg("webroot", "the path to the directory to serve as the web root", false),
                     new Command.Arg("default-quota", "default maximum storage per user", false, Long.toString(1024L * 1024 * 1024)),
                     new Command.Arg("mirror.node.id", "Mirror a server's data locally", false),
                     new Command.Arg("mirror.username", "Mirror a user's data locally", false),
+                    new Command.Arg("mirror.parallelism", "The number of users and writers to mirror in parallel", false, "" + Mirror.DEFAULT_PARALLELISM),
+                    new Command.Arg("mirror.poll.period", "How often to check mirrored writers for changes, in milliseconds", false, "" + MirrorDaemon.DEFAULT_POLL_PERIOD_MILLIS),
                     new Command.Arg("public-server", "Are we a public server? (allow http GETs to API)", false, "false"),
                     new Command.Arg("collect-metrics", "Export aggregated metrics", false, "false"),
                     new Command.Arg("metrics.address", "Listen address for serving aggregated metrics", false, "localhost"),
@@ -149,8 +160,10 @@ public class Main extends Builder {
             String ipfsApiAddress = args.getArg("ipfs-api-address", "/ip4/127.0.0.1/tcp/5001");
             ContentAddressedStorage dht = useIPFS ?
                     new IpfsDHT(new MultiAddress(ipfsApiAddress)) :
-                    new FileContentAddressedStorage(blockstorePath(args),
-                            JdbcTransactionStore.build(getDBConnector(args, "transactions-sql-file"), new SqliteCommands()));
+                    args.getBoolean("ram-blockstore", false) ?
+                            Builder.buildRamStorage(args) :
+                            new FileContentAddressedStorage(blockstorePath(args),
+                                    JdbcTransactionStore.build(getDBConnector(args, "transactions-sql-file"), new SqliteCommands()));
 
             SigningKeyPair peergosIdentityKeys = peergos.getUser();
             PublicKeyHash peergosPublicHash = ContentAddressedStorage.hashKey(peergosIdentityKeys.publicSigningKey);
@@ -254,8 +267,10 @@ public class Main extends Builder {
 
                     Multihash pkiIpfsNodeId = useIPFS ?
                             new IpfsDHT(ipfsApi).id().get() :
-                            new FileContentAddressedStorage(blockstorePath(args),
-                                    JdbcTransactionStore.build(getDBConnector(args, "transactions-sql-file"), new SqliteCommands())).id().get();
+                            args.getBoolean("ram-blockstore", false) ?
+                                    Builder.buildRamStorage(args).id().get() :
+                                    new FileContentAddressedStorage(blockstorePath(args),
+                                            JdbcTransactionStore.build(getDBConnector(args, "transactions-sql-file"), new SqliteCommands())).id().get();
 
                     if (ipfs != null)
                         ipfs.stop();
@@ -276,6 +291,7 @@ public class Main extends Builder {
                     new Command.Arg("transactions-sql-file", "The filename for the open transactions datastore", true, "transactions.sql"),
                     new Command.Arg("space-requests-sql-file", "The filename for the space requests datastore", true, "space-requests.sql"),
                     new Command.Arg("space-usage-sql-file", "The filename for the space usage datastore", true, "space-usage.sql"),
+                    new Command.Arg("block-metadata-sql-file", "The filename for the block metadata datastore", true, "block-metadata.sql"),
                     new Command.Arg("ipfs-api-address", "ipfs api port", true, "/ip4/127.0.0.1/tcp/5001"),
                     new Command.Arg("ipfs-gateway-address", "ipfs gateway port", true, "/ip4/127.0.0.1/tcp/8080"),
                     new Command.Arg("pki.secret.key.path", "The path to the pki secret key file", true, "test.pki.secret.key"),
@@ -310,8 +326,10 @@ public class Main extends Builder {
                             S3Config.useS3(args) ?
                                     new S3BlockStorage(S3Config.build(args), Cid.decode(args.getArg("ipfs.id")),
                                             BlockStoreProperties.empty(), transactions, new IpfsDHT(ipfsApi)) :
-                                    new FileContentAddressedStorage(blockstorePath(args),
-                                            transactions);
+                                    args.getBoolean("ram-blockstore", false) ?
+                                            Builder.buildRamStorage(args) :
+                                            new FileContentAddressedStorage(blockstorePath(args),
+                                                    transactions);
                     Multihash pkiIpfsNodeId = storage.id().get();
 
                     if (ipfs != null)
@@ -332,6 +350,7 @@ public class Main extends Builder {
                     new Command.Arg("transactions-sql-file", "The filename for the open transactions datastore", true, "transactions.sql"),
                     new Command.Arg("space-requests-sql-file", "The filename for the space requests datastore", true, "space-requests.sql"),
                     new Command.Arg("space-usage-sql-file", "The filename for the space usage datastore", true, "space-usage.sql"),
+                    new Command.Arg("block-metadata-sql-file", "The filename for the block metadata datastore", true, "block-metadata.sql"),
                     new Command.Arg("ipfs-api-address", "ipfs api port", true, "/ip4/127.0.0.1/tcp/5001"),
                     new Command.Arg("ipfs-gateway-address", "ipfs gateway port", true, "/ip4/127.0.0.1/tcp/8080"),
                     new Command.Arg("pki.secret.key.path", "The path to the pki secret key file", true, "test.pki.secret.key"),
@@ -348,7 +367,10 @@ public class Main extends Builder {
                     new Command.Arg("username", "Peergos username", true),
                     new Command.Arg("password", "Peergos password", true),
                     new Command.Arg("webport", "Peergos service address port", false, "8000"),
-                    new Command.Arg("mountPoint", "The directory to mount the Peergos filesystem in", true, "peergos")
+                    new Command.Arg("mountPoint", "The directory to mount the Peergos filesystem in", true, "peergos"),
+                    new Command.Arg("block-cache", "Cache blocks on disk between mounts", false, "false"),
+                    new Command.Arg("block-cache-dir", "The directory for the block cache, defaults to ~/.peergos/block-cache", false),
+                    new Command.Arg("block-cache-size", "The maximum size of the block cache in bytes", false, "" + 1024 * 1024 * 1024L)
             ).collect(Collectors.toList())
     );
 
@@ -398,13 +420,14 @@ public class Main extends Builder {
             String domain = a.getArg("domain");
             InetSocketAddress userAPIAddress = new InetSocketAddress(domain, webPort);
 
-            JavaPoster p2pHttpProxy = buildP2pHttpProxy(a);
+            HttpPoster p2pHttpProxy = buildP2pHttpProxy(a);
 
             SqlSupplier sqlCommands = getSqlCommands(a);
 
             TransactionStore transactions = buildTransactionStore(a);
 
-            DeletableContentAddressedStorage localStorage = buildLocalStorage(a, transactions);
+            BlockMetadataStore blockMetadata = new JdbcBlockMetadataStore(getDBConnector(a, "block-metadata-sql-file"), sqlCommands);
+            DeletableContentAddressedStorage localStorage = new MetadataCachingStorage(buildLocalStorage(a, transactions), blockMetadata);
             JdbcIpnsAndSocial rawPointers = buildRawPointers(a);
             boolean enableGC = a.getBoolean("enable-gc", false);
             GarbageCollector gc = null;
@@ -427,7 +450,8 @@ public class Main extends Builder {
             CoreNode signupFilter = new SignUpFilter(core, userQuotas, nodeId);
 
             Supplier<Connection> usageDb = getDBConnector(a, "space-usage-sql-file");
-            UsageStore usageStore = new JdbcUsageStore(usageDb, sqlCommands);
+            UsageStore usageStore = new CachingUsageStore(new JdbcUsageStore(usageDb, sqlCommands),
+                    CachingUsageStore.DEFAULT_FLUSH_PERIOD_MILLIS);
             Hasher hasher = crypto.hasher;
             SpaceCheckingKeyFilter.update(usageStore, userQuotas, core, localPointers, localStorage, hasher);
             SpaceCheckingKeyFilter spaceChecker = new SpaceCheckingKeyFilter(core, localPointers, localStorage,
@@ -482,46 +506,29 @@ public class Main extends Builder {
                 int pkiNodeSwarmPort = a.getInt("pki.node.swarm.port");
                 InetAddress pkiNodeIpAddress = InetAddress.getByName(a.getArg("pki.node.ipaddress"));
                 ipfsWrapper.connectToNode(new InetSocketAddress(pkiNodeIpAddress, pkiNodeSwarmPort), pkiServerNodeId);
-                ((MirrorCoreNode) core).start();
+                // a mirror of a whole node needs to see new users promptly
+                ((MirrorCoreNode) core).start(a.hasArg("mirror.node.id") ?
+                        a.getLong("mirror.poll.period", MirrorDaemon.DEFAULT_POLL_PERIOD_MILLIS) :
+                        MirrorCoreNode.DEFAULT_POLL_PERIOD_MILLIS);
             }
             spaceChecker.calculateUsage();
 
-            if (a.hasArg("mirror.node.id")) {
-                Multihash nodeToMirrorId = Cid.decode(a.getArg("mirror.node.id"));
+            int mirrorParallelism = a.getInt("mirror.parallelism", Mirror.DEFAULT_PARALLELISM);
+            long mirrorPollPeriod = a.getLong("mirror.poll.period", MirrorDaemon.DEFAULT_POLL_PERIOD_MILLIS);
+            if (a.hasArg("mirror.node.id") || a.hasArg("mirror.username")) {
                 NetworkAccess localApi = Builder.buildLocalJavaNetworkAccess(webPort).join();
-                new Thread(() -> {
-                    while (true) {
-                        try {
-                            Mirror.mirrorNode(nodeToMirrorId, localApi, rawPointers, localStorage);
-                            try {
-                                Thread.sleep(60_000);
-                            } catch (InterruptedException f) {}
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                            try {
-                                Thread.sleep(5_000);
-                            } catch (InterruptedException f) {}
-                        }
-                    }
-                }).start();
-            }
-            if (a.hasArg("mirror.username")) {
-                NetworkAccess localApi = Builder.buildLocalJavaNetworkAccess(webPort).join();
-                new Thread(() -> {
-                    while (true) {
-                        try {
-                            Mirror.mirrorUser(a.getArg("mirror.username"), localApi, rawPointers, localStorage);
-                            try {
-                                Thread.sleep(60_000);
-                            } catch (InterruptedException f) {}
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                            try {
-                                Thread.sleep(5_000);
-                            } catch (InterruptedException f) {}
-                        }
-                    }
-                }).start();
+                List<MirrorDaemon> mirrors = new ArrayList<>();
+                if (a.hasArg("mirror.node.id"))
+                    mirrors.add(MirrorDaemon.forNode(Cid.decode(a.getArg("mirror.node.id")), localApi, rawPointers,
+                            localStorage, transactions, mirrorParallelism, mirrorPollPeriod));
+                if (a.hasArg("mirror.username"))
+                    mirrors.add(MirrorDaemon.forUser(a.getArg("mirror.username"), localApi, rawPointers,
+                            localStorage, transactions, mirrorParallelism, mirrorPollPeriod));
+                for (MirrorDaemon mirror : mirrors) {
+                    if (core instanceof MirrorCoreNode)
+                        ((MirrorCoreNode) core).addListener(mirror::accept);
+                    mirror.start();
+                }
             }
             a.saveToFileIfAbsent();
             return peergos;
@@ -570,7 +577,7 @@ public class Main extends Builder {
 
         System.out.println("\n\nPeergos mounted at " + path + "\n\n");
         try {
-            NetworkAccess network = Builder.buildLocalJavaNetworkAccess(webPort).get();
+            NetworkAccess network = withBlockCache(Builder.buildLocalJavaNetworkAccess(webPort).get(), a);
             Crypto crypto = initCrypto();
             UserContext userContext = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
             PeergosFS peergosFS = new PeergosFS(userContext);
@@ -1,53 +1,126 @@
 package peergos.server;
 
+import io.prometheus.client.Counter;
 import peergos.server.corenode.*;
+import peergos.server.storage.*;
 import peergos.server.util.*;
 import peergos.shared.*;
+import peergos.shared.cbor.*;
 import peergos.shared.corenode.*;
 import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.mutable.*;
 import peergos.shared.storage.*;
 import peergos.shared.user.*;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.logging.*;
+import java.util.stream.*;
 
+/** Mirror the data of users onto a local block store.
+ *
+ *  Only the blocks which are new since the last mirrored root of each writer are retrieved. The local pointer of a
+ *  writer is only updated once all the blocks under its new root are local, so the local pointer is the record of what
+ *  has been mirrored, and an interrupted run resumes from there.
+ */
 public class Mirror {
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    private static final Counter mirroredBlocks = Counter.build()
+            .name("mirror_blocks")
+            .help("Number of blocks retrieved by mirroring")
+            .register();
+    private static final Counter mirroredBytes = Counter.build()
+            .name("mirror_bytes")
+            .help("Number of bytes retrieved by mirroring")
+            .register();
 
     public static void mirrorNode(Multihash nodeId,
                                   NetworkAccess mirror,
                                   JdbcIpnsAndSocial targetPointers,
-                                  ContentAddressedStorage targetStorage) {
+                                  DeletableContentAddressedStorage targetStorage,
+                                  TransactionStore transactions,
+                                  int parallelism) {
         Logging.LOG().log(Level.INFO, "Mirroring data for node " + nodeId);
+        long t0 = System.currentTimeMillis();
+        double blocks0 = mirroredBlocks.get(), bytes0 = mirroredBytes.get();
         List<String> allUsers = mirror.coreNode.getUsernames("").join();
-        int userCount = 0;
-        for (String username : allUsers) {
-            List<UserPublicKeyLink> chain = mirror.coreNode.getChain(username).join();
-            if (chain.get(chain.size() - 1).claim.storageProviders.contains(nodeId)) {
-                try {
-                    mirrorUser(username, mirror, targetPointers, targetStorage);
-                    userCount++;
-                } catch (Exception e) {
-                    Logging.LOG().log(Level.WARNING, "Couldn't mirror user: " + username, e);
-                }
-            }
+        AtomicInteger userCount = new AtomicInteger(0);
+        ExecutorService userPool = Executors.newFixedThreadPool(parallelism);
+        ExecutorService writerPool = Executors.newFixedThreadPool(parallelism);
+        try {
+            List<Future<?>> users = allUsers.stream()
+                    .map(username -> userPool.submit(() -> {
+                        try {
+                            if (! isStoredOn(username, nodeId, mirror.coreNode))
+                                return;
+                            mirrorUser(username, mirror, targetPointers, targetStorage, transactions, writerPool);
+                            userCount.incrementAndGet();
+                        } catch (Exception e) {
+                            Logging.LOG().log(Level.WARNING, "Couldn't mirror user: " + username, e);
+                        }
+                    })).collect(Collectors.toList());
+            for (Future<?> user : users)
+                user.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            userPool.shutdownNow();
+            writerPool.shutdownNow();
         }
-        Logging.LOG().log(Level.INFO, "Finished mirroring data for node " + nodeId + ", with " + userCount + " users.");
+        double seconds = Math.max(1, System.currentTimeMillis() - t0) / 1000.0;
+        long blocks = (long) (mirroredBlocks.get() - blocks0);
+        long bytes = (long) (mirroredBytes.get() - bytes0);
+        Logging.LOG().log(Level.INFO, "Finished mirroring data for node " + nodeId + ", with " + userCount.get()
+                + " users. Retrieved " + blocks + " blocks (" + (long) (blocks / seconds) + " blocks/s), "
+                + bytes + " bytes (" + (long) (bytes / seconds) + " bytes/s) in " + seconds + "s");
+    }
+
+    public static boolean isStoredOn(String username, Multihash nodeId, CoreNode core) {
+        List<UserPublicKeyLink> chain = core.getChain(username).join();
+        return ! chain.isEmpty() && chain.get(chain.size() - 1).claim.storageProviders.contains(nodeId);
     }
 
     public static void mirrorUser(String username,
                                   NetworkAccess source,
                                   JdbcIpnsAndSocial targetPointers,
-                                  ContentAddressedStorage targetStorage) {
+                                  DeletableContentAddressedStorage targetStorage,
+                                  TransactionStore transactions,
+                                  int parallelism) {
+        ExecutorService writerPool = Executors.newFixedThreadPool(parallelism);
+        try {
+            mirrorUser(username, source, targetPointers, targetStorage, transactions, writerPool);
+        } finally {
+            writerPool.shutdownNow();
+        }
+    }
+
+    private static void mirrorUser(String username,
+                                   NetworkAccess source,
+                                   JdbcIpnsAndSocial targetPointers,
+                                   DeletableContentAddressedStorage targetStorage,
+                                   TransactionStore transactions,
+                                   ExecutorService writerPool) {
         Logging.LOG().log(Level.INFO, "Mirroring data for " + username);
         Optional<PublicKeyHash> identity = source.coreNode.getPublicKeyHash(username).join();
         if (! identity.isPresent())
             return;
         Set<PublicKeyHash> ownedKeys = WriterData.getOwnedKeysRecursive(username, source.coreNode, source.mutable,
                 source.dhtClient, source.hasher).join();
-        for (PublicKeyHash ownedKey : ownedKeys) {
-            mirrorMutableSubspace(identity.get(), ownedKey, source, targetPointers, targetStorage);
+        Map<PublicKeyHash, byte[]> pointers = source.mutable.getPointers(identity.get(), new ArrayList<>(ownedKeys)).join();
+        List<Future<?>> writers = ownedKeys.stream()
+                .map(ownedKey -> writerPool.submit(() ->
+                        mirrorMutableSubspace(identity.get(), ownedKey, Optional.ofNullable(pointers.get(ownedKey)),
+                                source, targetPointers, targetStorage, transactions)))
+                .collect(Collectors.toList());
+        try {
+            for (Future<?> writer : writers)
+                writer.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e.getMessage(), e);
         }
         Logging.LOG().log(Level.INFO, "Finished mirroring data for " + username);
     }
@@ -56,15 +129,27 @@ public class Mirror {
                                              PublicKeyHash writer,
                                              NetworkAccess source,
                                              JdbcIpnsAndSocial targetPointers,
-                                             ContentAddressedStorage targetStorage) {
+                                             DeletableContentAddressedStorage targetStorage,
+                                             TransactionStore transactions) {
         Optional<byte[]> updated = source.mutable.getPointer(owner, writer).join();
+        mirrorMutableSubspace(owner, writer, updated, source, targetPointers, targetStorage, transactions);
+    }
+
+    public static void mirrorMutableSubspace(PublicKeyHash owner,
+                                             PublicKeyHash writer,
+                                             Optional<byte[]> updated,
+                                             NetworkAccess source,
+                                             JdbcIpnsAndSocial targetPointers,
+                                             DeletableContentAddressedStorage targetStorage,
+                                             TransactionStore transactions) {
         if (! updated.isPresent()) {
             Logging.LOG().log(Level.WARNING, "Skipping unretrievable mutable pointer for: " + writer);
             return;
         }
         Optional<byte[]> existing = targetPointers.getPointer(writer).join();
-        // First pin the new root, then commit updated pointer
         byte[] newPointer = updated.get();
+        if (existing.isPresent() && Arrays.equals(existing.get(), newPointer))
+            return;
         MaybeMultihash existingTarget = existing.isPresent() ?
                 MutablePointers.parsePointerTarget(existing.get(), writer, source.dhtClient).join() :
                 MaybeMultihash.empty();
@@ -72,13 +157,60 @@ public class Mirror {
         if (! updatedTarget.isPresent()) {
             // The writing key must have been deleted
             if (existingTarget.isPresent())
-                targetStorage.recursiveUnpin(owner, existingTarget.get());
+                targetStorage.recursiveUnpin(owner, existingTarget.get()).join();
+            targetPointers.setPointer(writer, existing, newPointer).join();
+            return;
+        }
+        // First retrieve all the new blocks, then pin the new root, then commit updated pointer
+        TransactionId tid = transactions.startTransaction(owner);
+        try {
+            mirrorDiff(existingTarget.toOptional(), updatedTarget.get(), owner, targetStorage, transactions, tid);
+            // Block stores which are garbage collected by pins (e.g. IPFS without Peergos GC) need the root pinned
+            if (existingTarget.isPresent())
+                targetStorage.pinUpdate(owner, existingTarget.get(), updatedTarget.get()).join();
+            else
+                targetStorage.recursivePin(owner, updatedTarget.get()).join();
+            targetPointers.setPointer(writer, existing, newPointer).join();
+        } finally {
+            transactions.closeTransaction(owner, tid);
+        }
+    }
+
+    /** Retrieve all the blocks under updated which are not under existing. The blocks under existing are assumed to
+     *  be local already.
+     *
+     * @param existing
+     * @param updated
+     */
+    private static void mirrorDiff(Optional<Multihash> existing,
+                                   Multihash updated,
+                                   PublicKeyHash owner,
+                                   DeletableContentAddressedStorage targetStorage,
+                                   TransactionStore transactions,
+                                   TransactionId tid) {
+        if (updated.isIdentity() || existing.isPresent() && existing.get().equals(updated))
             return;
+        transactions.addBlock(updated, tid, owner);
+        Optional<byte[]> raw = targetStorage.getRaw(updated).join();
+        if (! raw.isPresent())
+            throw new IllegalStateException("Couldn't retrieve block " + updated);
+        mirroredBlocks.inc();
+        mirroredBytes.inc(raw.get().length);
+        if (updated instanceof Cid && ((Cid) updated).codec == Cid.Codec.Raw)
+            return;
+
+        List<Multihash> before = existing.isPresent() ?
+                targetStorage.getLinks(existing.get()).join() :
+                Collections.emptyList();
+        List<Multihash> after = CborObject.fromByteArray(raw.get()).links();
+        List<Multihash> onlyAfter = new ArrayList<>(after);
+        onlyAfter.removeAll(before);
+        List<Multihash> onlyBefore = new ArrayList<>(before);
+        onlyBefore.removeAll(after);
+        // Pair up changed links to diff against, which is a good match for champs and other persistent structures
+        for (int i = 0; i < onlyAfter.size(); i++) {
+            Optional<Multihash> prior = i < onlyBefore.size() ? Optional.of(onlyBefore.get(i)) : Optional.empty();
+            mirrorDiff(prior, onlyAfter.get(i), owner, targetStorage, transactions, tid);
         }
-        if (existingTarget.isPresent())
-            targetStorage.pinUpdate(owner, existingTarget.get(), updatedTarget.get()).join();
-        else
-            targetStorage.recursivePin(owner, updatedTarget.get()).join();
-        targetPointers.setPointer(writer, existing, newPointer).join();
     }
 }
@@ -0,0 +1,299 @@
+package peergos.server;
+
+import io.prometheus.client.Gauge;
+import peergos.server.corenode.*;
+import peergos.server.storage.*;
+import peergos.server.util.*;
+import peergos.shared.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.user.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/** A long running mirror of the data of a set of users.
+ *
+ *  The pointers of the writers of each mirrored user are polled from the source in a single call, with users polled in
+ *  parallel. Changed writers are queued, with repeated changes to a queued writer coalesced, and mirrored by a pool of
+ *  workers using Mirror.mirrorMutableSubspace, so only new blocks are retrieved. Owned keys are re-resolved after a
+ *  user's writers change, and the set of users is refreshed periodically and whenever a corenode event is received.
+ */
+public class MirrorDaemon {
+    private static final Logger LOG = Logging.LOG();
+    public static final long DEFAULT_POLL_PERIOD_MILLIS = 5_000;
+    public static final long USER_REFRESH_PERIOD_MILLIS = 10 * 60_000;
+
+    private static final Gauge userLag = Gauge.build()
+            .labelNames("username")
+            .name("mirror_user_lag_seconds")
+            .help("Time since the oldest change to a user which has not yet been mirrored")
+            .register();
+    private static final Gauge queuedWriters = Gauge.build()
+            .name("mirror_queued_writers")
+            .help("Number of writers waiting to be mirrored")
+            .register();
+
+    private static class MirroredWriter {
+        public final String username;
+        public final PublicKeyHash owner;
+
+        public MirroredWriter(String username, PublicKeyHash owner) {
+            this.username = username;
+            this.owner = owner;
+        }
+    }
+
+    private static class QueuedWriter {
+        public final PublicKeyHash writer;
+        public final String username;
+
+        public QueuedWriter(PublicKeyHash writer, String username) {
+            this.writer = writer;
+            this.username = username;
+        }
+    }
+
+    private final Supplier<Collection<String>> users;
+    private final Predicate<String> isMirrored;
+    private final NetworkAccess source;
+    private final JdbcIpnsAndSocial targetPointers;
+    private final DeletableContentAddressedStorage targetStorage;
+    private final TransactionStore transactions;
+    private final int parallelism;
+    private final long pollPeriodMillis;
+
+    private final Map<PublicKeyHash, MirroredWriter> writers = new ConcurrentHashMap<>();
+    private final Map<String, Set<PublicKeyHash>> userWriters = new ConcurrentHashMap<>();
+    // time of the oldest change we have seen which hasn't been mirrored, per user
+    private final Map<String, Long> oldestUnmirrored = new ConcurrentHashMap<>();
+    private final Map<String, Integer> inFlight = new ConcurrentHashMap<>();
+    private final Set<PublicKeyHash> queued = ConcurrentHashMap.newKeySet();
+    // users who have had a writer mirrored since their owned keys were last resolved
+    private final Set<String> writersChanged = ConcurrentHashMap.newKeySet();
+    private final BlockingQueue<QueuedWriter> queue = new LinkedBlockingQueue<>();
+    private final ExecutorService pollers, workers;
+    private final ScheduledExecutorService scheduler;
+    private volatile long lastUserRefresh = 0;
+    private volatile boolean running = false;
+
+    /**
+     *
+     * @param users supplies the full set of users to mirror
+     * @param isMirrored whether a single user should be mirrored
+     */
+    public MirrorDaemon(Supplier<Collection<String>> users,
+                        Predicate<String> isMirrored,
+                        NetworkAccess source,
+                        JdbcIpnsAndSocial targetPointers,
+                        DeletableContentAddressedStorage targetStorage,
+                        TransactionStore transactions,
+                        int parallelism,
+                        long pollPeriodMillis) {
+        this.users = users;
+        this.isMirrored = isMirrored;
+        this.source = source;
+        this.targetPointers = targetPointers;
+        this.targetStorage = targetStorage;
+        this.transactions = transactions;
+        this.parallelism = parallelism;
+        this.pollPeriodMillis = pollPeriodMillis;
+        this.pollers = Executors.newFixedThreadPool(parallelism);
+        this.workers = Executors.newFixedThreadPool(parallelism);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "Mirror poller"));
+    }
+
+    public static MirrorDaemon forNode(Multihash nodeId,
+                                       NetworkAccess source,
+                                       JdbcIpnsAndSocial targetPointers,
+                                       DeletableContentAddressedStorage targetStorage,
+                                       TransactionStore transactions,
+                                       int parallelism,
+                                       long pollPeriodMillis) {
+        Predicate<String> isStoredOnNode = username -> Mirror.isStoredOn(username, nodeId, source.coreNode);
+        return new MirrorDaemon(() -> source.coreNode.getUsernames("").join(), isStoredOnNode, source,
+                targetPointers, targetStorage, transactions, parallelism, pollPeriodMillis);
+    }
+
+    public static MirrorDaemon forUser(String username,
+                                       NetworkAccess source,
+                                       JdbcIpnsAndSocial targetPointers,
+                                       DeletableContentAddressedStorage targetStorage,
+                                       TransactionStore transactions,
+                                       int parallelism,
+                                       long pollPeriodMillis) {
+        return new MirrorDaemon(() -> Collections.singletonList(username), username::equals, source,
+                targetPointers, targetStorage, transactions, parallelism, pollPeriodMillis);
+    }
+
+    public synchronized void start() {
+        if (running)
+            return;
+        running = true;
+        for (int i=0; i < parallelism; i++)
+            workers.submit(this::processQueue);
+        scheduler.scheduleWithFixedDelay(this::pollQuietly, 0, pollPeriodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        running = false;
+        scheduler.shutdownNow();
+        pollers.shutdownNow();
+        workers.shutdownNow();
+        queuedWriters.dec(queued.size());
+    }
+
+    /** Re-evaluate a user after their chain has changed, e.g. from MirrorCoreNode
+     *
+     * @param event
+     */
+    public void accept(CorenodeEvent event) {
+        pollers.submit(() -> refreshUser(event.username, true));
+    }
+
+    private void pollQuietly() {
+        try {
+            poll();
+        } catch (Throwable t) {
+            LOG.log(Level.WARNING, "Error polling mirror source: " + t.getMessage(), t);
+        }
+    }
+
+    private void poll() {
+        long now = System.currentTimeMillis();
+        if (now - lastUserRefresh > USER_REFRESH_PERIOD_MILLIS) {
+            forEachInParallel(users.get(), username -> refreshUser(username, false));
+            lastUserRefresh = now;
+        }
+        // new writers are added to the data of an existing writer
+        List<String> toResolve = new ArrayList<>(writersChanged);
+        writersChanged.removeAll(toResolve);
+        forEachInParallel(toResolve, this::updateWriters);
+        forEachInParallel(new ArrayList<>(userWriters.keySet()), username -> {
+            List<PublicKeyHash> userKeys = userWriters.getOrDefault(username, Collections.emptySet()).stream()
+                    .filter(writers::containsKey)
+                    .collect(Collectors.toList());
+            if (userKeys.isEmpty())
+                return;
+            PublicKeyHash owner = writers.get(userKeys.get(0)).owner;
+            Map<PublicKeyHash, byte[]> latest = source.mutable.getPointers(owner, userKeys).join();
+            Map<PublicKeyHash, byte[]> mirrored = targetPointers.getPointers(userKeys).join();
+            for (Map.Entry<PublicKeyHash, byte[]> e : latest.entrySet()) {
+                byte[] local = mirrored.get(e.getKey());
+                if (local == null || ! Arrays.equals(local, e.getValue()))
+                    enqueue(e.getKey(), username);
+            }
+        });
+        for (Map.Entry<String, Long> e : oldestUnmirrored.entrySet())
+            userLag.labels(e.getKey()).set((now - e.getValue()) / 1000.0);
+    }
+
+    private <T> void forEachInParallel(Collection<T> items, Consumer<T> task) {
+        List<Future<?>> futures = new ArrayList<>();
+        for (T item : items)
+            futures.add(pollers.submit(() -> task.accept(item)));
+        for (Future<?> f : futures) {
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                LOG.log(Level.WARNING, e.getCause().getMessage(), e.getCause());
+            }
+        }
+    }
+
+    /** Update the set of writers of a user, queueing any new writers
+     *
+     * @param username
+     * @param changed whether the user's chain has changed
+     */
+    private void refreshUser(String username, boolean changed) {
+        if (! isMirrored.test(username)) {
+            Set<PublicKeyHash> removed = userWriters.remove(username);
+            if (removed != null)
+                removed.forEach(writers::remove);
+            return;
+        }
+        if (changed || ! userWriters.containsKey(username))
+            updateWriters(username);
+    }
+
+    private void updateWriters(String username) {
+        Optional<PublicKeyHash> identity = source.coreNode.getPublicKeyHash(username).join();
+        if (! identity.isPresent())
+            return;
+        Set<PublicKeyHash> ownedKeys = WriterData.getOwnedKeysRecursive(username, source.coreNode, source.mutable,
+                source.dhtClient, source.hasher).join();
+        Set<PublicKeyHash> existing = userWriters.getOrDefault(username, Collections.emptySet());
+        for (PublicKeyHash writer : ownedKeys) {
+            writers.put(writer, new MirroredWriter(username, identity.get()));
+            if (! existing.contains(writer))
+                enqueue(writer, username);
+        }
+        for (PublicKeyHash writer : existing)
+            if (! ownedKeys.contains(writer))
+                writers.remove(writer);
+        userWriters.put(username, ownedKeys);
+    }
+
+    private void enqueue(PublicKeyHash writer, String username) {
+        oldestUnmirrored.putIfAbsent(username, System.currentTimeMillis());
+        if (queued.add(writer)) {
+            inFlight.merge(username, 1, Integer::sum);
+            queue.add(new QueuedWriter(writer, username));
+            // the gauge is shared by every daemon in this process
+            queuedWriters.inc();
+        }
+    }
+
+    private void processQueue() {
+        while (running) {
+            QueuedWriter next;
+            try {
+                next = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            PublicKeyHash writer = next.writer;
+            // any change after this point will re-queue the writer
+            if (queued.remove(writer))
+                queuedWriters.dec();
+            MirroredWriter w = writers.get(writer);
+            if (w == null) {
+                // the writer was removed while queued, so there is nothing left to mirror
+                finishedWriter(next.username, true);
+                continue;
+            }
+            boolean success = false;
+            try {
+                Mirror.mirrorMutableSubspace(w.owner, writer, source, targetPointers, targetStorage, transactions);
+                writersChanged.add(w.username);
+                success = true;
+            } catch (Throwable t) {
+                LOG.log(Level.WARNING, "Couldn't mirror writer " + writer + ": " + t.getMessage(), t);
+            } finally {
+                finishedWriter(next.username, success);
+            }
+        }
+    }
+
+    /** Once all the queued writers of a user have been mirrored the user is up to date. A failed writer will be
+     *  queued again by the next poll, so the user's lag keeps growing until it succeeds.
+     *
+     * @param username
+     * @param success
+     */
+    private void finishedWriter(String username, boolean success) {
+        Integer remaining = inFlight.computeIfPresent(username, (u, n) -> n > 1 ? n - 1 : null);
+        if (remaining == null && success) {
+            oldestUnmirrored.remove(username);
+            userLag.labels(username).set(0);
+        }
+    }
+}
@@ -5,6 +5,7 @@ import peergos.shared.*;
 import peergos.shared.corenode.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.mutable.*;
 import peergos.shared.user.*;
 
 import java.net.*;
@@ -43,8 +44,9 @@ public class PinChecker {
             try {
                 Set<PublicKeyHash> allWriters = WriterData.getOwnedKeysRecursive(owner, owner, network.mutable,
                         network.dhtClient, network.hasher).join();
-                Set<Multihash> allRoots = allWriters.stream()
-                        .map(w -> network.mutable.getPointerTarget(owner, w, network.dhtClient).join())
+                Map<PublicKeyHash, byte[]> pointers = network.mutable.getPointers(owner, new ArrayList<>(allWriters)).join();
+                Set<Multihash> allRoots = pointers.entrySet().stream()
+                        .map(e -> MutablePointers.parsePointerTarget(e.getValue(), e.getKey(), network.dhtClient).join())
                         .filter(m -> m.isPresent())
                         .map(m -> m.get())
                         .collect(Collectors.toSet());
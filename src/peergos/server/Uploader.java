@@ -1,120 +1,408 @@
 package peergos.server;
 
 import peergos.server.storage.*;
+import peergos.server.util.*;
 import peergos.shared.*;
 import peergos.shared.user.*;
 import peergos.shared.user.fs.*;
+import peergos.shared.util.*;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.*;
 import java.nio.file.*;
+import java.security.*;
+import java.time.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.function.*;
 import java.util.stream.*;
 
+/** Upload a local file or directory tree into a Peergos directory.
+ *
+ *  The local tree is scanned first, in parallel, and files which are already present remotely with the same size, and
+ *  which were uploaded after their local modification time, are skipped. The remaining files are grouped into batches,
+ *  each of which is uploaded with a single update of the writer, creating its directories and linking all its new
+ *  files to each directory at once, and committing the writer's pointer periodically rather than after every file.
+ *  Batches are uploaded one at a time, as every update of the target's writer is serialised anyway, and files are read
+ *  one chunk at a time, so memory use is bounded by a single batch.
+ *
+ *  Each completed batch is recorded in a checkpoint file, so an interrupted upload can be resumed by running it again.
+ */
 public class Uploader {
+    private static final int SCAN_PARALLELISM = 4;
+
+    private final NetworkAccess network;
+    private final Crypto crypto;
+    private final int maxBatchFiles;
+    private final Path checkpointFile;
+    private final AtomicLong bytesUploaded = new AtomicLong(0);
+    // already present remotely, or in the checkpoint from a previous run
+    private final AtomicLong bytesSkipped = new AtomicLong(0);
+    private final AtomicLong totalBytes = new AtomicLong(0);
+    private final AtomicInteger filesDone = new AtomicInteger(0);
+    private final AtomicInteger filesSkipped = new AtomicInteger(0);
+    private final AtomicInteger totalFiles = new AtomicInteger(0);
+    private final AtomicInteger errors = new AtomicInteger(0);
+
+    /**
+     *
+     * @param network
+     * @param crypto
+     * @param maxBatchFiles the maximum number of files in a batch
+     * @param checkpointFile where to record completed files, so an interrupted upload can be resumed
+     */
+    public Uploader(NetworkAccess network, Crypto crypto, int maxBatchFiles, Path checkpointFile) {
+        if (maxBatchFiles < 1)
+            throw new IllegalArgumentException("Batch size must be positive!");
+        this.network = network;
+        this.crypto = crypto;
+        this.maxBatchFiles = maxBatchFiles;
+        this.checkpointFile = checkpointFile;
+    }
 
     public static void main(String[] args) throws Exception {
         Crypto crypto = Main.initCrypto();
-        NetworkAccess network = Builder.buildJavaNetworkAccess(new URL("https://demo.peergos.net"), true).get();
         String username = args[0];
         String fromPath = args[1];
         String toPath = args[2];
+        // any further args are options, e.g. -block-cache true
+        Args options = Args.parse(Arrays.copyOfRange(args, 3, args.length));
+        NetworkAccess network = Builder.withBlockCache(
+                Builder.buildJavaNetworkAccess(new URL("https://demo.peergos.net"), true).get(), options);
         Console console = System.console();
         String password = new String(console.readPassword("Enter password for " + username + ":"));
         UserContext context = UserContext.signIn(username, password, network, crypto).get();
-        ForkJoinPool pool = new ForkJoinPool(1);
+        Path checkpoint = Paths.get(options.getArg("checkpoint",
+                defaultCheckpoint(username, Paths.get(fromPath), Paths.get(toPath)).toString()));
+        Uploader uploader = new Uploader(context.network, crypto, options.getInt("batch-files", 100), checkpoint);
         long t1 = System.currentTimeMillis();
-        try {
-            uploadTo(context, Paths.get(fromPath), Paths.get(toPath), props -> true, pool);
-        } finally {
-            pool.shutdown();
-        }
+        uploader.uploadTo(context, Paths.get(fromPath), Paths.get(toPath), f -> true);
         long t2 = System.currentTimeMillis();
         System.out.println("Upload took " + (t2-t1) + " mS");
     }
 
-    private static void createPath(FileWrapper parent, Path path, NetworkAccess network, Crypto crypto) throws Exception {
-        String name = path.getName(0).toString();
-        Optional<FileWrapper> child = parent.getChild(name, crypto.hasher, network).get();
-        if (path.getNameCount() == 1) {
-            if (! child.isPresent())
-                parent.mkdir(name, network, false, crypto).get();
-            return;
+    /**
+     *
+     * @return a checkpoint file under ~/.peergos which is unique to this source and target
+     */
+    private static Path defaultCheckpoint(String username, Path localSource, Path targetDir) throws Exception {
+        String id = username + "\t" + localSource.toAbsolutePath().normalize() + "\t" + targetDir;
+        byte[] hash = MessageDigest.getInstance("SHA-256").digest(id.getBytes(StandardCharsets.UTF_8));
+        return Paths.get(System.getProperty("user.home"), ".peergos", "uploads",
+                ArrayOps.bytesToHex(Arrays.copyOfRange(hash, 0, 16)));
+    }
+
+    /** A local file to upload
+     */
+    private static class LocalFile {
+        public final File file;
+        public final String key;
+
+        public LocalFile(File file, String key) {
+            this.file = file;
+            this.key = key;
+        }
+    }
+
+    /** A directory, relative to the upload target, and the files to upload into it
+     */
+    private static class DirTask {
+        public final List<String> relativePath;
+        public final List<LocalFile> files;
+
+        public DirTask(List<String> relativePath, List<LocalFile> files) {
+            this.relativePath = relativePath;
+            this.files = files;
+        }
+    }
+
+    /** Records completed files, keyed by relative path, size and modification time, so that a local file which has
+     *  changed since is uploaded again
+     */
+    private static class Checkpoint implements Closeable {
+        private final Path file;
+        private final Set<String> completed = new HashSet<>();
+        private final Writer out;
+
+        public Checkpoint(Path file) throws IOException {
+            this.file = file;
+            Path parent = file.toAbsolutePath().getParent();
+            if (! parent.toFile().exists() && ! parent.toFile().mkdirs())
+                throw new IllegalStateException("Couldn't create " + parent);
+            if (file.toFile().exists())
+                completed.addAll(Files.readAllLines(file, StandardCharsets.UTF_8));
+            this.out = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(file.toFile(), true), StandardCharsets.UTF_8));
+        }
+
+        public synchronized boolean isDone(String key) {
+            return completed.contains(key);
+        }
+
+        public synchronized void done(List<String> keys) {
+            try {
+                for (String key : keys)
+                    if (completed.add(key))
+                        out.write(key + "\n");
+                out.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        public void delete() throws IOException {
+            close();
+            Files.deleteIfExists(file);
         }
-        Path subpath = path.subpath(1, path.getNameCount());
 
-        if (! child.isPresent() && path.getNameCount() > 1) {
-            parent.mkdir(name, network, false, crypto).get();
-            createPath(child.get(), subpath, network, crypto);
-        } else
-            createPath(child.get(), subpath, network, crypto);
+        @Override
+        public synchronized void close() throws IOException {
+            out.close();
+        }
+    }
+
+    private static String toKey(List<String> relativeDir, File file) {
+        String path = Stream.concat(relativeDir.stream(), Stream.of(file.getName()))
+                .collect(Collectors.joining("/"))
+                .replace('\t', ' ');
+        return path + "\t" + file.length() + "\t" + file.lastModified();
+    }
+
+    private static boolean alreadyUploaded(FileProperties remote, File local) {
+        // the remote modification time is the upload time, and file systems may only store times to the second
+        long uploaded = remote.modified.toInstant(ZonedDateTime.now().getOffset()).toEpochMilli();
+        return ! remote.isDirectory && remote.size == local.length() && uploaded / 1000 >= local.lastModified() / 1000;
     }
 
     /**
      *
      * @param context The target user to upload the files to
      * @param localSource path to a local file/directory to upload
-     * @param targetDir the peergos path to upload to the subtree to
+     * @param targetDir the peergos path to upload the subtree to, which is created if necessary
      * @param filter the selection of files/directories to upload
-     * @param pool thread pool
      * @throws Exception
      */
-    public static void uploadTo(UserContext context,
-                                Path localSource,
-                                Path targetDir,
-                                Predicate<File> filter,
-                                ForkJoinPool pool) throws Exception {
-        if (! localSource.toFile().exists())
-            throw new IllegalStateException("Local source " + localSource + " doesn't exist!");
-        Optional<FileWrapper> file = context.getByPath(targetDir.toString()).get();
-        if (! file.isPresent()) {
-            Optional<FileWrapper> root = context.getByPath("/").get();
-            createPath(root.get(), targetDir, context.network, context.crypto);
-            pool.submit(() -> uploadTo(context, localSource, targetDir, filter)).get();
-        } else
-            pool.submit(() -> uploadTo(context, localSource, targetDir, filter)).get();
-    }
-
-    public static void uploadTo(UserContext context,
-                                Path source,
-                                Path targetParent,
-                                Predicate<File> filter) {
-        File file = source.toFile();
-        if (!filter.test(file))
+    public void uploadTo(UserContext context,
+                         Path localSource,
+                         Path targetDir,
+                         Predicate<File> filter) throws Exception {
+        Optional<FileWrapper> target = context.getByPath(targetDir.toString()).get();
+        if (target.isPresent()) {
+            uploadTo(target.get(), localSource, filter);
             return;
-        Optional<FileWrapper> existing = context.getByPath(targetParent.resolve(file.getName()).toString()).join();
+        }
+        if (targetDir.getNameCount() < 2 || ! targetDir.getName(0).toString().equals(context.username))
+            throw new IllegalStateException("Couldn't find " + targetDir);
+        FileWrapper created = context.getUserRoot().get()
+                .getOrMkdirs(targetDir.subpath(1, targetDir.getNameCount()), network, false, crypto).get();
+        uploadTo(created, localSource, filter);
+    }
 
-        System.out.println("Uploading " + file);
-        if (file.isDirectory()) {
+    public void uploadTo(FileWrapper targetDir, Path localSource, Predicate<File> filter) throws Exception {
+        File source = localSource.toFile();
+        if (! source.exists())
+            throw new IllegalStateException("Local source " + localSource + " doesn't exist!");
+        long t0 = System.currentTimeMillis();
+        List<DirTask> dirs;
+        try (Checkpoint checkpoint = new Checkpoint(checkpointFile)) {
+            ForkJoinPool scanningPool = new ForkJoinPool(SCAN_PARALLELISM);
             try {
-                if (! existing.isPresent())
-                    context.getByPath(targetParent.toString()).join().get()
-                            .mkdir(file.getName(), context.network, false, context.crypto).get();
-
-                Optional<FileWrapper> childDir = context.getByPath(targetParent.resolve(source.getFileName()).toString()).join();
-                childDir.ifPresent(newDir -> Optional.ofNullable(file.list())
-                        .map(Stream::of)
-                        .orElse(Stream.empty())
-                        .parallel()
-                        .map(source::resolve)
-                        .forEach(childPath -> uploadTo(context, childPath, targetParent.resolve(file.getName()), filter)));
-            } catch (Exception e) {
-                System.err.println("Error uploading children of " + source);
-                e.printStackTrace();
+                dirs = scanningPool.submit(() -> source.isDirectory() ?
+                        scan(targetDir, source, Collections.singletonList(source.getName()), filter, checkpoint) :
+                        scanFiles(targetDir, Collections.emptyList(), Collections.singletonList(source), checkpoint)
+                                .map(Collections::singletonList)
+                                .orElse(Collections.emptyList())).get();
+            } finally {
+                scanningPool.shutdown();
             }
-        } else {
+            List<List<DirTask>> batches = batch(dirs);
+            long toUpload = dirs.stream().flatMap(d -> d.files.stream()).mapToLong(f -> f.file.length()).sum();
+            totalBytes.set(toUpload + bytesSkipped.get());
+            totalFiles.set(filesSkipped.get() + (int) dirs.stream().mapToLong(d -> d.files.size()).sum());
+            System.out.println("Found " + totalFiles.get() + " files totalling " + totalBytes.get() + " bytes, "
+                    + filesSkipped.get() + " already uploaded");
+
+            ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+            reporter.scheduleAtFixedRate(() -> printProgress(t0), 5, 5, TimeUnit.SECONDS);
             try {
-                ResetableFileInputStream fileData = new ResetableFileInputStream(file);
-                FileWrapper parent = context.getByPath(targetParent.toString()).join().get();
-                parent.uploadOrReplaceFile(file.getName(), fileData, file.length(),
-                        context.network, context.crypto, l -> {},
-                        context.crypto.random.randomBytes(32)).get();
-            } catch (Exception e) {
-                System.err.println("Error uploading " + source);
-                e.printStackTrace();
+                for (List<DirTask> batch : batches)
+                    uploadBatch(targetDir, batch, checkpoint);
+            } finally {
+                reporter.shutdown();
             }
+            if (errors.get() == 0)
+                checkpoint.delete();
+        }
+        printProgress(t0);
+        if (errors.get() > 0)
+            System.err.println(errors.get() + " files failed to upload, run again to resume");
+    }
+
+    public int filesUploaded() {
+        return filesDone.get();
+    }
+
+    public int filesSkipped() {
+        return filesSkipped.get();
+    }
+
+    public long bytesUploaded() {
+        return bytesUploaded.get();
+    }
+
+    public int errors() {
+        return errors.get();
+    }
+
+    private void printProgress(long startTime) {
+        long duration = Math.max(1, System.currentTimeMillis() - startTime);
+        long bytes = bytesUploaded.get();
+        System.out.println(String.format("%d/%d files (%d skipped), %d/%d MiB (%d MiB already present), %.2f MiB/s",
+                filesDone.get() + filesSkipped.get(), totalFiles.get(), filesSkipped.get(),
+                (bytes + bytesSkipped.get()) / 1024 / 1024, totalBytes.get() / 1024 / 1024,
+                bytesSkipped.get() / 1024 / 1024, bytes * 1000.0 / 1024 / 1024 / duration));
+    }
+
+    private void skip(File file) {
+        filesSkipped.incrementAndGet();
+        bytesSkipped.addAndGet(file.length());
+    }
+
+    private List<DirTask> scan(FileWrapper targetDir,
+                               File dir,
+                               List<String> relativePath,
+                               Predicate<File> filter,
+                               Checkpoint checkpoint) {
+        if (! filter.test(dir))
+            return Collections.emptyList();
+        File[] children = dir.listFiles();
+        List<File> files = new ArrayList<>();
+        List<File> subdirs = new ArrayList<>();
+        for (File child : children == null ? new File[0] : children) {
+            if (child.isDirectory())
+                subdirs.add(child);
+            else if (filter.test(child))
+                files.add(child);
+        }
+        Optional<DirTask> us = scanFiles(targetDir, relativePath, files, checkpoint);
+        return Stream.concat(us.stream(), subdirs.stream()
+                .parallel()
+                .flatMap(sub -> {
+                    List<String> subPath = new ArrayList<>(relativePath);
+                    subPath.add(sub.getName());
+                    return scan(targetDir, sub, subPath, filter, checkpoint).stream();
+                }))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     *
+     * @return the files in a directory which need uploading, if any, or if the directory needs to be created
+     */
+    private Optional<DirTask> scanFiles(FileWrapper targetDir,
+                                        List<String> relativePath,
+                                        List<File> files,
+                                        Checkpoint checkpoint) {
+        List<LocalFile> candidates = new ArrayList<>();
+        for (File file : files) {
+            String key = toKey(relativePath, file);
+            if (checkpoint.isDone(key))
+                skip(file);
+            else
+                candidates.add(new LocalFile(file, key));
+        }
+        // a directory with checkpointed files must already exist, so there is no need to look it up
+        if (candidates.isEmpty() && ! files.isEmpty())
+            return Optional.empty();
+
+        Optional<FileWrapper> remote = relativePath.isEmpty() ?
+                Optional.of(targetDir) :
+                targetDir.getDescendentByPath(String.join("/", relativePath), crypto.hasher, network).join();
+        if (remote.isEmpty())
+            return Optional.of(new DirTask(relativePath, candidates));
+        if (! remote.get().isDirectory())
+            throw new IllegalStateException("Can't upload directory over a file: " + String.join("/", relativePath));
+        if (candidates.isEmpty())
+            return Optional.empty();
+        Map<String, FileProperties> existing = remote.get().getChildren(crypto.hasher, network).join().stream()
+                .map(FileWrapper::getFileProperties)
+                .collect(Collectors.toMap(p -> p.name, p -> p, (a, b) -> a));
+        List<LocalFile> toUpload = new ArrayList<>();
+        for (LocalFile candidate : candidates) {
+            FileProperties props = existing.get(candidate.file.getName());
+            if (props != null && alreadyUploaded(props, candidate.file))
+                skip(candidate.file);
+            else
+                toUpload.add(candidate);
+        }
+        if (toUpload.isEmpty())
+            return Optional.empty();
+        return Optional.of(new DirTask(relativePath, toUpload));
+    }
+
+    /** Group directories into batches of at most maxBatchFiles files, splitting large directories
+     */
+    private List<List<DirTask>> batch(List<DirTask> dirs) {
+        List<List<DirTask>> batches = new ArrayList<>();
+        List<DirTask> current = new ArrayList<>();
+        int count = 0;
+        for (DirTask dir : dirs) {
+            if (dir.files.isEmpty()) {
+                current.add(dir);
+                continue;
+            }
+            for (int start = 0; start < dir.files.size(); ) {
+                int end = Math.min(dir.files.size(), start + maxBatchFiles - count);
+                current.add(new DirTask(dir.relativePath, dir.files.subList(start, end)));
+                count += end - start;
+                start = end;
+                if (count == maxBatchFiles) {
+                    batches.add(current);
+                    current = new ArrayList<>();
+                    count = 0;
+                }
+            }
+        }
+        if (! current.isEmpty())
+            batches.add(current);
+        return batches;
+    }
+
+    private void uploadBatch(FileWrapper targetDir, List<DirTask> batch, Checkpoint checkpoint) {
+        // files are only opened once they are uploaded, and closed at the end of the batch
+        List<AsyncReader> opened = Collections.synchronizedList(new ArrayList<>());
+        List<FileWrapper.FolderUploadProperties> folders = batch.stream()
+                .map(dir -> new FileWrapper.FolderUploadProperties(dir.relativePath, dir.files.stream()
+                        .map(f -> new FileWrapper.FileUploadProperties(f.file.getName(), () -> {
+                            try {
+                                AsyncReader reader = new ResetableFileInputStream(f.file);
+                                opened.add(reader);
+                                return reader;
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        }, f.file.length(), bytesUploaded::addAndGet))
+                        .collect(Collectors.toList())))
+                .collect(Collectors.toList());
+        List<String> keys = batch.stream()
+                .flatMap(d -> d.files.stream())
+                .map(f -> f.key)
+                .collect(Collectors.toList());
+        try {
+            targetDir.uploadSubtree(folders, maxBatchFiles, network, crypto, x -> {}).join();
+            checkpoint.done(keys);
+            filesDone.addAndGet(keys.size());
+        } catch (Exception e) {
+            errors.addAndGet(keys.size());
+            String dirs = batch.stream()
+                    .map(d -> String.join("/", d.relativePath))
+                    .distinct()
+                    .collect(Collectors.joining(", "));
+            System.err.println("Error uploading " + keys.size() + " files to " + dirs + ": " + e.getMessage());
+        } finally {
+            opened.forEach(AsyncReader::close);
         }
     }
-}
\ No newline at end of file
+}
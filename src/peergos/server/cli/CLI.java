@@ -10,6 +10,7 @@ import org.jline.utils.*;
 import peergos.server.*;
 import peergos.server.simulation.*;
 import peergos.server.simulation.FileSystem;
+import peergos.server.util.Args;
 import peergos.server.util.Logging;
 import peergos.shared.*;
 import peergos.shared.social.FollowRequestWithCipherText;
@@ -546,7 +547,7 @@ public class CLI implements Runnable {
      * @return
      */
 
-    public static CLIContext buildContextFromCLI() {
+    public static CLIContext buildContextFromCLI(Args args) {
         Terminal terminal = buildTerminal();
 
         DefaultParser parser = new DefaultParser();
@@ -571,7 +572,7 @@ public class CLI implements Runnable {
         } catch (MalformedURLException ex) {
             writer.println("Specified server " + address + " is not valid!");
             writer.flush();
-            return buildContextFromCLI();
+            return buildContextFromCLI(args);
         }
 
         writer.println("Enter username");
@@ -580,7 +581,8 @@ public class CLI implements Runnable {
         writer.println("Enter password for '" + username + "'");
         String password = reader.readLine(PROMPT, PASSWORD_MASK);
 
-        NetworkAccess networkAccess = Builder.buildJavaNetworkAccess(serverURL, serverURL.getHost().equals("localhost")).join();
+        NetworkAccess networkAccess = Builder.withBlockCache(
+                Builder.buildJavaNetworkAccess(serverURL, serverURL.getHost().equals("localhost")).join(), args);
         Consumer<String> progressConsumer =  msg -> {
             writer.println(msg);
             writer.flush();
@@ -656,7 +658,7 @@ public class CLI implements Runnable {
     public static void main(String[] args) {
         CRYPTO = Main.initCrypto();
         Logging.LOG().setLevel(Level.WARNING);
-        CLIContext cliContext = buildContextFromCLI();
+        CLIContext cliContext = buildContextFromCLI(Args.parse(args));
         new CLI(cliContext).run();
     }
 }
@@ -54,6 +54,11 @@ public class CorenodeEventPropagator implements CoreNode {
         return target.getUsernames(prefix);
     }
 
+    @Override
+    public CompletableFuture<List<String>> getUsernames(String prefix, int limit) {
+        return target.getUsernames(prefix, limit);
+    }
+
     @Override
     public void close() throws IOException {
 
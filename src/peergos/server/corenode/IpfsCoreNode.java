@@ -33,7 +33,7 @@ public class IpfsCoreNode implements CoreNode {
 
     private final Map<String, List<UserPublicKeyLink>> chains = new ConcurrentHashMap<>();
     private final Map<PublicKeyHash, String> reverseLookup = new ConcurrentHashMap<>();
-    private final List<String> usernames = new ArrayList<>();
+    private final NavigableSet<String> usernames = new ConcurrentSkipListSet<>();
     private final DifficultyGenerator difficultyGenerator;
 
     private MaybeMultihash currentRoot;
@@ -82,7 +82,7 @@ public class IpfsCoreNode implements CoreNode {
                                          ContentAddressedStorage ipfs,
                                          Map<String, List<UserPublicKeyLink>> chains,
                                          Map<PublicKeyHash, String> reverseLookup,
-                                         List<String> usernames) {
+                                         Set<String> usernames) {
         try {
             MaybeMultihash currentTree = getTreeRoot(currentChampRoot, ipfs);
             MaybeMultihash updatedTree = getTreeRoot(newChampRoot, ipfs);
@@ -103,7 +103,7 @@ public class IpfsCoreNode implements CoreNode {
                                      ContentAddressedStorage ipfs,
                                      Map<String, List<UserPublicKeyLink>> chains,
                                      Map<PublicKeyHash, String> reverseLookup,
-                                     List<String> usernames) {
+                                     Set<String> usernames) {
         try {
             Optional<CborObject> cborOpt = ipfs.get(newValue.get().target).get();
             if (!cborOpt.isPresent()) {
@@ -221,19 +221,41 @@ public class IpfsCoreNode implements CoreNode {
     }
 
     @Override
-    public synchronized CompletableFuture<List<UserPublicKeyLink>> getChain(String username) {
+    public CompletableFuture<List<UserPublicKeyLink>> getChain(String username) {
         return CompletableFuture.completedFuture(chains.getOrDefault(username, Collections.emptyList()));
     }
 
     @Override
-    public synchronized CompletableFuture<String> getUsername(PublicKeyHash key) {
+    public CompletableFuture<String> getUsername(PublicKeyHash key) {
         return CompletableFuture.completedFuture(Optional.ofNullable(reverseLookup.get(key))
                 .orElseThrow(() -> new IllegalStateException("Unknown identity key: " + key)));
     }
 
     @Override
     public CompletableFuture<List<String>> getUsernames(String prefix) {
-        return CompletableFuture.completedFuture(usernames);
+        return getUsernames(prefix, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public CompletableFuture<List<String>> getUsernames(String prefix, int limit) {
+        return CompletableFuture.completedFuture(getUsernames(usernames, prefix, limit));
+    }
+
+    /**
+     *
+     * @param usernames a sorted set of usernames
+     * @param prefix
+     * @param limit the maximum number of results
+     * @return The first limit usernames starting with prefix, in sorted order
+     */
+    public static List<String> getUsernames(NavigableSet<String> usernames, String prefix, int limit) {
+        List<String> res = new ArrayList<>();
+        for (String username : usernames.tailSet(prefix, true)) {
+            if (res.size() >= limit || ! username.startsWith(prefix))
+                break;
+            res.add(username);
+        }
+        return res;
     }
 
     @Override
@@ -1,4 +1,6 @@
 package peergos.server.corenode;
+import io.prometheus.client.Histogram;
+
 import java.util.function.*;
 import java.util.logging.*;
 
@@ -32,7 +34,19 @@ public class JdbcIpnsAndSocial {
     private static final String IPNS_TARGET_NAME = "hash";
     private static final String IPNS_CREATE = "INSERT INTO metadatablobs (writingkey, hash) VALUES(?, ?)";
     private static final String IPNS_UPDATE = "UPDATE metadatablobs SET hash=? WHERE writingkey = ? AND hash = ?";
+    private static final int MAX_POINTERS_PER_QUERY = 500;
     private static final String IPNS_GET = "SELECT * FROM metadatablobs WHERE writingKey = ? LIMIT 1;";
+    private static final String IPNS_OVERWRITE = "UPDATE metadatablobs SET hash=? WHERE writingkey = ?";
+    private static final String IPNS_GET_ALL = "SELECT writingkey, hash FROM metadatablobs";
+    private static final int ENTRY_FETCH_SIZE = 1000;
+    private static final int LOCK_STRIPES = 64;
+
+    private static final Histogram pointerTimer = Histogram.build()
+            .labelNames("op")
+            .name("mutable_pointers_db_seconds")
+            .help("Time to complete a mutable pointer operation against the pointer store")
+            .exponentialBuckets(0.00001, 2, 20)
+            .register();
 
     private class FollowRequestData {
         public final String name;
@@ -105,10 +119,54 @@ public class JdbcIpnsAndSocial {
 
     private volatile boolean isClosed;
     private Supplier<Connection> conn;
-
-    public JdbcIpnsAndSocial(Supplier<Connection> conn, SqlSupplier commands) {
+    // Every present pointer which has been read or written. This assumes we are the only writer to the pointers table.
+    // Absent pointers are not cached, as remote callers can look up arbitrary writers.
+    private final Map<PublicKeyHash, byte[]> pointers = new ConcurrentHashMap<>();
+    // Serialize CAS updates per writer
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    // Pointers which have been set, but not yet written to the database
+    private final Map<PublicKeyHash, byte[]> unsynced = new ConcurrentHashMap<>();
+    private final Object syncLock = new Object();
+    private final long syncPeriodMillis;
+    private final ScheduledExecutorService syncer;
+
+    /**
+     *
+     * @param conn
+     * @param commands
+     * @param syncPeriodMillis If zero, every pointer update is written to the database before it is acknowledged.
+     *                         Otherwise updates are only applied in memory and written to the database in batches with
+     *                         this period, which means updates from the last period are lost if the server crashes.
+     *                         Unsynced updates are also invisible to any other process using the database, so a GC
+     *                         must not run in another process while this store has unsynced pointers.
+     */
+    public JdbcIpnsAndSocial(Supplier<Connection> conn, SqlSupplier commands, long syncPeriodMillis) {
         this.conn = conn;
+        this.syncPeriodMillis = syncPeriodMillis;
+        for (int i=0; i < locks.length; i++)
+            locks[i] = new Object();
         init(commands);
+        if (syncPeriodMillis > 0) {
+            this.syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "Mutable pointer sync");
+                t.setDaemon(true);
+                return t;
+            });
+            syncer.scheduleWithFixedDelay(this::syncQuietly, syncPeriodMillis, syncPeriodMillis, TimeUnit.MILLISECONDS);
+        } else
+            this.syncer = null;
+    }
+
+    public JdbcIpnsAndSocial(Supplier<Connection> conn, SqlSupplier commands) {
+        this(conn, commands, 0);
+    }
+
+    private Object lockFor(PublicKeyHash writer) {
+        return locks[(writer.hashCode() & Integer.MAX_VALUE) % locks.length];
+    }
+
+    private static String encodeKey(PublicKeyHash writer) {
+        return new String(Base64.getEncoder().encode(writer.serialize()));
     }
 
     private Connection getConnection() {
@@ -165,86 +223,278 @@ public class JdbcIpnsAndSocial {
     }
 
     public CompletableFuture<Boolean> setPointer(PublicKeyHash writingKey, Optional<byte[]> existingCas, byte[] newCas) {
+        Histogram.Timer timer = pointerTimer.labels("set").startTimer();
+        try {
+            synchronized (lockFor(writingKey)) {
+                Optional<byte[]> current = getCachedPointer(writingKey);
+                boolean casMatches = existingCas.isPresent() ?
+                        current.isPresent() && Arrays.equals(current.get(), existingCas.get()) :
+                        ! current.isPresent();
+                if (! casMatches)
+                    return CompletableFuture.completedFuture(false);
+                if (syncPeriodMillis > 0) {
+                    unsynced.put(writingKey, newCas);
+                    pointers.put(writingKey, newCas);
+                    return CompletableFuture.completedFuture(true);
+                }
+                boolean written = writePointer(writingKey, existingCas, newCas);
+                if (written)
+                    pointers.put(writingKey, newCas);
+                else // someone else has modified the table, so re-read it next time
+                    pointers.remove(writingKey);
+                return CompletableFuture.completedFuture(written);
+            }
+        } catch (RuntimeException e) {
+            LOG.log(Level.WARNING, e.getMessage(), e);
+            return CompletableFuture.completedFuture(false);
+        } finally {
+            timer.observeDuration();
+        }
+    }
+
+    private boolean writePointer(PublicKeyHash writingKey, Optional<byte[]> existingCas, byte[] newCas) {
         if (existingCas.isPresent()) {
             try (Connection conn = getConnection();
                  PreparedStatement insert = conn.prepareStatement(IPNS_UPDATE)) {
-                conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
-                String key = new String(Base64.getEncoder().encode(writingKey.serialize()));
-
                 insert.setString(1, new String(Base64.getEncoder().encode(newCas)));
-                insert.setString(2, key);
+                insert.setString(2, encodeKey(writingKey));
                 insert.setString(3, new String(Base64.getEncoder().encode(existingCas.get())));
                 int changed = insert.executeUpdate();
-                return CompletableFuture.completedFuture(changed > 0);
+                return changed > 0;
             } catch (SQLException sqe) {
                 LOG.log(Level.WARNING, sqe.getMessage(), sqe);
-                return CompletableFuture.completedFuture(false);
+                return false;
             }
         } else {
             try (Connection conn = getConnection();
                  PreparedStatement stmt = conn.prepareStatement(IPNS_CREATE)) {
-                stmt.setString(1, new String(Base64.getEncoder().encode(writingKey.serialize())));
+                stmt.setString(1, encodeKey(writingKey));
                 stmt.setString(2, new String(Base64.getEncoder().encode(newCas)));
                 stmt.executeUpdate();
-                return CompletableFuture.completedFuture(true);
+                return true;
             } catch (SQLException sqe) {
                 LOG.log(Level.WARNING, sqe.getMessage(), sqe);
-                return CompletableFuture.completedFuture(false);
+                return false;
             }
         }
     }
 
-    public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash writingKey) {
-        try (Connection conn = getConnection();
-             PreparedStatement stmt = conn.prepareStatement(IPNS_GET)) {
-            stmt.setString(1, new String(Base64.getEncoder().encode(writingKey.serialize())));
-            ResultSet rs = stmt.executeQuery();
-            if (rs.next()) {
-                return CompletableFuture.completedFuture(Optional.of(Base64.getDecoder().decode(rs.getString(IPNS_TARGET_NAME))));
+    /** Write all the pointers which have only been set in memory to the database
+     *
+     */
+    public void sync() {
+        synchronized (syncLock) {
+            if (unsynced.isEmpty())
+                return;
+            try (Connection conn = getConnection();
+                 PreparedStatement update = conn.prepareStatement(IPNS_OVERWRITE);
+                 PreparedStatement create = conn.prepareStatement(IPNS_CREATE)) {
+                for (PublicKeyHash writer : new ArrayList<>(unsynced.keySet())) {
+                    byte[] pointer = unsynced.remove(writer);
+                    if (pointer == null)
+                        continue;
+                    try {
+                        String key = encodeKey(writer);
+                        String value = new String(Base64.getEncoder().encode(pointer));
+                        update.setString(1, value);
+                        update.setString(2, key);
+                        if (update.executeUpdate() == 0) {
+                            create.setString(1, key);
+                            create.setString(2, value);
+                            create.executeUpdate();
+                        }
+                    } catch (SQLException e) {
+                        // retry on the next sync, unless there is already a newer value
+                        unsynced.putIfAbsent(writer, pointer);
+                        throw e;
+                    }
+                }
+            } catch (SQLException sqe) {
+                LOG.log(Level.WARNING, "Error syncing mutable pointers: " + sqe.getMessage(), sqe);
             }
+        }
+    }
+
+    private void syncQuietly() {
+        try {
+            sync();
+        } catch (Throwable t) {
+            LOG.log(Level.WARNING, t.getMessage(), t);
+        }
+    }
+
+    /**
+     *
+     * @param writingKey
+     * @return the pointer of the writer, reading it from the database if it is not in memory
+     */
+    private Optional<byte[]> getCachedPointer(PublicKeyHash writingKey) {
+        byte[] cached = pointers.get(writingKey);
+        if (cached != null)
+            return Optional.of(cached);
+        synchronized (lockFor(writingKey)) {
+            cached = pointers.get(writingKey);
+            if (cached != null)
+                return Optional.of(cached);
+            try (Connection conn = getConnection();
+                 PreparedStatement stmt = conn.prepareStatement(IPNS_GET)) {
+                stmt.setString(1, encodeKey(writingKey));
+                ResultSet rs = stmt.executeQuery();
+                Optional<byte[]> res = rs.next() ?
+                        Optional.of(Base64.getDecoder().decode(rs.getString(IPNS_TARGET_NAME))) :
+                        Optional.empty();
+                res.ifPresent(p -> pointers.put(writingKey, p));
+                return res;
+            } catch (SQLException sqe) {
+                throw new RuntimeException(sqe);
+            }
+        }
+    }
 
-            return CompletableFuture.completedFuture(Optional.empty());
+    public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash writingKey) {
+        Histogram.Timer timer = pointerTimer.labels("get").startTimer();
+        try {
+            return CompletableFuture.completedFuture(getCachedPointer(writingKey));
+        } catch (RuntimeException e) {
+            Throwable cause = e.getCause() instanceof SQLException ? e.getCause() : e;
+            LOG.log(Level.WARNING, cause.getMessage(), cause);
+            return Futures.errored(cause);
+        } finally {
+            timer.observeDuration();
+        }
+    }
+
+    /** Get the pointers of many writers, with a single query per batch of writers not already in memory
+     *
+     * @param writingKeys
+     * @return The pointers which are present
+     */
+    public CompletableFuture<Map<PublicKeyHash, byte[]>> getPointers(List<PublicKeyHash> writingKeys) {
+        Histogram.Timer timer = pointerTimer.labels("get_many").startTimer();
+        Map<PublicKeyHash, byte[]> res = new HashMap<>();
+        List<PublicKeyHash> misses = new ArrayList<>();
+        for (PublicKeyHash writer : writingKeys) {
+            byte[] cached = pointers.get(writer);
+            if (cached == null)
+                misses.add(writer);
+            else
+                res.put(writer, cached);
+        }
+        try (Connection conn = misses.isEmpty() ? null : getConnection()) {
+            for (int start = 0; start < misses.size(); start += MAX_POINTERS_PER_QUERY) {
+                List<PublicKeyHash> batch = misses.subList(start, Math.min(misses.size(), start + MAX_POINTERS_PER_QUERY));
+                Map<String, PublicKeyHash> byKey = new HashMap<>();
+                for (PublicKeyHash writer : batch)
+                    byKey.put(encodeKey(writer), writer);
+                String query = "SELECT writingkey, " + IPNS_TARGET_NAME + " FROM metadatablobs WHERE writingkey IN ("
+                        + byKey.keySet().stream().map(k -> "?").collect(Collectors.joining(",")) + ");";
+                Map<PublicKeyHash, byte[]> found = new HashMap<>();
+                try (PreparedStatement stmt = conn.prepareStatement(query)) {
+                    int index = 1;
+                    for (String key : byKey.keySet())
+                        stmt.setString(index++, key);
+                    ResultSet rs = stmt.executeQuery();
+                    while (rs.next()) {
+                        PublicKeyHash writer = byKey.get(rs.getString(1));
+                        if (writer != null)
+                            found.put(writer, Base64.getDecoder().decode(rs.getString(2)));
+                    }
+                }
+                // A concurrent set will have already populated the cache with a newer value
+                for (PublicKeyHash writer : byKey.values()) {
+                    byte[] value = found.containsKey(writer) ?
+                            pointers.computeIfAbsent(writer, found::get) :
+                            pointers.get(writer);
+                    if (value != null)
+                        res.put(writer, value);
+                }
+            }
+            return CompletableFuture.completedFuture(res);
         } catch (SQLException sqe) {
             LOG.log(Level.WARNING, sqe.getMessage(), sqe);
             return Futures.errored(sqe);
+        } finally {
+            timer.observeDuration();
         }
     }
 
-    public List<Multihash> getAllTargets(ContentAddressedStorage ipfs) {
-        try (Connection conn = getConnection();
-             PreparedStatement stmt = conn.prepareStatement("SELECT * FROM metadatablobs")) {
+    /** Apply a function to every pointer in the database, streaming through the table rather than loading it into
+     *  memory. Any pointers which are only in memory are synced first.
+     *
+     * @param consumer
+     */
+    public void forEachEntry(BiConsumer<PublicKeyHash, byte[]> consumer) {
+        try (Stream<Map.Entry<PublicKeyHash, byte[]>> entries = streamEntries()) {
+            entries.forEach(e -> consumer.accept(e.getKey(), e.getValue()));
+        }
+    }
+
+    /** Stream every pointer in the database from a cursor. Any pointers which are only in memory are synced first.
+     *  The stream must be closed to release its connection.
+     *
+     * @return
+     */
+    public Stream<Map.Entry<PublicKeyHash, byte[]>> streamEntries() {
+        sync();
+        Connection conn = getConnection();
+        try {
+            PreparedStatement stmt = conn.prepareStatement(IPNS_GET_ALL);
+            stmt.setFetchSize(ENTRY_FETCH_SIZE);
             ResultSet rs = stmt.executeQuery();
-            List<Multihash> results = new ArrayList<>();
-            while (rs.next()) {
-                PublicKeyHash writerHash = PublicKeyHash.fromCbor(CborObject.fromByteArray(Base64.getDecoder().decode(rs.getString("writingKey"))));
+            Spliterator<Map.Entry<PublicKeyHash, byte[]>> rows = new Spliterators.AbstractSpliterator<Map.Entry<PublicKeyHash, byte[]>>(
+                    Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+                @Override
+                public boolean tryAdvance(Consumer<? super Map.Entry<PublicKeyHash, byte[]>> action) {
+                    try {
+                        if (! rs.next())
+                            return false;
+                        PublicKeyHash writerHash = PublicKeyHash.fromCbor(CborObject.fromByteArray(Base64.getDecoder().decode(rs.getString(1))));
+                        byte[] signedRawCas = Base64.getDecoder().decode(rs.getString(2));
+                        action.accept(new AbstractMap.SimpleImmutableEntry<>(writerHash, signedRawCas));
+                        return true;
+                    } catch (SQLException sqe) {
+                        throw new RuntimeException(sqe);
+                    }
+                }
+            };
+            return StreamSupport.stream(rows, false).onClose(() -> closeQuietly(conn));
+        } catch (SQLException sqe) {
+            closeQuietly(conn);
+            throw new RuntimeException(sqe);
+        }
+    }
+
+    private static void closeQuietly(Connection conn) {
+        try {
+            conn.close();
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+        }
+    }
+
+    public List<Multihash> getAllTargets(ContentAddressedStorage ipfs) {
+        List<Multihash> results = new ArrayList<>();
+        try {
+            forEachEntry((writerHash, signedRawCas) -> {
                 PublicSigningKey writer = ipfs.getSigningKey(writerHash).join().get();
-                byte[] signedRawCas = Base64.getDecoder().decode(rs.getString(IPNS_TARGET_NAME));
                 byte[] bothHashes = writer.unsignMessage(signedRawCas);
                 HashCasPair cas = HashCasPair.fromCbor(CborObject.fromByteArray(bothHashes));
                 results.add(cas.updated.get());
-            }
-
+            });
             return results;
-        } catch (SQLException sqe) {
-            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+        } catch (RuntimeException e) {
+            LOG.log(Level.WARNING, e.getMessage(), e);
             return Collections.emptyList();
         }
     }
 
     public Map<PublicKeyHash, byte[]> getAllEntries() {
-        try (Connection conn = getConnection();
-             PreparedStatement stmt = conn.prepareStatement("SELECT * FROM metadatablobs")) {
-            ResultSet rs = stmt.executeQuery();
-            Map<PublicKeyHash, byte[]> results = new HashMap<>();
-            while (rs.next()) {
-                PublicKeyHash writerHash = PublicKeyHash.fromCbor(CborObject.fromByteArray(Base64.getDecoder().decode(rs.getString("writingKey"))));
-                byte[] signedRawCas = Base64.getDecoder().decode(rs.getString(IPNS_TARGET_NAME));
-                results.put(writerHash, signedRawCas);
-            }
-
+        Map<PublicKeyHash, byte[]> results = new HashMap<>();
+        try {
+            forEachEntry(results::put);
             return results;
-        } catch (SQLException sqe) {
-            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+        } catch (RuntimeException e) {
+            LOG.log(Level.WARNING, e.getMessage(), e);
             return Collections.emptyMap();
         }
     }
@@ -253,6 +503,9 @@ public class JdbcIpnsAndSocial {
         if (isClosed)
             return;
 
+        if (syncer != null)
+            syncer.shutdownNow();
+        syncQuietly();
         isClosed = true;
     }
 }
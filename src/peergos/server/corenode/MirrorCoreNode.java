@@ -14,6 +14,7 @@ import peergos.shared.user.*;
 import peergos.shared.util.*;
 
 import java.io.*;
+import java.nio.channels.*;
 import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
@@ -22,6 +23,8 @@ import java.util.logging.*;
 import java.util.stream.*;
 
 public class MirrorCoreNode implements CoreNode {
+    public static final long DEFAULT_MIN_COMPACTION_BYTES = 4 * 1024 * 1024;
+    public static final long DEFAULT_POLL_PERIOD_MILLIS = 60_000;
 
     private final CoreNode writeTarget;
     private final MutablePointers p2pMutable;
@@ -29,10 +32,13 @@ public class MirrorCoreNode implements CoreNode {
     private final JdbcIpnsAndSocial localPointers;
     private final TransactionStore transactions;
     private final PublicKeyHash pkiOwnerIdentity;
+    private final long minCompactionBytes;
 
     private volatile CorenodeState state;
-    private final Path statePath;
+    private final Path statePath, journalPath;
+    private long snapshotBytes, journalBytes;
     private volatile boolean running = true;
+    private final List<Consumer<? super CorenodeEvent>> listeners = new CopyOnWriteArrayList<>();
 
     public MirrorCoreNode(CoreNode writeTarget,
                           MutablePointers p2pMutable,
@@ -41,6 +47,17 @@ public class MirrorCoreNode implements CoreNode {
                           TransactionStore transactions,
                           PublicKeyHash pkiOwnerIdentity,
                           Path statePath) {
+        this(writeTarget, p2pMutable, ipfs, localPointers, transactions, pkiOwnerIdentity, statePath, DEFAULT_MIN_COMPACTION_BYTES);
+    }
+
+    public MirrorCoreNode(CoreNode writeTarget,
+                          MutablePointers p2pMutable,
+                          ContentAddressedStorage ipfs,
+                          JdbcIpnsAndSocial localPointers,
+                          TransactionStore transactions,
+                          PublicKeyHash pkiOwnerIdentity,
+                          Path statePath,
+                          long minCompactionBytes) {
         this.writeTarget = writeTarget;
         this.p2pMutable = p2pMutable;
         this.ipfs = ipfs;
@@ -48,16 +65,16 @@ public class MirrorCoreNode implements CoreNode {
         this.transactions = transactions;
         this.pkiOwnerIdentity = pkiOwnerIdentity;
         this.statePath = statePath;
+        this.minCompactionBytes = minCompactionBytes;
+        this.journalPath = statePath.resolveSibling(statePath.getFileName() + ".journal");
         try {
-            this.state = load(statePath);
+            this.state = load();
         } catch (IOException e) {
             // load empty
             this.state = CorenodeState.buildEmpty(pkiOwnerIdentity, pkiOwnerIdentity, MaybeMultihash.empty(), MaybeMultihash.empty());
         }
         try {
-            boolean changed = update();
-            if (changed)
-                saveState();
+            update();
         } catch (Throwable t) {
             Logging.LOG().log(Level.SEVERE, "Couldn't update mirror pki state: " + t.getMessage(), t);
         }
@@ -69,7 +86,7 @@ public class MirrorCoreNode implements CoreNode {
 
         private final Map<String, List<UserPublicKeyLink>> chains;
         private final Map<PublicKeyHash, String> reverseLookup;
-        private final List<String> usernames;
+        private final NavigableSet<String> usernames;
 
         public CorenodeState(PublicKeyHash pkiOwnerIdentity,
                              PublicKeyHash pkiKey,
@@ -77,7 +94,7 @@ public class MirrorCoreNode implements CoreNode {
                              MaybeMultihash pkiKeyTarget,
                              Map<String, List<UserPublicKeyLink>> chains,
                              Map<PublicKeyHash, String> reverseLookup,
-                             List<String> usernames) {
+                             NavigableSet<String> usernames) {
             this.pkiOwnerIdentity = pkiOwnerIdentity;
             this.pkiKey = pkiKey;
             this.pkiOwnerTarget = pkiOwnerTarget;
@@ -92,7 +109,7 @@ public class MirrorCoreNode implements CoreNode {
                                                MaybeMultihash pkiOwnerTarget,
                                                MaybeMultihash pkiKeyTarget) {
             return new CorenodeState(pkiOwnerIdentity, pkiKey, pkiOwnerTarget, pkiKeyTarget, new HashMap<>(),
-                    new HashMap<>(), new ArrayList<>());
+                    new HashMap<>(), new ConcurrentSkipListSet<>());
         }
 
         public void load(CorenodeState other) {
@@ -102,12 +119,19 @@ public class MirrorCoreNode implements CoreNode {
             usernames.addAll(other.usernames);
         }
 
+        public void addChain(String username, List<UserPublicKeyLink> chain) {
+            for (UserPublicKeyLink link : chain)
+                reverseLookup.put(link.owner, username);
+            chains.put(username, chain);
+            usernames.add(username);
+        }
+
         @Override
         public CborObject toCbor() {
             Map<String, Cborable> res = new TreeMap<>();
             res.put("peergosKey", pkiOwnerIdentity);
             res.put("peergosTarget", pkiOwnerTarget);
-            res.put("pkiKey", pkiOwnerIdentity);
+            res.put("pkiKey", pkiKey);
             res.put("pkiTarget", pkiKeyTarget);
 
             TreeMap<String, Cborable> chainsMap = chains.entrySet()
@@ -151,20 +175,88 @@ public class MirrorCoreNode implements CoreNode {
             Map<PublicKeyHash, String> reverse = ((CborObject.CborList)map.get("reverse"))
                     .getMap(PublicKeyHash::fromCbor, fromString);
 
-            List<String> usernames = map.getList("usernames", fromString);
+            NavigableSet<String> usernames = new ConcurrentSkipListSet<>(map.getList("usernames", fromString));
             return new CorenodeState(peergosKey, pkiKey, peergosTarget, pkiTarget, chains, reverse, usernames);
         }
     }
 
+    /** The chains which changed in a single update of the state, and the resulting pki roots
+     */
+    private static class JournalEntry implements Cborable {
+        private final PublicKeyHash pkiOwnerIdentity, pkiKey;
+        private final MaybeMultihash pkiOwnerTarget, pkiKeyTarget;
+        private final Map<String, List<UserPublicKeyLink>> chains;
+
+        public JournalEntry(PublicKeyHash pkiOwnerIdentity,
+                            PublicKeyHash pkiKey,
+                            MaybeMultihash pkiOwnerTarget,
+                            MaybeMultihash pkiKeyTarget,
+                            Map<String, List<UserPublicKeyLink>> chains) {
+            this.pkiOwnerIdentity = pkiOwnerIdentity;
+            this.pkiKey = pkiKey;
+            this.pkiOwnerTarget = pkiOwnerTarget;
+            this.pkiKeyTarget = pkiKeyTarget;
+            this.chains = chains;
+        }
+
+        public CorenodeState applyTo(CorenodeState base) {
+            for (Map.Entry<String, List<UserPublicKeyLink>> e : chains.entrySet())
+                base.addChain(e.getKey(), e.getValue());
+            return new CorenodeState(pkiOwnerIdentity, pkiKey, pkiOwnerTarget, pkiKeyTarget,
+                    base.chains, base.reverseLookup, base.usernames);
+        }
+
+        @Override
+        public CborObject toCbor() {
+            Map<String, Cborable> res = new TreeMap<>();
+            res.put("peergosKey", pkiOwnerIdentity);
+            res.put("peergosTarget", pkiOwnerTarget);
+            res.put("pkiKey", pkiKey);
+            res.put("pkiTarget", pkiKeyTarget);
+            res.put("chains", CborObject.CborMap.build(chains.entrySet()
+                    .stream()
+                    .collect(Collectors.toMap(
+                            e -> e.getKey(),
+                            e -> new CborObject.CborList(e.getValue()),
+                            (a,b) -> a,
+                            TreeMap::new
+                    ))));
+            return CborObject.CborMap.build(res);
+        }
+
+        public static JournalEntry fromCbor(CborObject cbor) {
+            CborObject.CborMap map = (CborObject.CborMap) cbor;
+            PublicKeyHash peergosKey = map.get("peergosKey", PublicKeyHash::fromCbor);
+            PublicKeyHash pkiKey = map.get("pkiKey", PublicKeyHash::fromCbor);
+            MaybeMultihash peergosTarget = map.get("peergosTarget", MaybeMultihash::fromCbor);
+            MaybeMultihash pkiTarget = map.get("pkiTarget", MaybeMultihash::fromCbor);
+            Function<? super Cborable, List<UserPublicKeyLink>> chainParser =
+                    c -> ((CborObject.CborList) c).map(UserPublicKeyLink::fromCbor);
+            Map<String, List<UserPublicKeyLink>> chains = ((CborObject.CborMap)map.get("chains"))
+                    .getMap(e -> ((CborObject.CborString) e).value, chainParser);
+            return new JournalEntry(peergosKey, pkiKey, peergosTarget, pkiTarget, chains);
+        }
+    }
+
+    /** Listen for changes to users' chains, as they are mirrored
+     *
+     * @param listener
+     */
+    public void addListener(Consumer<? super CorenodeEvent> listener) {
+        listeners.add(listener);
+    }
+
     public void start() {
+        start(DEFAULT_POLL_PERIOD_MILLIS);
+    }
+
+    public void start(long pollPeriodMillis) {
         running = true;
         new Thread(() -> {
             while (running) {
                 try {
-                    Thread.sleep(60_000);
-                    boolean changed = update();
-                    if (changed)
-                        saveState();
+                    Thread.sleep(pollPeriodMillis);
+                    update();
                 } catch (Throwable t) {
                     Logging.LOG().log(Level.SEVERE, t.getMessage(), t);
                 }
@@ -172,24 +264,96 @@ public class MirrorCoreNode implements CoreNode {
         }, "Mirroring PKI node").start();
     }
 
-    private synchronized void saveState() {
+    /** Write the current state as a new snapshot and truncate the journal
+     */
+    private synchronized void saveSnapshot() {
         byte[] serialized = state.toCbor().serialize();
         Logging.LOG().info("Writing "+ serialized.length +" bytes to "+ statePath);
         try {
-            Files.write(
-                    statePath,
-                    serialized,
-                    StandardOpenOption.CREATE);
+            Path tmp = statePath.resolveSibling(statePath.getFileName() + ".tmp");
+            Files.write(tmp, serialized);
+            Files.move(tmp, statePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            // a crash before this point just means the journal is replayed on top of a snapshot which includes it
+            Files.write(journalPath, new byte[0]);
+            snapshotBytes = serialized.length;
+            journalBytes = 0;
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private static CorenodeState load(Path statePath) throws IOException {
+    /** Append the changed chains of an update to the journal, and compact the journal into a new snapshot once it
+     *  is larger than the snapshot.
+     *
+     * @param entry
+     */
+    private synchronized void appendToJournal(JournalEntry entry) {
+        byte[] serialized = entry.toCbor().serialize();
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(serialized.length + 4);
+        DataOutputStream dout = new DataOutputStream(bout);
+        try {
+            dout.writeInt(serialized.length);
+            dout.write(serialized);
+            Files.write(journalPath, bout.toByteArray(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        journalBytes += bout.size();
+        if (journalBytes > Math.max(minCompactionBytes, snapshotBytes))
+            saveSnapshot();
+    }
+
+    private CorenodeState load() throws IOException {
         Logging.LOG().info("Reading state from " + statePath + " which exists ? " + Files.exists(statePath) + " from cwd " + System.getProperty("cwd"));
-        byte[] data = Files.readAllBytes(statePath);
-        CborObject object = CborObject.fromByteArray(data);
-        return CorenodeState.fromCbor(object);
+        boolean hasSnapshot = Files.exists(statePath);
+        if (! hasSnapshot && ! Files.exists(journalPath))
+            throw new FileNotFoundException(statePath.toString());
+        CorenodeState snapshot = hasSnapshot ?
+                readSnapshot(statePath) :
+                CorenodeState.buildEmpty(pkiOwnerIdentity, pkiOwnerIdentity, MaybeMultihash.empty(), MaybeMultihash.empty());
+        snapshotBytes = hasSnapshot ? Files.size(statePath) : 0;
+        if (! Files.exists(journalPath))
+            return snapshot;
+
+        // Replay complete journal entries, and drop a partially written final entry
+        long validBytes = 0;
+        int entries = 0;
+        CorenodeState res = snapshot;
+        try (DataInputStream din = new DataInputStream(new BufferedInputStream(Files.newInputStream(journalPath)))) {
+            while (true) {
+                int len;
+                try {
+                    len = din.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                byte[] raw = new byte[len];
+                try {
+                    din.readFully(raw);
+                } catch (EOFException e) {
+                    break;
+                }
+                res = JournalEntry.fromCbor(CborObject.fromByteArray(raw)).applyTo(res);
+                validBytes += 4 + len;
+                entries++;
+            }
+        }
+        if (validBytes < Files.size(journalPath)) {
+            Logging.LOG().warning("Truncating incomplete mirror pki journal entry in " + journalPath);
+            try (FileChannel channel = FileChannel.open(journalPath, StandardOpenOption.WRITE)) {
+                channel.truncate(validBytes);
+            }
+        }
+        journalBytes = validBytes;
+        Logging.LOG().info("Replayed " + entries + " pki journal entries from " + journalPath);
+        return res;
+    }
+
+    private static CorenodeState readSnapshot(Path statePath) throws IOException {
+        long size = Files.size(statePath);
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(statePath))) {
+            return CorenodeState.fromCbor(CborObject.read(in, (int) size));
+        }
     }
 
     /**
@@ -222,12 +386,14 @@ public class MirrorCoreNode implements CoreNode {
 
             // first retrieve all new blocks to be local
             TransactionId tid = transactions.startTransaction(peergosKey);
+            Set<String> changedUsernames = ConcurrentHashMap.newKeySet();
             MaybeMultihash currentTree = IpfsCoreNode.getTreeRoot(current.pkiKeyTarget, ipfs);
             MaybeMultihash updatedTree = IpfsCoreNode.getTreeRoot(currentPkiRoot, ipfs);
             Consumer<Triple<ByteArrayWrapper, Optional<CborObject.CborMerkleLink>, Optional<CborObject.CborMerkleLink>>> consumer =
                     t -> {
                         Optional<CborObject.CborMerkleLink> newVal = t.right;
                         if (newVal.isPresent()) {
+                            changedUsernames.add(new String(t.left.data));
                             transactions.addBlock(newVal.get().target, tid, peergosKey);
                             ipfs.get(newVal.get().target).join();
                         }
@@ -245,8 +411,21 @@ public class MirrorCoreNode implements CoreNode {
             localPointers.setPointer(pkiKey, existingPointer, newPointer).join();
             transactions.closeTransaction(peergosKey, tid);
 
+            Map<String, List<UserPublicKeyLink>> changedChains = new HashMap<>();
+            for (String username : changedUsernames) {
+                List<UserPublicKeyLink> chain = updated.chains.get(username);
+                if (chain != null)
+                    changedChains.put(username, chain);
+            }
             state = updated;
+            appendToJournal(new JournalEntry(peergosKey, pkiKey, newPeergosRoot, currentPkiRoot, changedChains));
             Logging.LOG().info("... finished updating pki mirror state.");
+            for (Map.Entry<String, List<UserPublicKeyLink>> e : changedChains.entrySet()) {
+                List<UserPublicKeyLink> chain = e.getValue();
+                CorenodeEvent event = new CorenodeEvent(e.getKey(), chain.get(chain.size() - 1).owner);
+                for (Consumer<? super CorenodeEvent> listener : listeners)
+                    listener.accept(event);
+            }
             return true;
         } catch (Exception e) {
             throw new RuntimeException(e.getMessage(), e);
@@ -284,7 +463,12 @@ public class MirrorCoreNode implements CoreNode {
 
     @Override
     public CompletableFuture<List<String>> getUsernames(String prefix) {
-        return CompletableFuture.completedFuture(state.usernames);
+        return getUsernames(prefix, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public CompletableFuture<List<String>> getUsernames(String prefix, int limit) {
+        return CompletableFuture.completedFuture(IpfsCoreNode.getUsernames(state.usernames, prefix, limit));
     }
 
     @Override
@@ -54,6 +54,11 @@ public class UserRepository implements SocialNetwork, MutablePointers {
         return store.getPointer(writer);
     }
 
+    @Override
+    public CompletableFuture<Map<PublicKeyHash, byte[]>> getPointers(PublicKeyHash owner, List<PublicKeyHash> writers) {
+        return store.getPointers(writers);
+    }
+
     @Override
     public CompletableFuture<Boolean> setPointer(PublicKeyHash owner, PublicKeyHash writer, byte[] writerSignedBtreeRootHash) {
         return getPointer(owner, writer)
@@ -0,0 +1,148 @@
+package peergos.server.fuse;
+
+import io.prometheus.client.Counter;
+import peergos.shared.user.fs.*;
+import peergos.shared.util.*;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+/** A cache of path lookups (including misses) and directory listings for the FUSE mount.
+ *
+ *  Entries expire after a TTL, to eventually see remote changes, and are invalidated immediately on any local
+ *  modification of the path.
+ */
+public class AttributeCache {
+
+    public static final int DEFAULT_TTL_MILLIS = 5_000;
+    public static final int DEFAULT_MAX_ENTRIES = 10_000;
+
+    private static final Counter lookups = Counter.build()
+            .labelNames("type", "result")
+            .name("fuse_attribute_cache_lookups")
+            .help("Number of path and directory lookups in the FUSE attribute cache")
+            .register();
+
+    private final long ttlMillis;
+    private final Map<String, Pair<Optional<PeergosFS.PeergosStat>, Long>> stats;
+    private final Map<String, Pair<List<String>, Long>> listings;
+    // incremented on every invalidation, so a lookup which raced with one isn't cached
+    private long invalidations = 0;
+
+    public AttributeCache(long ttlMillis, int maxEntries) {
+        this.ttlMillis = ttlMillis;
+        this.stats = new LRUCache<>(maxEntries);
+        this.listings = new LRUCache<>(maxEntries);
+    }
+
+    public Optional<PeergosFS.PeergosStat> getStat(String path, Supplier<Optional<PeergosFS.PeergosStat>> lookup) {
+        String key = canonicalise(path);
+        long generation;
+        synchronized (this) {
+            Pair<Optional<PeergosFS.PeergosStat>, Long> cached = stats.get(key);
+            if (cached != null && System.currentTimeMillis() - cached.right < ttlMillis) {
+                lookups.labels("stat", "hit").inc();
+                return cached.left;
+            }
+            generation = invalidations;
+        }
+        lookups.labels("stat", "miss").inc();
+        long start = System.currentTimeMillis();
+        Optional<PeergosFS.PeergosStat> res = lookup.get();
+        synchronized (this) {
+            if (invalidations == generation)
+                stats.put(key, new Pair<>(res, start));
+        }
+        return res;
+    }
+
+    public Optional<List<String>> getChildren(String dirPath) {
+        String key = canonicalise(dirPath);
+        synchronized (this) {
+            Pair<List<String>, Long> cached = listings.get(key);
+            if (cached != null && System.currentTimeMillis() - cached.right < ttlMillis) {
+                lookups.labels("listing", "hit").inc();
+                return Optional.of(cached.left);
+            }
+        }
+        lookups.labels("listing", "miss").inc();
+        return Optional.empty();
+    }
+
+    /**
+     *
+     * @return A token to pass to putChildren, taken before looking up a directory's children
+     */
+    public synchronized long generation() {
+        return invalidations;
+    }
+
+    /** Cache a directory listing, and the attributes of each child, unless there has been a local change since
+     *  they were looked up
+     *
+     * @param dirPath
+     * @param children
+     * @param retrievedTime when the children were looked up
+     * @param generation the value of generation() before the children were looked up
+     */
+    public synchronized void putChildren(String dirPath, Collection<FileWrapper> children, long retrievedTime, long generation) {
+        if (invalidations != generation)
+            return;
+        String key = canonicalise(dirPath);
+        List<String> names = children.stream()
+                .map(FileWrapper::getName)
+                .collect(Collectors.toList());
+        listings.put(key, new Pair<>(names, retrievedTime));
+        for (FileWrapper child : children)
+            stats.put(join(key, child.getName()),
+                    new Pair<>(Optional.of(new PeergosFS.PeergosStat(child, child.getFileProperties())), retrievedTime));
+    }
+
+    /** Remove a path, its parent directory and the parent's listing, after a local change to the path
+     *
+     * @param path
+     */
+    public synchronized void invalidate(String path) {
+        invalidations++;
+        String key = canonicalise(path);
+        stats.remove(key);
+        listings.remove(key);
+        String parent = parent(key);
+        stats.remove(parent);
+        listings.remove(parent);
+    }
+
+    /** Remove a path, and everything below it, after it has been moved or deleted
+     *
+     * @param path
+     */
+    public synchronized void invalidateTree(String path) {
+        invalidate(path);
+        String prefix = join(canonicalise(path), "");
+        stats.keySet().removeIf(p -> p.startsWith(prefix));
+        listings.keySet().removeIf(p -> p.startsWith(prefix));
+    }
+
+    public synchronized void clear() {
+        invalidations++;
+        stats.clear();
+        listings.clear();
+    }
+
+    private static String parent(String path) {
+        Path parent = Paths.get(path).getParent();
+        return parent == null ? "/" : parent.toString();
+    }
+
+    private static String join(String dir, String name) {
+        return dir.endsWith("/") ? dir + name : dir + "/" + name;
+    }
+
+    private static String canonicalise(String path) {
+        if (path.length() > 1 && path.endsWith("/"))
+            return path.substring(0, path.length() - 1);
+        return path;
+    }
+}
@@ -1,6 +1,7 @@
 package peergos.server.fuse;
 import java.util.logging.*;
 
+import io.prometheus.client.Counter;
 import peergos.server.util.Logging;
 
 import jnr.ffi.Pointer;
@@ -16,29 +17,80 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.function.*;
+import java.util.stream.*;
 
 public class CachingPeergosFS extends PeergosFS {
 	private static final Logger LOG = Logging.LOG();
 
     private static final int DEFAULT_SYNC_SLEEP = 1000*30;
-    private static final int DEFAULT_CACHE_SIZE = 1;
+    private static final int DEFAULT_CACHE_SIZE = 4;
+    private static final long DEFAULT_MAX_DIRTY_BYTES = 64 * 1024 * 1024;
+    private static final int READ_AHEAD_THREADS = 4;
     private static final boolean DEBUG = true;
 
+    private static final Counter chunkLookups = Counter.build()
+            .labelNames("result")
+            .name("fuse_chunk_cache_lookups")
+            .help("Number of chunk lookups in the FUSE data cache")
+            .register();
+
     private final ConcurrentMap<String, CacheEntryHolder> entryMap;
     private final int chunkCacheSize, syncSleep;
-//    private final Thread syncRunner;
+    private final long maxDirtyBytes;
+    private final AtomicLong dirtyBytes = new AtomicLong(0);
+    private final ExecutorService readAhead;
+    private final ScheduledExecutorService syncRunner;
 
     public CachingPeergosFS(UserContext userContext) {
         this(userContext, DEFAULT_CACHE_SIZE, DEFAULT_SYNC_SLEEP);
     }
 
     public CachingPeergosFS(UserContext userContext, int chunkCacheSize, int syncSleep) {
+        this(userContext, chunkCacheSize, syncSleep, DEFAULT_MAX_DIRTY_BYTES);
+    }
+
+    /**
+     *
+     * @param userContext
+     * @param chunkCacheSize The maximum number of chunks to cache per open file
+     * @param syncSleep The interval in milliseconds between background flushes of dirty data
+     * @param maxDirtyBytes The amount of unsynced data, across all files, above which writes will flush synchronously
+     */
+    public CachingPeergosFS(UserContext userContext, int chunkCacheSize, int syncSleep, long maxDirtyBytes) {
         super(userContext);
+        if (chunkCacheSize < 1)
+            throw new IllegalArgumentException("Chunk cache must hold at least one chunk!");
 
         this.chunkCacheSize = chunkCacheSize;
         this.syncSleep = syncSleep;
+        this.maxDirtyBytes = maxDirtyBytes;
         this.entryMap = new ConcurrentHashMap<>();
+        this.readAhead = Executors.newFixedThreadPool(READ_AHEAD_THREADS, r -> {
+            Thread t = new Thread(r, "FUSE read ahead");
+            t.setDaemon(true);
+            return t;
+        });
+        this.syncRunner = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "FUSE sync");
+            t.setDaemon(true);
+            return t;
+        });
+        syncRunner.scheduleWithFixedDelay(this::syncAllQuietly, syncSleep, syncSleep, TimeUnit.MILLISECONDS);
+    }
+
+    private void syncAll() {
+        for (CacheEntryHolder holder : entryMap.values())
+            holder.sync();
+    }
+
+    private void syncAllQuietly() {
+        try {
+            syncAll();
+        } catch (Throwable t) {
+            LOG.log(Level.WARNING, t.getMessage(), t);
+        }
     }
 
     @Override
@@ -69,9 +121,10 @@ public class CachingPeergosFS extends PeergosFS {
         int chunkOffset  = intraChunkOffset(offset);
         int iSize = (int) size;
 
-        CacheEntryHolder cacheEntryHolder = entryMap.computeIfAbsent(s, path -> new CacheEntryHolder(new CacheEntry(path, startPos)));
-        return cacheEntryHolder.apply(c -> c != null && c.offset == startPos, () -> new CacheEntry(s, startPos),
-                ce -> ce.read(pointer, pointerOffset, chunkOffset, iSize));
+        CacheEntryHolder cacheEntryHolder = entryMap.computeIfAbsent(s, CacheEntryHolder::new);
+        int read = cacheEntryHolder.apply(startPos, ce -> ce.read(pointer, pointerOffset, chunkOffset, iSize));
+        cacheEntryHolder.readAheadIfSequential(startPos);
+        return read;
     }
 
     @Override
@@ -102,9 +155,14 @@ public class CachingPeergosFS extends PeergosFS {
         int  chunkOffset  = intraChunkOffset(offset);
         int iSize = (int) size;
 
-        CacheEntryHolder cacheEntry = entryMap.computeIfAbsent(s, path -> new CacheEntryHolder(new CacheEntry(path, startPos)));
-        return cacheEntry.apply(c -> c != null && c.offset == startPos, () -> new CacheEntry(s, startPos),
-                ce -> ce.write(pointer, pointerOffset, chunkOffset, iSize));
+        CacheEntryHolder cacheEntry = entryMap.computeIfAbsent(s, CacheEntryHolder::new);
+        int written = cacheEntry.apply(startPos, ce -> ce.write(pointer, pointerOffset, chunkOffset, iSize));
+        if (dirtyBytes.get() > maxDirtyBytes) {
+            cacheEntry.sync();
+            if (dirtyBytes.get() > maxDirtyBytes)
+                syncAll();
+        }
+        return written;
     }
 
     @Override
@@ -138,25 +196,53 @@ public class CachingPeergosFS extends PeergosFS {
         }
     }
 
+    @Override
+    public int fsync(String s, int isDatasync, FuseFileInfo fuseFileInfo) {
+        try {
+            if (DEBUG)
+                System.out.printf("fsync(%s)\n", s);
+            CacheEntryHolder cacheEntry = entryMap.get(s);
+            if (cacheEntry != null)
+                cacheEntry.sync();
+            return 0;
+        } catch (Throwable t) {
+            LOG.log(Level.WARNING, t.getMessage(), t);
+            return -ErrorCodes.EIO();
+        }
+    }
+
+    @Override
+    public int release(String s, FuseFileInfo fuseFileInfo) {
+        try {
+            if (DEBUG)
+                System.out.printf("release(%s)\n", s);
+            CacheEntryHolder cacheEntry = entryMap.get(s);
+            if (cacheEntry != null) {
+                // Only forget the file once its writes have succeeded, so a failed sync is retried later
+                cacheEntry.syncAndClear();
+                entryMap.computeIfPresent(s, (path, holder) -> holder.isEmpty() ? null : holder);
+            }
+            return 0;
+        } catch (Throwable t) {
+            LOG.log(Level.WARNING, t.getMessage(), t);
+            throw t;
+        }
+    }
+
     @Override
     protected int annotateAttributes(String fullPath, PeergosStat peergosStat, FileStat fileStat) {
         if (DEBUG)
             System.out.printf("annotate(%s)\n", fullPath);
         CacheEntryHolder cacheEntry = entryMap.get(fullPath);
-        Optional<PeergosStat> updatedStat = Optional.empty();
+        PeergosStat updatedStat = peergosStat;
         if (cacheEntry != null) {
-            updatedStat = cacheEntry.applyIfPresent(ce -> {
-                if (ce == null)
-                    return peergosStat;
-                long maxSize = ce.offset + ce.maxDirtyPos;
-                if (peergosStat.properties.size < maxSize) {
-                    FileProperties updated = peergosStat.properties.withSize(maxSize);
-                    return new PeergosStat(peergosStat.treeNode, updated);
-                }
-                return peergosStat;
-            });
+            long maxSize = cacheEntry.maxDirtyEnd();
+            if (peergosStat.properties.size < maxSize) {
+                FileProperties updated = peergosStat.properties.withSize(maxSize);
+                updatedStat = new PeergosStat(peergosStat.treeNode, updated);
+            }
         }
-        return super.annotateAttributes(fullPath, updatedStat.orElse(peergosStat), fileStat);
+        return super.annotateAttributes(fullPath, updatedStat, fileStat);
     }
 
     private boolean containedInOneChunk(long start, long end) {
@@ -170,50 +256,155 @@ public class CachingPeergosFS extends PeergosFS {
         return (int) pos % Chunk.MAX_SIZE;
     }
 
+    /** The cached chunks of a single file, in least recently used order
+     */
     private class CacheEntryHolder {
-        private CacheEntry entry;
+        private final String path;
+        private final LinkedHashMap<Long, CacheEntry> chunks = new LinkedHashMap<>(16, 0.75f, true);
+        private long lastReadChunk = -1;
+        private final Set<Long> pendingReadAheads = new HashSet<>();
 
-        public CacheEntryHolder(CacheEntry entry) {
-            this.entry = entry;
+        public CacheEntryHolder(String path) {
+            this.path = path;
         }
 
-        public synchronized <A> A apply(Predicate<CacheEntry> correctChunk, Supplier<CacheEntry> supplier, Function<CacheEntry, A> func) {
-            if (!correctChunk.test(entry)) {
-                long oldOffset = entry != null ? entry.offset : -1;
-                syncAndClear();
-                setEntry(supplier.get());
-                LOG.info("Ejecting chunk from " + entry.path + " " + oldOffset + " -> "+ entry.offset);
+        public synchronized <A> A apply(long chunkOffset, Function<CacheEntry, A> func) {
+            CacheEntry entry = chunks.get(chunkOffset);
+            if (entry == null) {
+                chunkLookups.labels("miss").inc();
+                entry = new CacheEntry(path, chunkOffset);
+                insert(entry);
+            } else
+                chunkLookups.labels("hit").inc();
+            return func.apply(entry);
+        }
 
+        /** Add a chunk, evicting the least recently used clean chunk if we are full. If every chunk is dirty they
+         *  are all written in one go, and then the least recently used is evicted.
+         *
+         * @param entry
+         */
+        private synchronized void insert(CacheEntry entry) {
+            chunks.put(entry.offset, entry);
+            while (chunks.size() > chunkCacheSize) {
+                Optional<CacheEntry> clean = chunks.values().stream()
+                        .filter(c -> c != entry && ! c.isDirty())
+                        .findFirst();
+                if (clean.isEmpty())
+                    sync();
+                CacheEntry toEvict = clean.orElseGet(() -> chunks.values().iterator().next());
+                LOG.info("Ejecting chunk from " + path + " at " + toEvict.offset);
+                chunks.remove(toEvict.offset);
+                toEvict.markClean();
             }
-            return func.apply(entry);
         }
 
-        public synchronized <A> Optional<A> applyIfPresent(Function<CacheEntry, A> func) {
-            if (entry != null) {
-                return Optional.of(func.apply(entry));
+        /** If the last two reads were of consecutive chunks, asynchronously load the following chunk
+         *
+         * @param chunkOffset
+         */
+        public void readAheadIfSequential(long chunkOffset) {
+            long next = chunkOffset + Chunk.MAX_SIZE;
+            synchronized (this) {
+                boolean sequential = lastReadChunk + Chunk.MAX_SIZE == chunkOffset;
+                lastReadChunk = chunkOffset;
+                if (! sequential || chunks.containsKey(next) || pendingReadAheads.contains(next))
+                    return;
+                pendingReadAheads.add(next);
             }
-            return Optional.empty();
+            readAhead.execute(() -> {
+                try {
+                    Optional<PeergosStat> stat = getByPath(path);
+                    if (stat.isEmpty() || stat.get().properties.size <= next)
+                        return;
+                    CacheEntry loaded = new CacheEntry(path, next);
+                    chunkLookups.labels("readahead").inc();
+                    synchronized (this) {
+                        if (! chunks.containsKey(next))
+                            insert(loaded);
+                    }
+                } catch (Throwable t) {
+                    LOG.log(Level.WARNING, t.getMessage(), t);
+                } finally {
+                    synchronized (this) {
+                        pendingReadAheads.remove(next);
+                    }
+                }
+            });
         }
 
-        public synchronized void setEntry(CacheEntry entry) {
-            this.entry = entry;
+        /**
+         *
+         * @return The end of the furthest written section of the file
+         */
+        public synchronized long maxDirtyEnd() {
+            return chunks.values().stream()
+                    .filter(CacheEntry::isDirty)
+                    .mapToLong(c -> c.offset + c.maxDirtyPos)
+                    .max()
+                    .orElse(0);
         }
 
+        /** Write all dirty chunks, coalescing chunks whose dirty ranges are contiguous into a single write
+         */
         public synchronized void sync() {
-            if (entry == null)
+            List<CacheEntry> dirty = chunks.values().stream()
+                    .filter(CacheEntry::isDirty)
+                    .sorted(Comparator.comparingLong(c -> c.offset))
+                    .collect(Collectors.toList());
+            if (dirty.isEmpty())
                 return;
             if (DEBUG)
-                System.out.printf("sync(%s)\n", entry.path);
-            entry.sync();
+                System.out.printf("sync(%s)\n", path);
+            List<CacheEntry> run = new ArrayList<>();
+            for (CacheEntry entry : dirty) {
+                if (! run.isEmpty()) {
+                    CacheEntry last = run.get(run.size() - 1);
+                    if (last.offset + last.maxDirtyPos != entry.offset + entry.minDirtyPos) {
+                        write(run);
+                        run = new ArrayList<>();
+                    }
+                }
+                run.add(entry);
+            }
+            write(run);
+        }
+
+        private void write(List<CacheEntry> run) {
+            CacheEntry first = run.get(0);
+            long start = first.offset + first.minDirtyPos;
+            int length = run.stream().mapToInt(c -> c.maxDirtyPos - c.minDirtyPos).sum();
+            byte[] toWrite = new byte[length];
+            int pos = 0;
+            for (CacheEntry entry : run) {
+                int len = entry.maxDirtyPos - entry.minDirtyPos;
+                System.arraycopy(entry.data, entry.minDirtyPos, toWrite, pos, len);
+                pos += len;
+            }
+            Path p = Paths.get(path);
+            String parentPath = p.getParent().toString();
+            String name = p.getFileName().toString();
+            try {
+                int res = applyIfPresent(parentPath,
+                        parent -> CachingPeergosFS.this.write(parent, name, toWrite, length, start), -ErrorCodes.ENOENT());
+                if (res < 0)
+                    throw new IllegalStateException("Error " + res + " syncing " + path);
+                run.forEach(CacheEntry::markClean);
+            } finally {
+                attributes.invalidate(path);
+            }
+        }
+
+        public synchronized boolean isEmpty() {
+            return chunks.isEmpty();
         }
 
         public synchronized void syncAndClear() {
-            if (entry == null)
-                return;
             if (DEBUG)
-                System.out.printf("fsync(%s)\n", entry.path);
-            entry.sync();
-            entry = null;
+                System.out.printf("syncAndClear(%s)\n", path);
+            sync();
+            chunks.values().forEach(CacheEntry::markClean);
+            chunks.clear();
         }
     }
 
@@ -221,7 +412,9 @@ public class CachingPeergosFS extends PeergosFS {
         private final String path;
         private final byte[] data;
         private final long offset;
-        private int maxDirtyPos;
+        private int minDirtyPos, maxDirtyPos;
+        // the end of the data which already exists in this chunk
+        private int existingLength;
 
         public CacheEntry(String path, long offset) {
             this.path = path;
@@ -231,7 +424,9 @@ public class CachingPeergosFS extends PeergosFS {
             PeergosStat stat = getByPath(path).orElseThrow(() -> new IllegalStateException("missing" + path));
             byte[] readData = CachingPeergosFS.this.read(stat, data.length, offset)
                     .orElseThrow(() -> new IllegalStateException("missing: " + path));
+            this.minDirtyPos = 0;
             this.maxDirtyPos = 0;
+            this.existingLength = readData.length;
             System.arraycopy(readData, 0, data, 0, readData.length);
 
         }
@@ -250,19 +445,31 @@ public class CachingPeergosFS extends PeergosFS {
         public int write(Pointer pointer, int pointerOffset, int chunkOffset, int length) {
             ensureInBounds(chunkOffset, length);
             pointer.get(pointerOffset, data, chunkOffset, length);
-            maxDirtyPos = Math.max(maxDirtyPos, chunkOffset+length);
+            if (length == 0)
+                return length;
+            int before = maxDirtyPos - minDirtyPos;
+            // writing beyond the end of the existing data also writes the zeros in between
+            int start = Math.min(chunkOffset, existingLength);
+            if (isDirty()) {
+                minDirtyPos = Math.min(minDirtyPos, start);
+                maxDirtyPos = Math.max(maxDirtyPos, chunkOffset + length);
+            } else {
+                minDirtyPos = start;
+                maxDirtyPos = chunkOffset + length;
+            }
+            dirtyBytes.addAndGet(maxDirtyPos - minDirtyPos - before);
             return length;
         }
 
-        public void sync() {
-            Path p = Paths.get(path);
-
-            String parentPath = p.getParent().toString();
-            String name = p.getFileName().toString();
+        public boolean isDirty() {
+            return maxDirtyPos > minDirtyPos;
+        }
 
-            if (maxDirtyPos ==0)
-                return;
-            applyIfPresent(parentPath, (parent) -> CachingPeergosFS.this.write(parent, name, data, maxDirtyPos, offset), -ErrorCodes.ENOENT());
+        public void markClean() {
+            dirtyBytes.addAndGet(minDirtyPos - maxDirtyPos);
+            existingLength = Math.max(existingLength, maxDirtyPos);
+            minDirtyPos = 0;
+            maxDirtyPos = 0;
         }
 
         @Override
@@ -284,7 +491,9 @@ public class CachingPeergosFS extends PeergosFS {
 
     @Override
     public void close() throws Exception {
-
+        syncRunner.shutdownNow();
+        readAhead.shutdownNow();
+        syncAllQuietly();
         super.close();
     }
 }
\ No newline at end of file
@@ -1,6 +1,7 @@
 package peergos.server.fuse;
 import java.util.logging.*;
 
+import io.prometheus.client.Histogram;
 import peergos.server.util.Logging;
 
 import jnr.ffi.Pointer;
@@ -29,7 +30,14 @@ import java.util.function.*;
 public class PeergosFS extends FuseStubFS implements AutoCloseable {
 	private static final Logger LOG = Logging.LOG();
 
-    protected static class PeergosStat {
+    private static final Histogram opTimer = Histogram.build()
+            .labelNames("op")
+            .name("fuse_op_seconds")
+            .help("Time to complete a FUSE operation")
+            .exponentialBuckets(0.0001, 2, 20)
+            .register();
+
+    public static class PeergosStat {
         public final FileWrapper treeNode;
         public final FileProperties properties;
 
@@ -41,10 +49,16 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
 
 
     private final UserContext context;
+    protected final AttributeCache attributes;
     protected volatile boolean isClosed;
 
     public PeergosFS(UserContext context) {
+        this(context, new AttributeCache(AttributeCache.DEFAULT_TTL_MILLIS, AttributeCache.DEFAULT_MAX_ENTRIES));
+    }
+
+    public PeergosFS(UserContext context, AttributeCache attributes) {
         this.context = context;
+        this.attributes = attributes;
     }
 
     @Override
@@ -90,8 +104,8 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
     public int getattr(String s, FileStat fileStat) {
         ensureNotClosed();
         int aDefault = -ErrorCodes.ENOENT();
-        return applyIfPresent(s, (peergosStat) -> annotateAttributes(s,
-                peergosStat, fileStat), aDefault);
+        return timed("getattr", () -> applyIfPresent(s, (peergosStat) -> annotateAttributes(s,
+                peergosStat, fileStat), aDefault));
     }
 
     @Override
@@ -116,6 +130,14 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
     @Override
     public int mkdir(String s, @mode_t long l) {
         ensureNotClosed();
+        try {
+            return timed("mkdir", () -> mkdir(s));
+        } finally {
+            attributes.invalidate(s);
+        }
+    }
+
+    private int mkdir(String s) {
         Optional<PeergosStat> current = getByPath(s);
         if (current.isPresent())
             return -ErrorCodes.ENOENT();
@@ -136,6 +158,14 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
     @Override
     public int unlink(String s) {
         ensureNotClosed();
+        try {
+            return timed("unlink", () -> removeFile(s));
+        } finally {
+            attributes.invalidate(s);
+        }
+    }
+
+    private int removeFile(String s) {
         try {
             Path requested = Paths.get(s);
             Optional<FileWrapper> file = context.getByPath(s).get();
@@ -158,7 +188,11 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
     public int rmdir(String s) {
         ensureNotClosed();
         Path dir = Paths.get(s);
-        return applyIfPresent(s, (stat) -> applyIfPresent(dir.getParent().toString(), parentStat -> rmdir(stat, dir, parentStat)));
+        try {
+            return timed("rmdir", () -> applyIfPresent(s, (stat) -> applyIfPresent(dir.getParent().toString(), parentStat -> rmdir(stat, dir, parentStat))));
+        } finally {
+            attributes.invalidateTree(s);
+        }
     }
 
     @Override
@@ -196,7 +230,12 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
     public int rename(String s, String s1) {
         ensureNotClosed();
         Path source = Paths.get(s);
-        return applyIfPresent(s, (stat) -> applyIfPresent(source.getParent().toString(), parentStat -> rename(stat, parentStat, s, s1)));
+        try {
+            return timed("rename", () -> applyIfPresent(s, (stat) -> applyIfPresent(source.getParent().toString(), parentStat -> rename(stat, parentStat, s, s1))));
+        } finally {
+            attributes.invalidateTree(s);
+            attributes.invalidateTree(s1);
+        }
     }
 
     @Override
@@ -232,7 +271,7 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
     public int read(String s, Pointer pointer, @size_t long size, @off_t long offset, FuseFileInfo fuseFileInfo) {
         ensureNotClosed();
         debug("READ_OWN_FILE %s, size %d  offset %d ", s, size, offset);
-        return applyIfPresent(s, (stat) -> read(stat, pointer, size, offset));
+        return timed("read", () -> applyIfPresent(s, (stat) -> read(stat, pointer, size, offset)));
     }
 
     @Override
@@ -242,7 +281,11 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
         Path path = Paths.get(s);
         String parentPath = path.getParent().toString();
         String name = path.getFileName().toString();
-        return applyIfPresent(parentPath, (parent) -> write(parent, name, pointer, size, offset), -ErrorCodes.ENOENT());
+        try {
+            return timed("write", () -> applyIfPresent(parentPath, (parent) -> write(parent, name, pointer, size, offset), -ErrorCodes.ENOENT()));
+        } finally {
+            attributes.invalidate(s);
+        }
     }
 
     @Override
@@ -298,7 +341,14 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
     @Override
     public int readdir(String s, Pointer pointer, FuseFillDir fuseFillDir, @off_t long l, FuseFileInfo fuseFileInfo) {
         ensureNotClosed();
-        return applyIfPresent(s, (stat) ->readdir(stat, fuseFillDir, pointer));
+        return timed("readdir", () -> {
+            Optional<List<String>> cached = attributes.getChildren(s);
+            if (cached.isPresent()) {
+                cached.get().forEach(e -> fuseFillDir.apply(pointer, e, null, 0));
+                return 0;
+            }
+            return applyIfPresent(s, (stat) -> readdir(s, stat, fuseFillDir, pointer));
+        });
     }
 
     @Override
@@ -339,8 +389,12 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
         String name = path.getFileName().toString();
         byte[] emptyData = new byte[0];
 
-        return applyIfPresent(parentPath,
-                (stat) -> write(stat,  name, emptyData, 0, 0));
+        try {
+            return timed("create", () -> applyIfPresent(parentPath,
+                    (stat) -> write(stat,  name, emptyData, 0, 0)));
+        } finally {
+            attributes.invalidate(s);
+        }
     }
 
     @Override
@@ -348,7 +402,11 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
         ensureNotClosed();
         Path path = Paths.get(s);
         String parentPath = path.getParent().toString();
-        return applyIfBothPresent(parentPath, s, (parent, file) -> truncate(parent, file, l));
+        try {
+            return timed("ftruncate", () -> applyIfBothPresent(parentPath, s, (parent, file) -> truncate(parent, file, l)));
+        } finally {
+            attributes.invalidate(s);
+        }
     }
 
     @Override
@@ -373,6 +431,14 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
         if (! parentOpt.isPresent())
             return aDefault;
 
+        try {
+            return timed("utimens", () -> setModified(s, timespecs, parentOpt.get(), aDefault));
+        } finally {
+            attributes.invalidate(s);
+        }
+    }
+
+    private int setModified(String s, Timespec[] timespecs, PeergosStat parent, int aDefault) {
         return applyIfPresent(s, (stat) -> {
 
             Timespec access = timespecs[0], modified = timespecs[1];
@@ -391,7 +457,7 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
                     */
 
             try {
-                boolean isUpdated = stat.treeNode.setProperties(updated, context.crypto.hasher, context.network, Optional.of(parentOpt.get().treeNode)).get();
+                boolean isUpdated = stat.treeNode.setProperties(updated, context.crypto.hasher, context.network, Optional.of(parent.treeNode)).get();
                 return isUpdated ? 0 : -ErrorCodes.ENOENT();
             } catch (Exception ex) {
                 LOG.log(Level.WARNING, ex.getMessage(), ex);
@@ -443,7 +509,20 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
         throw ex;
     }
 
+    protected int timed(String op, Supplier<Integer> action) {
+        Histogram.Timer timer = opTimer.labels(op).startTimer();
+        try {
+            return action.get();
+        } finally {
+            timer.observeDuration();
+        }
+    }
+
     protected Optional<PeergosStat> getByPath(String path) {
+        return attributes.getStat(path, () -> lookup(path));
+    }
+
+    private Optional<PeergosStat> lookup(String path) {
         try {
             Optional<FileWrapper> opt = context.getByPath(path).get();
             ;
@@ -496,9 +575,12 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
         }
     }
 
-    private int readdir(PeergosStat stat, FuseFillDir fuseFillDir, Pointer pointer) {
+    private int readdir(String path, PeergosStat stat, FuseFillDir fuseFillDir, Pointer pointer) {
         try {
+            long start = System.currentTimeMillis();
+            long generation = attributes.generation();
             Set<FileWrapper> children = stat.treeNode.getChildren(context.crypto.hasher, context.network).get();
+            attributes.putChildren(path, children, start, generation);
             children.stream()
                     .map(e -> e.getFileProperties().name)
                     .forEach(e -> fuseFillDir.apply(pointer, e, null, 0));
@@ -32,4 +32,24 @@ public class BlockingMutablePointers implements MutablePointers {
         res.completeExceptionally(new IllegalStateException("This Peergos subspace has been banned from this server"));
         return res;
     }
+
+    @Override
+    public CompletableFuture<Map<PublicKeyHash, byte[]>> getPointers(PublicKeyHash owner, List<PublicKeyHash> writers) {
+        if (writers.stream().allMatch(blacklist::isAllowed))
+            return source.getPointers(owner, writers);
+        CompletableFuture<Map<PublicKeyHash, byte[]>> res = new CompletableFuture<>();
+        res.completeExceptionally(new IllegalStateException("This Peergos subspace has been banned from this server"));
+        return res;
+    }
+
+    @Override
+    public CompletableFuture<Map<PublicKeyHash, byte[]>> watchPointers(PublicKeyHash owner,
+                                                                       Map<PublicKeyHash, Optional<byte[]>> known,
+                                                                       long timeoutMillis) {
+        if (known.keySet().stream().allMatch(blacklist::isAllowed))
+            return source.watchPointers(owner, known, timeoutMillis);
+        CompletableFuture<Map<PublicKeyHash, byte[]>> res = new CompletableFuture<>();
+        res.completeExceptionally(new IllegalStateException("This Peergos subspace has been banned from this server"));
+        return res;
+    }
 }
@@ -11,6 +11,23 @@ public class MutableEventPropagator implements MutablePointers {
 
     private final MutablePointers target;
     private final List<Consumer<? super MutableEvent>> listeners = new ArrayList<>();
+    private final Map<PublicKeyHash, Set<Watch>> watches = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService watchTimeouts = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "Pointer watch timeouts");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** A pending request to be told of the next change to any of a set of writers
+     */
+    private static class Watch {
+        public final Set<PublicKeyHash> writers;
+        public final CompletableFuture<Map<PublicKeyHash, byte[]>> result = new CompletableFuture<>();
+
+        public Watch(Set<PublicKeyHash> writers) {
+            this.writers = writers;
+        }
+    }
 
     public MutableEventPropagator(MutablePointers target) {
         this.target = target;
@@ -29,6 +46,10 @@ public class MutableEventPropagator implements MutablePointers {
                         for (Consumer<? super MutableEvent> listener : listeners) {
                             listener.accept(event);
                         }
+                        Set<Watch> watching = watches.get(writer);
+                        if (watching != null)
+                            for (Watch watch : new ArrayList<>(watching))
+                                watch.result.complete(Collections.singletonMap(writer, writerSignedBtreeRootHash));
                     }
                     return res;
                 });
@@ -38,4 +59,39 @@ public class MutableEventPropagator implements MutablePointers {
     public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash owner, PublicKeyHash writer) {
         return target.getPointer(owner, writer);
     }
+
+    @Override
+    public CompletableFuture<Map<PublicKeyHash, byte[]>> getPointers(PublicKeyHash owner, List<PublicKeyHash> writers) {
+        return target.getPointers(owner, writers);
+    }
+
+    @Override
+    public CompletableFuture<Map<PublicKeyHash, byte[]>> watchPointers(PublicKeyHash owner,
+                                                                       Map<PublicKeyHash, Optional<byte[]>> known,
+                                                                       long timeoutMillis) {
+        Watch watch = new Watch(new HashSet<>(known.keySet()));
+        for (PublicKeyHash writer : watch.writers)
+            watches.computeIfAbsent(writer, w -> ConcurrentHashMap.newKeySet()).add(watch);
+        ScheduledFuture<?> timeout = watchTimeouts.schedule(() -> watch.result.complete(Collections.emptyMap()),
+                timeoutMillis, TimeUnit.MILLISECONDS);
+        watch.result.whenComplete((r, t) -> {
+            timeout.cancel(false);
+            for (PublicKeyHash writer : watch.writers)
+                watches.computeIfPresent(writer, (w, set) -> {
+                    set.remove(watch);
+                    return set.isEmpty() ? null : set;
+                });
+        });
+        // Catch any changes from before we were registered
+        target.getPointers(owner, new ArrayList<>(watch.writers))
+                .thenAccept(current -> {
+                    Map<PublicKeyHash, byte[]> changed = MutablePointers.changedPointers(known, current);
+                    if (! changed.isEmpty())
+                        watch.result.complete(changed);
+                }).exceptionally(t -> {
+                    watch.result.completeExceptionally(t);
+                    return null;
+                });
+        return watch.result;
+    }
 }
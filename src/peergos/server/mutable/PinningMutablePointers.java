@@ -76,4 +76,16 @@ public class PinningMutablePointers implements MutablePointers {
     public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash owner, PublicKeyHash writer) {
         return target.getPointer(owner, writer);
     }
+
+    @Override
+    public CompletableFuture<Map<PublicKeyHash, byte[]>> getPointers(PublicKeyHash owner, List<PublicKeyHash> writers) {
+        return target.getPointers(owner, writers);
+    }
+
+    @Override
+    public CompletableFuture<Map<PublicKeyHash, byte[]>> watchPointers(PublicKeyHash owner,
+                                                                       Map<PublicKeyHash, Optional<byte[]>> known,
+                                                                       long timeoutMillis) {
+        return target.watchPointers(owner, known, timeoutMillis);
+    }
 }
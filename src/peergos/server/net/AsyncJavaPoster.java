@@ -0,0 +1,247 @@
+package peergos.server.net;
+
+import io.prometheus.client.Histogram;
+import peergos.shared.io.ipfs.api.*;
+import peergos.shared.storage.*;
+import peergos.shared.user.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.net.*;
+import java.net.http.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/** A non-blocking HttpPoster for Java clients.
+ *
+ *  Unlike JavaPoster, requests are not executed on the calling thread, so concurrent requests from fan-outs like
+ *  retrieving many fragments or champ nodes really are concurrent. Connections are pooled and kept alive by the
+ *  underlying HttpClient, which multiplexes requests over HTTP/2 when the server supports it. The number of requests
+ *  in flight to each host is limited, with further requests queued until one completes. Long polls, which wait on the
+ *  server for a change, are not limited, so they can't starve other requests of slots.
+ */
+public class AsyncJavaPoster implements HttpPoster {
+    public static final int DEFAULT_MAX_IN_FLIGHT_PER_HOST = 32;
+    public static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(15);
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10);
+    // The timeout covers sending the body, so uploads get extra time assuming at least this upload speed
+    public static final long MIN_UPLOAD_BYTES_PER_SECOND = 64 * 1024;
+
+    private static final Histogram requestTimer = Histogram.build()
+            .labelNames("method")
+            .name("http_client_request_seconds")
+            .help("Time to complete an outgoing HTTP request")
+            .exponentialBuckets(0.001, 2, 16)
+            .register();
+
+    private static class HostLimiter {
+        private final int maxInFlight;
+        private final Queue<Runnable> waiting = new ArrayDeque<>();
+        private int inFlight = 0;
+
+        public HostLimiter(int maxInFlight) {
+            this.maxInFlight = maxInFlight;
+        }
+
+        public void submit(Runnable request) {
+            synchronized (this) {
+                if (inFlight >= maxInFlight) {
+                    waiting.add(request);
+                    return;
+                }
+                inFlight++;
+            }
+            request.run();
+        }
+
+        public void finished() {
+            Runnable next;
+            synchronized (this) {
+                next = waiting.poll();
+                if (next == null)
+                    inFlight--;
+            }
+            if (next != null)
+                next.run();
+        }
+    }
+
+    // These are set by the client itself
+    private static final Set<String> RESTRICTED_HEADERS = Set.of("host", "connection", "content-length", "expect", "upgrade");
+    private static final String WATCH_POINTERS_PATH = Constants.MUTABLE_POINTERS_URL + "watchPointers";
+
+    private final URL base;
+    private final boolean useGet;
+    private final HttpClient client;
+    private final int maxInFlightPerHost;
+    private final Duration timeout;
+    private final Map<String, HostLimiter> limiters = new ConcurrentHashMap<>();
+
+    public AsyncJavaPoster(URL base, boolean isPublicServer, int maxInFlightPerHost, Duration timeout) {
+        this.base = base;
+        this.useGet = isPublicServer;
+        this.maxInFlightPerHost = maxInFlightPerHost;
+        this.timeout = timeout;
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(CONNECT_TIMEOUT)
+                .build();
+    }
+
+    public AsyncJavaPoster(URL base, boolean isPublicServer) {
+        this(base, isPublicServer, DEFAULT_MAX_IN_FLIGHT_PER_HOST, DEFAULT_TIMEOUT);
+    }
+
+    private URI buildURI(String path) {
+        try {
+            return new URL(base, path).toURI();
+        } catch (MalformedURLException | URISyntaxException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /** The timeout for a request with a body of the given size, which is the base timeout for small requests
+     *
+     * @param base
+     * @param bodySize
+     * @return
+     */
+    public static Duration uploadTimeout(Duration base, long bodySize) {
+        return base.plusMillis(bodySize * 1000 / MIN_UPLOAD_BYTES_PER_SECOND);
+    }
+
+    private static void addHeaders(HttpRequest.Builder req, Map<String, String> headers) {
+        for (Map.Entry<String, String> e : headers.entrySet())
+            if (! RESTRICTED_HEADERS.contains(e.getKey().toLowerCase()))
+                req.header(e.getKey(), e.getValue());
+    }
+
+    @Override
+    public CompletableFuture<byte[]> postUnzip(String url, byte[] payload) {
+        return post(url, payload, true);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> post(String url, byte[] payload, boolean unzip) {
+        HttpRequest req = HttpRequest.newBuilder(buildURI(url))
+                .timeout(uploadTimeout(timeout, payload.length))
+                .POST(HttpRequest.BodyPublishers.ofByteArray(payload))
+                .build();
+        return send("POST", req, unzip);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> postMultipart(String url, List<byte[]> files) {
+        String boundary = Multipart.createBoundary();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (byte[] file : files) {
+            String header = "--" + boundary + "\r\n"
+                    + "Content-Disposition: file; name=\"file\";\r\n"
+                    + "Content-Type: application/octet-stream\r\n"
+                    + "Content-Transfer-Encoding: binary\r\n\r\n";
+            body.writeBytes(header.getBytes());
+            body.writeBytes(file);
+            body.writeBytes("\r\n".getBytes());
+        }
+        body.writeBytes(("--" + boundary + "--\r\n").getBytes());
+        byte[] payload = body.toByteArray();
+        HttpRequest req = HttpRequest.newBuilder(buildURI(url))
+                .timeout(uploadTimeout(timeout, payload.length))
+                .header("Content-Type", "multipart/form-data; boundary=" + boundary)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(payload))
+                .build();
+        return send("POST", req, false);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> put(String url, byte[] body, Map<String, String> headers) {
+        HttpRequest.Builder req = HttpRequest.newBuilder(buildURI(url))
+                .timeout(uploadTimeout(timeout, body.length))
+                .PUT(HttpRequest.BodyPublishers.ofByteArray(body));
+        addHeaders(req, headers);
+        return send("PUT", req.build(), false);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> get(String url) {
+        return get(url, Collections.emptyMap());
+    }
+
+    @Override
+    public CompletableFuture<byte[]> get(String url, Map<String, String> headers) {
+        if (! useGet) {
+            // This changes to a POST with an empty body
+            // The reason for this is browsers allow any website to do a get request to localhost
+            // but they block POST requests. So this prevents random websites from calling APIs on localhost
+            return postUnzip(url, new byte[0]);
+        }
+        HttpRequest.Builder req = HttpRequest.newBuilder(buildURI(url))
+                .timeout(timeout)
+                .GET();
+        addHeaders(req, headers);
+        return send("GET", req.build(), true);
+    }
+
+    private static boolean isLongPoll(URI uri) {
+        return uri.getPath().endsWith(WATCH_POINTERS_PATH);
+    }
+
+    private CompletableFuture<byte[]> send(String method, HttpRequest req, boolean unzip) {
+        CompletableFuture<byte[]> res = new CompletableFuture<>();
+        if (isLongPoll(req.uri())) {
+            sendAsync(method, req, unzip, res, () -> {});
+            return res;
+        }
+        HostLimiter limiter = limiters.computeIfAbsent(req.uri().getAuthority(), h -> new HostLimiter(maxInFlightPerHost));
+        limiter.submit(() -> sendAsync(method, req, unzip, res, limiter::finished));
+        return res;
+    }
+
+    private void sendAsync(String method, HttpRequest req, boolean unzip, CompletableFuture<byte[]> res, Runnable onComplete) {
+        Histogram.Timer timer = requestTimer.labels(method).startTimer();
+        client.sendAsync(req, HttpResponse.BodyHandlers.ofByteArray())
+                .whenComplete((resp, t) -> {
+                    timer.observeDuration();
+                    onComplete.run();
+                    if (t != null) {
+                        Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+                        if (cause instanceof HttpTimeoutException)
+                            res.completeExceptionally(new RuntimeException("Timeout retrieving: " + req.uri(), cause));
+                        else
+                            res.completeExceptionally(cause);
+                        return;
+                    }
+                    try {
+                        res.complete(parseResponse(resp, unzip));
+                    } catch (Throwable e) {
+                        res.completeExceptionally(e);
+                    }
+                });
+    }
+
+    private static byte[] parseResponse(HttpResponse<byte[]> resp, boolean unzip) throws IOException {
+        int status = resp.statusCode();
+        if (status >= 400) {
+            // Peergos servers put the error message in the Trailer header
+            Optional<String> trailer = resp.headers().firstValue("Trailer");
+            if (trailer.isPresent()) {
+                // Only writes which the server marks as rejected are final, any other error may succeed on a retry
+                boolean isRejectedWrite = resp.headers().firstValue(HttpWriteRejectedException.HTTP_HEADER).isPresent();
+                throw isRejectedWrite ? new HttpWriteRejectedException(trailer.get()) : new RuntimeException(trailer.get());
+            }
+            throw new IOException("HTTP " + status + " from " + resp.uri());
+        }
+        boolean isGzipped = resp.headers().firstValue("Content-Encoding").map("gzip"::equals).orElse(false);
+        if (isGzipped && unzip)
+            return Serialize.readFully(new GZIPInputStream(new ByteArrayInputStream(resp.body())));
+        return resp.body();
+    }
+
+    @Override
+    public String toString() {
+        return base.toString();
+    }
+}
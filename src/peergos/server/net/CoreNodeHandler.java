@@ -70,7 +70,9 @@ public class CoreNodeHandler implements HttpHandler
                     AggregatedMetrics.GET_ALL_USERNAMES.inc();
                     exchange.getResponseHeaders().set("Content-Encoding", "gzip");
                     exchange.getResponseHeaders().set("Content-Type", "application/json");
-                    getAllUsernamesGzip(subComponents.length > 1 ? subComponents[1] : "", din, dout);
+                    Map<String, List<String>> params = HttpUtil.parseQuery(exchange.getRequestURI().getQuery());
+                    int limit = params.containsKey("limit") ? Integer.parseInt(params.get("limit").get(0)) : Integer.MAX_VALUE;
+                    getAllUsernamesGzip(subComponents.length > 1 ? subComponents[1] : "", limit, din, dout);
                     break;
                 default:
                     throw new IOException("Unknown pkinode method!");
@@ -132,9 +134,9 @@ public class CoreNodeHandler implements HttpHandler
         Serialize.serialize(k, dout);
     }
 
-    void getAllUsernamesGzip(String prefix, DataInputStream din, DataOutputStream dout) throws Exception
+    void getAllUsernamesGzip(String prefix, int limit, DataInputStream din, DataOutputStream dout) throws Exception
     {
-        List<String> res = coreNode.getUsernames(prefix).get();
+        List<String> res = coreNode.getUsernames(prefix, limit).get();
         ByteArrayOutputStream bout = new ByteArrayOutputStream();
         GZIPOutputStream gout = new GZIPOutputStream(bout);
         gout.write(JSONParser.toString(res).getBytes());
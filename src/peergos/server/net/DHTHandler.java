@@ -18,6 +18,7 @@ import static peergos.shared.storage.ContentAddressedStorage.HTTP.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.*;
 import java.util.stream.*;
 
@@ -25,6 +26,9 @@ public class DHTHandler implements HttpHandler {
 	private static final Logger LOG = Logging.LOG();
 
     private static final boolean LOGGING = true;
+    // The boundary and headers of each block in a multipart block put
+    private static final int MAX_MULTIPART_OVERHEAD_PER_BLOCK = 1024;
+    public static final int MAX_BINARY_PUT_BLOCKS = 64;
     private final ContentAddressedStorage dht;
     private final Hasher hasher;
     private final BiFunction<PublicKeyHash, Integer, Boolean> keyFilter;
@@ -71,7 +75,7 @@ public class DHTHandler implements HttpHandler {
             switch (path) {
                 case BLOCKSTORE_PROPERTIES: {
                     dht.blockStoreProperties().thenAccept(p -> {
-                        replyBytes(httpExchange, p.serialize(), Optional.empty());
+                        replyBytes(httpExchange, p.withBinaryBlockPuts().serialize(), Optional.empty());
                     }).exceptionally(Futures::logAndThrow).get();
                     break;
                 }
@@ -131,47 +135,27 @@ public class DHTHandler implements HttpHandler {
                             .map(s -> s.substring(s.indexOf("=") + 1))
                             .findAny()
                             .get();
-                    List<byte[]> data = MultipartReceiver.extractFiles(httpExchange.getRequestBody(), boundary);
                     boolean isRaw = last.apply("format").equals("raw");
+                    long maxBodySize = signatures.size() * (long) (ContentAddressedStorage.MAX_BLOCK_SIZE + MAX_MULTIPART_OVERHEAD_PER_BLOCK);
+                    Iterator<byte[]> blocks = MultipartReceiver.streamFiles(httpExchange.getRequestBody(), boundary, maxBodySize);
 
-                    // check writer is allowed to write to this server, and check their free space
-                    if (! keyFilter.apply(writerHash, data.stream().mapToInt(x -> x.length).sum()))
-                        throw new IllegalStateException("Key not allowed to write to this server: " + writerHash);
-
-                    // Get the actual key, unless this is the initial write of the signing key during sign up
-                    // In the initial put of a signing key during sign up the key signs itself (we still check the hash
-                    // against the core node)
-                    Supplier<PublicSigningKey> fromDht = () -> {
-                        try {
-                            return dht.getSigningKey(writerHash).get().get();
-                        } catch (Exception e) {
-                            throw new RuntimeException(e);
-                        }
-                    };
-                    Supplier<PublicSigningKey> inBandOrDht = () -> {
-                        try {
-                            PublicSigningKey candidateKey = PublicSigningKey.fromByteArray(data.get(0));
-                            PublicKeyHash calculatedHash = ContentAddressedStorage.hashKey(candidateKey);
-                            if (calculatedHash.equals(writerHash)) {
-                                candidateKey.unsignMessage(signatures.get(0));
-                                return candidateKey;
-                            }
-                        } catch (Throwable e) {
-                            // If signature is not valid then the signing key has already been written, retrieve it
-                            // This happens for the boxing key during sign up for example
-                        }
-                        return fromDht.get();
-                    };
-                    PublicSigningKey writer = data.size() > 1 ? fromDht.get() : inBandOrDht.get();
-
-                    // verify signatures
-                    for (int i = 0; i < data.size(); i++) {
-                        byte[] signature = signatures.get(i);
-                        byte[] hash = hasher.sha256(data.get(i)).join();
-                        byte[] unsigned = writer.unsignMessage(signature);
-                        if (! Arrays.equals(unsigned, hash))
-                            throw new IllegalStateException("Invalid signature for block!");
+                    // check and verify each block as soon as it has been received
+                    List<byte[]> data = new ArrayList<>();
+                    PublicSigningKey writer = null;
+                    while (blocks.hasNext()) {
+                        byte[] block = blocks.next();
+                        int i = data.size();
+                        if (i >= signatures.size())
+                            throw new HttpWriteRejectedException("More blocks than signatures!");
+                        if (writer == null)
+                            writer = signatures.size() > 1 ?
+                                    getSigningKey(writerHash) :
+                                    getSigningKey(writerHash, block, signatures.get(0));
+                        verifyBlock(writerHash, writer, signatures.get(i), block);
+                        data.add(block);
                     }
+                    if (data.size() != signatures.size())
+                        throw new HttpWriteRejectedException("Fewer blocks than signatures!");
 
                     List<Multihash> hashes = (isRaw ?
                             dht.putRaw(ownerHash, writerHash, signatures, data, tid, x -> {}) :
@@ -186,6 +170,51 @@ public class DHTHandler implements HttpHandler {
                     replyJson(httpExchange, jsonStream, Optional.empty());
                     break;
                 }
+                case BLOCK_PUT_BINARY: {
+                    AggregatedMetrics.DHT_BLOCK_PUT.inc();
+                    PublicKeyHash ownerHash = PublicKeyHash.fromString(last.apply("owner"));
+                    TransactionId tid = new TransactionId(last.apply("transaction"));
+                    PublicKeyHash writerHash = PublicKeyHash.fromString(last.apply("writer"));
+                    boolean isRaw = last.apply("format").equals("raw");
+                    DataInputStream din = new DataInputStream(httpExchange.getRequestBody());
+                    int maxFrameSize = ContentAddressedStorage.MAX_BLOCK_SIZE + BinaryBlockPut.MAX_FRAME_OVERHEAD;
+
+                    List<byte[]> signatures = new ArrayList<>();
+                    List<byte[]> data = new ArrayList<>();
+                    byte[] reply;
+                    try {
+                        // check and verify each block as soon as it has been received
+                        PublicSigningKey writer = null;
+                        Optional<Pair<byte[], byte[]>> frame;
+                        while ((frame = BinaryBlockPut.readFrame(din, maxFrameSize)).isPresent()) {
+                            if (data.size() >= MAX_BINARY_PUT_BLOCKS)
+                                throw new HttpWriteRejectedException("Too many blocks in one put!");
+                            byte[] signature = frame.get().left;
+                            byte[] block = frame.get().right;
+                            if (writer == null)
+                                writer = getSigningKey(writerHash, block, signature);
+                            verifyBlock(writerHash, writer, signature, block);
+                            signatures.add(signature);
+                            data.add(block);
+                        }
+                        if (data.isEmpty())
+                            throw new HttpWriteRejectedException("No blocks in put!");
+                        List<Multihash> hashes = (isRaw ?
+                                dht.putRaw(ownerHash, writerHash, signatures, data, tid, x -> {}) :
+                                dht.put(ownerHash, writerHash, signatures, data, tid)).get();
+                        reply = BinaryBlockPut.serializeReply(hashes);
+                    } catch (Exception e) {
+                        // A rejected write is returned in band so the client doesn't retry it, as with a rejected
+                        // multipart put. Any other failure may be transient, so is returned as an HTTP error.
+                        Throwable cause = Exceptions.getRootCause(e);
+                        if (! (cause instanceof HttpWriteRejectedException))
+                            throw e;
+                        LOG.log(Level.WARNING, "Rejected block put: " + cause.getMessage());
+                        reply = BinaryBlockPut.serializeRejection(String.valueOf(cause.getMessage()));
+                    }
+                    replyBytes(httpExchange, reply, Optional.empty());
+                    break;
+                }
                 case BLOCK_GET:{
                     AggregatedMetrics.DHT_BLOCK_GET.inc();
                     Multihash hash = Cid.decode(args.get(0));
@@ -243,6 +272,52 @@ public class DHTHandler implements HttpHandler {
         }
     }
 
+    private PublicSigningKey getSigningKey(PublicKeyHash writerHash) {
+        try {
+            return dht.getSigningKey(writerHash).get().get();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Get the actual key, unless this is the initial write of the signing key during sign up
+     *  In the initial put of a signing key during sign up the key signs itself (we still check the hash
+     *  against the core node)
+     */
+    private PublicSigningKey getSigningKey(PublicKeyHash writerHash, byte[] firstBlock, byte[] firstSignature) {
+        try {
+            PublicSigningKey candidateKey = PublicSigningKey.fromByteArray(firstBlock);
+            PublicKeyHash calculatedHash = ContentAddressedStorage.hashKey(candidateKey);
+            if (calculatedHash.equals(writerHash)) {
+                candidateKey.unsignMessage(firstSignature);
+                return candidateKey;
+            }
+        } catch (Throwable e) {
+            // If signature is not valid then the signing key has already been written, retrieve it
+            // This happens for the boxing key during sign up for example
+        }
+        return getSigningKey(writerHash);
+    }
+
+    private void verifyBlock(PublicKeyHash writerHash, PublicSigningKey writer, byte[] signature, byte[] block) {
+        if (block.length > ContentAddressedStorage.MAX_BLOCK_SIZE)
+            throw new HttpWriteRejectedException("Block too large: " + block.length);
+        // check writer is allowed to write to this server, and check their free space
+        if (! keyFilter.apply(writerHash, block.length))
+            throw new HttpWriteRejectedException("Key not allowed to write to this server: " + writerHash);
+
+        // verify signature
+        byte[] hash = hasher.sha256(block).join();
+        byte[] unsigned;
+        try {
+            unsigned = writer.unsignMessage(signature);
+        } catch (RuntimeException e) {
+            throw new HttpWriteRejectedException("Invalid signature for block!");
+        }
+        if (! Arrays.equals(unsigned, hash))
+            throw new HttpWriteRejectedException("Invalid signature for block!");
+    }
+
     private static Map<String, Object> wrapHash(Multihash h) {
         return wrapHash("Hash", h);
     }
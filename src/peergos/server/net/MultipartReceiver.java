@@ -3,82 +3,178 @@ package peergos.server.net;
 import java.io.*;
 import java.util.*;
 
+/** A parser for multipart/form-data bodies, which only retains the file contents.
+ *
+ *  The body is read in bulk into a buffer which is scanned for delimiters with Boyer-Moore-Horspool, and each file is
+ *  returned as soon as it has been received, so callers can process the first files while the rest are in flight.
+ */
 public class MultipartReceiver {
-    private static final byte[] DOUBLE_NEW_LINE = "\r\n\r\n".getBytes();
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_HEADER_SIZE = 16 * 1024;
 
-    public static List<byte[]> extractFiles(InputStream rawIn, String boundary) {
-        try {
-            int maxLineSize = 1024;
-            InputStream in = new BufferedInputStream(rawIn);
-            String first = readLine(in, maxLineSize);
-            if (!first.substring(2).equals(boundary))
-                throw new IllegalStateException("Incorrect boundary! " + boundary + " != " + first.substring(2));
-            byte[] firstHeaders = readUntil(DOUBLE_NEW_LINE, in);
+    private static final class Pattern {
+        public final byte[] bytes;
+        private final int[] skip = new int[256];
 
-            byte[] boundaryBytes = ("\r\n--" + boundary).getBytes();
-            List<byte[]> files = new ArrayList<>();
+        public Pattern(byte[] bytes) {
+            this.bytes = bytes;
+            Arrays.fill(skip, bytes.length);
+            for (int i = 0; i < bytes.length - 1; i++)
+                skip[bytes[i] & 0xff] = bytes.length - 1 - i;
+        }
+
+        /**
+         *
+         * @return the index of the first occurrence of this pattern in buf[from, end), or -1
+         */
+        public int indexIn(byte[] buf, int from, int end) {
+            int m = bytes.length;
+            int i = from;
+            while (i + m <= end) {
+                int j = m - 1;
+                while (buf[i + j] == bytes[j]) {
+                    if (j == 0)
+                        return i;
+                    j--;
+                }
+                i += skip[buf[i + m - 1] & 0xff];
+            }
+            return -1;
+        }
+    }
+
+    private static final Pattern NEW_LINE = new Pattern("\r\n".getBytes());
+    private static final Pattern DOUBLE_NEW_LINE = new Pattern("\r\n\r\n".getBytes());
+
+    public static class Parts implements Iterator<byte[]> {
+        private final InputStream in;
+        private final String boundary;
+        private final Pattern delimiter;
+        private final long maxBytes;
+        private byte[] buf = new byte[INITIAL_BUFFER_SIZE];
+        // The unconsumed bytes are buf[start, end)
+        private int start = 0, end = 0;
+        private long totalRead = 0;
+        private boolean eof = false, started = false, finished = false;
+        private byte[] next;
+
+        public Parts(InputStream in, String boundary, long maxBytes) {
+            this.in = in;
+            this.boundary = boundary;
+            this.delimiter = new Pattern(("\r\n--" + boundary).getBytes());
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && ! finished) {
+                try {
+                    next = readNext();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public byte[] next() {
+            if (! hasNext())
+                throw new NoSuchElementException();
+            byte[] res = next;
+            next = null;
+            return res;
+        }
 
+        private byte[] readNext() throws IOException {
+            if (! started) {
+                int lineEnd = find(NEW_LINE, MAX_HEADER_SIZE);
+                String first = lineEnd < 0 ? "" : new String(buf, start, lineEnd - start);
+                if (! first.startsWith("--") || ! first.substring(2).equals(boundary))
+                    throw new IllegalStateException("Incorrect boundary! " + boundary + " != " + (first.length() > 2 ? first.substring(2) : first));
+                start = lineEnd;
+                skipHeaders();
+                started = true;
+            }
+            int partEnd = find(delimiter, Long.MAX_VALUE);
+            if (partEnd < 0)
+                throw new IllegalStateException("Truncated multipart body");
+            byte[] part = Arrays.copyOfRange(buf, start, partEnd);
+            start = partEnd + delimiter.bytes.length;
+            // the final delimiter is followed by "--"
+            while (end - start < 2 && ! eof)
+                fill();
+            if (end - start < 2 || (buf[start] == '-' && buf[start + 1] == '-'))
+                finished = true;
+            else
+                skipHeaders();
+            return part;
+        }
+
+        private void skipHeaders() throws IOException {
+            int headersEnd = find(DOUBLE_NEW_LINE, MAX_HEADER_SIZE);
+            if (headersEnd < 0)
+                throw new IllegalStateException("Truncated multipart headers");
+            start = headersEnd + DOUBLE_NEW_LINE.bytes.length;
+        }
+
+        /**
+         *
+         * @param pattern
+         * @param maxDistance the maximum number of bytes to search
+         * @return the index in buf of the next occurrence of pattern, or -1 if the stream ends without one
+         * @throws IOException
+         */
+        private int find(Pattern pattern, long maxDistance) throws IOException {
+            int searched = 0; // relative to start, as filling may move the data
             while (true) {
-                byte[] file = readUntil(boundaryBytes, in);
-                files.add(file);
-                byte[] headers = readUntil(DOUBLE_NEW_LINE, in);
-                if (headers.length == 0 || Arrays.equals(headers, "--".getBytes()))
-                    return files;
+                int index = pattern.indexIn(buf, start + searched, end);
+                if (index >= 0)
+                    return index;
+                if (eof)
+                    return -1;
+                searched = Math.max(0, end - start - pattern.bytes.length + 1);
+                if (searched > maxDistance)
+                    throw new IllegalStateException("Multipart section too large");
+                fill();
+            }
+        }
+
+        private void fill() throws IOException {
+            if (end == buf.length) {
+                if (start > 0) {
+                    System.arraycopy(buf, start, buf, 0, end - start);
+                    end -= start;
+                    start = 0;
+                } else
+                    buf = Arrays.copyOf(buf, buf.length * 2);
             }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            int read = in.read(buf, end, buf.length - end);
+            if (read < 0) {
+                eof = true;
+                return;
+            }
+            end += read;
+            totalRead += read;
+            if (totalRead > maxBytes)
+                throw new IllegalStateException("Multipart body larger than " + maxBytes + " bytes");
         }
     }
 
     /**
      *
-     * @param pattern the pattern of bytes to search until
      * @param in
-     * @return the bytes in this stream until pattern is encountered, or the end of the stream is reached
-     * @throws IOException
+     * @param boundary
+     * @param maxBytes the maximum size of the whole body
+     * @return the files in the body, which are parsed as they are iterated over
      */
-    private static byte[] readUntil(byte[] pattern, InputStream in) throws IOException {
-        ByteArrayOutputStream prior = new ByteArrayOutputStream();
-        int r;
-        int indexInPattern = 0;
-        while ((r = in.read()) != -1) {
-            if ((byte) r == pattern[indexInPattern]) {
-                indexInPattern++;
-                if (indexInPattern == pattern.length)
-                    return prior.toByteArray();
-            } else {
-                if (indexInPattern > 0)
-                    prior.write(pattern, 0, indexInPattern);
-                indexInPattern = 0;
-                // be careful of case where last byte before pattern == first byte of pattern
-                if ((byte) r == pattern[0]) {
-                    indexInPattern = 1;
-                    if (pattern.length == 1)
-                        return prior.toByteArray();
-                } else
-                    prior.write(r);
-            }
-        }
-        return prior.toByteArray();
+    public static Iterator<byte[]> streamFiles(InputStream in, String boundary, long maxBytes) {
+        return new Parts(in, boundary, maxBytes);
     }
 
-    private static String readLine(InputStream in, int maxSize) throws IOException {
-        ByteArrayOutputStream bout = new ByteArrayOutputStream();
-        int r, total = 0;
-        while ((r = in.read()) >= 0) {
-            total++;
-
-            if (r == '\r') {
-                int next = in.read();
-                if (next == '\n')
-                    break;
-                bout.write(r);
-                bout.write(next);
-            } else
-                bout.write(r);
-            if (total > maxSize)
-                break;
-        }
-        return new String(bout.toByteArray());
+    public static List<byte[]> extractFiles(InputStream in, String boundary) {
+        List<byte[]> files = new ArrayList<>();
+        streamFiles(in, boundary, Long.MAX_VALUE).forEachRemaining(files::add);
+        return files;
     }
 }
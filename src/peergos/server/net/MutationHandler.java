@@ -3,6 +3,7 @@ package peergos.server.net;
 import com.sun.net.httpserver.*;
 import peergos.server.*;
 import peergos.server.util.*;
+import peergos.shared.cbor.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.mutable.*;
 import peergos.shared.util.*;
@@ -16,6 +17,8 @@ import java.util.logging.*;
  */
 public class MutationHandler implements HttpHandler {
     private static final Logger LOG = Logging.LOG();
+    private static final int MAX_GET_POINTERS_BODY = 1024 * 1024;
+    private static final long MAX_WATCH_MILLIS = 60_000;
 
     private final MutablePointers mutable;
     private final boolean isPublicServer;
@@ -42,7 +45,8 @@ public class MutationHandler implements HttpHandler {
 
         Map<String, List<String>> params = HttpUtil.parseQuery(exchange.getRequestURI().getQuery());
         PublicKeyHash owner = PublicKeyHash.fromString(params.get("owner").get(0));
-        PublicKeyHash writer = PublicKeyHash.fromString(params.get("writer").get(0));
+        PublicKeyHash writer = params.containsKey("writer") ? PublicKeyHash.fromString(params.get("writer").get(0)) : null;
+        boolean replyLater = false;
         try {
             if (! HttpUtil.allowedQuery(exchange, isPublicServer)) {
                 exchange.sendResponseHeaders(405, 0);
@@ -61,6 +65,39 @@ public class MutationHandler implements HttpHandler {
                     byte[] metadataBlob = mutable.getPointer(owner, writer).get().orElse(new byte[0]);
                     dout.write(metadataBlob);
                     break;
+                case "getPointers":
+                    AggregatedMetrics.MUTABLE_POINTERS_GET_MANY.inc();
+                    List<PublicKeyHash> writers = ((CborObject.CborList) CborObject.fromByteArray(Serialize.readFully(din, MAX_GET_POINTERS_BODY)))
+                            .map(PublicKeyHash::fromCbor);
+                    Map<PublicKeyHash, byte[]> pointers = mutable.getPointers(owner, writers).get();
+                    dout.write(MutablePointers.serializePointers(writers, pointers).serialize());
+                    break;
+                case "watchPointers": {
+                    AggregatedMetrics.MUTABLE_POINTERS_WATCH.inc();
+                    Map<PublicKeyHash, Optional<byte[]>> known = MutablePointers.parsePointerMap(
+                            CborObject.fromByteArray(Serialize.readFully(din, MAX_GET_POINTERS_BODY)));
+                    long timeout = Math.min(MAX_WATCH_MILLIS, Long.parseLong(params.get("timeout").get(0)));
+                    // Don't tie up a handler thread while waiting for a change
+                    replyLater = true;
+                    mutable.watchPointers(owner, known, timeout).whenComplete((changed, err) -> {
+                        try {
+                            if (err != null) {
+                                HttpUtil.replyError(exchange, err);
+                                return;
+                            }
+                            Map<PublicKeyHash, Optional<byte[]>> res = new HashMap<>();
+                            changed.forEach((w, p) -> res.put(w, Optional.of(p)));
+                            byte[] b = MutablePointers.serializePointerMap(res).serialize();
+                            exchange.sendResponseHeaders(200, b.length);
+                            exchange.getResponseBody().write(b);
+                        } catch (Exception e) {
+                            HttpUtil.replyError(exchange, e);
+                        } finally {
+                            exchange.close();
+                        }
+                    });
+                    return;
+                }
                 default:
                     throw new IOException("Unknown method in mutable pointers!");
             }
@@ -71,7 +108,8 @@ public class MutationHandler implements HttpHandler {
         } catch (Exception e) {
             HttpUtil.replyError(exchange, e);
         } finally {
-            exchange.close();
+            if (! replyLater)
+                exchange.close();
             long t2 = System.currentTimeMillis();
             LOG.info("Mutable pointers server handled " + method + " request in: " + (t2 - t1) + " mS");
         }
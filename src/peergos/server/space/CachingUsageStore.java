@@ -0,0 +1,155 @@
+package peergos.server.space;
+
+import peergos.server.util.*;
+import peergos.shared.*;
+import peergos.shared.crypto.hash.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/** An in memory ledger of user and writer usage in front of a persistent UsageStore, which is assumed to only be
+ *  modified through this class.
+ *
+ *  All reads are served from memory. Pending usage, which changes on every block write, is persisted asynchronously
+ *  in batches. This is safe because pending usage is only an estimate which is reset on the next confirmed usage.
+ *  All other changes are written through to the target.
+ */
+public class CachingUsageStore implements UsageStore {
+    private static final Logger LOG = Logging.LOG();
+    public static final long DEFAULT_FLUSH_PERIOD_MILLIS = 5_000;
+
+    private final UsageStore target;
+    private final Map<String, UserUsage> users = new ConcurrentHashMap<>();
+    private final Map<PublicKeyHash, WriterUsage> writers = new ConcurrentHashMap<>();
+    private final Map<PublicKeyHash, Long> unpersistedPending = new ConcurrentHashMap<>();
+    private final Object persistLock = new Object();
+    private final ScheduledExecutorService flusher;
+
+    public CachingUsageStore(UsageStore target, long flushPeriodMillis) {
+        this.target = target;
+        load();
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Usage flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushPeriodMillis, flushPeriodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void load() {
+        long t0 = System.currentTimeMillis();
+        for (PublicKeyHash writer : target.getAllWriters()) {
+            WriterUsage usage = target.getUsage(writer);
+            writers.put(writer, usage);
+            users.computeIfAbsent(usage.owner, target::getUsage);
+        }
+        long t1 = System.currentTimeMillis();
+        LOG.info("Loaded usage of " + users.size() + " users and " + writers.size() + " writers in " + (t1 - t0) + "ms");
+    }
+
+    /**
+     * Persist all pending usage changes
+     */
+    public void flush() {
+        synchronized (persistLock) {
+            for (PublicKeyHash writer : new ArrayList<>(unpersistedPending.keySet())) {
+                Long delta = unpersistedPending.remove(writer);
+                if (delta == null)
+                    continue;
+                String owner = writers.get(writer).owner;
+                while (delta > 0) {
+                    int toAdd = (int) Math.min(Integer.MAX_VALUE, delta);
+                    target.addPendingUsage(owner, writer, toAdd);
+                    delta -= toAdd;
+                }
+            }
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (Throwable t) {
+            LOG.log(Level.WARNING, t.getMessage(), t);
+        }
+    }
+
+    @Override
+    public void addUserIfAbsent(String username) {
+        target.addUserIfAbsent(username);
+        // a user without writers has no usage
+        users.putIfAbsent(username, new UserUsage(0));
+    }
+
+    @Override
+    public UserUsage getUsage(String username) {
+        return users.get(username);
+    }
+
+    @Override
+    public void confirmUsage(String username, PublicKeyHash writer, long usageDelta, boolean errored) {
+        UserUsage usage = getLoadedUsage(username);
+        synchronized (persistLock) {
+            // confirming resets the pending usage of the writer
+            unpersistedPending.remove(writer);
+            target.confirmUsage(username, writer, usageDelta, errored);
+        }
+        usage.confirmUsage(writer, usageDelta);
+        usage.setErrored(errored);
+    }
+
+    @Override
+    public void addPendingUsage(String username, PublicKeyHash writer, int size) {
+        getLoadedUsage(username).addPending(writer, size);
+        unpersistedPending.merge(writer, (long) size, Long::sum);
+    }
+
+    private UserUsage getLoadedUsage(String username) {
+        UserUsage usage = users.get(username);
+        if (usage == null)
+            throw new IllegalStateException("Unknown user: " + username);
+        return usage;
+    }
+
+    @Override
+    public void addWriter(String owner, PublicKeyHash writer) {
+        if (writers.containsKey(writer))
+            return;
+        target.addWriter(owner, writer);
+        writers.computeIfAbsent(writer, target::getUsage);
+        users.putIfAbsent(owner, new UserUsage(0));
+    }
+
+    @Override
+    public Set<PublicKeyHash> getAllWriters() {
+        return new HashSet<>(writers.keySet());
+    }
+
+    @Override
+    public WriterUsage getUsage(PublicKeyHash writer) {
+        return writers.get(writer);
+    }
+
+    @Override
+    public void updateWriterUsage(PublicKeyHash writer,
+                                  MaybeMultihash target,
+                                  Set<PublicKeyHash> removedOwnedKeys,
+                                  Set<PublicKeyHash> addedOwnedKeys,
+                                  long retainedStorage) {
+        this.target.updateWriterUsage(writer, target, removedOwnedKeys, addedOwnedKeys, retainedStorage);
+        writers.get(writer).update(target, removedOwnedKeys, addedOwnedKeys, retainedStorage);
+    }
+
+    @Override
+    public void initialized() {
+        target.initialized();
+    }
+
+    @Override
+    public void close() {
+        flusher.shutdownNow();
+        flushQuietly();
+        target.close();
+    }
+}
@@ -1,8 +1,11 @@
 package peergos.server.space;
 
 import java.util.concurrent.atomic.*;
+import java.util.function.*;
 import java.util.logging.*;
 
+import io.prometheus.client.*;
+
 import peergos.server.storage.admin.*;
 import peergos.server.util.*;
 
@@ -28,14 +31,37 @@ import java.util.stream.Collectors;
 public class SpaceCheckingKeyFilter implements SpaceUsage {
     private static final Logger LOG = Logging.LOG();
     private static final long USAGE_TOLERANCE = 1024 * 1024;
+    public static final int DEFAULT_PARALLELISM = 8;
+
+    private static final Gauge pendingEvents = Gauge.build()
+            .name("usage_pending_writer_events")
+            .help("Number of writers with unprocessed mutable pointer updates")
+            .register();
+    private static final Counter processedEvents = Counter.build()
+            .name("usage_processed_writer_events")
+            .help("Number of mutable pointer updates processed for space usage")
+            .register();
+    private static final Counter coalescedEvents = Counter.build()
+            .name("usage_coalesced_writer_events")
+            .help("Number of mutable pointer updates superseded by a later update before being processed")
+            .register();
+    private static final Gauge recalculationRemaining = Gauge.build()
+            .labelNames("stage")
+            .name("usage_recalculation_remaining")
+            .help("Number of users or writers remaining in a space usage recalculation")
+            .register();
     private final CoreNode core;
     private final MutablePointers mutable;
     private final ContentAddressedStorage dht;
     private final Hasher hasher;
     private final QuotaAdmin quotaAdmin;
     private final UsageStore usageStore;
+    private final int parallelism;
     private final AtomicBoolean isRunning = new AtomicBoolean(true);
-    private final BlockingQueue<MutableEvent> mutableQueue = new ArrayBlockingQueue<>(1000);
+    // Only the latest event for each writer is kept, as usage is calculated relative to the last processed root
+    private final Map<PublicKeyHash, MutableEvent> latestEvents = new ConcurrentHashMap<>();
+    private final Set<PublicKeyHash> scheduledWriters = ConcurrentHashMap.newKeySet();
+    private final BlockingQueue<PublicKeyHash> mutableQueue = new LinkedBlockingQueue<>();
 
     public SpaceCheckingKeyFilter(CoreNode core,
                                   MutablePointers mutable,
@@ -43,20 +69,35 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
                                   Hasher hasher,
                                   QuotaAdmin quotaAdmin,
                                   UsageStore usageStore) {
+        this(core, mutable, dht, hasher, quotaAdmin, usageStore, DEFAULT_PARALLELISM);
+    }
+
+    public SpaceCheckingKeyFilter(CoreNode core,
+                                  MutablePointers mutable,
+                                  ContentAddressedStorage dht,
+                                  Hasher hasher,
+                                  QuotaAdmin quotaAdmin,
+                                  UsageStore usageStore,
+                                  int parallelism) {
         this.core = core;
         this.mutable = mutable;
         this.dht = dht;
         this.hasher = hasher;
         this.quotaAdmin = quotaAdmin;
         this.usageStore = usageStore;
-        new Thread(() -> {
-            while (isRunning.get()) {
-                try {
-                    MutableEvent event = mutableQueue.take();
-                    processMutablePointerEvent(event);
-                } catch (InterruptedException e) {}
-            }
-        }, "SpaceCheckingKeyFilter").start();
+        this.parallelism = parallelism;
+        for (int i = 0; i < parallelism; i++) {
+            Thread worker = new Thread(() -> {
+                while (isRunning.get()) {
+                    try {
+                        PublicKeyHash writer = mutableQueue.take();
+                        processLatestEvent(writer);
+                    } catch (InterruptedException e) {}
+                }
+            }, "SpaceCheckingKeyFilter-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
         //add shutdown-hook to call close
         Runtime.getRuntime().addShutdownHook(new Thread(this::close, "SpaceChecker shutdown"));
     }
@@ -76,9 +117,7 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
         try {
             List<String> usernames = quotaAdmin.getLocalUsernames();
             Logging.LOG().info("Calculating space usage for " + usernames.size() + " local users...");
-            long done = 0;
-            for (String username : usernames) {
-                Logging.LOG().info("Calculating space usage of " + username + " (" + done++ + "/" + usernames.size() + ")");
+            forEachInParallel(usernames, parallelism, "users", username -> {
                 try {
                     Optional<PublicKeyHash> identity = core.getPublicKeyHash(username).get();
                     if (identity.isPresent()) {
@@ -93,7 +132,7 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
                     e.printStackTrace();
                     LOG.log(Level.WARNING, "ERROR calculating usage for user: " + username + "\n" + e.getMessage(), e);
                 }
-            }
+            });
             usageStore.initialized();
             Logging.LOG().info("Finished calculating space usage for " + usernames.size() + " local users...");
         } catch (Exception e) {
@@ -101,25 +140,76 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
         }
     }
 
+    /** Apply a task to every item using a bounded number of threads, waiting for all to complete
+     *
+     * @param items
+     * @param parallelism
+     * @param stage name of the items, for logging and metrics
+     * @param task
+     * @param <T>
+     */
+    private static <T> void forEachInParallel(Collection<T> items, int parallelism, String stage, Consumer<T> task) {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, parallelism));
+        AtomicLong remaining = new AtomicLong(items.size());
+        recalculationRemaining.labels(stage).set(items.size());
+        long logInterval = Math.max(1, items.size() / 100);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (T item : items) {
+                futures.add(pool.submit(() -> {
+                    try {
+                        task.accept(item);
+                    } finally {
+                        long left = remaining.decrementAndGet();
+                        recalculationRemaining.labels(stage).set(left);
+                        if (left % logInterval == 0)
+                            Logging.LOG().info("Space usage " + stage + " remaining: " + left + "/" + items.size());
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    LOG.log(Level.WARNING, e.getMessage(), e);
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
     public static void update(UsageStore store,
                               QuotaAdmin quotas,
                               CoreNode core,
                               MutablePointers mutable,
                               ContentAddressedStorage dht,
                               Hasher hasher) {
+        update(store, quotas, core, mutable, dht, hasher, DEFAULT_PARALLELISM);
+    }
+
+    public static void update(UsageStore store,
+                              QuotaAdmin quotas,
+                              CoreNode core,
+                              MutablePointers mutable,
+                              ContentAddressedStorage dht,
+                              Hasher hasher,
+                              int parallelism) {
         Logging.LOG().info("Checking for updated usage for users...");
         List<String> localUsernames = quotas.getLocalUsernames();
-        for (String username : localUsernames) {
+        forEachInParallel(localUsernames, parallelism, "users", username -> {
             store.addUserIfAbsent(username);
             Optional<PublicKeyHash> identity = core.getPublicKeyHash(username).join();
             if (identity.isPresent())
                 store.addWriter(username, identity.get());
-        }
+        });
 
         Logging.LOG().info("Checking for updated mutable pointers...");
         long t1 = System.currentTimeMillis();
         Set<PublicKeyHash> writers = store.getAllWriters();
-        for (PublicKeyHash writerKey : writers) {
+        forEachInParallel(writers, parallelism, "writers", writerKey -> {
             WriterUsage writerUsage = store.getUsage(writerKey);
             Logging.LOG().info("Checking for updates from user: " + writerUsage.owner + ", writer key: " + writerKey);
 
@@ -149,7 +239,7 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
             } catch (Throwable t) {
                 Logging.LOG().log(Level.WARNING, "Failed calculating usage for " + writerUsage.owner, t);
             }
-        }
+        });
         long t2 = System.currentTimeMillis();
         Logging.LOG().info(LocalDateTime.now() + " Finished updating space usage for all usernames in " + (t2 - t1)/1000 + " s");
     }
@@ -186,7 +276,12 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
     }
 
     public void accept(MutableEvent event) {
-        mutableQueue.add(event);
+        if (latestEvents.put(event.writer, event) != null)
+            coalescedEvents.inc();
+        if (scheduledWriters.add(event.writer)) {
+            pendingEvents.inc();
+            mutableQueue.add(event.writer);
+        }
         try {
             HashCasPair hashCasPair = dht.getSigningKey(event.writer)
                     .thenApply(signer -> HashCasPair.fromCbor(CborObject.fromByteArray(signer.get()
@@ -202,12 +297,38 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
         }
     }
 
+    /** Process the latest event for a writer. A writer is only ever queued once, so its events are never processed
+     *  concurrently.
+     *
+     * @param writer
+     */
+    private void processLatestEvent(PublicKeyHash writer) {
+        try {
+            MutableEvent event = latestEvents.remove(writer);
+            if (event != null) {
+                processMutablePointerEvent(event);
+                processedEvents.inc();
+            }
+        } finally {
+            scheduledWriters.remove(writer);
+            pendingEvents.dec();
+            // reschedule if another event arrived while we were processing
+            if (latestEvents.containsKey(writer) && scheduledWriters.add(writer)) {
+                pendingEvents.inc();
+                mutableQueue.add(writer);
+            }
+        }
+    }
+
     private void processMutablePointerEvent(MutableEvent event) {
         try {
             HashCasPair hashCasPair = dht.getSigningKey(event.writer)
                     .thenApply(signer -> HashCasPair.fromCbor(CborObject.fromByteArray(signer.get()
                             .unsignMessage(event.writerSignedBtreeRootHash)))).get();
-            processMutablePointerEvent(usageStore, event.owner, event.writer, hashCasPair.original, hashCasPair.updated,
+            // Earlier events may have been coalesced into this one, so the original is our last processed root
+            WriterUsage current = usageStore.getUsage(event.writer);
+            MaybeMultihash original = current == null ? hashCasPair.original : current.target();
+            processMutablePointerEvent(usageStore, event.owner, event.writer, original, hashCasPair.updated,
                     mutable, dht, hasher);
         } catch (Exception e) {
             LOG.log(Level.WARNING, e.getMessage(), e);
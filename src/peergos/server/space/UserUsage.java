@@ -40,11 +40,11 @@ public class UserUsage implements Cborable {
         pending.remove(writer);
     }
 
-    protected synchronized long getPending(PublicKeyHash writer) {
+    public synchronized long getPending(PublicKeyHash writer) {
         return pending.getOrDefault(writer, 0L);
     }
 
-    protected synchronized long expectedUsage() {
+    public synchronized long expectedUsage() {
         return totalBytes + pending.values().stream().mapToLong(x -> x).sum();
     }
 
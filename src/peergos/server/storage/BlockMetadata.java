@@ -0,0 +1,38 @@
+package peergos.server.storage;
+
+import peergos.shared.cbor.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.util.*;
+import java.util.stream.*;
+
+/** The size of a block, and the blocks it links to
+ */
+public class BlockMetadata implements Cborable {
+    public final int size;
+    public final List<Multihash> links;
+
+    public BlockMetadata(int size, List<Multihash> links) {
+        this.size = size;
+        this.links = links;
+    }
+
+    @Override
+    public CborObject toCbor() {
+        SortedMap<String, Cborable> state = new TreeMap<>();
+        state.put("s", new CborObject.CborLong(size));
+        state.put("l", new CborObject.CborList(links.stream()
+                .map(CborObject.CborMerkleLink::new)
+                .collect(Collectors.toList())));
+        return CborObject.CborMap.build(state);
+    }
+
+    public static BlockMetadata fromCbor(Cborable cbor) {
+        if (! (cbor instanceof CborObject.CborMap))
+            throw new IllegalStateException("Invalid cbor for BlockMetadata! " + cbor);
+        CborObject.CborMap m = (CborObject.CborMap) cbor;
+        int size = (int) m.getLong("s");
+        List<Multihash> links = m.getList("l", c -> ((CborObject.CborMerkleLink) c).target);
+        return new BlockMetadata(size, links);
+    }
+}
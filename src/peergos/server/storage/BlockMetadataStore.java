@@ -0,0 +1,16 @@
+package peergos.server.storage;
+
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.util.*;
+
+/** A local index of the size and links of blocks, so traversals of the DAG don't need to retrieve whole blocks
+ */
+public interface BlockMetadataStore {
+
+    Optional<BlockMetadata> get(Multihash block);
+
+    void put(Multihash block, BlockMetadata meta);
+
+    void remove(Multihash block);
+}
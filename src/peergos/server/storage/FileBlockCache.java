@@ -0,0 +1,218 @@
+package peergos.server.storage;
+
+import peergos.server.util.Logging;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/** A persistent, size bounded block cache in a local directory, for Java clients, so that a new process doesn't need
+ *  to refetch all the metadata blocks it has already seen.
+ *
+ *  Blocks are immutable so there is nothing to invalidate, and they are already encrypted, so they are stored as is.
+ *  The least recently used blocks are evicted once the cache exceeds its maximum size. Blocks are checked against their
+ *  hash when read from disk, and any that don't match are discarded. Raw blocks written by this client are not
+ *  cached, so that large uploads don't evict the metadata.
+ *
+ *  Several processes can safely share a cache directory, as files are written atomically and a missing file is treated
+ *  as a cache miss.
+ */
+public class FileBlockCache extends DelegatingStorage {
+    private static final Logger LOG = Logging.LOG();
+    private static final String TMP_PREFIX = "tmp";
+
+    private final ContentAddressedStorage target;
+    private final Index index;
+
+    private FileBlockCache(ContentAddressedStorage target, Index index) {
+        super(target);
+        this.target = target;
+        this.index = index;
+    }
+
+    public FileBlockCache(ContentAddressedStorage target, Path root, long maxBytes) {
+        this(target, new Index(root, maxBytes));
+    }
+
+    /** The blocks in the cache directory in least recently used order, shared with the directToOrigin view
+     */
+    private static class Index {
+        private final Path root;
+        private final long maxBytes;
+        private final LinkedHashMap<Multihash, Integer> sizes = new LinkedHashMap<>(16, 0.75f, true);
+        private long totalSize = 0;
+
+        public Index(Path root, long maxBytes) {
+            this.root = root;
+            this.maxBytes = maxBytes;
+            if (! root.toFile().exists() && ! root.toFile().mkdirs())
+                throw new IllegalStateException("Unable to create block cache directory " + root);
+            load();
+        }
+
+        private void load() {
+            List<Pair<Long, Pair<Multihash, Integer>>> found = new ArrayList<>();
+            File[] dirs = root.toFile().listFiles(File::isDirectory);
+            for (File dir : dirs == null ? new File[0] : dirs) {
+                File[] files = dir.listFiles();
+                for (File file : files == null ? new File[0] : files) {
+                    if (file.getName().startsWith(TMP_PREFIX)) {
+                        file.delete();
+                        continue;
+                    }
+                    try {
+                        Cid cid = Cid.decode(file.getName());
+                        found.add(new Pair<>(file.lastModified(), new Pair<>(cid, (int) file.length())));
+                    } catch (Exception e) {
+                        LOG.info("Ignoring file in block cache " + file);
+                    }
+                }
+            }
+            found.sort(Comparator.comparing(p -> p.left));
+            synchronized (this) {
+                for (Pair<Long, Pair<Multihash, Integer>> block : found)
+                    add(block.right.left, block.right.right);
+            }
+            evict();
+        }
+
+        private Path getFilePath(Multihash h) {
+            String name = h.toString();
+            // the end of the name is uniformly distributed
+            return root.resolve(name.substring(name.length() - 2)).resolve(name);
+        }
+
+        private synchronized void add(Multihash h, int size) {
+            Integer existing = sizes.put(h, size);
+            totalSize += size - (existing == null ? 0 : existing);
+        }
+
+        private synchronized void remove(Multihash h) {
+            Integer existing = sizes.remove(h);
+            if (existing != null)
+                totalSize -= existing;
+        }
+
+        private synchronized boolean contains(Multihash h) {
+            return sizes.get(h) != null;
+        }
+
+        private void evict() {
+            List<Multihash> toDelete = new ArrayList<>();
+            synchronized (this) {
+                Iterator<Map.Entry<Multihash, Integer>> iter = sizes.entrySet().iterator();
+                while (totalSize > maxBytes && iter.hasNext()) {
+                    Map.Entry<Multihash, Integer> eldest = iter.next();
+                    totalSize -= eldest.getValue();
+                    toDelete.add(eldest.getKey());
+                    iter.remove();
+                }
+            }
+            for (Multihash h : toDelete)
+                getFilePath(h).toFile().delete();
+        }
+
+        public Optional<byte[]> get(Multihash h) {
+            if (! contains(h))
+                return Optional.empty();
+            File file = getFilePath(h).toFile();
+            try {
+                byte[] data = Files.readAllBytes(file.toPath());
+                if (h.type == Multihash.Type.sha2_256 && ! Arrays.equals(RAMStorage.hash(data), h.getHash())) {
+                    LOG.warning("Discarding corrupt block from cache " + h);
+                    remove(h);
+                    file.delete();
+                    return Optional.empty();
+                }
+                // update the access time so the lru order survives a restart
+                file.setLastModified(System.currentTimeMillis());
+                return Optional.of(data);
+            } catch (IOException e) {
+                // evicted by another process sharing the cache
+                remove(h);
+                return Optional.empty();
+            }
+        }
+
+        public void put(Multihash h, byte[] data) {
+            if (data.length > maxBytes || contains(h))
+                return;
+            try {
+                Path target = getFilePath(h);
+                Path parent = target.getParent();
+                if (! parent.toFile().exists())
+                    parent.toFile().mkdirs();
+                Path tmp = Files.createTempFile(parent, TMP_PREFIX, "");
+                Files.write(tmp, data);
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                add(h, data.length);
+                evict();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Couldn't write block to cache: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    @Override
+    public ContentAddressedStorage directToOrigin() {
+        return new FileBlockCache(target.directToOrigin(), index);
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
+        if (hash.isIdentity())
+            return target.get(hash);
+        Optional<byte[]> cached = index.get(hash);
+        if (cached.isPresent())
+            return Futures.of(Optional.of(CborObject.fromByteArray(cached.get())));
+        return target.get(hash).thenApply(cborOpt -> {
+            cborOpt.ifPresent(cbor -> index.put(hash, cbor.toByteArray()));
+            return cborOpt;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Multihash hash) {
+        if (hash.isIdentity())
+            return target.getRaw(hash);
+        Optional<byte[]> cached = index.get(hash);
+        if (cached.isPresent())
+            return Futures.of(cached);
+        return target.getRaw(hash).thenApply(rawOpt -> {
+            rawOpt.ifPresent(raw -> index.put(hash, raw));
+            return rawOpt;
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> put(PublicKeyHash owner,
+                                                  PublicKeyHash writer,
+                                                  List<byte[]> signedHashes,
+                                                  List<byte[]> blocks,
+                                                  TransactionId tid) {
+        return target.put(owner, writer, signedHashes, blocks, tid)
+                .thenApply(hashes -> {
+                    for (int i = 0; i < hashes.size(); i++)
+                        index.put(hashes.get(i), blocks.get(i));
+                    return hashes;
+                });
+    }
+
+    @Override
+    public CompletableFuture<Optional<Integer>> getSize(Multihash block) {
+        synchronized (index) {
+            Integer size = index.sizes.get(block);
+            if (size != null)
+                return Futures.of(Optional.of(size));
+        }
+        return target.getSize(block);
+    }
+}
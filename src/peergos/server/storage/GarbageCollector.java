@@ -8,9 +8,11 @@ import peergos.shared.crypto.hash.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.mutable.*;
 import peergos.shared.storage.*;
+import peergos.shared.util.*;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.function.*;
 import java.util.logging.*;
 import java.util.stream.*;
@@ -57,7 +59,9 @@ public class GarbageCollector {
         System.out.println("Starting blockstore garbage collection on node " + storage.id().join() + "...");
         // TODO: do this more efficiently with a bloom filter, and actual streaming and multithreading
         long t0 = System.nanoTime();
-        List<Multihash> present = storage.getAllBlockHashes().collect(Collectors.toList());
+        // Index the listing with packed hashes rather than retaining a Multihash per block
+        MultihashIndex present = new MultihashIndex();
+        storage.getAllBlockHashes().forEach(present::add);
         long t1 = System.nanoTime();
         System.out.println("Listing block store took " + (t1-t0)/1_000_000_000 + "s");
 
@@ -66,30 +70,33 @@ public class GarbageCollector {
         System.out.println("Listing pending blocks took " + (t2-t1)/1_000_000_000 + "s");
 
         // This pointers call must happen AFTER the previous two for correctness
-        Map<PublicKeyHash, byte[]> allPointers = pointers.getAllEntries();
-        long t3 = System.nanoTime();
-        System.out.println("Listing pointers took " + (t3-t2)/1_000_000_000 + "s");
-
+        // Stream the pointers table, marking from each root as it is read, rather than holding every pointer in memory
         BitSet reachable = new BitSet(present.size());
-        for (PublicKeyHash writerHash : allPointers.keySet()) {
-            byte[] signedRawCas = allPointers.get(writerHash);
+        AtomicLong pointerCount = new AtomicLong(0);
+        pointers.forEachEntry((writerHash, signedRawCas) -> {
+            pointerCount.incrementAndGet();
             PublicSigningKey writer = storage.getSigningKey(writerHash).join().get();
             byte[] bothHashes = writer.unsignMessage(signedRawCas);
             HashCasPair cas = HashCasPair.fromCbor(CborObject.fromByteArray(bothHashes));
             MaybeMultihash updated = cas.updated;
             if (updated.isPresent())
                 markReachable(storage, updated.get(), present, reachable);
-        }
+        });
         for (Multihash additional : pending) {
             int index = present.indexOf(additional);
             if (index >= 0)
                 reachable.set(index);
         }
-        long t4 = System.nanoTime();
-        System.out.println("Marking reachable took " + (t4-t3)/1_000_000_000 + "s");
+        long t3 = System.nanoTime();
+        System.out.println("Marking reachable from " + pointerCount.get() + " pointers took " + (t3-t2)/1_000_000_000 + "s");
 
-        // Save pointers snapshot
-        snapshotSaver.apply(allPointers.entrySet().stream()).join();
+        // Save pointers snapshot. This re-reads the pointers, and any update since marking only references blocks
+        // which were marked, pending or written after the listing, none of which are deleted.
+        try (Stream<Map.Entry<PublicKeyHash, byte[]>> snapshot = pointers.streamEntries()) {
+            snapshotSaver.apply(snapshot).join();
+        }
+        long t4 = System.nanoTime();
+        System.out.println("Saving pointers snapshot took " + (t4-t3)/1_000_000_000 + "s");
 
         long deletedBlocks = 0;
         long deletedSize = 0;
@@ -109,10 +116,14 @@ public class GarbageCollector {
         System.out.println("GC complete. Freed " + deletedBlocks + " blocks totalling " + deletedSize + " bytes in " + (t5-t0)/1_000_000_000 + "s");
     }
 
-    private static void markReachable(ContentAddressedStorage storage, Multihash root, List<Multihash> present, BitSet reachable) {
+    private static void markReachable(ContentAddressedStorage storage, Multihash root, MultihashIndex present, BitSet reachable) {
         int index = present.indexOf(root);
-        if (index >= 0)
+        if (index >= 0) {
+            // everything under a block that is already marked has been marked too
+            if (reachable.get(index))
+                return;
             reachable.set(index);
+        }
         List<Multihash> links = storage.getLinks(root).join();
         for (Multihash link : links) {
             markReachable(storage, link, present, reachable);
@@ -0,0 +1,97 @@
+package peergos.server.storage;
+
+import peergos.server.sql.*;
+import peergos.server.util.*;
+import peergos.shared.cbor.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.sql.*;
+import java.util.*;
+import java.util.function.*;
+import java.util.logging.*;
+
+public class JdbcBlockMetadataStore implements BlockMetadataStore {
+    private static final Logger LOG = Logging.LOG();
+
+    private static final String GET = "SELECT meta FROM blockmetadata WHERE cid = ?;";
+    private static final String REMOVE = "DELETE FROM blockmetadata WHERE cid = ?;";
+
+    private Supplier<Connection> conn;
+    private final SqlSupplier commands;
+    private volatile boolean isClosed;
+
+    public JdbcBlockMetadataStore(Supplier<Connection> conn, SqlSupplier commands) {
+        this.conn = conn;
+        this.commands = commands;
+        init(commands);
+    }
+
+    private Connection getConnection() {
+        Connection connection = conn.get();
+        try {
+            connection.setAutoCommit(true);
+            connection.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+            return connection;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private synchronized void init(SqlSupplier commands) {
+        if (isClosed)
+            return;
+
+        try (Connection conn = getConnection()) {
+            commands.createTable(commands.createBlockMetadataStoreTableCommand(), conn);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public Optional<BlockMetadata> get(Multihash block) {
+        try (Connection conn = getConnection();
+             PreparedStatement select = conn.prepareStatement(GET)) {
+            select.setBytes(1, block.toBytes());
+            ResultSet rs = select.executeQuery();
+            if (rs.next())
+                return Optional.of(BlockMetadata.fromCbor(CborObject.fromByteArray(rs.getBytes(1))));
+            return Optional.empty();
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
+    @Override
+    public void put(Multihash block, BlockMetadata meta) {
+        try (Connection conn = getConnection();
+             PreparedStatement insert = conn.prepareStatement(commands.insertOrIgnoreCommand("INSERT ",
+                     "INTO blockmetadata (cid, meta) VALUES(?, ?)"))) {
+            insert.setBytes(1, block.toBytes());
+            insert.setBytes(2, meta.serialize());
+            insert.executeUpdate();
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
+    @Override
+    public void remove(Multihash block) {
+        try (Connection conn = getConnection();
+             PreparedStatement delete = conn.prepareStatement(REMOVE)) {
+            delete.setBytes(1, block.toBytes());
+            delete.executeUpdate();
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
+    public synchronized void close() {
+        if (isClosed)
+            return;
+        isClosed = true;
+    }
+}
@@ -0,0 +1,125 @@
+package peergos.server.storage;
+
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+/** A local block store which maintains an index of the size and links of every block. The index is populated on
+ *  writes through this class, and lazily on the first read of a block's metadata. This makes getLinks, getSize, and
+ *  hence usage calculation and GC traversals, local index lookups.
+ */
+public class MetadataCachingStorage extends DelegatingStorage implements DeletableContentAddressedStorage {
+
+    private final DeletableContentAddressedStorage target;
+    private final BlockMetadataStore metadata;
+
+    public MetadataCachingStorage(DeletableContentAddressedStorage target, BlockMetadataStore metadata) {
+        super(target);
+        this.target = target;
+        this.metadata = metadata;
+    }
+
+    @Override
+    public ContentAddressedStorage directToOrigin() {
+        return this;
+    }
+
+    private static boolean isRaw(Multihash h) {
+        return h instanceof Cid && ((Cid) h).codec == Cid.Codec.Raw;
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> put(PublicKeyHash owner,
+                                                  PublicKeyHash writer,
+                                                  List<byte[]> signedHashes,
+                                                  List<byte[]> blocks,
+                                                  TransactionId tid) {
+        return target.put(owner, writer, signedHashes, blocks, tid)
+                .thenApply(hashes -> {
+                    for (int i = 0; i < hashes.size(); i++) {
+                        byte[] block = blocks.get(i);
+                        metadata.put(hashes.get(i), new BlockMetadata(block.length, CborObject.fromByteArray(block).links()));
+                    }
+                    return hashes;
+                });
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> putRaw(PublicKeyHash owner,
+                                                     PublicKeyHash writer,
+                                                     List<byte[]> signatures,
+                                                     List<byte[]> blocks,
+                                                     TransactionId tid,
+                                                     ProgressConsumer<Long> progressCounter) {
+        return target.putRaw(owner, writer, signatures, blocks, tid, progressCounter)
+                .thenApply(hashes -> {
+                    for (int i = 0; i < hashes.size(); i++)
+                        metadata.put(hashes.get(i), new BlockMetadata(blocks.get(i).length, Collections.emptyList()));
+                    return hashes;
+                });
+    }
+
+    /**
+     *
+     * @param block
+     * @return The metadata of the block, retrieving and indexing it if necessary
+     */
+    private CompletableFuture<Optional<BlockMetadata>> getMetadata(Multihash block) {
+        Optional<BlockMetadata> cached = metadata.get(block);
+        if (cached.isPresent())
+            return Futures.of(cached);
+        if (isRaw(block))
+            // Avoid retrieving a whole raw block just to get its size
+            return target.getSize(block).thenApply(sizeOpt -> sizeOpt.map(size -> {
+                BlockMetadata meta = new BlockMetadata(size, Collections.emptyList());
+                metadata.put(block, meta);
+                return meta;
+            }));
+        return target.getRaw(block).thenApply(rawOpt -> rawOpt.map(raw -> {
+            BlockMetadata meta = new BlockMetadata(raw.length, CborObject.fromByteArray(raw).links());
+            metadata.put(block, meta);
+            return meta;
+        }));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
+        if (isRaw(root))
+            return Futures.of(Collections.emptyList());
+        return getMetadata(root).thenApply(meta -> meta.map(m -> m.links).orElse(Collections.emptyList()));
+    }
+
+    @Override
+    public CompletableFuture<Optional<Integer>> getSize(Multihash block) {
+        return getMetadata(block).thenApply(meta -> meta.map(m -> m.size));
+    }
+
+    @Override
+    public CompletableFuture<Pair<Integer, List<Multihash>>> getLinksAndSize(Multihash block) {
+        return getMetadata(block).thenApply(meta -> meta.map(m -> new Pair<>(m.size, m.links))
+                .orElse(new Pair<>(0, Collections.emptyList())));
+    }
+
+    @Override
+    public Stream<Multihash> getAllBlockHashes() {
+        return target.getAllBlockHashes();
+    }
+
+    @Override
+    public void delete(Multihash hash) {
+        target.delete(hash);
+        metadata.remove(hash);
+    }
+
+    @Override
+    public List<Multihash> getOpenTransactionBlocks() {
+        return target.getOpenTransactionBlocks();
+    }
+}
@@ -11,14 +11,89 @@ import peergos.shared.util.*;
 import java.security.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.stream.*;
 
+/** An in memory block store, which is safe to use from many threads.
+ *
+ *  It can optionally be limited to a maximum number of bytes, and shaped with a fixed latency and a shared bandwidth
+ *  for reads and writes, to approximate a real block store in benchmarks.
+ */
 public class RAMStorage implements DeletableContentAddressedStorage {
     private static final int CID_V1 = 1;
+    private static ScheduledExecutorService delayer;
+
+    private final Map<Multihash, byte[]> storage = new ConcurrentHashMap<>();
+    private final Map<TransactionId, Set<Multihash>> openTransactions = new ConcurrentHashMap<>();
+    private final Set<Multihash> pinnedRoots = ConcurrentHashMap.newKeySet();
+    private final AtomicLong transactionCounter = new AtomicLong(0);
+    private final AtomicLong usedBytes = new AtomicLong(0);
+    private final long maxBytes;
+    private final int readLatencyMillis, writeLatencyMillis;
+    private final long bytesPerSecond;
+    // The time at which all the transfers so far will have finished, in nanos
+    private long linkFreeAt = 0;
+
+    /**
+     *
+     * @param maxBytes the maximum total size of the stored blocks
+     * @param readLatencyMillis the delay before each read completes
+     * @param writeLatencyMillis the delay before each write completes
+     * @param bytesPerSecond the bandwidth shared by all reads and writes, or 0 for unlimited
+     */
+    public RAMStorage(long maxBytes, int readLatencyMillis, int writeLatencyMillis, long bytesPerSecond) {
+        this.maxBytes = maxBytes;
+        this.readLatencyMillis = readLatencyMillis;
+        this.writeLatencyMillis = writeLatencyMillis;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public RAMStorage(long maxBytes) {
+        this(maxBytes, 0, 0, 0);
+    }
+
+    public RAMStorage() {
+        this(Long.MAX_VALUE);
+    }
+
+    private boolean isShaped() {
+        return readLatencyMillis > 0 || writeLatencyMillis > 0 || bytesPerSecond > 0;
+    }
+
+    private static synchronized ScheduledExecutorService getDelayer() {
+        if (delayer == null)
+            delayer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "RAM storage delayer");
+                t.setDaemon(true);
+                return t;
+            });
+        return delayer;
+    }
 
-    private Map<Multihash, byte[]> storage = new EfficientHashMap<>();
-    private Map<TransactionId, List<Multihash>> openTransactions = new ConcurrentHashMap<>();
-    private final Set<Multihash> pinnedRoots = new HashSet<>();
+    /**
+     *
+     * @param bytes
+     * @return the delay in nanos until a transfer of this size finishes, queued behind any transfers in progress
+     */
+    private synchronized long transferDelay(long bytes) {
+        if (bytesPerSecond <= 0)
+            return 0;
+        long now = System.nanoTime();
+        long start = Math.max(now, linkFreeAt);
+        linkFreeAt = start + bytes * 1_000_000_000L / bytesPerSecond;
+        return linkFreeAt - now;
+    }
+
+    private <T> CompletableFuture<T> shape(T result, int latencyMillis, long bytes) {
+        if (! isShaped())
+            return CompletableFuture.completedFuture(result);
+        long delayNanos = latencyMillis * 1_000_000L + transferDelay(bytes);
+        if (delayNanos <= 0)
+            return CompletableFuture.completedFuture(result);
+        CompletableFuture<T> res = new CompletableFuture<>();
+        getDelayer().schedule(() -> res.complete(result), delayNanos, TimeUnit.NANOSECONDS);
+        return res;
+    }
 
     @Override
     public ContentAddressedStorage directToOrigin() {
@@ -32,8 +107,8 @@ public class RAMStorage implements DeletableContentAddressedStorage {
 
     @Override
     public CompletableFuture<TransactionId> startTransaction(PublicKeyHash owner) {
-        TransactionId tid = new TransactionId(Long.toString(System.currentTimeMillis()));
-        openTransactions.put(tid, new ArrayList<>());
+        TransactionId tid = new TransactionId(System.currentTimeMillis() + "-" + transactionCounter.incrementAndGet());
+        openTransactions.put(tid, ConcurrentHashMap.newKeySet());
         return CompletableFuture.completedFuture(tid);
     }
 
@@ -55,14 +130,16 @@ public class RAMStorage implements DeletableContentAddressedStorage {
 
     @Override
     public void delete(Multihash hash) {
-        storage.remove(hash);
+        byte[] removed = storage.remove(hash);
+        if (removed != null)
+            usedBytes.addAndGet(-removed.length);
     }
 
     @Override
     public List<Multihash> getOpenTransactionBlocks() {
         return openTransactions.values()
                 .stream()
-                .flatMap(List::stream)
+                .flatMap(Set::stream)
                 .collect(Collectors.toList());
     }
 
@@ -86,47 +163,60 @@ public class RAMStorage implements DeletableContentAddressedStorage {
     }
 
     private CompletableFuture<List<Multihash>> put(PublicKeyHash writer, List<byte[]> blocks, boolean isRaw, TransactionId tid) {
-        return CompletableFuture.completedFuture(blocks.stream()
-                .map(b -> {
-                    Cid cid = hashToCid(b, isRaw);
-                    put(cid, b);
-                    openTransactions.get(tid).add(cid);
-                    return cid;
-                }).collect(Collectors.toList()));
+        List<Multihash> hashes = new ArrayList<>();
+        // Like the other transaction stores, accept transactions we didn't start, e.g. from clients which don't
+        // think they are talking to a peergos server
+        Set<Multihash> transaction = openTransactions.computeIfAbsent(tid, t -> ConcurrentHashMap.newKeySet());
+        long size = 0;
+        for (byte[] b : blocks) {
+            Cid cid = hashToCid(b, isRaw);
+            put(cid, b);
+            transaction.add(cid);
+            hashes.add(cid);
+            size += b.length;
+        }
+        return shape(hashes, writeLatencyMillis, size);
     }
 
-    private synchronized void put(Cid cid, byte[] data) {
-        storage.put(cid, data);
+    private void put(Cid cid, byte[] data) {
+        if (storage.containsKey(cid))
+            return;
+        if (usedBytes.addAndGet(data.length) > maxBytes) {
+            usedBytes.addAndGet(-data.length);
+            throw new IllegalStateException("RAM block store is full! Used " + usedBytes.get() + " of " + maxBytes + " bytes.");
+        }
+        if (storage.putIfAbsent(cid, data) != null)
+            usedBytes.addAndGet(-data.length);
     }
 
     @Override
     public CompletableFuture<Optional<byte[]>> getRaw(Multihash object) {
-        return CompletableFuture.completedFuture(storage.containsKey(object) ?
-                Optional.of(storage.get(object)) :
-                Optional.empty());
+        Optional<byte[]> res = Optional.ofNullable(storage.get(object));
+        return shape(res, readLatencyMillis, res.map(b -> b.length).orElse(0));
     }
 
     @Override
     public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
         if (hash instanceof Cid && ((Cid) hash).codec == Cid.Codec.Raw)
             throw new IllegalStateException("Need to call getRaw if cid is not cbor!");
-        return CompletableFuture.completedFuture(getAndParseObject(hash));
+        byte[] raw = storage.get(hash);
+        Optional<CborObject> res = raw == null ? Optional.empty() : Optional.of(CborObject.fromByteArray(raw));
+        return shape(res, readLatencyMillis, raw == null ? 0 : raw.length);
     }
 
-    private synchronized Optional<CborObject> getAndParseObject(Multihash hash) {
-        if (! storage.containsKey(hash))
-            return Optional.empty();
-        return Optional.of(CborObject.fromByteArray(storage.get(hash)));
-    }
-
-    public synchronized void clear() {
+    public void clear() {
         storage.clear();
+        usedBytes.set(0);
     }
 
-    public synchronized int size() {
+    public int size() {
         return storage.size();
     }
 
+    public long usedBytes() {
+        return usedBytes.get();
+    }
+
     @Override
     public CompletableFuture<List<Multihash>> recursivePin(PublicKeyHash owner, Multihash h) {
         return CompletableFuture.completedFuture(Arrays.asList(h));
@@ -154,9 +244,8 @@ public class RAMStorage implements DeletableContentAddressedStorage {
 
     @Override
     public CompletableFuture<Optional<Integer>> getSize(Multihash block) {
-        if (!storage.containsKey(block))
-            return CompletableFuture.completedFuture(Optional.empty());
-        return CompletableFuture.completedFuture(Optional.of(storage.get(block).length));
+        byte[] raw = storage.get(block);
+        return CompletableFuture.completedFuture(Optional.ofNullable(raw).map(b -> b.length));
     }
 
     public static Cid hashToCid(byte[] input, boolean isRaw) {
@@ -202,7 +291,7 @@ public class RAMStorage implements DeletableContentAddressedStorage {
     }
 
     public int totalSize() {
-        return storage.values().stream().mapToInt(a -> a.length).sum();
+        return (int) usedBytes.get();
     }
 
     private static RAMStorage singleton = new RAMStorage();
@@ -0,0 +1,144 @@
+package peergos.server.tests;
+
+import com.sun.net.httpserver.*;
+import org.junit.*;
+import peergos.server.net.*;
+import peergos.server.util.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.net.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class AsyncJavaPosterTests {
+
+    private final HttpServer server;
+    private final URL base;
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    private final AtomicInteger maxInFlight = new AtomicInteger(0);
+    private final Semaphore arrived = new Semaphore(0);
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    public AsyncJavaPosterTests() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 10);
+        server.createContext("/rejected", ex -> error(ex, new HttpWriteRejectedException("Storage quota reached!")));
+        server.createContext("/failed", ex -> error(ex, new IllegalStateException("Temporary failure")));
+        server.createContext("/ok", ex -> reply(ex, "true".getBytes()));
+        server.createContext("/held", this::held);
+        server.createContext("/" + Constants.MUTABLE_POINTERS_URL + "watchPointers", this::held);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        this.base = new URL("http://localhost:" + server.getAddress().getPort() + "/");
+    }
+
+    @After
+    public void finish() {
+        release.countDown();
+        server.stop(0);
+    }
+
+    private static void error(HttpExchange exchange, Throwable t) {
+        HttpUtil.replyError(exchange, t);
+        exchange.close();
+    }
+
+    private static void reply(HttpExchange exchange, byte[] body) throws IOException {
+        exchange.getRequestBody().readAllBytes();
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    /** Hold the request until released
+     */
+    private void held(HttpExchange exchange) throws IOException {
+        int current = inFlight.incrementAndGet();
+        maxInFlight.accumulateAndGet(current, Math::max);
+        arrived.release();
+        try {
+            release.await();
+        } catch (InterruptedException e) {}
+        inFlight.decrementAndGet();
+        reply(exchange, "true".getBytes());
+    }
+
+    private static Throwable failure(CompletableFuture<byte[]> result) {
+        try {
+            result.get(10, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            return e.getCause();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        throw new AssertionError("Request succeeded");
+    }
+
+    @Test
+    public void onlyMarkedRejectionsAreFinal() {
+        AsyncJavaPoster poster = new AsyncJavaPoster(base, false);
+        Throwable rejected = failure(poster.put("/rejected", new byte[10], Collections.emptyMap()));
+        Assert.assertTrue(rejected instanceof HttpWriteRejectedException);
+        Assert.assertTrue(rejected.getMessage().contains("quota"));
+        Assert.assertTrue(failure(poster.postMultipart("/rejected", Arrays.asList(new byte[10])))
+                instanceof HttpWriteRejectedException);
+
+        // any other error may succeed on a retry
+        Throwable failed = failure(poster.put("/failed", new byte[10], Collections.emptyMap()));
+        Assert.assertFalse(failed instanceof HttpWriteRejectedException);
+        Assert.assertTrue(failed.getMessage().contains("Temporary"));
+        Assert.assertFalse(failure(poster.postMultipart("/failed", Arrays.asList(new byte[10])))
+                instanceof HttpWriteRejectedException);
+        Assert.assertFalse(failure(poster.postUnzip("/failed", new byte[0])) instanceof HttpWriteRejectedException);
+    }
+
+    @Test
+    public void limitRequestsPerHost() throws Exception {
+        AsyncJavaPoster poster = new AsyncJavaPoster(base, false, 2, Duration.ofSeconds(30));
+        List<CompletableFuture<byte[]>> results = new ArrayList<>();
+        for (int i = 0; i < 6; i++)
+            results.add(poster.postUnzip("/held", new byte[0]));
+        Assert.assertTrue(arrived.tryAcquire(2, 10, TimeUnit.SECONDS));
+        Thread.sleep(500);
+        Assert.assertEquals("Queued beyond the limit", 2, maxInFlight.get());
+
+        release.countDown();
+        for (CompletableFuture<byte[]> result : results)
+            Assert.assertEquals("true", new String(result.get(10, TimeUnit.SECONDS)));
+        Assert.assertEquals(2, maxInFlight.get());
+    }
+
+    @Test
+    public void longPollsDontUseRequestSlots() throws Exception {
+        AsyncJavaPoster poster = new AsyncJavaPoster(base, false, 1, Duration.ofSeconds(30));
+        CompletableFuture<byte[]> watch = poster.postUnzip(Constants.MUTABLE_POINTERS_URL + "watchPointers", new byte[0]);
+        Assert.assertTrue(arrived.tryAcquire(1, 10, TimeUnit.SECONDS));
+
+        Assert.assertEquals("true", new String(poster.postUnzip("/ok", new byte[0]).get(10, TimeUnit.SECONDS)));
+        Assert.assertFalse(watch.isDone());
+        release.countDown();
+        Assert.assertEquals("true", new String(watch.get(10, TimeUnit.SECONDS)));
+    }
+
+    @Test
+    public void writesTimeOut() {
+        AsyncJavaPoster poster = new AsyncJavaPoster(base, false, 4, Duration.ofMillis(500));
+        Assert.assertTrue(failure(poster.put("/held", new byte[10], Collections.emptyMap()))
+                .getMessage().contains("Timeout"));
+        Assert.assertTrue(failure(poster.postMultipart("/held", Arrays.asList(new byte[10])))
+                .getMessage().contains("Timeout"));
+    }
+
+    @Test
+    public void uploadsGetLongerTimeouts() {
+        Duration base = Duration.ofSeconds(15);
+        Assert.assertEquals(base, AsyncJavaPoster.uploadTimeout(base, 0));
+        Assert.assertTrue(AsyncJavaPoster.uploadTimeout(base, 1024).compareTo(base.plusSeconds(1)) < 0);
+        Duration large = AsyncJavaPoster.uploadTimeout(base, 10 * 1024 * 1024);
+        Assert.assertEquals(base.plusSeconds(10 * 1024 * 1024 / AsyncJavaPoster.MIN_UPLOAD_BYTES_PER_SECOND), large);
+    }
+}
@@ -0,0 +1,234 @@
+package peergos.server.tests;
+
+import com.sun.net.httpserver.*;
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.net.*;
+import peergos.server.storage.*;
+import peergos.shared.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.user.*;
+import peergos.shared.util.*;
+import peergos.shared.util.Exceptions;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class BinaryBlockPutTests {
+    private static Crypto crypto = Main.initCrypto();
+
+    private final SigningKeyPair writer = SigningKeyPair.random(crypto.random, crypto.signer);
+    private final PublicKeyHash writerHash = ContentAddressedStorage.hashKey(writer.publicSigningKey);
+    private final FailingStorage storage = new FailingStorage();
+    private final HttpServer server;
+    private final AsyncJavaPoster poster;
+
+    public BinaryBlockPutTests() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 10);
+        server.createContext("/" + ContentAddressedStorage.HTTP.apiPrefix,
+                new DHTHandler(storage, crypto.hasher, (h, i) -> true, false));
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        this.poster = new AsyncJavaPoster(new URL("http://localhost:" + server.getAddress().getPort() + "/"), false);
+    }
+
+    @After
+    public void finish() {
+        server.stop(0);
+    }
+
+    /** A block store whose writes can be made to fail
+     */
+    private static class FailingStorage extends RAMStorage {
+        public volatile boolean failWrites = false;
+
+        @Override
+        public CompletableFuture<List<Multihash>> putRaw(PublicKeyHash owner,
+                                                         PublicKeyHash writer,
+                                                         List<byte[]> signatures,
+                                                         List<byte[]> blocks,
+                                                         TransactionId tid,
+                                                         ProgressConsumer<Long> progressConsumer) {
+            if (failWrites)
+                return Futures.errored(new IllegalStateException("Disk error!"));
+            return super.putRaw(owner, writer, signatures, blocks, tid, progressConsumer);
+        }
+    }
+
+    /** A poster whose first request for the block store properties fails, and which records the paths of writes
+     */
+    private static class FlakyPoster implements HttpPoster {
+        private final HttpPoster target;
+        private final AtomicBoolean failed = new AtomicBoolean(false);
+        public final List<String> writes = new CopyOnWriteArrayList<>();
+
+        public FlakyPoster(HttpPoster target) {
+            this.target = target;
+        }
+
+        @Override
+        public CompletableFuture<byte[]> post(String url, byte[] payload, boolean unzip) {
+            if (url.contains(ContentAddressedStorage.HTTP.BLOCKSTORE_PROPERTIES) && failed.compareAndSet(false, true))
+                return Futures.errored(new IllegalStateException("Connection reset!"));
+            if (url.contains("block/put"))
+                writes.add(url);
+            return target.post(url, payload, unzip);
+        }
+
+        @Override
+        public CompletableFuture<byte[]> postUnzip(String url, byte[] payload) {
+            return post(url, payload, true);
+        }
+
+        @Override
+        public CompletableFuture<byte[]> postMultipart(String url, List<byte[]> files) {
+            writes.add(url);
+            return target.postMultipart(url, files);
+        }
+
+        @Override
+        public CompletableFuture<byte[]> put(String url, byte[] payload, Map<String, String> headers) {
+            return target.put(url, payload, headers);
+        }
+
+        @Override
+        public CompletableFuture<byte[]> get(String url, Map<String, String> headers) {
+            return target.get(url, headers);
+        }
+    }
+
+    private byte[] sign(byte[] block) {
+        return writer.signMessage(crypto.hasher.sha256(block).join());
+    }
+
+    /** The writer's key followed by count random blocks
+     */
+    private List<byte[]> blocks(int count) {
+        List<byte[]> res = new ArrayList<>();
+        res.add(writer.publicSigningKey.serialize());
+        for (int i = 0; i < count; i++)
+            res.add(crypto.random.randomBytes(100));
+        return res;
+    }
+
+    private List<byte[]> signatures(List<byte[]> blocks) {
+        List<byte[]> res = new ArrayList<>();
+        for (byte[] block : blocks)
+            res.add(sign(block));
+        return res;
+    }
+
+    private CompletableFuture<List<Multihash>> post(byte[] body) {
+        return poster.postUnzip(ContentAddressedStorage.HTTP.apiPrefix + ContentAddressedStorage.HTTP.BLOCK_PUT_BINARY
+                + "?format=raw&owner=" + writerHash + "&transaction=test&writer=" + writerHash, body)
+                .thenApply(BinaryBlockPut::parseReply);
+    }
+
+    private static Throwable failure(CompletableFuture<?> result) {
+        try {
+            result.get(10, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            return Exceptions.getRootCause(e);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        throw new AssertionError("Put succeeded");
+    }
+
+    @Test
+    public void frameRoundTrip() throws IOException {
+        List<byte[]> blocks = blocks(3);
+        blocks.add(new byte[0]);
+        blocks.add(crypto.random.randomBytes(ContentAddressedStorage.MAX_BLOCK_SIZE));
+        List<byte[]> signatures = signatures(blocks);
+        DataInputStream din = new DataInputStream(new ByteArrayInputStream(BinaryBlockPut.serialize(signatures, blocks)));
+        int maxFrameSize = ContentAddressedStorage.MAX_BLOCK_SIZE + BinaryBlockPut.MAX_FRAME_OVERHEAD;
+        for (int i = 0; i < blocks.size(); i++) {
+            Pair<byte[], byte[]> frame = BinaryBlockPut.readFrame(din, maxFrameSize).get();
+            Assert.assertArrayEquals(signatures.get(i), frame.left);
+            Assert.assertArrayEquals(blocks.get(i), frame.right);
+        }
+        Assert.assertFalse(BinaryBlockPut.readFrame(din, maxFrameSize).isPresent());
+
+        List<Multihash> hashes = Arrays.asList(writerHash.multihash, ContentAddressedStorage.hashKey(
+                SigningKeyPair.random(crypto.random, crypto.signer).publicSigningKey).multihash);
+        Assert.assertEquals(hashes, BinaryBlockPut.parseReply(BinaryBlockPut.serializeReply(hashes)));
+    }
+
+    @Test
+    public void oversizedFrameIsRejected() throws IOException {
+        byte[] block = crypto.random.randomBytes(1000);
+        byte[] body = BinaryBlockPut.serialize(Arrays.asList(sign(block)), Arrays.asList(block));
+        try {
+            BinaryBlockPut.readFrame(new DataInputStream(new ByteArrayInputStream(body)), 500);
+            Assert.fail("Oversized frame read");
+        } catch (HttpWriteRejectedException expected) {}
+
+        // a corrupt length is rejected before allocating the frame
+        byte[] corrupt = Arrays.copyOf(body, body.length);
+        corrupt[0] = (byte) 0x7f;
+        Throwable t = failure(post(corrupt));
+        Assert.assertTrue(t instanceof HttpWriteRejectedException);
+        Assert.assertTrue(t.getMessage().contains("frame size"));
+    }
+
+    @Test
+    public void tooManyBlocksAreRejected() {
+        List<byte[]> blocks = blocks(DHTHandler.MAX_BINARY_PUT_BLOCKS);
+        Throwable t = failure(post(BinaryBlockPut.serialize(signatures(blocks), blocks)));
+        Assert.assertTrue(t instanceof HttpWriteRejectedException);
+        Assert.assertTrue(t.getMessage().contains("Too many blocks"));
+
+        List<byte[]> allowed = blocks.subList(0, DHTHandler.MAX_BINARY_PUT_BLOCKS);
+        Assert.assertEquals(allowed.size(), post(BinaryBlockPut.serialize(signatures(allowed), allowed)).join().size());
+    }
+
+    @Test
+    public void rejectionsAreInBand() {
+        Throwable reply = failure(CompletableFuture.supplyAsync(() ->
+                BinaryBlockPut.parseReply(BinaryBlockPut.serializeRejection("Storage quota reached!"))));
+        Assert.assertTrue(reply instanceof HttpWriteRejectedException);
+        Assert.assertEquals("Storage quota reached!", reply.getMessage());
+
+        // a bad signature
+        List<byte[]> blocks = blocks(2);
+        List<byte[]> signatures = signatures(blocks);
+        signatures.set(2, sign(blocks.get(1)));
+        Throwable t = failure(post(BinaryBlockPut.serialize(signatures, blocks)));
+        Assert.assertTrue(t instanceof HttpWriteRejectedException);
+        Assert.assertTrue(t.getMessage().contains("Invalid signature"));
+    }
+
+    @Test
+    public void otherFailuresAreHttpErrors() {
+        storage.failWrites = true;
+        List<byte[]> blocks = blocks(2);
+        Throwable t = failure(post(BinaryBlockPut.serialize(signatures(blocks), blocks)));
+        Assert.assertFalse("Transient failure can be retried", t instanceof HttpWriteRejectedException);
+        Assert.assertTrue(t.getMessage().contains("Disk"));
+
+        storage.failWrites = false;
+        Assert.assertEquals(blocks.size(), post(BinaryBlockPut.serialize(signatures(blocks), blocks)).join().size());
+    }
+
+    @Test
+    public void transientPropertiesFailureIsNotRemembered() {
+        FlakyPoster flaky = new FlakyPoster(poster);
+        ContentAddressedStorage client = new ContentAddressedStorage.HTTP(flaky, true);
+        List<byte[]> blocks = blocks(2);
+        TransactionId tid = new TransactionId("test");
+
+        client.putRaw(writerHash, writerHash, signatures(blocks), blocks, tid, x -> {}).join();
+        Assert.assertTrue("Multipart put", flaky.writes.get(0).contains(ContentAddressedStorage.HTTP.BLOCK_PUT + "?"));
+
+        client.putRaw(writerHash, writerHash, signatures(blocks), blocks, tid, x -> {}).join();
+        Assert.assertTrue("Binary put", flaky.writes.get(flaky.writes.size() - 1)
+                .contains(ContentAddressedStorage.HTTP.BLOCK_PUT_BINARY + "?"));
+    }
+}
@@ -0,0 +1,64 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.sql.*;
+import peergos.server.storage.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+
+import java.util.*;
+
+public class BlockMetadataTests {
+
+    private static final PublicKeyHash owner = new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, new byte[32]));
+
+    @Test
+    public void indexedOnWrite() {
+        RAMStorage ram = new RAMStorage();
+        BlockMetadataStore meta = new JdbcBlockMetadataStore(Main.buildEphemeralSqlite(), new SqliteCommands());
+        MetadataCachingStorage storage = new MetadataCachingStorage(ram, meta);
+        TransactionId tid = storage.startTransaction(owner).join();
+
+        byte[] rawBlock = new byte[1000];
+        new Random(1).nextBytes(rawBlock);
+        Multihash raw = storage.putRaw(owner, owner, Arrays.asList(new byte[0]), Arrays.asList(rawBlock), tid, x -> {})
+                .join().get(0);
+        byte[] cborBlock = new CborObject.CborList(Arrays.asList(new CborObject.CborMerkleLink(raw))).serialize();
+        Multihash root = storage.put(owner, owner, Arrays.asList(new byte[0]), Arrays.asList(cborBlock), tid)
+                .join().get(0);
+
+        Assert.assertEquals(Arrays.asList(raw), meta.get(root).get().links);
+        Assert.assertEquals(cborBlock.length, meta.get(root).get().size);
+        Assert.assertEquals(rawBlock.length, meta.get(raw).get().size);
+
+        // remove the block contents to ensure traversals only use the index
+        ram.clear();
+        Assert.assertEquals(Arrays.asList(raw), storage.getLinks(root).join());
+        Assert.assertEquals(rawBlock.length + cborBlock.length, (long) storage.getRecursiveBlockSize(root).join());
+
+        storage.delete(root);
+        Assert.assertTrue(meta.get(root).isEmpty());
+    }
+
+    @Test
+    public void indexedOnRead() {
+        RAMStorage ram = new RAMStorage();
+        TransactionId tid = ram.startTransaction(owner).join();
+        byte[] rawBlock = new byte[500];
+        Multihash raw = ram.putRaw(owner, owner, Arrays.asList(new byte[0]), Arrays.asList(rawBlock), tid, x -> {})
+                .join().get(0);
+        byte[] cborBlock = new CborObject.CborList(Arrays.asList(new CborObject.CborMerkleLink(raw))).serialize();
+        Multihash root = ram.put(owner, owner, Arrays.asList(new byte[0]), Arrays.asList(cborBlock), tid)
+                .join().get(0);
+
+        BlockMetadataStore meta = new JdbcBlockMetadataStore(Main.buildEphemeralSqlite(), new SqliteCommands());
+        MetadataCachingStorage storage = new MetadataCachingStorage(ram, meta);
+        Assert.assertTrue(meta.get(root).isEmpty());
+        Assert.assertEquals(rawBlock.length + cborBlock.length, (long) storage.getRecursiveBlockSize(root).join());
+        Assert.assertEquals(Arrays.asList(raw), meta.get(root).get().links);
+        Assert.assertEquals(rawBlock.length, meta.get(raw).get().size);
+    }
+}
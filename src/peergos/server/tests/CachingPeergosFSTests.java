@@ -0,0 +1,280 @@
+package peergos.server.tests;
+
+import jnr.ffi.*;
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.fuse.*;
+import peergos.server.util.*;
+import peergos.shared.*;
+import peergos.shared.user.*;
+import peergos.shared.user.fs.*;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import static peergos.server.util.PeergosNetworkUtils.ensureSignedUp;
+
+public class CachingPeergosFSTests {
+    private static Args args = UserTests.buildArgs().with("useIPFS", "false");
+    private static Crypto crypto = Main.initCrypto();
+    private static NetworkAccess network;
+    private static UserContext context;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        Main.PKI_INIT.main(args);
+        network = Builder.buildJavaNetworkAccess(new URL("http://localhost:" + args.getInt("port")), false).get();
+        context = ensureSignedUp("fuse", "password", network, crypto);
+    }
+
+    private static byte[] upload(String name, int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        context.getUserRoot().join().uploadOrReplaceFile(name, new AsyncReader.ArrayBacked(data), data.length,
+                network, crypto, x -> {}, crypto.random.randomBytes(32)).join();
+        return data;
+    }
+
+    private static byte[] remoteContents(String name) {
+        FileWrapper file = context.getByPath("/" + context.username + "/" + name).join().get();
+        byte[] res = new byte[(int) file.getSize()];
+        file.getInputStream(network, crypto, x -> {}).join().readIntoArray(res, 0, res.length).join();
+        return res;
+    }
+
+    private static Pointer pointer(int size) {
+        return Memory.allocateDirect(jnr.ffi.Runtime.getSystemRuntime(), size);
+    }
+
+    private static void write(PeergosFS fs, String path, byte[] data, long offset) {
+        Pointer p = pointer(data.length);
+        p.put(0, data, 0, data.length);
+        Assert.assertEquals(data.length, fs.write(path, p, data.length, offset, null));
+    }
+
+    private static byte[] read(PeergosFS fs, String path, int size, long offset) {
+        Pointer p = pointer(size);
+        int read = fs.read(path, p, size, offset, null);
+        byte[] res = new byte[read];
+        p.get(0, res, 0, read);
+        return res;
+    }
+
+    @Test
+    public void lookupRacingInvalidationIsNotCached() {
+        AttributeCache cache = new AttributeCache(60_000, 100);
+        String path = "/user/file";
+        cache.getStat(path, () -> {
+            // a local write completes during the lookup
+            cache.invalidate(path);
+            return Optional.empty();
+        });
+        AtomicBoolean looked = new AtomicBoolean(false);
+        cache.getStat(path, () -> {
+            looked.set(true);
+            return Optional.empty();
+        });
+        Assert.assertTrue("Stale lookup was cached", looked.get());
+
+        long generation = cache.generation();
+        cache.invalidateTree("/user");
+        cache.putChildren("/user", Collections.emptySet(), System.currentTimeMillis(), generation);
+        Assert.assertFalse("Stale listing was cached", cache.getChildren("/user").isPresent());
+    }
+
+    @Test
+    public void rootChildrenAreCached() {
+        AttributeCache cache = new AttributeCache(60_000, 100);
+        FileWrapper home = context.getUserRoot().join();
+        cache.putChildren("/", Collections.singleton(home), System.currentTimeMillis(), cache.generation());
+        Assert.assertEquals(Collections.singletonList(context.username), cache.getChildren("/").get());
+
+        String path = "/" + context.username;
+        AtomicInteger lookups = new AtomicInteger(0);
+        cache.getStat(path, () -> {
+            lookups.incrementAndGet();
+            return Optional.empty();
+        });
+        Assert.assertEquals("Child of root cached", 0, lookups.get());
+
+        cache.invalidate(path);
+        cache.getStat(path, () -> {
+            lookups.incrementAndGet();
+            return Optional.empty();
+        });
+        Assert.assertEquals("Child of root invalidated", 1, lookups.get());
+    }
+
+    @Test
+    public void multipleChunksPerFile() throws Exception {
+        String name = "chunks.bin";
+        byte[] data = upload(name, 3 * Chunk.MAX_SIZE + 100, 1);
+        String path = "/" + context.username + "/" + name;
+        byte[] first = new byte[1000];
+        new Random(2).nextBytes(first);
+        byte[] last = new byte[1000];
+        new Random(3).nextBytes(last);
+        CachingPeergosFS fs = new CachingPeergosFS(context, 2, 60_000);
+        try {
+            // sequential reads across all the chunks, with fewer cache slots than chunks
+            int readSize = 128 * 1024;
+            for (int offset = 0; offset < data.length; offset += readSize) {
+                byte[] read = read(fs, path, Math.min(readSize, data.length - offset), offset);
+                Assert.assertArrayEquals(Arrays.copyOfRange(data, offset, offset + read.length), read);
+            }
+
+            // dirty chunks are written when they are evicted, and on release
+            write(fs, path, first, 10);
+            write(fs, path, last, 3L * Chunk.MAX_SIZE);
+            read(fs, path, 1000, Chunk.MAX_SIZE);
+            read(fs, path, 1000, 2L * Chunk.MAX_SIZE);
+            Assert.assertArrayEquals("Evicted write visible", first, read(fs, path, 1000, 10));
+            fs.release(path, null);
+        } finally {
+            fs.close();
+        }
+        System.arraycopy(first, 0, data, 10, first.length);
+        byte[] expected = Arrays.copyOf(data, 3 * Chunk.MAX_SIZE + last.length);
+        System.arraycopy(last, 0, expected, 3 * Chunk.MAX_SIZE, last.length);
+        Assert.assertArrayEquals(expected, remoteContents(name));
+    }
+
+    /** Counts the writes which reach the network
+     */
+    private static class CountingFS extends CachingPeergosFS {
+        public final AtomicInteger writes = new AtomicInteger(0);
+        public volatile boolean failWrites = false;
+
+        public CountingFS(UserContext context, int syncSleep) {
+            super(context, 4, syncSleep);
+        }
+
+        @Override
+        public int write(PeergosStat parent, String name, byte[] toWrite, long size, long offset) {
+            if (failWrites)
+                return -5;
+            writes.incrementAndGet();
+            return super.write(parent, name, toWrite, size, offset);
+        }
+
+        @Override
+        public void close() {
+            try {
+                super.close();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private static byte[] randomBytes(int size, long seed) {
+        byte[] res = new byte[size];
+        new Random(seed).nextBytes(res);
+        return res;
+    }
+
+    private static void writeAndRecord(PeergosFS fs, String path, byte[] expected, int offset, int size, long seed) {
+        byte[] data = randomBytes(size, seed);
+        write(fs, path, data, offset);
+        System.arraycopy(data, 0, expected, offset, size);
+    }
+
+    @Test
+    public void coalescesOverlappingAndAdjacentWrites() throws Exception {
+        String name = "coalesce.bin";
+        byte[] expected = upload(name, 2 * Chunk.MAX_SIZE + 100, 4);
+        String path = "/" + context.username + "/" + name;
+        CountingFS fs = new CountingFS(context, 60_000);
+        try {
+            writeAndRecord(fs, path, expected, 100, 1000, 5);
+            // overlapping
+            writeAndRecord(fs, path, expected, 600, 1000, 6);
+            // adjacent
+            writeAndRecord(fs, path, expected, 1600, 1000, 7);
+            // spanning a chunk boundary, so the dirty ranges of two chunks are contiguous
+            writeAndRecord(fs, path, expected, Chunk.MAX_SIZE - 500, 1000, 8);
+            Assert.assertEquals(0, fs.fsync(path, 0, null));
+            Assert.assertEquals("Contiguous ranges in one write", 1, fs.writes.get());
+            Assert.assertArrayEquals(expected, remoteContents(name));
+
+            // separate ranges are written separately
+            writeAndRecord(fs, path, expected, 10, 10, 9);
+            writeAndRecord(fs, path, expected, 2 * Chunk.MAX_SIZE + 10, 10, 10);
+            Assert.assertEquals(0, fs.fsync(path, 0, null));
+            Assert.assertEquals(3, fs.writes.get());
+            Assert.assertArrayEquals(expected, remoteContents(name));
+
+            // nothing left to write
+            Assert.assertEquals(0, fs.fsync(path, 0, null));
+            Assert.assertEquals(3, fs.writes.get());
+        } finally {
+            fs.close();
+        }
+    }
+
+    @Test
+    public void flushOnRelease() throws Exception {
+        String name = "release.bin";
+        byte[] expected = upload(name, 3000, 11);
+        String path = "/" + context.username + "/" + name;
+        CountingFS fs = new CountingFS(context, 60_000);
+        try {
+            writeAndRecord(fs, path, expected, 500, 1000, 12);
+            Assert.assertEquals("Write back", 0, fs.writes.get());
+            fs.release(path, null);
+            Assert.assertArrayEquals(expected, remoteContents(name));
+
+            // the file can be opened and written again after release
+            writeAndRecord(fs, path, expected, 2500, 500, 13);
+            Assert.assertArrayEquals(expected, read(fs, path, expected.length, 0));
+            fs.release(path, null);
+            Assert.assertArrayEquals(expected, remoteContents(name));
+            Assert.assertEquals(2, fs.writes.get());
+        } finally {
+            fs.close();
+        }
+    }
+
+    @Test
+    public void failedReleaseIsRetried() throws Exception {
+        String name = "failed-release.bin";
+        byte[] expected = upload(name, 3000, 16);
+        String path = "/" + context.username + "/" + name;
+        CountingFS fs = new CountingFS(context, 60_000);
+        try {
+            writeAndRecord(fs, path, expected, 200, 1000, 17);
+            fs.failWrites = true;
+            try {
+                fs.release(path, null);
+                Assert.fail("Release succeeded");
+            } catch (IllegalStateException expectedFailure) {}
+            Assert.assertArrayEquals("Unwritten data kept", expected, read(fs, path, expected.length, 0));
+
+            fs.failWrites = false;
+            fs.release(path, null);
+            Assert.assertArrayEquals(expected, remoteContents(name));
+            Assert.assertEquals(1, fs.writes.get());
+        } finally {
+            fs.close();
+        }
+    }
+
+    @Test
+    public void backgroundFlush() throws Exception {
+        String name = "background.bin";
+        byte[] expected = upload(name, 3000, 14);
+        String path = "/" + context.username + "/" + name;
+        CountingFS fs = new CountingFS(context, 200);
+        try {
+            writeAndRecord(fs, path, expected, 1000, 1500, 15);
+            long end = System.currentTimeMillis() + 30_000;
+            while (! Arrays.equals(expected, remoteContents(name)) && System.currentTimeMillis() < end)
+                Thread.sleep(100);
+            Assert.assertArrayEquals("Flushed in the background", expected, remoteContents(name));
+            Assert.assertEquals(1, fs.writes.get());
+        } finally {
+            fs.close();
+        }
+    }
+}
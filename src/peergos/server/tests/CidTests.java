@@ -4,6 +4,7 @@ import org.junit.*;
 import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.io.ipfs.multibase.*;
 import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.util.*;
 
 import java.util.*;
 
@@ -20,4 +21,58 @@ public class CidTests {
         Multihash hash = Multihash.decode(Base58.decode(peerID));
         Cid cid = new Cid(1, Cid.Codec.LibP2pKey, hash.type, hash.getHash());
     }
+
+    @Test
+    public void cachedEncodings() {
+        Random r = new Random(1);
+        byte[] hash = new byte[32];
+        r.nextBytes(hash);
+        Cid cid = Cid.buildCidV1(Cid.Codec.DagCbor, Multihash.Type.sha2_256, hash);
+        Cid copy = Cid.buildCidV1(Cid.Codec.DagCbor, Multihash.Type.sha2_256, hash.clone());
+        Cid raw = Cid.buildCidV1(Cid.Codec.Raw, Multihash.Type.sha2_256, hash.clone());
+        Assert.assertEquals(cid.toString(), cid.toString());
+        Assert.assertEquals(cid, Cid.decode(cid.toString()));
+        Assert.assertEquals(cid.hashCode(), copy.hashCode());
+        Assert.assertEquals(cid, copy);
+        Assert.assertNotEquals(cid, raw);
+        Assert.assertNotEquals(cid.toString(), raw.toString());
+
+        Multihash bare = new Multihash(Multihash.Type.sha2_256, hash.clone());
+        Assert.assertEquals(Cid.buildV0(bare), bare);
+        Assert.assertEquals(Cid.buildV0(bare).toString(), bare.toString());
+    }
+
+    @Test
+    public void multihashIndex() {
+        Random r = new Random(2);
+        List<Multihash> keys = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            byte[] hash = new byte[32];
+            r.nextBytes(hash);
+            keys.add(Cid.buildCidV1(i % 2 == 0 ? Cid.Codec.Raw : Cid.Codec.DagCbor, Multihash.Type.sha2_256, hash));
+        }
+        byte[] hash = new byte[32];
+        r.nextBytes(hash);
+        keys.add(Cid.buildV0(new Multihash(Multihash.Type.sha2_256, hash)));
+        keys.add(new Multihash(Multihash.Type.id, new byte[]{1, 2, 3}));
+
+        MultihashIndex index = new MultihashIndex();
+        for (int i = 0; i < keys.size(); i++)
+            Assert.assertEquals(i, index.add(keys.get(i)));
+        Assert.assertEquals(keys.size(), index.size());
+        for (int i = 0; i < keys.size(); i++) {
+            Assert.assertEquals(i, index.indexOf(keys.get(i)));
+            Assert.assertEquals(keys.get(i), index.get(i));
+            Assert.assertEquals(keys.get(i).getClass(), index.get(i).getClass());
+        }
+
+        // the same digest with a different codec is a different key
+        Cid first = (Cid) keys.get(0);
+        Assert.assertEquals(-1, index.indexOf(Cid.buildCidV1(Cid.Codec.DagCbor, first.type, first.getHash())));
+        Assert.assertFalse(index.contains(new Multihash(Multihash.Type.sha2_256, new byte[32])));
+
+        // adding an existing key returns its index
+        Assert.assertEquals(1, index.add(Cid.buildCidV1(Cid.Codec.DagCbor, keys.get(1).type, keys.get(1).getHash())));
+        Assert.assertEquals(keys.size(), index.size());
+    }
 }
@@ -1,9 +1,11 @@
 package peergos.server.tests;
 
 import org.junit.*;
+import peergos.server.corenode.IpfsCoreNode;
 import peergos.server.corenode.UsernameValidator;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 public class CorenodeTests {
 
@@ -46,4 +48,21 @@ public class CorenodeTests {
         areValid.forEach(username -> Assert.assertTrue(username + " is valid", UsernameValidator.isValidUsername(username)));
         areNotValid.forEach(username -> Assert.assertFalse(username +" is not valid", UsernameValidator.isValidUsername(username)));
     }
+
+    @Test
+    public void usernamePrefixSearch() {
+        NavigableSet<String> usernames = new ConcurrentSkipListSet<>(Arrays.asList(
+                "bob", "alice", "al", "alfred", "albert", "alicia", "zed", "b"));
+
+        Assert.assertEquals(Arrays.asList("al", "albert", "alfred", "alice", "alicia"),
+                IpfsCoreNode.getUsernames(usernames, "al", Integer.MAX_VALUE));
+        Assert.assertEquals(Arrays.asList("alice", "alicia"),
+                IpfsCoreNode.getUsernames(usernames, "ali", Integer.MAX_VALUE));
+        Assert.assertEquals(Arrays.asList("al", "albert"),
+                IpfsCoreNode.getUsernames(usernames, "al", 2));
+        Assert.assertEquals(Collections.emptyList(),
+                IpfsCoreNode.getUsernames(usernames, "c", Integer.MAX_VALUE));
+        Assert.assertEquals(usernames.size(),
+                IpfsCoreNode.getUsernames(usernames, "", Integer.MAX_VALUE).size());
+    }
 }
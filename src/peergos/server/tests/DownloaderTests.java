@@ -0,0 +1,104 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.util.*;
+import peergos.shared.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.storage.*;
+import peergos.shared.user.*;
+import peergos.shared.user.fs.*;
+import peergos.shared.util.*;
+
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import static peergos.server.util.PeergosNetworkUtils.ensureSignedUp;
+
+public class DownloaderTests {
+    private static Args args = UserTests.buildArgs().with("useIPFS", "false");
+    private static Crypto crypto = Main.initCrypto();
+    private static NetworkAccess network;
+    private static UserContext context;
+    private static final Map<String, byte[]> files = new HashMap<>();
+
+    @BeforeClass
+    public static void init() throws Exception {
+        Main.PKI_INIT.main(args);
+        network = Builder.buildJavaNetworkAccess(new URL("http://localhost:" + args.getInt("port")), false).get();
+        context = ensureSignedUp("downloader", "password", network, crypto);
+        FileWrapper home = context.getUserRoot().join();
+        FileWrapper dir = home.mkdir("dir", network, false, crypto).join().getChild("dir", crypto.hasher, network).join().get();
+        dir.mkdir("sub", network, false, crypto).join();
+        Random r = new Random(1);
+        upload(Paths.get("dir"), "small.txt", 1000, r);
+        upload(Paths.get("dir"), "big.bin", 2 * Chunk.MAX_SIZE + 1000, r);
+        upload(Paths.get("dir", "sub"), "empty", 0, r);
+        upload(Paths.get("dir", "sub"), "chunk.bin", Chunk.MAX_SIZE, r);
+    }
+
+    private static void upload(Path dir, String name, int size, Random r) {
+        byte[] data = new byte[size];
+        r.nextBytes(data);
+        FileWrapper parent = context.getByPath(Paths.get(context.username).resolve(dir)).join().get();
+        parent.uploadOrReplaceFile(name, new AsyncReader.ArrayBacked(data), data.length, network, crypto, x -> {},
+                crypto.random.randomBytes(32)).join();
+        files.put(dir.resolve(name).toString(), data);
+    }
+
+    private static void checkContents(Path target) throws Exception {
+        for (Map.Entry<String, byte[]> e : files.entrySet())
+            Assert.assertArrayEquals(e.getKey(), e.getValue(), Files.readAllBytes(target.resolve(e.getKey())));
+    }
+
+    @Test
+    public void downloadAndSkipExisting() throws Exception {
+        Path target = Files.createTempDirectory("download");
+        Downloader downloader = new Downloader(context.network, crypto, 4);
+        downloader.downloadTo(context, context.username + "/dir", target, props -> true);
+        Assert.assertEquals(files.size(), downloader.filesDownloaded());
+        checkContents(target);
+        Assert.assertFalse("Progress removed", target.resolve(Downloader.PROGRESS_FILENAME).toFile().exists());
+
+        Downloader again = new Downloader(context.network, crypto, 4);
+        again.downloadTo(context, context.username + "/dir", target, props -> true);
+        Assert.assertEquals(files.size(), again.filesSkipped());
+        Assert.assertEquals(0, again.bytesDownloaded());
+    }
+
+    @Test
+    public void resume() throws Exception {
+        Path target = Files.createTempDirectory("download");
+        // fail all but the first chunk download
+        AtomicInteger chunkDownloads = new AtomicInteger(0);
+        NetworkAccess failing = context.network.withStorage(dht -> new DelegatingStorage(dht) {
+            @Override
+            public ContentAddressedStorage directToOrigin() {
+                return this;
+            }
+
+            @Override
+            public CompletableFuture<List<FragmentWithHash>> downloadFragments(List<peergos.shared.io.ipfs.multihash.Multihash> hashes,
+                                                                               ProgressConsumer<Long> monitor,
+                                                                               double spaceIncreaseFactor) {
+                if (chunkDownloads.incrementAndGet() > 1)
+                    return Futures.errored(new IllegalStateException("Network down!"));
+                return super.downloadFragments(hashes, monitor, spaceIncreaseFactor);
+            }
+        });
+        Downloader interrupted = new Downloader(failing, crypto, 1);
+        interrupted.downloadTo(context, context.username + "/dir", target, props -> true);
+        Assert.assertTrue(interrupted.errors() > 0);
+        Assert.assertTrue("Progress kept", target.resolve(Downloader.PROGRESS_FILENAME).toFile().exists());
+
+        Downloader resumed = new Downloader(context.network, crypto, 4);
+        resumed.downloadTo(context, context.username + "/dir", target, props -> true);
+        Assert.assertEquals(0, resumed.errors());
+        long total = files.values().stream().mapToLong(b -> b.length).sum();
+        Assert.assertTrue("Resumed", resumed.bytesDownloaded() < total);
+        checkContents(target);
+    }
+}
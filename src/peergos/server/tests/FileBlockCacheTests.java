@@ -0,0 +1,83 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+
+import java.nio.file.*;
+import java.util.*;
+
+public class FileBlockCacheTests {
+
+    private static final PublicKeyHash owner = new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, new byte[32]));
+
+    private static Multihash put(ContentAddressedStorage storage, byte[] block) {
+        TransactionId tid = storage.startTransaction(owner).join();
+        Multihash res = storage.put(owner, owner, Arrays.asList(new byte[0]), Arrays.asList(block), tid).join().get(0);
+        storage.closeTransaction(owner, tid).join();
+        return res;
+    }
+
+    private static byte[] randomBlock(Random r, int size) {
+        byte[] data = new byte[size];
+        r.nextBytes(data);
+        return new CborObject.CborByteArray(data).toByteArray();
+    }
+
+    @Test
+    public void persistsAcrossInstances() throws Exception {
+        Path dir = Files.createTempDirectory("block-cache");
+        RAMStorage origin = new RAMStorage();
+        byte[] block = randomBlock(new Random(1), 1000);
+        Multihash written = put(new FileBlockCache(origin, dir, 1024 * 1024), block);
+
+        byte[] other = randomBlock(new Random(2), 1000);
+        Multihash fetched = put(origin, other);
+        Assert.assertTrue(new FileBlockCache(origin, dir, 1024 * 1024).get(fetched).join().isPresent());
+
+        // a new process, with the origin unavailable, can still get all the blocks it has seen
+        FileBlockCache cache = new FileBlockCache(new RAMStorage(), dir, 1024 * 1024);
+        Assert.assertArrayEquals(block, cache.get(written).join().get().toByteArray());
+        Assert.assertArrayEquals(other, cache.getRaw(fetched).join().get());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        Path dir = Files.createTempDirectory("block-cache");
+        RAMStorage origin = new RAMStorage();
+        Random r = new Random(3);
+        List<Multihash> hashes = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            hashes.add(put(origin, randomBlock(r, 1000)));
+
+        FileBlockCache cache = new FileBlockCache(origin, dir, 5_500);
+        for (Multihash h : hashes)
+            cache.get(h).join();
+        // keep the first block in use
+        cache.get(hashes.get(0)).join();
+        cache.get(put(origin, randomBlock(r, 1000))).join();
+
+        FileBlockCache reloaded = new FileBlockCache(new RAMStorage(), dir, 5_500);
+        Assert.assertTrue(reloaded.get(hashes.get(0)).join().isPresent());
+        Assert.assertFalse(reloaded.get(hashes.get(1)).join().isPresent());
+        Assert.assertFalse(reloaded.get(hashes.get(5)).join().isPresent());
+        Assert.assertTrue(reloaded.get(hashes.get(9)).join().isPresent());
+    }
+
+    @Test
+    public void discardsCorruptBlocks() throws Exception {
+        Path dir = Files.createTempDirectory("block-cache");
+        RAMStorage origin = new RAMStorage();
+        byte[] block = randomBlock(new Random(4), 1000);
+        Multihash h = put(new FileBlockCache(origin, dir, 1024 * 1024), block);
+        String name = h.toString();
+        Path file = dir.resolve(name.substring(name.length() - 2)).resolve(name);
+        Files.write(file, randomBlock(new Random(5), 1000));
+
+        Assert.assertFalse(new FileBlockCache(new RAMStorage(), dir, 1024 * 1024).get(h).join().isPresent());
+        Assert.assertArrayEquals(block, new FileBlockCache(origin, dir, 1024 * 1024).get(h).join().get().toByteArray());
+    }
+}
@@ -0,0 +1,115 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.corenode.*;
+import peergos.server.sql.*;
+import peergos.server.storage.*;
+import peergos.server.util.*;
+import peergos.shared.*;
+import peergos.shared.corenode.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.user.*;
+import peergos.shared.util.*;
+
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static peergos.server.util.PeergosNetworkUtils.ensureSignedUp;
+
+public class MirrorCoreNodeTests {
+    private static Args args = UserTests.buildArgs().with("useIPFS", "false");
+    private static Crypto crypto = Main.initCrypto();
+    private static NetworkAccess network;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        Main.PKI_INIT.main(args);
+        // the mirror must see pointer updates immediately
+        network = Builder.buildNonCachingJavaNetworkAccess(new URL("http://localhost:" + args.getInt("port")), false).get();
+    }
+
+    /** A pki node which can't be reached
+     */
+    private static final CoreNode OFFLINE = new CoreNode() {
+        @Override
+        public CompletableFuture<List<UserPublicKeyLink>> getChain(String username) {
+            return Futures.errored(new IllegalStateException("Offline!"));
+        }
+
+        @Override
+        public CompletableFuture<Optional<RequiredDifficulty>> updateChain(String username, List<UserPublicKeyLink> chain, ProofOfWork proof) {
+            return Futures.errored(new IllegalStateException("Offline!"));
+        }
+
+        @Override
+        public CompletableFuture<String> getUsername(PublicKeyHash key) {
+            return Futures.errored(new IllegalStateException("Offline!"));
+        }
+
+        @Override
+        public CompletableFuture<List<String>> getUsernames(String prefix) {
+            return Futures.errored(new IllegalStateException("Offline!"));
+        }
+
+        @Override
+        public void close() {}
+    };
+
+    private static MirrorCoreNode mirror(CoreNode pki, Path statePath, long minCompactionBytes) {
+        PublicKeyHash peergosId = network.coreNode.getPublicKeyHash("peergos").join().get();
+        return new MirrorCoreNode(pki, network.mutable, network.dhtClient,
+                new JdbcIpnsAndSocial(Main.buildEphemeralSqlite(), new SqliteCommands()),
+                JdbcTransactionStore.build(Main.buildEphemeralSqlite(), new SqliteCommands()),
+                peergosId, statePath, minCompactionBytes);
+    }
+
+    @Test
+    public void recoverFromTornJournal() throws Exception {
+        Path statePath = Files.createTempDirectory("mirror").resolve("pki-state.cbor");
+        Path journal = statePath.resolveSibling("pki-state.cbor.journal");
+
+        // the first update is compacted straight into a snapshot
+        mirror(network.coreNode, statePath, 0).close();
+        Assert.assertTrue("Snapshot written", Files.exists(statePath));
+        Assert.assertFalse("Temporary snapshot moved", Files.exists(statePath.resolveSibling("pki-state.cbor.tmp")));
+        Assert.assertEquals("Journal truncated", 0, Files.size(journal));
+        long snapshotSize = Files.size(statePath);
+
+        // later updates are only appended to the journal
+        MirrorCoreNode mirror = mirror(network.coreNode, statePath, MirrorCoreNode.DEFAULT_MIN_COMPACTION_BYTES);
+        UserContext a = ensureSignedUp("journala", "password", network, crypto);
+        Assert.assertFalse(mirror.getChain(a.username).join().isEmpty());
+        long afterA = Files.size(journal);
+        Assert.assertTrue(afterA > 0);
+        UserContext b = ensureSignedUp("journalb", "password", network, crypto);
+        Assert.assertFalse(mirror.getChain(b.username).join().isEmpty());
+        long afterB = Files.size(journal);
+        Assert.assertTrue(afterB > afterA);
+        Assert.assertEquals(snapshotSize, Files.size(statePath));
+        mirror.close();
+
+        // crash part way through writing the last entry
+        try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.WRITE)) {
+            channel.truncate(afterB - 3);
+        }
+
+        // replay without being able to reach the pki
+        MirrorCoreNode recovered = mirror(OFFLINE, statePath, MirrorCoreNode.DEFAULT_MIN_COMPACTION_BYTES);
+        Assert.assertEquals(Arrays.asList(a.username), recovered.getUsernames("journal").join());
+        Assert.assertEquals(a.username, recovered.getUsername(a.signer.publicKeyHash).join());
+        Assert.assertTrue(recovered.getUsernames("peergos").join().contains("peergos"));
+        Assert.assertEquals("Incomplete entry truncated", afterA, Files.size(journal));
+        recovered.close();
+
+        // the lost update is retrieved again once the pki is reachable
+        MirrorCoreNode updated = mirror(network.coreNode, statePath, MirrorCoreNode.DEFAULT_MIN_COMPACTION_BYTES);
+        Assert.assertEquals(Arrays.asList(a.username, b.username), updated.getUsernames("journal").join());
+        Assert.assertTrue(Files.size(journal) > afterA);
+        updated.close();
+    }
+}
@@ -0,0 +1,261 @@
+package peergos.server.tests;
+
+import io.prometheus.client.*;
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.corenode.*;
+import peergos.server.sql.*;
+import peergos.server.storage.*;
+import peergos.server.util.*;
+import peergos.shared.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.mutable.*;
+import peergos.shared.storage.*;
+import peergos.shared.user.*;
+import peergos.shared.user.fs.*;
+import peergos.shared.util.*;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+import static peergos.server.util.PeergosNetworkUtils.ensureSignedUp;
+
+public class MirrorTests {
+    private static Args args = UserTests.buildArgs().with("useIPFS", "false");
+    private static Crypto crypto = Main.initCrypto();
+    private static NetworkAccess network;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        Main.PKI_INIT.main(args);
+        network = Builder.buildJavaNetworkAccess(new URL("http://localhost:" + args.getInt("port")), false).get();
+    }
+
+    /** A local block store which retrieves missing blocks from the source, and records every block requested
+     */
+    private static class FetchingStorage extends RAMStorage {
+        private final ContentAddressedStorage source;
+        public final List<Multihash> requested = new CopyOnWriteArrayList<>();
+        public final AtomicInteger fetched = new AtomicInteger(0);
+        public final Set<Multihash> pinned = ConcurrentHashMap.newKeySet();
+        // while set, block requests are held until it is released
+        public volatile CountDownLatch paused = new CountDownLatch(0);
+        public final Semaphore pausedRequests = new Semaphore(0);
+
+        public FetchingStorage(ContentAddressedStorage source) {
+            this.source = source;
+        }
+
+        @Override
+        public CompletableFuture<Optional<byte[]>> getRaw(Multihash hash) {
+            requested.add(hash);
+            if (paused.getCount() > 0) {
+                pausedRequests.release();
+                try {
+                    paused.await();
+                } catch (InterruptedException e) {}
+            }
+            Optional<byte[]> local = super.getRaw(hash).join();
+            if (local.isPresent())
+                return Futures.of(local);
+            Optional<byte[]> remote = source.getRaw(hash).join();
+            if (remote.isPresent()) {
+                fetched.incrementAndGet();
+                boolean isRaw = hash instanceof Cid && ((Cid) hash).codec == Cid.Codec.Raw;
+                List<byte[]> blocks = Collections.singletonList(remote.get());
+                TransactionId tid = new TransactionId("mirror");
+                if (isRaw)
+                    putRaw(null, null, Collections.emptyList(), blocks, tid, x -> {}).join();
+                else
+                    put(null, null, Collections.emptyList(), blocks, tid).join();
+            }
+            return Futures.of(remote);
+        }
+
+        @Override
+        public CompletableFuture<List<Multihash>> recursivePin(PublicKeyHash owner, Multihash h) {
+            pinned.add(h);
+            return super.recursivePin(owner, h);
+        }
+
+        @Override
+        public CompletableFuture<List<Multihash>> pinUpdate(PublicKeyHash owner, Multihash existing, Multihash updated) {
+            pinned.remove(existing);
+            pinned.add(updated);
+            return super.pinUpdate(owner, existing, updated);
+        }
+    }
+
+    private static void upload(UserContext context, String name, int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        context.getUserRoot().join().uploadOrReplaceFile(name, new AsyncReader.ArrayBacked(data), data.length,
+                network, crypto, x -> {}, crypto.random.randomBytes(32)).join();
+    }
+
+    private static Set<PublicKeyHash> writers(UserContext context) {
+        return WriterData.getOwnedKeysRecursive(context.username, network.coreNode,
+                network.mutable, network.dhtClient, network.hasher).join();
+    }
+
+    private static Set<Multihash> roots(UserContext context) {
+        return writers(context).stream()
+                .map(w -> MutablePointers.parsePointerTarget(network.mutable.getPointer(context.signer.publicKeyHash, w)
+                        .join().get(), w, network.dhtClient).join())
+                .filter(MaybeMultihash::isPresent)
+                .map(MaybeMultihash::get)
+                .collect(Collectors.toSet());
+    }
+
+    private static boolean isMirrored(UserContext context, JdbcIpnsAndSocial mirrored) {
+        for (PublicKeyHash writer : writers(context)) {
+            Optional<byte[]> local = mirrored.getPointer(writer).join();
+            if (! local.isPresent() ||
+                    ! Arrays.equals(network.mutable.getPointer(context.signer.publicKeyHash, writer).join().get(), local.get()))
+                return false;
+        }
+        return true;
+    }
+
+    private static void checkPointers(UserContext context, JdbcIpnsAndSocial mirrored) {
+        for (PublicKeyHash writer : writers(context))
+            Assert.assertArrayEquals(network.mutable.getPointer(context.signer.publicKeyHash, writer).join().get(),
+                    mirrored.getPointer(writer).join().get());
+    }
+
+    private static boolean waitFor(Supplier<Boolean> condition) throws InterruptedException {
+        long end = System.currentTimeMillis() + 30_000;
+        while (! condition.get() && System.currentTimeMillis() < end)
+            Thread.sleep(100);
+        return condition.get();
+    }
+
+    private static double lag(String username) {
+        Double lag = CollectorRegistry.defaultRegistry.getSampleValue("mirror_user_lag_seconds",
+                new String[]{"username"}, new String[]{username});
+        return lag == null ? 0 : lag;
+    }
+
+    @Test
+    public void onlyNewBlocksAreRetrieved() throws Exception {
+        UserContext context = ensureSignedUp("mirrored", "password", network, crypto);
+        upload(context, "first.bin", 2 * Chunk.MAX_SIZE, 1);
+
+        FetchingStorage target = new FetchingStorage(network.dhtClient);
+        JdbcIpnsAndSocial pointers = new JdbcIpnsAndSocial(Main.buildEphemeralSqlite(), new SqliteCommands());
+        TransactionStore transactions = JdbcTransactionStore.build(Main.buildEphemeralSqlite(), new SqliteCommands());
+
+        Mirror.mirrorUser(context.username, network, pointers, target, transactions, 2);
+        int initial = target.fetched.get();
+        Assert.assertTrue(initial > 0);
+        Assert.assertEquals("Each block requested once", initial, target.requested.size());
+        Assert.assertEquals(initial, new HashSet<>(target.requested).size());
+        checkPointers(context, pointers);
+        Assert.assertEquals("Roots pinned", roots(context), target.pinned);
+
+        // nothing has changed
+        target.requested.clear();
+        Mirror.mirrorUser(context.username, network, pointers, target, transactions, 2);
+        Assert.assertEquals(0, target.requested.size());
+
+        // only the changed part of the tree is visited
+        upload(context, "second.bin", 1000, 2);
+        Mirror.mirrorUser(context.username, network, pointers, target, transactions, 2);
+        int added = target.fetched.get() - initial;
+        Assert.assertTrue(added > 0);
+        Assert.assertEquals("Only new blocks requested", added, target.requested.size());
+        Assert.assertTrue(added < initial);
+        checkPointers(context, pointers);
+        Assert.assertEquals("Pin updated", roots(context), target.pinned);
+    }
+
+    @Test
+    public void daemonFollowsChanges() throws Exception {
+        UserContext context = ensureSignedUp("followed", "password", network, crypto);
+        upload(context, "first.bin", 1000, 3);
+
+        FetchingStorage target = new FetchingStorage(network.dhtClient);
+        JdbcIpnsAndSocial pointers = new JdbcIpnsAndSocial(Main.buildEphemeralSqlite(), new SqliteCommands());
+        TransactionStore transactions = JdbcTransactionStore.build(Main.buildEphemeralSqlite(), new SqliteCommands());
+        MirrorDaemon daemon = MirrorDaemon.forUser(context.username, network, pointers, target, transactions, 2, 100);
+        daemon.start();
+        try {
+            Assert.assertTrue("Initial mirror", waitFor(() -> isMirrored(context, pointers)));
+            Assert.assertTrue(waitFor(() -> lag(context.username) == 0));
+
+            upload(context, "second.bin", 1000, 4);
+            Assert.assertTrue("Change mirrored", waitFor(() -> isMirrored(context, pointers)));
+            Assert.assertTrue(waitFor(() -> lag(context.username) == 0));
+        } finally {
+            daemon.stop();
+        }
+    }
+
+    @Test
+    public void daemonsRunTogether() throws Exception {
+        UserContext first = ensureSignedUp("together1", "password", network, crypto);
+        UserContext second = ensureSignedUp("together2", "password", network, crypto);
+
+        // e.g. a node mirror and a user mirror sharing the local stores
+        FetchingStorage target = new FetchingStorage(network.dhtClient);
+        JdbcIpnsAndSocial pointers = new JdbcIpnsAndSocial(Main.buildEphemeralSqlite(), new SqliteCommands());
+        TransactionStore transactions = JdbcTransactionStore.build(Main.buildEphemeralSqlite(), new SqliteCommands());
+        MirrorDaemon a = MirrorDaemon.forUser(first.username, network, pointers, target, transactions, 2, 100);
+        MirrorDaemon b = MirrorDaemon.forUser(second.username, network, pointers, target, transactions, 2, 100);
+        a.start();
+        b.start();
+        try {
+            Assert.assertTrue(waitFor(() -> isMirrored(first, pointers) && isMirrored(second, pointers)));
+            Assert.assertTrue("Queue gauge is shared", waitFor(() ->
+                    CollectorRegistry.defaultRegistry.getSampleValue("mirror_queued_writers") == 0));
+        } finally {
+            a.stop();
+            b.stop();
+        }
+    }
+
+    @Test
+    public void daemonLagClearsWhenQueuedWritersAreRemoved() throws Exception {
+        UserContext context = ensureSignedUp("dropped", "password", network, crypto);
+        Assert.assertTrue("Multiple writers", writers(context).size() > 1);
+
+        FetchingStorage target = new FetchingStorage(network.dhtClient);
+        target.paused = new CountDownLatch(1);
+        JdbcIpnsAndSocial pointers = new JdbcIpnsAndSocial(Main.buildEphemeralSqlite(), new SqliteCommands());
+        TransactionStore transactions = JdbcTransactionStore.build(Main.buildEphemeralSqlite(), new SqliteCommands());
+        AtomicBoolean mirrored = new AtomicBoolean(true);
+        CountDownLatch dropped = new CountDownLatch(1);
+        MirrorDaemon daemon = new MirrorDaemon(() -> Collections.singletonList(context.username), username -> {
+            if (mirrored.get())
+                return true;
+            dropped.countDown();
+            return false;
+        }, network, pointers, target, transactions, 1, 100);
+        daemon.start();
+        try {
+            // a single worker is mirroring one writer, with the others queued behind it
+            target.pausedRequests.acquire();
+            Assert.assertTrue(waitFor(() -> lag(context.username) > 0));
+
+            // the user stops being mirrored here, removing their queued writers
+            mirrored.set(false);
+            daemon.accept(new CorenodeEvent(context.username, context.signer.publicKeyHash));
+            dropped.await();
+            Thread.sleep(500);
+            target.paused.countDown();
+
+            Assert.assertTrue("Lag cleared", waitFor(() -> lag(context.username) == 0));
+            Thread.sleep(500);
+            Assert.assertEquals(0, lag(context.username), 0);
+        } finally {
+            target.paused.countDown();
+            daemon.stop();
+        }
+    }
+}
@@ -242,6 +242,76 @@ public class MultiUserTests {
         Assert.assertTrue("Different data key", ! UserTests.getDataKey(copy).equals(UserTests.getDataKey(u1File)));
     }
 
+    @Test
+    public void socialFeedPaging() {
+        UserContext u1 = PeergosNetworkUtils.ensureSignedUp(random(), "a", network.clear(), crypto);
+        UserContext u2 = PeergosNetworkUtils.ensureSignedUp(random(), "b", network.clear(), crypto);
+        PeergosNetworkUtils.friendBetweenGroups(Arrays.asList(u1), Arrays.asList(u2));
+
+        // share enough files to need more than one index checkpoint
+        int nFiles = 150;
+        byte[] fileData = "file data".getBytes();
+        for (int i = 0; i < nFiles; i++) {
+            String filename = "file" + i + ".txt";
+            u1.getUserRoot().join().uploadOrReplaceFile(filename, AsyncReader.build(fileData), fileData.length,
+                    u1.network, crypto, x -> {}, crypto.random.randomBytes(32)).join();
+            u1.shareReadAccessWith(Paths.get(u1.username, filename), Collections.singleton(u2.username)).join();
+        }
+
+        SocialFeed feed = u2.getSocialFeed().join().update().join();
+        List<SharedItem> all = feed.getShared(0, nFiles, crypto, u2.network).join();
+        Assert.assertTrue("All items in feed", all.size() == nFiles);
+
+        // page through a freshly loaded feed, which uses the persisted index
+        SocialFeed reloaded = u2.getSocialFeed().join();
+        int pageSize = 7;
+        for (int from = 0; from < nFiles; from += pageSize) {
+            List<SharedItem> page = reloaded.getShared(from, from + pageSize, crypto, u2.network).join();
+            Assert.assertTrue("Correct page size", page.size() == Math.min(pageSize, nFiles - from));
+            for (int i = 0; i < page.size(); i++)
+                Assert.assertTrue("Correct item", page.get(i).path.equals(all.get(from + i).path));
+        }
+    }
+
+    @Test
+    public void socialFeedDiscardsUncommittedCheckpoints() {
+        UserContext u1 = PeergosNetworkUtils.ensureSignedUp(random(), "a", network.clear(), crypto);
+        UserContext u2 = PeergosNetworkUtils.ensureSignedUp(random(), "b", network.clear(), crypto);
+        PeergosNetworkUtils.friendBetweenGroups(Arrays.asList(u1), Arrays.asList(u2));
+
+        byte[] fileData = "file data".getBytes();
+        int nFiles = 110;
+        for (int i = 0; i < nFiles; i++) {
+            String filename = "file" + i + ".txt";
+            u1.getUserRoot().join().uploadOrReplaceFile(filename, AsyncReader.build(fileData), fileData.length,
+                    u1.network, crypto, x -> {}, crypto.random.randomBytes(32)).join();
+            u1.shareReadAccessWith(Paths.get(u1.username, filename), Collections.singleton(u2.username)).join();
+            if (i == 69) {
+                u2.getSocialFeed().join().update().join();
+                // an update which appended a bogus checkpoint to the index, but was interrupted before committing
+                FileWrapper feedDir = u2.getByPath(Paths.get(u2.username, UserContext.FEED_DIR_NAME)).join().get();
+                long indexSize = feedDir.getChild("feed-index.cbor", crypto.hasher, u2.network).join().get().getSize();
+                byte[] bogus = new CborObject.CborList(Arrays.asList(new CborObject.CborLong(100),
+                        new CborObject.CborLong(10))).serialize();
+                feedDir.appendToChild("feed-index.cbor", bogus, false, u2.network, crypto, x -> {}).join();
+
+                u2.getSocialFeed().join();
+                FileWrapper repaired = u2.getByPath(Paths.get(u2.username, UserContext.FEED_DIR_NAME, "feed-index.cbor"))
+                        .join().get();
+                Assert.assertEquals("Index rewritten", indexSize, repaired.getSize());
+            }
+        }
+
+        SocialFeed feed = u2.getSocialFeed().join().update().join();
+        List<SharedItem> all = feed.getShared(0, nFiles, crypto, u2.network).join();
+        Assert.assertEquals(nFiles, all.size());
+        SocialFeed reloaded = u2.getSocialFeed().join();
+        for (int from = 95; from < nFiles; from++) {
+            List<SharedItem> page = reloaded.getShared(from, from + 1, crypto, u2.network).join();
+            Assert.assertEquals(all.get(from).path, page.get(0).path);
+        }
+    }
+
     @Test
     public void revokeReadAccessToWritableFile() {
 
@@ -2,8 +2,10 @@ package peergos.server.tests;
 
 import org.junit.*;
 import peergos.shared.io.ipfs.multibase.*;
+import peergos.shared.io.ipfs.multibase.binary.Base32;
 import peergos.shared.util.*;
 
+import java.math.*;
 import java.util.*;
 
 import static org.junit.Assert.assertArrayEquals;
@@ -87,4 +89,65 @@ public class MultibaseTests {
         String example = "f0g"; // g char is not allowed in hex
         Multibase.decode(example);
     }
+
+    private static String bigIntegerEncode(byte[] in, int radix, String alphabet) {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < in.length && in[i] == 0; i++)
+            b.append(alphabet.charAt(0));
+        BigInteger n = new BigInteger(1, in);
+        StringBuilder digits = new StringBuilder();
+        BigInteger base = BigInteger.valueOf(radix);
+        while (n.signum() > 0) {
+            BigInteger[] qr = n.divideAndRemainder(base);
+            digits.append(alphabet.charAt(qr[1].intValue()));
+            n = qr[0];
+        }
+        return b.append(digits.reverse()).toString();
+    }
+
+    @Test
+    public void radixEncodingsMatchBigInteger() {
+        Random r = new Random(42);
+        String base36 = "0123456789abcdefghijklmnopqrstuvwxyz";
+        for (int i = 0; i < 2000; i++) {
+            byte[] data = new byte[r.nextInt(80)];
+            r.nextBytes(data);
+            // exercise leading zeros
+            for (int z = r.nextInt(4); z > 0 && z <= data.length; z--)
+                data[z - 1] = 0;
+
+            String b58 = Base58.encode(data);
+            assertEquals(bigIntegerEncode(data, 58, new String(Base58.ALPHABET)), b58);
+            assertArrayEquals(data, Base58.decode(b58));
+
+            String b36 = Base36.encode(data);
+            assertEquals(bigIntegerEncode(data, 36, base36), b36);
+            assertArrayEquals(data, Base36.decode(b36));
+            assertArrayEquals(data, Base36.decode(b36.toUpperCase()));
+        }
+        for (int i = 0; i < 40; i++) {
+            assertArrayEquals(new byte[i], Base36.decode(Base36.encode(new byte[i])));
+            assertArrayEquals(new byte[i], Base58.decode(Base58.encode(new byte[i])));
+        }
+    }
+
+    @Test
+    public void base32MatchesPadded() {
+        Random r = new Random(43);
+        for (int i = 0; i < 2000; i++) {
+            byte[] data = new byte[r.nextInt(80)];
+            r.nextBytes(data);
+            String padded = new Base32().encodeAsString(data);
+            String unpadded = Base32Unpadded.encode(data, true);
+            assertEquals(padded.replaceAll("=", ""), unpadded);
+            assertArrayEquals(data, Base32Unpadded.decode(unpadded));
+            assertArrayEquals(data, Base32Unpadded.decode(unpadded.toLowerCase()));
+            assertArrayEquals(data, Base32Unpadded.decode(padded));
+        }
+    }
+
+    @Test (expected = IllegalStateException.class)
+    public void invalidBase58() {
+        Base58.decode("Qm0");
+    }
 }
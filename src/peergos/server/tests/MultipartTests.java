@@ -74,6 +74,53 @@ public class MultipartTests {
         }
     }
 
+    private static byte[] encode(String boundary, List<byte[]> files) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        for (byte[] file : files) {
+            bout.write(("--" + boundary + "\r\nContent-Disposition: file; name=\"file\";\r\n"
+                    + "Content-Type: application/octet-stream\r\n\r\n").getBytes());
+            bout.write(file);
+            bout.write("\r\n".getBytes());
+        }
+        bout.write(("--" + boundary + "--\r\n").getBytes());
+        return bout.toByteArray();
+    }
+
+    @Test
+    public void smallReadsAndPartialBoundaries() throws IOException {
+        String boundary = Multipart.createBoundary();
+        List<byte[]> input = new ArrayList<>();
+        input.add(new byte[0]);
+        input.add(("\r\n--" + boundary.substring(0, 10)).getBytes());
+        input.add(("--" + boundary).getBytes());
+        for (int i = 0; i < 10; i++)
+            input.add(randomArray(r.nextInt(200_000)));
+        byte[] body = encode(boundary, input);
+        // deliver the body in small random reads
+        InputStream trickle = new FilterInputStream(new ByteArrayInputStream(body)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, 1 + r.nextInt(100)));
+            }
+        };
+        List<byte[]> result = MultipartReceiver.extractFiles(trickle, boundary);
+        Assert.assertEquals(input.size(), result.size());
+        for (int i = 0; i < input.size(); i++)
+            Assert.assertArrayEquals(input.get(i), result.get(i));
+    }
+
+    @Test
+    public void sizeLimit() throws IOException {
+        String boundary = Multipart.createBoundary();
+        byte[] body = encode(boundary, Arrays.asList(randomArray(100_000), randomArray(100_000)));
+        Iterator<byte[]> parts = MultipartReceiver.streamFiles(new ByteArrayInputStream(body), boundary, 150_000);
+        try {
+            while (parts.hasNext())
+                parts.next();
+            Assert.fail("Size limit not enforced");
+        } catch (IllegalStateException expected) {}
+    }
+
     private void test(List<byte[]> input) throws IOException {
         Multipart sender = new Multipart("http://localhost:" + port + "/multipart", "UTF-8");
         for (byte[] in : input)
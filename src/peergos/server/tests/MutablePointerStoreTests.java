@@ -0,0 +1,193 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.corenode.*;
+import peergos.server.sql.*;
+import peergos.server.storage.*;
+import peergos.server.util.*;
+import peergos.shared.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.mutable.*;
+import peergos.shared.storage.*;
+import peergos.shared.user.*;
+import peergos.shared.util.*;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+public class MutablePointerStoreTests {
+
+    private static final Random rnd = new Random(42);
+
+    private static PublicKeyHash randomWriter() {
+        byte[] hash = new byte[32];
+        rnd.nextBytes(hash);
+        return new PublicKeyHash(new Cid(1, Cid.Codec.DagCbor, Multihash.Type.sha2_256, hash));
+    }
+
+    private static byte[] randomPointer() {
+        byte[] pointer = new byte[64];
+        rnd.nextBytes(pointer);
+        return pointer;
+    }
+
+    @Test
+    public void compareAndSwap() {
+        JdbcIpnsAndSocial store = new JdbcIpnsAndSocial(Main.buildEphemeralSqlite(), new SqliteCommands());
+        PublicKeyHash writer = randomWriter();
+        byte[] v1 = randomPointer(), v2 = randomPointer(), v3 = randomPointer();
+
+        Assert.assertFalse(store.getPointer(writer).join().isPresent());
+        Assert.assertTrue(store.setPointer(writer, Optional.empty(), v1).join());
+        Assert.assertFalse("create existing", store.setPointer(writer, Optional.empty(), v2).join());
+        Assert.assertFalse("wrong existing", store.setPointer(writer, Optional.of(v2), v3).join());
+        Assert.assertTrue(store.setPointer(writer, Optional.of(v1), v2).join());
+        Assert.assertArrayEquals(v2, store.getPointer(writer).join().get());
+        Assert.assertArrayEquals(v2, store.getPointers(Collections.singletonList(writer)).join().get(writer));
+        Assert.assertArrayEquals(v2, store.getAllEntries().get(writer));
+    }
+
+    @Test
+    public void batchedSync() {
+        Supplier<Connection> db = Main.buildEphemeralSqlite();
+        JdbcIpnsAndSocial store = new JdbcIpnsAndSocial(db, new SqliteCommands(), 3_600_000);
+        PublicKeyHash writer = randomWriter();
+        byte[] v1 = randomPointer(), v2 = randomPointer();
+
+        Assert.assertTrue(store.setPointer(writer, Optional.empty(), v1).join());
+        Assert.assertTrue(store.setPointer(writer, Optional.of(v1), v2).join());
+        Assert.assertArrayEquals(v2, store.getPointer(writer).join().get());
+
+        // a new store on the same database doesn't see unsynced updates
+        JdbcIpnsAndSocial fresh = new JdbcIpnsAndSocial(db, new SqliteCommands());
+        Assert.assertFalse(fresh.getPointer(writer).join().isPresent());
+
+        store.sync();
+        JdbcIpnsAndSocial afterSync = new JdbcIpnsAndSocial(db, new SqliteCommands());
+        Assert.assertArrayEquals(v2, afterSync.getPointer(writer).join().get());
+        Assert.assertTrue(afterSync.setPointer(writer, Optional.of(v2), v1).join());
+    }
+
+    @Test
+    public void batchedSyncIsRefusedWithExternalGC() {
+        Args a = UserTests.buildArgs()
+                .with("s3.bucket", "bucket")
+                .with("mutable-pointers-sync-period", "1000");
+        try {
+            Builder.buildRawPointers(a);
+            Assert.fail("Unsynced pointers allowed with S3");
+        } catch (IllegalStateException expected) {}
+    }
+
+    @Test
+    public void garbageCollectionStreamsPointers() {
+        Crypto crypto = Main.initCrypto();
+        RAMStorage storage = new RAMStorage();
+        SigningPrivateKeyAndPublicHash writer = ChampTests.createUser(storage, crypto);
+        PublicKeyHash owner = writer.publicKeyHash;
+        TransactionId tid = storage.startTransaction(owner).join();
+        byte[] leaf = new CborObject.CborString("leaf").serialize();
+        byte[] garbage = new CborObject.CborString("garbage").serialize();
+        List<Multihash> hashes = storage.put(owner, owner, Arrays.asList(new byte[0], new byte[0]),
+                Arrays.asList(leaf, garbage), tid).join();
+        byte[] root = new CborObject.CborList(Arrays.asList(new CborObject.CborMerkleLink(hashes.get(0)))).serialize();
+        Multihash rootHash = storage.put(owner, owner, Arrays.asList(new byte[0]), Arrays.asList(root), tid).join().get(0);
+        storage.closeTransaction(owner, tid).join();
+
+        // the pointer is only in memory until GC syncs it
+        JdbcIpnsAndSocial store = new JdbcIpnsAndSocial(Main.buildEphemeralSqlite(), new SqliteCommands(), 3_600_000);
+        HashCasPair cas = new HashCasPair(MaybeMultihash.empty(), MaybeMultihash.of(rootHash));
+        Assert.assertTrue(store.setPointer(owner, Optional.empty(), writer.secret.signMessage(cas.serialize())).join());
+
+        List<PublicKeyHash> snapshot = new ArrayList<>();
+        GarbageCollector.collect(storage, store, s -> {
+            s.forEach(e -> snapshot.add(e.getKey()));
+            return Futures.of(true);
+        });
+        Assert.assertEquals(Arrays.asList(owner), snapshot);
+        Assert.assertTrue(storage.getRaw(rootHash).join().isPresent());
+        Assert.assertTrue(storage.getRaw(hashes.get(0)).join().isPresent());
+        Assert.assertFalse(storage.getRaw(hashes.get(1)).join().isPresent());
+    }
+
+    @Test
+    public void absentPointersAreNotCached() {
+        Supplier<Connection> db = Main.buildEphemeralSqlite();
+        JdbcIpnsAndSocial reader = new JdbcIpnsAndSocial(db, new SqliteCommands());
+        PublicKeyHash single = randomWriter(), batched = randomWriter();
+        byte[] v1 = randomPointer(), v2 = randomPointer();
+        Assert.assertFalse(reader.getPointer(single).join().isPresent());
+        Assert.assertTrue(reader.getPointers(Arrays.asList(single, batched)).join().isEmpty());
+
+        // so pointers created elsewhere are seen by the next lookup
+        JdbcIpnsAndSocial writer = new JdbcIpnsAndSocial(db, new SqliteCommands());
+        Assert.assertTrue(writer.setPointer(single, Optional.empty(), v1).join());
+        Assert.assertTrue(writer.setPointer(batched, Optional.empty(), v2).join());
+        Assert.assertArrayEquals(v1, reader.getPointer(single).join().get());
+        Map<PublicKeyHash, byte[]> found = reader.getPointers(Arrays.asList(single, batched)).join();
+        Assert.assertArrayEquals(v1, found.get(single));
+        Assert.assertArrayEquals(v2, found.get(batched));
+    }
+
+    /** A server from before getPointers was added
+     */
+    private static class OldPointerServer implements HttpPoster {
+        private final Map<String, byte[]> pointers = new HashMap<>();
+
+        @Override
+        public CompletableFuture<byte[]> postUnzip(String url, byte[] payload) {
+            if (url.contains("getPointer?")) {
+                String writer = url.substring(url.indexOf("&writer=") + "&writer=".length());
+                return Futures.of(pointers.getOrDefault(writer, new byte[0]));
+            }
+            return Futures.errored(new IllegalStateException("Unknown method in mutable pointers!"));
+        }
+
+        @Override
+        public CompletableFuture<byte[]> post(String url, byte[] payload, boolean unzip) {
+            return postUnzip(url, payload);
+        }
+
+        @Override
+        public CompletableFuture<byte[]> postMultipart(String url, List<byte[]> files) {
+            throw new IllegalStateException("Unimplemented");
+        }
+
+        @Override
+        public CompletableFuture<byte[]> put(String url, byte[] payload, Map<String, String> headers) {
+            throw new IllegalStateException("Unimplemented");
+        }
+
+        @Override
+        public CompletableFuture<byte[]> get(String url, Map<String, String> headers) {
+            return postUnzip(url, new byte[0]);
+        }
+    }
+
+    @Test
+    public void getPointersFromOlderServer() {
+        OldPointerServer server = new OldPointerServer();
+        PublicKeyHash owner = randomWriter(), w1 = randomWriter(), w2 = randomWriter(), absent = randomWriter();
+        byte[] v1 = randomPointer(), v2 = randomPointer();
+        server.pointers.put(w1.toString(), v1);
+        server.pointers.put(w2.toString(), v2);
+
+        HttpMutablePointers http = new HttpMutablePointers(server, server);
+        Map<PublicKeyHash, byte[]> res = http.getPointers(owner, Arrays.asList(w1, w2, absent)).join();
+        Assert.assertEquals(2, res.size());
+        Assert.assertArrayEquals(v1, res.get(w1));
+        Assert.assertArrayEquals(v2, res.get(w2));
+
+        Multihash node = randomWriter().multihash;
+        Map<PublicKeyHash, byte[]> proxied = http.getPointers(node, owner, Arrays.asList(w1, absent)).join();
+        Assert.assertEquals(1, proxied.size());
+        Assert.assertArrayEquals(v1, proxied.get(w1));
+    }
+}
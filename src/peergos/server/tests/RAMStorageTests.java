@@ -0,0 +1,138 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.sql.*;
+import peergos.server.storage.*;
+import peergos.server.util.*;
+import peergos.shared.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.user.*;
+import peergos.shared.user.fs.*;
+import peergos.shared.util.*;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static peergos.server.util.PeergosNetworkUtils.ensureSignedUp;
+
+public class RAMStorageTests {
+
+    private static final PublicKeyHash owner = new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, new byte[32]));
+
+    private static List<Multihash> putRaw(RAMStorage storage, byte[] block) {
+        TransactionId tid = storage.startTransaction(owner).join();
+        List<Multihash> res = storage.putRaw(owner, owner, Arrays.asList(new byte[0]), Arrays.asList(block), tid, x -> {}).join();
+        storage.closeTransaction(owner, tid).join();
+        return res;
+    }
+
+    @Test
+    public void concurrentWrites() throws Exception {
+        RAMStorage storage = new RAMStorage();
+        int threads = 16, blocksPerThread = 200, blockSize = 1000;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Map<Multihash, byte[]>>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int seed = t;
+            results.add(pool.submit(() -> {
+                Random r = new Random(seed);
+                Map<Multihash, byte[]> written = new HashMap<>();
+                for (int i = 0; i < blocksPerThread; i++) {
+                    byte[] block = new byte[blockSize];
+                    r.nextBytes(block);
+                    written.put(putRaw(storage, block).get(0), block);
+                }
+                return written;
+            }));
+        }
+        Map<Multihash, byte[]> all = new HashMap<>();
+        for (Future<Map<Multihash, byte[]>> result : results)
+            all.putAll(result.get());
+        pool.shutdown();
+
+        Assert.assertEquals(threads * blocksPerThread, storage.size());
+        Assert.assertEquals((long) threads * blocksPerThread * blockSize, storage.usedBytes());
+        for (Map.Entry<Multihash, byte[]> e : all.entrySet())
+            Assert.assertArrayEquals(e.getValue(), storage.getRaw(e.getKey()).join().get());
+        Assert.assertTrue(storage.getOpenTransactionBlocks().isEmpty());
+    }
+
+    @Test
+    public void byteBudget() {
+        RAMStorage storage = new RAMStorage(1000);
+        Random r = new Random(1);
+        byte[] first = new byte[600];
+        r.nextBytes(first);
+        Multihash firstHash = putRaw(storage, first).get(0);
+        // rewriting an existing block doesn't use any more space
+        putRaw(storage, first);
+        Assert.assertEquals(600, storage.usedBytes());
+
+        byte[] second = new byte[600];
+        r.nextBytes(second);
+        try {
+            putRaw(storage, second);
+            Assert.fail("Exceeded byte budget");
+        } catch (IllegalStateException expected) {}
+        Assert.assertEquals(600, storage.usedBytes());
+
+        storage.delete(firstHash);
+        Assert.assertEquals(0, storage.usedBytes());
+        putRaw(storage, second);
+        Assert.assertEquals(600, storage.usedBytes());
+    }
+
+    @Test
+    public void sharedBandwidth() {
+        // 1 MiB/s shared between concurrent writes
+        RAMStorage storage = new RAMStorage(Long.MAX_VALUE, 0, 0, 1024 * 1024);
+        Random r = new Random(2);
+        TransactionId tid = storage.startTransaction(owner).join();
+        long t0 = System.currentTimeMillis();
+        List<CompletableFuture<List<Multihash>>> writes = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            byte[] block = new byte[128 * 1024];
+            r.nextBytes(block);
+            writes.add(storage.putRaw(owner, owner, Arrays.asList(new byte[0]), Arrays.asList(block), tid, x -> {}));
+        }
+        writes.forEach(CompletableFuture::join);
+        long duration = System.currentTimeMillis() - t0;
+        Assert.assertTrue("Writes took " + duration + "ms", duration >= 450);
+    }
+
+    @Test
+    public void onlyUsedWithoutIpfs() {
+        Args args = UserTests.buildArgs()
+                .with("useIPFS", "true")
+                .with("ram-blockstore", "true");
+        try {
+            Builder.buildLocalStorage(args, JdbcTransactionStore.build(Main.buildEphemeralSqlite(), new SqliteCommands()));
+            Assert.fail("In memory block store used with IPFS");
+        } catch (IllegalStateException expected) {}
+    }
+
+    @Test
+    public void fullServer() throws Exception {
+        Args args = UserTests.buildArgs()
+                .with("useIPFS", "false")
+                .with("ram-blockstore", "true");
+        Main.PKI_INIT.main(args);
+        NetworkAccess network = Builder.buildJavaNetworkAccess(new URL("http://localhost:" + args.getInt("port")), false).get();
+        Crypto crypto = Main.initCrypto();
+        String username = "test" + Math.abs(new Random().nextInt() % 10000);
+        UserContext context = ensureSignedUp(username, "password", network, crypto);
+        FileWrapper home = context.getUserRoot().join();
+        byte[] data = new byte[100_000];
+        new Random(3).nextBytes(data);
+        home.uploadOrReplaceFile("file", new AsyncReader.ArrayBacked(data), data.length, network, crypto, x -> {},
+                crypto.random.randomBytes(32)).join();
+        FileWrapper file = context.getByPath(username + "/file").join().get();
+        byte[] read = Serialize.readFully(file, crypto, network).join();
+        Assert.assertArrayEquals(data, read);
+        Assert.assertTrue(Builder.buildRamStorage(args).usedBytes() > data.length);
+    }
+}
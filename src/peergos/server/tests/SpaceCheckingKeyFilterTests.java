@@ -1,17 +1,24 @@
 package peergos.server.tests;
 import org.junit.*;
 import peergos.server.*;
+import peergos.server.corenode.*;
+import peergos.server.mutable.*;
 import peergos.server.space.*;
+import peergos.server.storage.*;
 import peergos.shared.Crypto;
 import peergos.shared.MaybeMultihash;
 import peergos.shared.cbor.CborObject;
-import peergos.shared.crypto.hash.PublicKeyHash;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
 import peergos.shared.io.ipfs.multihash.Multihash;
 import peergos.server.space.*;
+import peergos.server.sql.*;
+import peergos.shared.storage.*;
+import peergos.shared.user.*;
 
-import java.util.HashSet;
-import java.util.Random;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 
 public class SpaceCheckingKeyFilterTests {
@@ -43,4 +50,101 @@ public class SpaceCheckingKeyFilterTests {
         //check that deserialize(serialize(object)) == object
         Assert.assertEquals(deserialized, state);
     }
+
+    @Test
+    public void cachingUsageStore() {
+        JdbcUsageStore db = new JdbcUsageStore(Main.buildEphemeralSqlite(), new SqliteCommands());
+        CachingUsageStore store = new CachingUsageStore(db, 60_000);
+        String username = "alice";
+        PublicKeyHash writer = new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, random()));
+        store.addUserIfAbsent(username);
+        store.addWriter(username, writer);
+
+        store.addPendingUsage(username, writer, 100);
+        store.addPendingUsage(username, writer, 200);
+        Assert.assertEquals(300, store.getUsage(username).getPending(writer));
+        Assert.assertEquals(0, db.getUsage(username).getPending(writer));
+
+        store.flush();
+        Assert.assertEquals(300, db.getUsage(username).getPending(writer));
+
+        store.addPendingUsage(username, writer, 50);
+        store.confirmUsage(username, writer, 350, false);
+        store.flush();
+        Assert.assertEquals(350, store.getUsage(username).totalUsage());
+        Assert.assertEquals(350, db.getUsage(username).totalUsage());
+        Assert.assertEquals(0, db.getUsage(username).getPending(writer));
+
+        // a new ledger loads the persisted state
+        CachingUsageStore reloaded = new CachingUsageStore(db, 60_000);
+        Assert.assertEquals(350, reloaded.getUsage(username).totalUsage());
+        Assert.assertEquals(username, reloaded.getUsage(writer).owner);
+
+        try {
+            store.addPendingUsage("bob", writer, 100);
+            Assert.fail("Pending usage added for an unknown user");
+        } catch (IllegalStateException expected) {}
+    }
+
+    @Test
+    public void coalesceUpdatesToOneWriter() throws Exception {
+        Hasher hasher = crypto.hasher;
+        CountDownLatch processing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger calculations = new AtomicInteger(0);
+        RAMStorage ram = new RAMStorage();
+        ContentAddressedStorage dht = new DelegatingStorage(ram) {
+            @Override
+            public ContentAddressedStorage directToOrigin() {
+                return this;
+            }
+
+            @Override
+            public CompletableFuture<Long> getChangeInContainedSize(MaybeMultihash original, Multihash updated) {
+                calculations.incrementAndGet();
+                processing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {}
+                return ram.getChangeInContainedSize(original, updated);
+            }
+        };
+        MutableEventPropagator mutable = new MutableEventPropagator(
+                UserRepository.build(dht, new JdbcIpnsAndSocial(Main.buildEphemeralSqlite(), new SqliteCommands())));
+        UsageStore usage = new JdbcUsageStore(Main.buildEphemeralSqlite(), new SqliteCommands());
+        SpaceCheckingKeyFilter filter = new SpaceCheckingKeyFilter(null, mutable, dht, hasher, null, usage, 4);
+        mutable.addListener(filter::accept);
+
+        SigningKeyPair pair = SigningKeyPair.random(crypto.random, crypto.signer);
+        PublicKeyHash writer = ContentAddressedStorage.hashKey(pair.publicSigningKey);
+        SigningPrivateKeyAndPublicHash signer = new SigningPrivateKeyAndPublicHash(writer, pair.secretSigningKey);
+        String username = "bob";
+        usage.addUserIfAbsent(username);
+        usage.addWriter(username, writer);
+
+        TransactionId tid = dht.startTransaction(writer).join();
+        WriterData wd = WriterData.createEmpty(writer, signer, dht, hasher, tid).join();
+        MaybeMultihash current = wd.commit(writer, signer, MaybeMultihash.empty(), mutable, dht, hasher, tid).join()
+                .get(writer).hash;
+        // the first update is being processed while the rest arrive
+        processing.await();
+        int updates = 20;
+        for (int i = 1; i <= updates; i++) {
+            byte[] data = new byte[i * 1000];
+            RANDOM.nextBytes(data);
+            Multihash tree = dht.putRaw(writer, writer, Collections.singletonList(new byte[0]),
+                    Collections.singletonList(data), tid, x -> {}).join().get(0);
+            current = wd.withChamp(tree).commit(writer, signer, current, mutable, dht, hasher, tid).join()
+                    .get(writer).hash;
+        }
+        release.countDown();
+
+        long expected = ram.getRecursiveBlockSize(current.get()).join();
+        long end = System.currentTimeMillis() + 10_000;
+        while (usage.getUsage(username).totalUsage() != expected && System.currentTimeMillis() < end)
+            Thread.sleep(50);
+        Assert.assertEquals(expected, usage.getUsage(username).totalUsage());
+        Assert.assertEquals(current, usage.getUsage(writer).target());
+        Assert.assertEquals("Updates coalesced", 2, calculations.get());
+    }
 }
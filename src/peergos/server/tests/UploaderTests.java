@@ -0,0 +1,139 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.util.*;
+import peergos.shared.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.user.*;
+import peergos.shared.user.fs.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import static peergos.server.util.PeergosNetworkUtils.ensureSignedUp;
+
+public class UploaderTests {
+    private static Args args = UserTests.buildArgs().with("useIPFS", "false");
+    private static Crypto crypto = Main.initCrypto();
+    private static NetworkAccess network;
+    private static UserContext context;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        Main.PKI_INIT.main(args);
+        network = Builder.buildJavaNetworkAccess(new URL("http://localhost:" + args.getInt("port")), false).get();
+        context = ensureSignedUp("uploader", "password", network, crypto);
+    }
+
+    private static Map<String, byte[]> createLocalTree(Path root, Random r, int... sizes) throws IOException {
+        Map<String, byte[]> files = new HashMap<>();
+        Path sub = root.resolve("sub");
+        Files.createDirectories(sub);
+        Files.createDirectories(root.resolve("empty"));
+        for (int i = 0; i < sizes.length; i++) {
+            byte[] data = new byte[sizes[i]];
+            r.nextBytes(data);
+            Path relative = Paths.get(i % 2 == 0 ? "" : "sub", "file" + i + ".bin");
+            Files.write(root.resolve(relative), data);
+            files.put(relative.toString(), data);
+        }
+        return files;
+    }
+
+    private static void checkContents(UserContext context, String remoteDir, Map<String, byte[]> files) throws Exception {
+        for (Map.Entry<String, byte[]> e : files.entrySet()) {
+            FileWrapper file = context.getByPath(remoteDir + "/" + e.getKey()).join().get();
+            AsyncReader reader = file.getInputStream(context.network, crypto, x -> {}).join();
+            byte[] res = new byte[(int) file.getSize()];
+            reader.readIntoArray(res, 0, res.length).join();
+            Assert.assertArrayEquals(e.getKey(), e.getValue(), res);
+        }
+    }
+
+    @Test
+    public void uploadAndSkipExisting() throws Exception {
+        Path local = Files.createTempDirectory("upload").resolve("photos");
+        Map<String, byte[]> files = createLocalTree(local, new Random(1),
+                1000, 2 * Chunk.MAX_SIZE + 1000, 0, Chunk.MAX_SIZE, 10_000);
+        Path checkpoint = Files.createTempDirectory("checkpoint").resolve("upload");
+        String target = context.username + "/imports";
+
+        Uploader uploader = new Uploader(context.network, crypto, 2, checkpoint);
+        uploader.uploadTo(context, local, Paths.get(target), f -> true);
+        Assert.assertEquals(0, uploader.errors());
+        Assert.assertEquals(files.size(), uploader.filesUploaded());
+        Assert.assertFalse("Checkpoint removed", checkpoint.toFile().exists());
+        checkContents(context, target + "/photos", files);
+        Assert.assertTrue("Empty directory", context.getByPath(target + "/photos/empty").join().isPresent());
+
+        Uploader again = new Uploader(context.network, crypto, 2, checkpoint);
+        again.uploadTo(context, local, Paths.get(target), f -> true);
+        Assert.assertEquals(files.size(), again.filesSkipped());
+        Assert.assertEquals(0, again.bytesUploaded());
+
+        // a changed file is uploaded again
+        byte[] changed = new byte[2000];
+        new Random(2).nextBytes(changed);
+        Files.write(local.resolve("file0.bin"), changed);
+        files.put("file0.bin", changed);
+        Uploader changes = new Uploader(context.network, crypto, 2, checkpoint);
+        changes.uploadTo(context, local, Paths.get(target), f -> true);
+        Assert.assertEquals(1, changes.filesUploaded());
+        checkContents(context, target + "/photos", files);
+    }
+
+    @Test
+    public void resume() throws Exception {
+        Path local = Files.createTempDirectory("upload").resolve("archive");
+        Map<String, byte[]> files = createLocalTree(local, new Random(3),
+                100_000, 100_000, 100_000, 100_000, 100_000, 100_000);
+        Path checkpoint = Files.createTempDirectory("checkpoint").resolve("upload");
+        // a separate user, as the other networks won't see each other's writes
+        UserContext user = ensureSignedUp("resumer", "password", network, crypto);
+        String target = user.username + "/resumed";
+
+        // fail all but the first fragment upload
+        AtomicInteger fragmentUploads = new AtomicInteger(0);
+        NetworkAccess failing = network.withStorage(dht -> new DelegatingStorage(dht) {
+            @Override
+            public ContentAddressedStorage directToOrigin() {
+                return this;
+            }
+
+            @Override
+            public CompletableFuture<List<Multihash>> putRaw(PublicKeyHash owner,
+                                                             PublicKeyHash writer,
+                                                             List<byte[]> signatures,
+                                                             List<byte[]> blocks,
+                                                             TransactionId tid,
+                                                             ProgressConsumer<Long> progressCounter) {
+                if (fragmentUploads.incrementAndGet() > 1)
+                    return Futures.errored(new IllegalStateException("Network down!"));
+                return super.putRaw(owner, writer, signatures, blocks, tid, progressCounter);
+            }
+        });
+        UserContext failingContext = UserContext.signIn(user.username, "password", failing, crypto).join();
+        Uploader interrupted = new Uploader(failing, crypto, 1, checkpoint);
+        interrupted.uploadTo(failingContext, local, Paths.get(target), f -> true);
+        Assert.assertTrue(interrupted.errors() > 0);
+        Assert.assertTrue(interrupted.filesUploaded() > 0);
+        Assert.assertTrue("Checkpoint kept", checkpoint.toFile().exists());
+
+        NetworkAccess fresh = Builder.buildJavaNetworkAccess(new URL("http://localhost:" + args.getInt("port")), false).get();
+        UserContext resumedContext = UserContext.signIn(user.username, "password", fresh, crypto).join();
+        Uploader resumed = new Uploader(fresh, crypto, 2, checkpoint);
+        resumed.uploadTo(resumedContext, local, Paths.get(target), f -> true);
+        Assert.assertEquals(0, resumed.errors());
+        Assert.assertEquals(interrupted.filesUploaded(), resumed.filesSkipped());
+        Assert.assertEquals(files.size(), interrupted.filesUploaded() + resumed.filesUploaded());
+        checkContents(resumedContext, target + "/archive", files);
+    }
+}
@@ -181,6 +181,48 @@ public abstract class UserTests {
         Assert.assertTrue(decryptedUrl.equalsIgnoreCase(someUrlFragment));
     }
 
+    @Test
+    public void bulkGetPointers() {
+        String username = generateUsername();
+        String password = "password";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        context.getUserRoot().join().mkdir("subdir", network, false, crypto).join();
+        PublicKeyHash owner = context.signer.publicKeyHash;
+        List<PublicKeyHash> writers = new ArrayList<>(WriterData.getOwnedKeysRecursive(username, network.coreNode,
+                network.mutable, network.dhtClient, network.hasher).join());
+        Assert.assertTrue("user has multiple writers", writers.size() > 1);
+
+        Map<PublicKeyHash, byte[]> pointers = network.mutable.getPointers(owner, writers).join();
+        Assert.assertEquals(writers.size(), pointers.size());
+        for (PublicKeyHash writer : writers)
+            Assert.assertArrayEquals(network.mutable.getPointer(owner, writer).join().get(), pointers.get(writer));
+    }
+
+    @Test
+    public void watchPointers() {
+        String username = generateUsername();
+        String password = "password";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        PublicKeyHash owner = context.signer.publicKeyHash;
+        List<PublicKeyHash> writers = new ArrayList<>(WriterData.getOwnedKeysRecursive(username, network.coreNode,
+                network.mutable, network.dhtClient, network.hasher).join());
+        Map<PublicKeyHash, Optional<byte[]>> known = new HashMap<>();
+        network.mutable.getPointers(owner, writers).join()
+                .forEach((writer, pointer) -> known.put(writer, Optional.of(pointer)));
+
+        // an unchanged watch times out with no changes
+        Assert.assertTrue(network.mutable.watchPointers(owner, known, 100).join().isEmpty());
+
+        // the poster blocks until the watch completes
+        CompletableFuture<Map<PublicKeyHash, byte[]>> changed =
+                CompletableFuture.supplyAsync(() -> network.mutable.watchPointers(owner, known, 10_000).join());
+        context.getUserRoot().join().mkdir("subdir", network, false, crypto).join();
+        Map<PublicKeyHash, byte[]> updates = changed.join();
+        Assert.assertFalse("change was pushed", updates.isEmpty());
+        for (Map.Entry<PublicKeyHash, byte[]> e : updates.entrySet())
+            Assert.assertFalse(Arrays.equals(known.get(e.getKey()).orElse(new byte[0]), e.getValue()));
+    }
+
     @Test
     public void singleSignUp() {
         // This is to ensure a user can't accidentally sign up rather than login and overwrite all their data
@@ -852,6 +894,86 @@ public abstract class UserTests {
         Assert.assertTrue("Has thumbnail", thumbnail.length() > 0);
     }
 
+    @Test
+    public void singlePassUploadAndOverwrite() throws Exception {
+        String username = generateUsername();
+        String password = "test01";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        FileWrapper userRoot = context.getUserRoot().get();
+
+        String filename = "single.png";
+        byte[] data = Files.readAllBytes(Paths.get("assets", "logo.png"));
+        userRoot.uploadOrReplaceFile(filename, new NonResettableStream(data), data.length, context.network,
+                context.crypto, l -> {}, context.crypto.random.randomBytes(32)).get();
+        FileWrapper file = context.getByPath(Paths.get(username, filename).toString()).get().get();
+        Assert.assertTrue("Has thumbnail", file.getBase64Thumbnail().length() > 0);
+        Assert.assertTrue("Correct mimetype", file.getFileProperties().mimeType.equals("image/png"));
+        checkFileContents(data, file, context);
+
+        // overwriting every byte shouldn't need to re-read the source or download the file
+        byte[] text = new byte[data.length];
+        Arrays.fill(text, (byte) 'a');
+        FileWrapper parent = context.getUserRoot().get();
+        parent.uploadOrReplaceFile(filename, new NonResettableStream(text), text.length, context.network,
+                context.crypto, l -> {}, context.crypto.random.randomBytes(32)).get();
+        FileWrapper overwritten = context.getByPath(Paths.get(username, filename).toString()).get().get();
+        Assert.assertTrue("No thumbnail", ! overwritten.getFileProperties().thumbnail.isPresent());
+        Assert.assertTrue("Updated mimetype", overwritten.getFileProperties().mimeType.equals("text/plain"));
+        checkFileContents(text, overwritten, context);
+    }
+
+    @Test
+    public void uploadSubtree() throws Exception {
+        String username = generateUsername();
+        String password = "test01";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        FileWrapper userRoot = context.getUserRoot().get();
+        userRoot.uploadOrReplaceFile("existing.txt", AsyncReader.build(new byte[10]), 10, context.network,
+                context.crypto, l -> {}, context.crypto.random.randomBytes(32)).get();
+
+        Map<String, byte[]> contents = new HashMap<>();
+        List<FileWrapper.FolderUploadProperties> dirs = new ArrayList<>();
+        List<List<String>> paths = Arrays.asList(
+                Collections.emptyList(),
+                Arrays.asList("a"),
+                Arrays.asList("a", "b"),
+                Arrays.asList("c"));
+        for (List<String> path : paths) {
+            List<FileWrapper.FileUploadProperties> files = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                String name = i == 0 && path.isEmpty() ? "existing.txt" : "file" + i + ".bin";
+                byte[] data = new byte[1000 + i];
+                random.nextBytes(data);
+                contents.put(path.stream().map(e -> "/" + e).collect(Collectors.joining()) + "/" + name, data);
+                files.add(new FileWrapper.FileUploadProperties(name, () -> AsyncReader.build(data), data.length, l -> {}));
+            }
+            dirs.add(new FileWrapper.FolderUploadProperties(path, files));
+        }
+        AtomicLong filesDone = new AtomicLong(0);
+        context.getUserRoot().get().uploadSubtree(dirs, 5, context.network, context.crypto, filesDone::addAndGet).get();
+        Assert.assertTrue("All files reported", filesDone.get() == contents.size());
+
+        for (Map.Entry<String, byte[]> e : contents.entrySet()) {
+            FileWrapper file = context.getByPath(Paths.get(username).toString() + e.getKey()).get().get();
+            checkFileContents(e.getValue(), file, context);
+        }
+        Set<FileWrapper> children = context.getUserRoot().get().getChildren(crypto.hasher, context.network).get();
+        long existingCount = children.stream().filter(f -> f.getName().equals("existing.txt")).count();
+        Assert.assertTrue("Overwrote existing file", existingCount == 1);
+    }
+
+    static class NonResettableStream extends AsyncReader.ArrayBacked {
+
+        public NonResettableStream(byte[] data) {
+            super(data);
+        }
+
+        @Override
+        public CompletableFuture<AsyncReader> reset() {
+            return Futures.errored(new IllegalStateException("Reset called on single pass stream!"));
+        }
+    }
+
     @Ignore // until we figure out how to manage javafx in tests
     @Test
     public void javaVideoThumbnail() throws Exception {
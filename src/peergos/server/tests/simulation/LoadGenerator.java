@@ -0,0 +1,361 @@
+package peergos.server.tests.simulation;
+
+import peergos.server.*;
+import peergos.server.storage.IpfsWrapper;
+import peergos.server.util.Args;
+import peergos.server.util.PeergosNetworkUtils;
+import peergos.shared.Crypto;
+import peergos.shared.NetworkAccess;
+import peergos.shared.io.ipfs.api.JSONParser;
+import peergos.shared.social.*;
+import peergos.shared.user.*;
+import peergos.shared.user.fs.*;
+import peergos.shared.util.Serialize;
+
+import java.net.URL;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+import static peergos.server.tests.UserTests.buildArgs;
+
+/**
+ * Run many simulated users concurrently against a local server, each doing a random mix of operations, and report
+ * the throughput and latency of each kind of operation.
+ *
+ * Unlike the Simulator, nothing is verified, and each user talks to the server over http with its own network access,
+ * like a real client. Results can be written as json to compare between builds.
+ *
+ * e.g. -n-users 8 -ops-per-user 200 -ram-blockstore true -ram-blockstore-write-latency 5 -json-out results.json
+ */
+public class LoadGenerator {
+
+    public enum Operation {
+        UPLOAD,
+        DOWNLOAD,
+        MKDIR,
+        LIST,
+        SHARE,
+        FEED
+    }
+
+    private static final int MAX_FEED_ITEMS_PER_UPDATE = 50;
+
+    /** The latencies of one kind of operation, recorded by a single thread
+     */
+    public static class LatencyRecorder {
+        private long[] latencies = new long[64];
+        private int count, errors;
+        private long bytes;
+
+        public void record(long latencyNanos, long bytes) {
+            if (count == latencies.length)
+                latencies = Arrays.copyOf(latencies, count * 2);
+            latencies[count++] = latencyNanos;
+            this.bytes += bytes;
+        }
+
+        public void recordError() {
+            errors++;
+        }
+
+        public void addAll(LatencyRecorder other) {
+            for (int i = 0; i < other.count; i++)
+                record(other.latencies[i], 0);
+            bytes += other.bytes;
+            errors += other.errors;
+        }
+
+        public int count() {
+            return count;
+        }
+
+        /**
+         *
+         * @param percentile between 0 and 100
+         * @return the nearest rank percentile latency in milliseconds
+         */
+        public double percentileMillis(double percentile) {
+            if (count == 0)
+                return 0;
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            int rank = (int) Math.ceil(percentile / 100 * count);
+            return sorted[Math.max(0, Math.min(count, rank) - 1)] / 1_000_000.0;
+        }
+
+        public double meanMillis() {
+            if (count == 0)
+                return 0;
+            long total = 0;
+            for (int i = 0; i < count; i++)
+                total += latencies[i];
+            return total / 1_000_000.0 / count;
+        }
+
+        public Map<String, Object> toJson(long durationMillis) {
+            Map<String, Object> res = new LinkedHashMap<>();
+            res.put("count", count);
+            res.put("errors", errors);
+            res.put("opsPerSecond", round(count * 1000.0 / durationMillis));
+            res.put("bytesPerSecond", round(bytes * 1000.0 / durationMillis));
+            res.put("meanMillis", round(meanMillis()));
+            res.put("p50Millis", round(percentileMillis(50)));
+            res.put("p90Millis", round(percentileMillis(90)));
+            res.put("p99Millis", round(percentileMillis(99)));
+            res.put("maxMillis", round(percentileMillis(100)));
+            return res;
+        }
+
+        private static double round(double d) {
+            return Math.round(d * 100) / 100.0;
+        }
+    }
+
+    /** A single simulated user, with its own client and view of its files
+     */
+    private static class SimulatedUser {
+        private final UserContext context;
+        private final List<String> friends;
+        private final Random random;
+        private final Map<Operation, Double> mix;
+        private final int meanFileLength;
+        private final Map<Operation, LatencyRecorder> stats = new EnumMap<>(Operation.class);
+        private final List<Path> dirs = new ArrayList<>();
+        private final List<Path> files = new ArrayList<>();
+        private final List<Path> unshared = new ArrayList<>();
+        private final List<Path> sharedWithUs = new ArrayList<>();
+        private long nameCounter = 0;
+
+        public SimulatedUser(UserContext context, List<String> friends, Random random, Map<Operation, Double> mix, int meanFileLength) {
+            this.context = context;
+            this.friends = friends;
+            this.random = random;
+            this.mix = mix;
+            this.meanFileLength = meanFileLength;
+            for (Operation op : Operation.values())
+                stats.put(op, new LatencyRecorder());
+            dirs.add(Paths.get(context.username));
+        }
+
+        private Operation nextOperation() {
+            double total = mix.values().stream().mapToDouble(d -> d).sum();
+            double v = random.nextDouble() * total;
+            for (Map.Entry<Operation, Double> e : mix.entrySet()) {
+                v -= e.getValue();
+                if (v < 0)
+                    return e.getKey();
+            }
+            return Operation.UPLOAD;
+        }
+
+        private <T> T pick(List<T> from) {
+            return from.get(random.nextInt(from.size()));
+        }
+
+        private String nextName() {
+            return "" + nameCounter++;
+        }
+
+        private byte[] nextFileContents() {
+            // exponentially distributed sizes, capped at 10x the mean
+            double length = -Math.log(1 - random.nextDouble()) * meanFileLength;
+            byte[] data = new byte[(int) Math.max(1, Math.min(length, 10L * meanFileLength))];
+            random.nextBytes(data);
+            return data;
+        }
+
+        private FileWrapper get(Path path) {
+            return context.getByPath(path).join()
+                    .orElseThrow(() -> new IllegalStateException("Unable to retrieve file at " + path));
+        }
+
+        /**
+         *
+         * @return the number of bytes transferred
+         */
+        private long upload() {
+            Path dir = pick(dirs);
+            String name = nextName();
+            byte[] data = nextFileContents();
+            get(dir).uploadOrReplaceFile(name, new AsyncReader.ArrayBacked(data), data.length, context.network,
+                    context.crypto, x -> {}, context.crypto.random.randomBytes(32)).join();
+            files.add(dir.resolve(name));
+            unshared.add(dir.resolve(name));
+            return data.length;
+        }
+
+        private long download() {
+            List<Path> readable = new ArrayList<>(files);
+            readable.addAll(sharedWithUs);
+            if (readable.isEmpty())
+                return upload();
+            FileWrapper file = get(pick(readable));
+            return Serialize.readFully(file, context.crypto, context.network).join().length;
+        }
+
+        private long mkdir() {
+            Path parent = pick(dirs);
+            String name = nextName();
+            get(parent).mkdir(name, context.network, false, context.crypto).join();
+            dirs.add(parent.resolve(name));
+            return 0;
+        }
+
+        private long list() {
+            get(pick(dirs)).getChildren(context.crypto.hasher, context.network).join();
+            return 0;
+        }
+
+        private long share() {
+            if (friends.isEmpty())
+                return list();
+            if (unshared.isEmpty())
+                upload();
+            Path toShare = unshared.remove(unshared.size() - 1);
+            context.shareReadAccessWith(toShare, Collections.singleton(pick(friends))).join();
+            return 0;
+        }
+
+        private long updateFeed() {
+            SocialFeed feed = context.getSocialFeed().join().update().join();
+            int from = feed.getLastSeenIndex();
+            List<SharedItem> items = feed.getShared(from, from + MAX_FEED_ITEMS_PER_UPDATE, context.crypto, context.network).join();
+            for (SharedItem item : items)
+                sharedWithUs.add(Paths.get(item.path));
+            feed.setLastSeenIndex(from + items.size()).join();
+            return 0;
+        }
+
+        private long run(Operation op) {
+            switch (op) {
+                case UPLOAD: return upload();
+                case DOWNLOAD: return download();
+                case MKDIR: return mkdir();
+                case LIST: return list();
+                case SHARE: return share();
+                case FEED: return updateFeed();
+                default: throw new IllegalStateException("Unknown operation " + op);
+            }
+        }
+
+        public Map<Operation, LatencyRecorder> run(int ops) {
+            // make sure there is something to download and share
+            upload();
+            for (int i = 0; i < ops; i++) {
+                Operation op = nextOperation();
+                long t0 = System.nanoTime();
+                try {
+                    long bytes = run(op);
+                    stats.get(op).record(System.nanoTime() - t0, bytes);
+                } catch (Exception e) {
+                    stats.get(op).recordError();
+                    System.err.println("Error in " + op + " for " + context.username + ": " + e.getMessage());
+                }
+            }
+            return stats;
+        }
+    }
+
+    /**
+     *
+     * @param mix of the form upload=0.3,download=0.3 with any missing operations not run
+     * @return
+     */
+    private static Map<Operation, Double> parseMix(String mix) {
+        Map<Operation, Double> res = new EnumMap<>(Operation.class);
+        for (String part : mix.split(",")) {
+            String[] kv = part.split("=");
+            res.put(Operation.valueOf(kv[0].trim().toUpperCase()), Double.parseDouble(kv[1]));
+        }
+        return res;
+    }
+
+    public static void main(String[] a) throws Exception {
+        Args loadArgs = Args.parse(a);
+        int nUsers = loadArgs.getInt("n-users", 4);
+        int opsPerUser = loadArgs.getInt("ops-per-user", 100);
+        int meanFileLength = loadArgs.getInt("mean-file-length", 64 * 1024);
+        int seed = loadArgs.getInt("random-seed", 1);
+        boolean ramBlockstore = loadArgs.getBoolean("ram-blockstore", true);
+        Map<Operation, Double> mix = parseMix(loadArgs.getArg("op-mix",
+                "upload=0.25,download=0.3,mkdir=0.05,list=0.2,share=0.1,feed=0.1"));
+
+        Crypto crypto = Main.initCrypto();
+        Args args = buildArgs()
+                .with("useIPFS", "false")
+                .with("logToConsole", "false")
+                .with(IpfsWrapper.IPFS_BOOTSTRAP_NODES, "") // no bootstrapping
+                .with(loadArgs)
+                .with("ram-blockstore", Boolean.toString(ramBlockstore));
+        Main.PKI_INIT.main(args);
+        URL serverUrl = new URL("http://localhost:" + args.getInt("port"));
+
+        List<UserContext> users = new ArrayList<>();
+        for (int i = 0; i < nUsers; i++) {
+            NetworkAccess network = Builder.buildJavaNetworkAccess(serverUrl, false).join();
+            users.add(PeergosNetworkUtils.ensureSignedUp("load_" + i, "password", network, crypto));
+        }
+        for (int i = 0; i < nUsers; i++)
+            for (int j = i + 1; j < nUsers; j++)
+                PeergosNetworkUtils.friendBetweenGroups(Arrays.asList(users.get(i)), Arrays.asList(users.get(j)));
+        System.out.println("Signed up " + nUsers + " users, starting load");
+
+        ExecutorService pool = Executors.newFixedThreadPool(nUsers);
+        List<Future<Map<Operation, LatencyRecorder>>> results = new ArrayList<>();
+        long t0 = System.currentTimeMillis();
+        for (int i = 0; i < nUsers; i++) {
+            UserContext context = users.get(i);
+            List<String> friends = users.stream()
+                    .map(u -> u.username)
+                    .filter(u -> ! u.equals(context.username))
+                    .collect(Collectors.toList());
+            SimulatedUser user = new SimulatedUser(context, friends, new Random(seed + i), mix, meanFileLength);
+            results.add(pool.submit(() -> user.run(opsPerUser)));
+        }
+        Map<Operation, LatencyRecorder> totals = new EnumMap<>(Operation.class);
+        for (Operation op : mix.keySet())
+            totals.put(op, new LatencyRecorder());
+        for (Future<Map<Operation, LatencyRecorder>> result : results)
+            for (Map.Entry<Operation, LatencyRecorder> e : result.get().entrySet())
+                if (totals.containsKey(e.getKey()))
+                    totals.get(e.getKey()).addAll(e.getValue());
+        long durationMillis = Math.max(1, System.currentTimeMillis() - t0);
+        pool.shutdown();
+
+        Map<String, Object> operations = new LinkedHashMap<>();
+        System.out.println(String.format("%-10s %8s %7s %10s %10s %10s %10s %10s %10s",
+                "operation", "count", "errors", "ops/s", "mean ms", "p50 ms", "p90 ms", "p99 ms", "max ms"));
+        for (Map.Entry<Operation, LatencyRecorder> e : totals.entrySet()) {
+            Map<String, Object> json = e.getValue().toJson(durationMillis);
+            operations.put(e.getKey().name().toLowerCase(), json);
+            System.out.println(String.format("%-10s %8s %7s %10s %10s %10s %10s %10s %10s",
+                    e.getKey().name().toLowerCase(), json.get("count"), json.get("errors"), json.get("opsPerSecond"),
+                    json.get("meanMillis"), json.get("p50Millis"), json.get("p90Millis"), json.get("p99Millis"),
+                    json.get("maxMillis")));
+        }
+        int totalOps = totals.values().stream().mapToInt(LatencyRecorder::count).sum();
+        System.out.println("Completed " + totalOps + " operations in " + durationMillis + "ms");
+
+        if (loadArgs.hasArg("json-out")) {
+            Map<String, Object> config = new LinkedHashMap<>();
+            config.put("users", nUsers);
+            config.put("opsPerUser", opsPerUser);
+            config.put("meanFileLength", meanFileLength);
+            config.put("seed", seed);
+            config.put("blockstore", ramBlockstore ? "ram" : "file");
+            config.put("opMix", mix.entrySet().stream()
+                    .collect(Collectors.toMap(e -> e.getKey().name().toLowerCase(), e -> e.getValue(), (x, y) -> x, LinkedHashMap::new)));
+            Map<String, Object> json = new LinkedHashMap<>();
+            json.put("config", config);
+            json.put("durationMillis", durationMillis);
+            json.put("totalOps", totalOps);
+            json.put("operations", operations);
+            Path out = Paths.get(loadArgs.getArg("json-out"));
+            Files.write(out, JSONParser.toString(json).getBytes());
+            System.out.println("Wrote results to " + out.toAbsolutePath());
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,63 @@
+package peergos.server.tests.slow;
+
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multibase.*;
+import peergos.shared.io.ipfs.multibase.binary.Base32;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.math.*;
+import java.util.*;
+import java.util.function.*;
+
+/** Time encoding and decoding cids in the base encodings we use, against BigInteger and the padded base32 codec
+ */
+public class MultibaseBenchmark {
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        Random r = new Random(28);
+        List<byte[]> cids = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            byte[] hash = new byte[32];
+            r.nextBytes(hash);
+            cids.add(Cid.buildCidV1(Cid.Codec.DagCbor, Multihash.Type.sha2_256, hash).toBytes());
+        }
+        List<String> base58 = map(cids, Base58::encode);
+        List<String> base36 = map(cids, Base36::encode);
+        List<String> base32 = map(cids, b -> Base32Unpadded.encode(b, true));
+        List<String> multibase = map(cids, b -> Multibase.encode(Multibase.Base.Base58BTC, b));
+
+        for (int round = 0; round < 5; round++) {
+            System.out.println("Round " + round);
+            time("base58 encode", cids, Base58::encode);
+            time("base58 decode", base58, Base58::decode);
+            time("BigInteger base58 decode", base58, Base58::decodeToBigInteger);
+            time("base36 encode", cids, Base36::encode);
+            time("BigInteger base36 encode", cids, b -> new BigInteger(1, b).toString(36));
+            time("base36 decode", base36, Base36::decode);
+            time("BigInteger base36 decode", base36, s -> new BigInteger(s, 36).toByteArray());
+            time("base32 encode", cids, b -> Base32Unpadded.encode(b, true));
+            time("padded base32 encode", cids, b -> new Base32().encodeAsString(b));
+            time("base32 decode", base32, Base32Unpadded::decode);
+            time("padded base32 decode", base32, s -> new Base32().decode(s));
+            time("Cid.decode", multibase, Cid::decode);
+            time("Cid.toString", cids, b -> Cid.cast(b).toString());
+        }
+    }
+
+    private static <A, B> List<B> map(List<A> in, Function<A, B> f) {
+        List<B> res = new ArrayList<>(in.size());
+        for (A a : in)
+            res.add(f.apply(a));
+        return res;
+    }
+
+    private static <A> void time(String name, List<A> inputs, Function<A, ?> f) {
+        long t0 = System.nanoTime();
+        int sink = 0;
+        for (A in : inputs)
+            sink += f.apply(in).hashCode();
+        long t1 = System.nanoTime();
+        System.out.println(name + ": " + (t1 - t0) / inputs.size() + " ns/op (" + (sink & 1) + ")");
+    }
+}
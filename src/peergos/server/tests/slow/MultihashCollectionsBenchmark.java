@@ -0,0 +1,79 @@
+package peergos.server.tests.slow;
+
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.function.*;
+
+/** Compare indexing a block listing, as done in GC, with a List and HashMap and with a MultihashIndex
+ */
+public class MultihashCollectionsBenchmark {
+
+    public static void main(String[] args) {
+        int nBlocks = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Random r = new Random(28);
+        // the listing is streamed from the block store, so the index owns the only reference to each hash
+        Supplier<Multihash> listing = () -> {
+            byte[] hash = new byte[32];
+            r.nextBytes(hash);
+            return Cid.buildCidV1(Cid.Codec.DagCbor, Multihash.Type.sha2_256, hash);
+        };
+        List<Multihash> lookups = new ArrayList<>();
+
+        for (int round = 0; round < 5; round++) {
+            r.setSeed(round);
+            lookups.clear();
+            System.gc();
+            long m0 = usedMemory();
+            long t0 = System.nanoTime();
+            List<Multihash> list = new ArrayList<>();
+            Map<Multihash, Integer> hashMap = new HashMap<>();
+            for (int i = 0; i < nBlocks; i++) {
+                Multihash h = listing.get();
+                list.add(h);
+                hashMap.put(h, i);
+            }
+            long t1 = System.nanoTime();
+            System.gc();
+            long hashMapMemory = usedMemory() - m0;
+            // lookups use different instances, as they do when following links
+            for (Multihash h : list)
+                lookups.add(Cid.buildCidV1(Cid.Codec.DagCbor, h.type, h.getHash()));
+            long t2 = System.nanoTime();
+            long found = 0;
+            for (Multihash h : lookups)
+                found += hashMap.get(h);
+            long t3 = System.nanoTime();
+            System.out.println("List + HashMap: add " + (t1 - t0) / nBlocks + " ns/op, lookup " + (t3 - t2) / nBlocks
+                    + " ns/op, " + hashMapMemory / hashMap.size() + " bytes/entry (" + found + ")");
+            list = null;
+            hashMap = null;
+
+            r.setSeed(round);
+            System.gc();
+            m0 = usedMemory();
+            t0 = System.nanoTime();
+            MultihashIndex index = new MultihashIndex();
+            for (int i = 0; i < nBlocks; i++)
+                index.add(listing.get());
+            t1 = System.nanoTime();
+            System.gc();
+            long indexMemory = usedMemory() - m0;
+            found = 0;
+            t2 = System.nanoTime();
+            for (Multihash h : lookups)
+                found += index.indexOf(h);
+            t3 = System.nanoTime();
+            System.out.println("MultihashIndex: add " + (t1 - t0) / nBlocks + " ns/op, lookup " + (t3 - t2) / nBlocks
+                    + " ns/op, " + indexMemory / index.size() + " bytes/entry (" + found + ")");
+            index = null;
+        }
+    }
+
+    private static long usedMemory() {
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
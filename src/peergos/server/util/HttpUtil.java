@@ -49,6 +49,8 @@ public class HttpUtil {
                 exchange.getResponseHeaders().set("Trailer", URLEncoder.encode(cause.getMessage(), "UTF-8"));
             else
                 exchange.getResponseHeaders().set("Trailer", URLEncoder.encode(t.getMessage(), "UTF-8"));
+            if (Exceptions.getRootCause(t) instanceof HttpWriteRejectedException)
+                exchange.getResponseHeaders().set(HttpWriteRejectedException.HTTP_HEADER, "true");
 
             exchange.getResponseHeaders().set("Content-Type", "text/plain");
             exchange.sendResponseHeaders(400, 0);
@@ -21,6 +21,7 @@ import peergos.shared.util.*;
 import java.time.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.*;
 import java.util.stream.*;
 
 /**
@@ -89,6 +90,31 @@ public class NetworkAccess {
                 spaceUsage, serverMessager, hasher, usernames, isJavascript);
     }
 
+    /**
+     *
+     * @param wrapper Applied to the block store, e.g. to add a cache
+     * @return
+     */
+    public NetworkAccess withStorage(Function<ContentAddressedStorage, ContentAddressedStorage> wrapper) {
+        ContentAddressedStorage wrapped = wrapper.apply(dhtClient);
+        WriteSynchronizer synchronizer = new WriteSynchronizer(mutable, wrapped, hasher);
+        MutableTree tree = new MutableTreeImpl(mutable, wrapped, hasher, synchronizer);
+        return new NetworkAccess(coreNode, social, wrapped, mutable, tree, synchronizer, instanceAdmin,
+                spaceUsage, serverMessager, hasher, usernames, isJavascript);
+    }
+
+    /**
+     *
+     * @param tid
+     * @return A view which performs all writes in the given transaction, with the same write synchronizer as us
+     */
+    public NetworkAccess withTransaction(TransactionId tid) {
+        ContentAddressedStorage wrapped = new SingleTransactionStorage(dhtClient, tid);
+        MutableTree tree = new MutableTreeImpl(mutable, wrapped, hasher, synchronizer);
+        return new NetworkAccess(coreNode, social, wrapped, mutable, tree, synchronizer, instanceAdmin,
+                spaceUsage, serverMessager, hasher, usernames, isJavascript);
+    }
+
     @JsMethod
     public CompletableFuture<Optional<String>> otherDomain() {
         return dhtClient.blockStoreProperties()
@@ -110,7 +136,17 @@ public class NetworkAccess {
     }
 
     public NetworkAccess withMutablePointerCache(int ttl) {
-        CachingPointers mutable = new CachingPointers(this.mutable, ttl);
+        return withMutablePointerCache(ttl, false);
+    }
+
+    /**
+     *
+     * @param ttl How long to cache pointers for
+     * @param watch Whether to subscribe to pointer changes, which only requires the ttl for unwatched writers
+     * @return
+     */
+    public NetworkAccess withMutablePointerCache(int ttl, boolean watch) {
+        CachingPointers mutable = new CachingPointers(this.mutable, ttl, watch);
         WriteSynchronizer synchronizer = new WriteSynchronizer(mutable, dhtClient, hasher);
         MutableTree mutableTree = new MutableTreeImpl(mutable, dhtClient, hasher, synchronizer);
         return new NetworkAccess(coreNode, social, dhtClient, mutable, mutableTree, synchronizer, instanceAdmin,
@@ -152,7 +188,7 @@ public class NetworkAccess {
         return isPeergosServer(relative)
                 .thenApply(isPeergosServer -> new Pair<>(isPeergosServer ? relative : absolute, isPeergosServer))
                 .thenCompose(p -> build(p.left, p.left, pkiServerNodeId, buildLocalDht(p.left, p.right), new ScryptJS(), true))
-                .thenApply(e -> e.withMutablePointerCache(7_000));
+                .thenApply(e -> e.withMutablePointerCache(7_000, true));
     }
 
     private static CompletableFuture<Boolean> isPeergosServer(HttpPoster poster) {
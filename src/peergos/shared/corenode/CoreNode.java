@@ -6,6 +6,7 @@ import peergos.shared.crypto.hash.*;
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.stream.*;
 
 public interface CoreNode {
     int MAX_USERNAME_SIZE = 64;
@@ -41,6 +42,19 @@ public interface CoreNode {
      */
     CompletableFuture<List<String>> getUsernames(String prefix);
 
+    /**
+     *
+     * @param prefix
+     * @param limit the maximum number of results
+     * @return At most limit usernames starting with prefix
+     */
+    default CompletableFuture<List<String>> getUsernames(String prefix, int limit) {
+        return getUsernames(prefix).thenApply(all -> all.stream()
+                .filter(n -> n.startsWith(prefix))
+                .limit(limit)
+                .collect(Collectors.toList()));
+    }
+
     /** This is only implemented by caching corenodes
      *
      * @param username
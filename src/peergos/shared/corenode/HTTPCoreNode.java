@@ -152,7 +152,19 @@ public class HTTPCoreNode implements CoreNode {
     @Override
     public CompletableFuture<List<String>> getUsernames(String prefix) {
         return poster.postUnzip(urlPrefix + Constants.CORE_URL + "getUsernamesGzip/"+prefix, new byte[0])
-                .thenApply(raw -> (List) JSONParser.parse(new String(raw)));
+                .thenApply(HTTPCoreNode::parseUsernames);
+    }
+
+    @Override
+    public CompletableFuture<List<String>> getUsernames(String prefix, int limit) {
+        return poster.postUnzip(urlPrefix + Constants.CORE_URL + "getUsernamesGzip/" + prefix + "?limit=" + limit, new byte[0])
+                .thenApply(HTTPCoreNode::parseUsernames);
+    }
+
+    private static List<String> parseUsernames(byte[] raw) {
+        return ((List<?>) JSONParser.parse(new String(raw))).stream()
+                .map(name -> (String) name)
+                .collect(Collectors.toList());
     }
 
     @Override public void close() {}
@@ -141,6 +141,11 @@ public class TofuCoreNode implements CoreNode {
         return source.getUsernames(prefix);
     }
 
+    @Override
+    public CompletableFuture<List<String>> getUsernames(String prefix, int limit) {
+        return source.getUsernames(prefix, limit);
+    }
+
     @Override
     public void close() throws IOException {}
 }
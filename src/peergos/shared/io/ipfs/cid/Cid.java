@@ -51,6 +51,7 @@ public class Cid extends Multihash {
 
     public final long version;
     public final Codec codec;
+    private String encoded;
 
     public Cid(long version, Codec codec, Multihash.Type type, byte[] hash) {
         super(type, hash);
@@ -92,7 +93,12 @@ public class Cid extends Multihash {
         if (version == V0) {
             return super.toString();
         } else if (version == V1) {
-            return Multibase.encode(Multibase.Base.Base58BTC, toBytesV1());
+            String res = encoded;
+            if (res == null) {
+                res = Multibase.encode(Multibase.Base.Base58BTC, toBytesV1());
+                encoded = res;
+            }
+            return res;
         }
         throw new IllegalStateException("Unknown Cid version: " + version);
     }
@@ -0,0 +1,64 @@
+package peergos.shared.io.ipfs.multibase;
+
+import java.util.*;
+
+/** RFC 4648 base32 without padding, as used for cids and for block keys in S3 and the IPFS flatfs store.
+ *
+ *  Decoding is case insensitive and ignores any trailing padding.
+ */
+public class Base32Unpadded {
+    private static final char[] LOWER = "abcdefghijklmnopqrstuvwxyz234567".toCharArray();
+    private static final char[] UPPER = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567".toCharArray();
+    private static final int[] INDEXES = new int[128];
+    static {
+        Arrays.fill(INDEXES, -1);
+        for (int i = 0; i < LOWER.length; i++) {
+            INDEXES[LOWER[i]] = i;
+            INDEXES[UPPER[i]] = i;
+        }
+    }
+
+    public static String encode(byte[] data, boolean upperCase) {
+        char[] alphabet = upperCase ? UPPER : LOWER;
+        char[] out = new char[(data.length * 8 + 4) / 5];
+        int buffer = 0, bits = 0, pos = 0;
+        for (byte b : data) {
+            buffer = (buffer << 8) | (b & 0xff);
+            bits += 8;
+            while (bits >= 5) {
+                bits -= 5;
+                out[pos++] = alphabet[(buffer >>> bits) & 31];
+            }
+            buffer &= (1 << bits) - 1;
+        }
+        if (bits > 0)
+            out[pos++] = alphabet[(buffer << (5 - bits)) & 31];
+        return new String(out, 0, pos);
+    }
+
+    public static String encode(byte[] data) {
+        return encode(data, false);
+    }
+
+    public static byte[] decode(String in) {
+        int len = in.length();
+        while (len > 0 && in.charAt(len - 1) == '=')
+            len--;
+        byte[] out = new byte[len * 5 / 8];
+        int buffer = 0, bits = 0, pos = 0;
+        for (int i = 0; i < len; i++) {
+            char c = in.charAt(i);
+            int digit = c < 128 ? INDEXES[c] : -1;
+            if (digit < 0)
+                throw new IllegalStateException("Invalid base32 character: " + c);
+            buffer = (buffer << 5) | digit;
+            bits += 5;
+            if (bits >= 8) {
+                bits -= 8;
+                out[pos++] = (byte) (buffer >>> bits);
+                buffer &= (1 << bits) - 1;
+            }
+        }
+        return out;
+    }
+}
@@ -49,9 +49,9 @@ public class Multibase {
             case Base16:
                 return b.prefix + Base16.encode(data);
             case Base32:
-                return b.prefix + new String(new Base32().encode(data)).toLowerCase().replaceAll("=", "");
+                return b.prefix + Base32Unpadded.encode(data, false);
             case Base32Upper:
-                return b.prefix + new String(new Base32().encode(data)).replaceAll("=", "");
+                return b.prefix + Base32Unpadded.encode(data, true);
             case Base32Hex:
                 return b.prefix + new String(new Base32(true).encode(data)).toLowerCase().replaceAll("=", "");
             case Base32HexUpper:
@@ -80,9 +80,8 @@ public class Multibase {
             case Base16:
                 return Base16.decode(rest);
             case Base32:
-                return new Base32().decode(rest);
             case Base32Upper:
-                return new Base32().decode(rest.toLowerCase());
+                return Base32Unpadded.decode(rest);
             case Base32Hex:
                 return new Base32(true).decode(rest);
             case Base32HexUpper:
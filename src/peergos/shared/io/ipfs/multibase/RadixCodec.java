@@ -0,0 +1,136 @@
+package peergos.shared.io.ipfs.multibase;
+
+import java.util.*;
+
+/** Encoding of bytes as a big endian number in an arbitrary base, with each leading zero byte encoded as a zero
+ *  digit, as used by base58btc and base36.
+ *
+ *  The number is converted a limb at a time rather than a digit at a time, with limbs sized so that all the arithmetic
+ *  fits in an int, which keeps it fast when compiled to JavaScript too.
+ */
+class RadixCodec {
+    private static final double LOG_256 = Math.log(256);
+
+    private final char[] alphabet;
+    private final int[] indexes = new int[128];
+    private final int base;
+    // encoding accumulates into limbs of digitsPerLimb digits in the target base
+    private final int digitsPerLimb, limbBase;
+    // decoding accumulates into 16 bit limbs, consuming charsPerStep characters at a time
+    private final int charsPerStep;
+    private final double bytesPerDigit;
+
+    RadixCodec(String alphabet, boolean caseInsensitive) {
+        this.alphabet = alphabet.toCharArray();
+        this.base = this.alphabet.length;
+        Arrays.fill(indexes, -1);
+        for (int i = 0; i < base; i++) {
+            char c = this.alphabet[i];
+            indexes[c] = i;
+            if (caseInsensitive)
+                indexes[Character.toUpperCase(c)] = i;
+        }
+        int k = 1, limb = base;
+        while ((long) limb * base * 257 < Integer.MAX_VALUE) {
+            limb *= base;
+            k++;
+        }
+        this.digitsPerLimb = k;
+        this.limbBase = limb;
+        int m = 1;
+        long mult = base;
+        while (mult * base * 65537 < Integer.MAX_VALUE) {
+            mult *= base;
+            m++;
+        }
+        this.charsPerStep = m;
+        this.bytesPerDigit = Math.log(base) / LOG_256;
+    }
+
+    public String encode(byte[] input) {
+        int zeros = 0;
+        while (zeros < input.length && input[zeros] == 0)
+            zeros++;
+        int maxDigits = (int) ((input.length - zeros) / bytesPerDigit) + 1;
+        int[] limbs = new int[maxDigits / digitsPerLimb + 1];
+        int used = 0;
+        // little endian limbs, multiply by 256 and add each byte
+        for (int i = zeros; i < input.length; i++) {
+            int carry = input[i] & 0xff;
+            for (int j = 0; j < used; j++) {
+                int t = limbs[j] * 256 + carry;
+                carry = t / limbBase;
+                limbs[j] = t - carry * limbBase;
+            }
+            while (carry > 0) {
+                limbs[used++] = carry % limbBase;
+                carry /= limbBase;
+            }
+        }
+        char[] out = new char[zeros + used * digitsPerLimb];
+        int pos = out.length;
+        for (int j = 0; j < used; j++) {
+            int v = limbs[j];
+            for (int d = 0; d < digitsPerLimb; d++) {
+                int q = v / base;
+                out[--pos] = alphabet[v - q * base];
+                v = q;
+            }
+        }
+        // the top limb is padded with zero digits
+        int start = zeros;
+        while (start < out.length && out[start] == alphabet[0])
+            start++;
+        start -= zeros;
+        Arrays.fill(out, start, start + zeros, alphabet[0]);
+        return new String(out, start, out.length - start);
+    }
+
+    private int digit(char c) {
+        int digit = c < 128 ? indexes[c] : -1;
+        if (digit < 0)
+            throw new IllegalStateException("InvalidCharacter in base " + base);
+        return digit;
+    }
+
+    public byte[] decode(String input) {
+        int len = input.length();
+        int zeros = 0;
+        while (zeros < len && digit(input.charAt(zeros)) == 0)
+            zeros++;
+        int maxBytes = (int) ((len - zeros) * bytesPerDigit) + 1;
+        int[] limbs = new int[maxBytes / 2 + 1];
+        int used = 0;
+        // little endian 16 bit limbs, multiply by base^m and add each group of m digits
+        for (int i = zeros; i < len; ) {
+            int m = Math.min(charsPerStep, len - i);
+            int mult = 1, carry = 0;
+            for (int d = 0; d < m; d++) {
+                mult *= base;
+                carry = carry * base + digit(input.charAt(i++));
+            }
+            for (int j = 0; j < used; j++) {
+                int t = limbs[j] * mult + carry;
+                limbs[j] = t & 0xffff;
+                carry = t >>> 16;
+            }
+            while (carry > 0) {
+                limbs[used++] = carry & 0xffff;
+                carry >>>= 16;
+            }
+        }
+        byte[] out = new byte[zeros + used * 2];
+        int pos = out.length;
+        for (int j = 0; j < used; j++) {
+            out[--pos] = (byte) limbs[j];
+            out[--pos] = (byte) (limbs[j] >>> 8);
+        }
+        // the top limb may have a zero high byte
+        int start = zeros;
+        while (start < out.length && out[start] == 0)
+            start++;
+        if (start == zeros)
+            return out;
+        return Arrays.copyOfRange(out, start - zeros, out.length);
+    }
+}
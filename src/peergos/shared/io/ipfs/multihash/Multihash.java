@@ -47,6 +47,9 @@ public class Multihash implements Comparable<Multihash> {
 
     public final Type type;
     private final byte[] hash;
+    // Multihashes are immutable and used as keys in block caches and stores, so cache the derived forms
+    private int cachedHashCode;
+    private String base58;
 
     @JsConstructor
     public Multihash(Type type, byte[] hash) {
@@ -132,18 +135,33 @@ public class Multihash implements Comparable<Multihash> {
 
     @Override
     public boolean equals(Object o) {
+        if (this == o)
+            return true;
         if (!(o instanceof Multihash))
             return false;
-        return type == ((Multihash) o).type && Arrays.equals(hash, ((Multihash) o).hash);
+        Multihash other = (Multihash) o;
+        if (cachedHashCode != 0 && other.cachedHashCode != 0 && cachedHashCode != other.cachedHashCode)
+            return false;
+        return type == other.type && Arrays.equals(hash, other.hash);
     }
 
     @Override
     public int hashCode() {
-        return Arrays.hashCode(hash) ^ type.hashCode();
+        int h = cachedHashCode;
+        if (h == 0) {
+            h = Arrays.hashCode(hash) ^ type.hashCode();
+            cachedHashCode = h;
+        }
+        return h;
     }
 
     public String toBase58() {
-        return Base58.encode(toBytes());
+        String res = base58;
+        if (res == null) {
+            res = Base58.encode(toBytes());
+            base58 = res;
+        }
+        return res;
     }
 
     public static Multihash fromBase58(String base58) {
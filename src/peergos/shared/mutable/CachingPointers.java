@@ -7,34 +7,85 @@ import java.util.*;
 import java.util.concurrent.*;
 
 /*
- * A CoreNode that caches previous metadata blob reads for a certain time
+ * A MutablePointers that caches previous pointer reads for a certain time
+ *
+ * If watching is enabled, the writers which are read are subscribed to with watchPointers. A writer is live once a
+ * watch over it has completed, and the cached pointer of a live writer is served regardless of its age, because any
+ * change will be pushed to us. If the target doesn't support watching we fall back to the TTL.
  */
 public class CachingPointers implements MutablePointers {
+    // This must be less than the read timeout of our HttpPoster
+    public static final long WATCH_TIMEOUT_MILLIS = 10_000;
+    public static final int MAX_WATCHED_OWNERS = 8;
+    public static final int MAX_WATCHED_WRITERS = 1_000;
 
     private final MutablePointers target;
     private final int cacheTTL;
     private final Map<PublicKeyHash, Pair<Optional<byte[]>, Long>> cache = new HashMap<>();
+    // The following are all guarded by cache
+    private final Map<PublicKeyHash, Set<PublicKeyHash>> watched = new HashMap<>();
+    private final Set<PublicKeyHash> live = new HashSet<>();
+    private int watchedWriters = 0;
+    private boolean watching;
 
-    public CachingPointers(MutablePointers target, int cacheTTL) {
+    public CachingPointers(MutablePointers target, int cacheTTL, boolean watch) {
         this.target = target;
         this.cacheTTL = cacheTTL;
+        this.watching = watch;
+    }
+
+    public CachingPointers(MutablePointers target, int cacheTTL) {
+        this(target, cacheTTL, false);
+    }
+
+    private boolean isFresh(PublicKeyHash writer, Pair<Optional<byte[]>, Long> cached, long now) {
+        return cached != null && (live.contains(writer) || now - cached.right < cacheTTL);
     }
 
     @Override
     public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash owner, PublicKeyHash writer) {
         synchronized (cache) {
             Pair<Optional<byte[]>, Long> cached = cache.get(writer);
-            if (cached != null && System.currentTimeMillis() - cached.right < cacheTTL)
+            if (isFresh(writer, cached, System.currentTimeMillis()))
                 return CompletableFuture.completedFuture(cached.left);
         }
         return target.getPointer(owner, writer).thenApply(m -> {
             synchronized (cache) {
                 cache.put(writer, new Pair<>(m, System.currentTimeMillis()));
             }
+            watch(owner, Collections.singletonList(writer));
             return m;
         });
     }
 
+    @Override
+    public CompletableFuture<Map<PublicKeyHash, byte[]>> getPointers(PublicKeyHash owner, List<PublicKeyHash> writers) {
+        Map<PublicKeyHash, byte[]> res = new HashMap<>();
+        List<PublicKeyHash> toFetch = new ArrayList<>();
+        synchronized (cache) {
+            long now = System.currentTimeMillis();
+            for (PublicKeyHash writer : writers) {
+                Pair<Optional<byte[]>, Long> cached = cache.get(writer);
+                if (isFresh(writer, cached, now))
+                    cached.left.ifPresent(p -> res.put(writer, p));
+                else
+                    toFetch.add(writer);
+            }
+        }
+        if (toFetch.isEmpty())
+            return CompletableFuture.completedFuture(res);
+        return target.getPointers(owner, toFetch).thenApply(fetched -> {
+            synchronized (cache) {
+                long now = System.currentTimeMillis();
+                for (PublicKeyHash writer : toFetch)
+                    cache.put(writer, new Pair<>(Optional.ofNullable(fetched.get(writer)), now));
+            }
+            watch(owner, toFetch);
+            res.putAll(fetched);
+            return res;
+        });
+    }
+
     @Override
     public CompletableFuture<Boolean> setPointer(PublicKeyHash ownerPublicKey, PublicKeyHash writer, byte[] writerSignedBtreeRootHash) {
         synchronized (cache) {
@@ -49,4 +100,86 @@ public class CachingPointers implements MutablePointers {
             return res;
         });
     }
+
+    @Override
+    public CompletableFuture<Map<PublicKeyHash, byte[]>> watchPointers(PublicKeyHash owner,
+                                                                       Map<PublicKeyHash, Optional<byte[]>> known,
+                                                                       long timeoutMillis) {
+        return target.watchPointers(owner, known, timeoutMillis);
+    }
+
+    /** Subscribe to changes to the given writers, starting a watch loop for the owner if there isn't one
+     *
+     * @param owner
+     * @param writers
+     */
+    private void watch(PublicKeyHash owner, Collection<PublicKeyHash> writers) {
+        synchronized (cache) {
+            if (! watching)
+                return;
+            Set<PublicKeyHash> ownerWriters = watched.get(owner);
+            boolean isNewOwner = ownerWriters == null;
+            if (isNewOwner) {
+                if (watched.size() >= MAX_WATCHED_OWNERS)
+                    return;
+                ownerWriters = new HashSet<>();
+                watched.put(owner, ownerWriters);
+            }
+            for (PublicKeyHash writer : writers) {
+                if (watchedWriters >= MAX_WATCHED_WRITERS)
+                    break;
+                if (ownerWriters.add(writer))
+                    watchedWriters++;
+            }
+            if (! isNewOwner)
+                return;
+        }
+        // Don't block the caller with the long poll
+        ForkJoinPool.commonPool().execute(() -> watchRound(owner));
+    }
+
+    private void watchRound(PublicKeyHash owner) {
+        Map<PublicKeyHash, Optional<byte[]>> known = new HashMap<>();
+        synchronized (cache) {
+            if (! watching)
+                return;
+            for (PublicKeyHash writer : watched.get(owner)) {
+                Pair<Optional<byte[]>, Long> cached = cache.get(writer);
+                if (cached != null)
+                    known.put(writer, cached.left);
+            }
+        }
+        target.watchPointers(owner, known, WATCH_TIMEOUT_MILLIS).thenAccept(changed -> {
+            synchronized (cache) {
+                if (! watching)
+                    return;
+                long now = System.currentTimeMillis();
+                for (PublicKeyHash writer : known.keySet()) {
+                    byte[] update = changed.get(writer);
+                    Pair<Optional<byte[]>, Long> current = cache.get(writer);
+                    if (update != null)
+                        cache.put(writer, new Pair<>(Optional.of(update), now));
+                    else if (current != null)
+                        cache.put(writer, new Pair<>(current.left, now));
+                    live.add(writer);
+                }
+            }
+            ForkJoinPool.commonPool().execute(() -> watchRound(owner));
+        }).exceptionally(t -> {
+            stopWatching();
+            return null;
+        });
+    }
+
+    /**
+     * Stop all subscriptions and fall back to the cache TTL
+     */
+    public void stopWatching() {
+        synchronized (cache) {
+            watching = false;
+            watched.clear();
+            live.clear();
+            watchedWriters = 0;
+        }
+    }
 }
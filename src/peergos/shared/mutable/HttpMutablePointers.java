@@ -2,6 +2,7 @@
 package peergos.shared.mutable;
 import java.util.logging.*;
 
+import peergos.shared.cbor.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.user.*;
@@ -11,6 +12,7 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.stream.*;
 
 public class HttpMutablePointers implements MutablePointersProxy {
 	private static final Logger LOG = Logger.getGlobal();
@@ -93,6 +95,73 @@ public class HttpMutablePointers implements MutablePointersProxy {
         return getPointer(getProxyUrlPrefix(targetId), p2p, owner, writer);
     }
 
+    @Override
+    public CompletableFuture<Map<PublicKeyHash, byte[]>> getPointers(PublicKeyHash owner, List<PublicKeyHash> writers) {
+        return getPointers(directUrlPrefix, direct, owner, writers);
+    }
+
+    @Override
+    public CompletableFuture<Map<PublicKeyHash, byte[]>> getPointers(Multihash targetId, PublicKeyHash owner, List<PublicKeyHash> writers) {
+        return getPointers(getProxyUrlPrefix(targetId), p2p, owner, writers);
+    }
+
+    private CompletableFuture<Map<PublicKeyHash, byte[]>> getPointers(String urlPrefix,
+                                                                      HttpPoster poster,
+                                                                      PublicKeyHash owner,
+                                                                      List<PublicKeyHash> writers) {
+        if (writers.isEmpty())
+            return CompletableFuture.completedFuture(Collections.emptyMap());
+        long t1 = System.currentTimeMillis();
+        byte[] body = new CborObject.CborList(writers).serialize();
+        // Older servers don't support getPointers, so fall back to retrieving each pointer
+        return Futures.asyncExceptionally(
+                () -> poster.postUnzip(urlPrefix + Constants.MUTABLE_POINTERS_URL + "getPointers?owner=" + owner, body)
+                        .thenApply(res -> {
+                            long t2 = System.currentTimeMillis();
+                            if (LOGGING)
+                                LOG.info("HttpMutablePointers.getPointers took " + (t2 -t1) + "mS for " + writers.size() + " writers");
+                            return MutablePointers.parsePointers(writers, CborObject.fromByteArray(res));
+                        }),
+                t -> {
+                    LOG.info("HttpMutablePointers.getPointers failed, retrieving pointers individually: " + t.getMessage());
+                    List<CompletableFuture<Pair<PublicKeyHash, Optional<byte[]>>>> all = writers.stream()
+                            .map(w -> getPointer(urlPrefix, poster, owner, w).thenApply(p -> new Pair<>(w, p)))
+                            .collect(Collectors.toList());
+                    return Futures.combineAll(all).thenApply(MutablePointers::toPointerMap);
+                });
+    }
+
+    @Override
+    public CompletableFuture<Map<PublicKeyHash, byte[]>> watchPointers(PublicKeyHash owner,
+                                                                       Map<PublicKeyHash, Optional<byte[]>> known,
+                                                                       long timeoutMillis) {
+        return watchPointers(directUrlPrefix, direct, owner, known, timeoutMillis);
+    }
+
+    @Override
+    public CompletableFuture<Map<PublicKeyHash, byte[]>> watchPointers(Multihash targetId,
+                                                                       PublicKeyHash owner,
+                                                                       Map<PublicKeyHash, Optional<byte[]>> known,
+                                                                       long timeoutMillis) {
+        return watchPointers(getProxyUrlPrefix(targetId), p2p, owner, known, timeoutMillis);
+    }
+
+    private CompletableFuture<Map<PublicKeyHash, byte[]>> watchPointers(String urlPrefix,
+                                                                        HttpPoster poster,
+                                                                        PublicKeyHash owner,
+                                                                        Map<PublicKeyHash, Optional<byte[]>> known,
+                                                                        long timeoutMillis) {
+        byte[] body = MutablePointers.serializePointerMap(known).serialize();
+        return poster.postUnzip(urlPrefix + Constants.MUTABLE_POINTERS_URL + "watchPointers?owner=" + owner
+                + "&timeout=" + timeoutMillis, body)
+                .thenApply(res -> {
+                    Map<PublicKeyHash, byte[]> changed = new HashMap<>();
+                    MutablePointers.parsePointerMap(CborObject.fromByteArray(res))
+                            .forEach((w, p) -> p.ifPresent(v -> changed.put(w, v)));
+                    return changed;
+                });
+    }
+
     public CompletableFuture<Optional<byte[]>> getPointer(String urlPrefix, HttpPoster poster, PublicKeyHash owner, PublicKeyHash writer) {
         long t1 = System.currentTimeMillis();
         try {
@@ -1,14 +1,16 @@
 package peergos.shared.mutable;
 
-import peergos.shared.cbor.CborObject;
+import peergos.shared.cbor.*;
 import peergos.shared.crypto.asymmetric.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.MaybeMultihash;
 import peergos.shared.storage.ContentAddressedStorage;
+import peergos.shared.util.*;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.stream.*;
 
 public interface MutablePointers {
 
@@ -28,6 +30,93 @@ public interface MutablePointers {
      */
     CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash owner, PublicKeyHash writer);
 
+    /** Get the current hashes of many public keys with the same owner
+     *
+     * @param owner
+     * @param writers
+     * @return The signed cas of each writer's pointer, omitting writers without a pointer
+     */
+    default CompletableFuture<Map<PublicKeyHash, byte[]>> getPointers(PublicKeyHash owner, List<PublicKeyHash> writers) {
+        List<CompletableFuture<Pair<PublicKeyHash, Optional<byte[]>>>> all = writers.stream()
+                .map(w -> getPointer(owner, w).thenApply(p -> new Pair<>(w, p)))
+                .collect(Collectors.toList());
+        return Futures.combineAll(all).thenApply(MutablePointers::toPointerMap);
+    }
+
+    /** Wait until the pointer of any of the given writers differs from the value known by the caller
+     *
+     * @param owner
+     * @param known The caller's current pointer for each writer to watch
+     * @param timeoutMillis The maximum time to wait for a change
+     * @return The new pointers of the writers which have changed, or an empty map if there was no change before the
+     * timeout
+     */
+    default CompletableFuture<Map<PublicKeyHash, byte[]>> watchPointers(PublicKeyHash owner,
+                                                                        Map<PublicKeyHash, Optional<byte[]>> known,
+                                                                        long timeoutMillis) {
+        return Futures.errored(new IllegalStateException("Watching pointers is not supported!"));
+    }
+
+    /**
+     *
+     * @param known
+     * @param current
+     * @return The pointers in current which differ from those in known
+     */
+    static Map<PublicKeyHash, byte[]> changedPointers(Map<PublicKeyHash, Optional<byte[]>> known,
+                                                      Map<PublicKeyHash, byte[]> current) {
+        Map<PublicKeyHash, byte[]> res = new HashMap<>();
+        for (Map.Entry<PublicKeyHash, byte[]> e : current.entrySet()) {
+            Optional<byte[]> previous = known.getOrDefault(e.getKey(), Optional.empty());
+            if (! previous.isPresent() || ! Arrays.equals(previous.get(), e.getValue()))
+                res.put(e.getKey(), e.getValue());
+        }
+        return res;
+    }
+
+    static CborObject.CborList serializePointerMap(Map<PublicKeyHash, Optional<byte[]>> pointers) {
+        return new CborObject.CborList(pointers.entrySet().stream()
+                .map(e -> new CborObject.CborList(Arrays.asList(e.getKey(),
+                        new CborObject.CborByteArray(e.getValue().orElse(new byte[0])))))
+                .collect(Collectors.toList()));
+    }
+
+    static Map<PublicKeyHash, Optional<byte[]>> parsePointerMap(CborObject cbor) {
+        Map<PublicKeyHash, Optional<byte[]>> res = new HashMap<>();
+        for (Cborable pair : ((CborObject.CborList) cbor).value) {
+            List<? extends Cborable> parts = ((CborObject.CborList) pair).value;
+            byte[] pointer = ((CborObject.CborByteArray) parts.get(1)).value;
+            res.put(PublicKeyHash.fromCbor(parts.get(0)), pointer.length == 0 ? Optional.empty() : Optional.of(pointer));
+        }
+        return res;
+    }
+
+    static Map<PublicKeyHash, byte[]> toPointerMap(Collection<Pair<PublicKeyHash, Optional<byte[]>>> pointers) {
+        Map<PublicKeyHash, byte[]> res = new HashMap<>();
+        for (Pair<PublicKeyHash, Optional<byte[]>> pointer : pointers)
+            pointer.right.ifPresent(p -> res.put(pointer.left, p));
+        return res;
+    }
+
+    static CborObject.CborList serializePointers(List<PublicKeyHash> writers, Map<PublicKeyHash, byte[]> pointers) {
+        return new CborObject.CborList(writers.stream()
+                .map(w -> new CborObject.CborByteArray(pointers.getOrDefault(w, new byte[0])))
+                .collect(Collectors.toList()));
+    }
+
+    static Map<PublicKeyHash, byte[]> parsePointers(List<PublicKeyHash> writers, CborObject cbor) {
+        List<? extends Cborable> values = ((CborObject.CborList) cbor).value;
+        if (values.size() != writers.size())
+            throw new IllegalStateException("Incorrect number of pointers returned!");
+        Map<PublicKeyHash, byte[]> res = new HashMap<>();
+        for (int i = 0; i < writers.size(); i++) {
+            byte[] pointer = ((CborObject.CborByteArray) values.get(i)).value;
+            if (pointer.length > 0)
+                res.put(writers.get(i), pointer);
+        }
+        return res;
+    }
+
     /**
      * Get the CAS key-hash for the data pointed to by a writer-key.
      * @param writerKeyHash
@@ -29,4 +29,26 @@ public interface MutablePointersProxy extends MutablePointers {
      */
     CompletableFuture<Optional<byte[]>> getPointer(Multihash targetServerId, PublicKeyHash owner, PublicKeyHash writer);
 
+    /** Get the current hashes of many public keys with the same owner
+     *
+     * @param targetServerId
+     * @param owner
+     * @param writers
+     * @return The signed cas of each writer's pointer, omitting writers without a pointer
+     */
+    CompletableFuture<Map<PublicKeyHash, byte[]>> getPointers(Multihash targetServerId, PublicKeyHash owner, List<PublicKeyHash> writers);
+
+    /** Wait until the pointer of any of the given writers differs from the value known by the caller
+     *
+     * @param targetServerId
+     * @param owner
+     * @param known
+     * @param timeoutMillis
+     * @return The new pointers of the writers which have changed, or an empty map on timeout
+     */
+    CompletableFuture<Map<PublicKeyHash, byte[]>> watchPointers(Multihash targetServerId,
+                                                                PublicKeyHash owner,
+                                                                Map<PublicKeyHash, Optional<byte[]>> known,
+                                                                long timeoutMillis);
+
 }
@@ -36,6 +36,22 @@ public class ProxyingMutablePointers implements MutablePointers {
                 target -> p2p.getPointer(target, owner, writer));
     }
 
+    @Override
+    public CompletableFuture<Map<PublicKeyHash, byte[]>> getPointers(PublicKeyHash owner, List<PublicKeyHash> writers) {
+        return redirectCall(owner,
+                () -> local.getPointers(owner, writers),
+                target -> p2p.getPointers(target, owner, writers));
+    }
+
+    @Override
+    public CompletableFuture<Map<PublicKeyHash, byte[]>> watchPointers(PublicKeyHash owner,
+                                                                       Map<PublicKeyHash, Optional<byte[]>> known,
+                                                                       long timeoutMillis) {
+        return redirectCall(owner,
+                () -> local.watchPointers(owner, known, timeoutMillis),
+                target -> p2p.watchPointers(target, owner, known, timeoutMillis));
+    }
+
     public <V> CompletableFuture<V> redirectCall(PublicKeyHash ownerKey, Supplier<CompletableFuture<V>> direct, Function<Multihash, CompletableFuture<V>> proxied) {
         return core.getUsername(ownerKey)
                 .thenCompose(owner -> core.getChain(owner)
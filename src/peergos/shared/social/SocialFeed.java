@@ -21,21 +21,28 @@ import java.util.stream.*;
  *                                    feed.cbor          - An append only list of serialized SharedItems
  *
  *  The FeedState stores how many bytes of the incoming cap file has been processed from each friend
+ *
+ *  The feed index is an append only list of (record index, byte offset) checkpoints. A checkpoint is added for the
+ *  first record starting in each chunk of feed.cbor, and at least every INDEX_INTERVAL records, so reading a page
+ *  of the feed only needs to parse from the nearest prior checkpoint.
  */
 public class SocialFeed {
     private static final String FEED_FILE = "feed.cbor";
     private static final String FEED_INDEX = "feed-index.cbor";
     private static final String FEED_STATE = "feed-state.cbor";
+    private static final int INDEX_INTERVAL = 64;
 
     private FileWrapper dataDir, stateFile;
     private int lastSeenIndex, feedSizeRecords;
     private long feedSizeBytes;
     private Map<String, ProcessedCaps> currentCapBytesProcessed;
+    private final List<IndexEntry> index;
     private final UserContext context;
 
-    public SocialFeed(FileWrapper dataDir,
+    private SocialFeed(FileWrapper dataDir,
                       FileWrapper stateFile,
                       FeedState state,
+                      List<IndexEntry> index,
                       UserContext context) {
         this.dataDir = dataDir;
         this.stateFile = stateFile;
@@ -43,6 +50,7 @@ public class SocialFeed {
         this.feedSizeRecords = state.feedSizeRecords;
         this.feedSizeBytes = state.feedSizeBytes;
         this.currentCapBytesProcessed = new HashMap<>(state.currentCapBytesProcessed);
+        this.index = new ArrayList<>(validCheckpoints(index, state));
         this.context = context;
     }
 
@@ -67,28 +75,33 @@ public class SocialFeed {
      * @param index
      * @return the byte offset and corresponding index of a prior object boundary, which ideally should be in the same chunk
      */
-    private CompletableFuture<Pair<Long, Integer>> getPriorByteOffset(int index) {
-        return dataDir.getChild(FEED_INDEX, context.crypto.hasher, context.network)
-                .thenCompose(fopt -> {
-                    //TODO
-//                    if (fopt.isEmpty())
-//                        throw new IllegalStateException("Social feed state file not present!");
-                    return Futures.of(new Pair<>(0L, 0));
-                });
+    private synchronized Pair<Long, Integer> getPriorByteOffset(int index) {
+        int low = 0, high = this.index.size() - 1;
+        Pair<Long, Integer> res = new Pair<>(0L, 0);
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            IndexEntry entry = this.index.get(mid);
+            if (entry.index <= index) {
+                res = new Pair<>(entry.byteOffset, entry.index);
+                low = mid + 1;
+            } else
+                high = mid - 1;
+        }
+        return res;
     }
 
     @JsMethod
     public CompletableFuture<List<SharedItem>> getShared(int from, int to, Crypto crypto, NetworkAccess network) {
-        return getPriorByteOffset(from)
-                .thenCompose(start -> dataDir.getChild(FEED_FILE, crypto.hasher, network)
-                        .thenCompose(fopt -> fopt.map(f -> f.getInputStream(network, crypto, x -> {})
-                                .thenCompose(stream -> stream.seek(start.left))
-                                .thenCompose(stream -> {
-                                    List<SharedItem> res = new ArrayList<>();
-                                    return stream.parseLimitedStream(SharedItem::fromCbor, res::add,
-                                            from - start.right, Math.min(feedSizeRecords, to) - from, feedSizeBytes)
-                                            .thenApply(x -> res);
-                                })).orElse(Futures.of(Collections.emptyList()))));
+        Pair<Long, Integer> start = getPriorByteOffset(from);
+        return dataDir.getChild(FEED_FILE, crypto.hasher, network)
+                .thenCompose(fopt -> fopt.map(f -> f.getInputStream(network, crypto, x -> {})
+                        .thenCompose(stream -> stream.seek(start.left))
+                        .thenCompose(stream -> {
+                            List<SharedItem> res = new ArrayList<>();
+                            return stream.parseLimitedStream(SharedItem::fromCbor, res::add,
+                                    from - start.right, Math.min(feedSizeRecords, to) - from, feedSizeBytes - start.left)
+                                    .thenApply(x -> res);
+                        })).orElse(Futures.of(Collections.emptyList())));
     }
 
     private synchronized CompletableFuture<Boolean> commit() {
@@ -145,22 +158,31 @@ public class SocialFeed {
                 updatedReadCapBytesTotal,
                 updateWriteCapBytesTotal);
         currentCapBytesProcessed.put(friendName, updated);
-        feedSizeRecords += readCapsToAdd.size() + writeCapsToAdd.size();
         List<SharedItem> forFeed = Stream.of(readCapsToAdd, writeCapsToAdd)
                 .flatMap(List::stream)
                 .map(c -> new SharedItem(c.cap, extractOwner(c.path), friendName, c.path))
                 .collect(Collectors.toList());
         ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        List<IndexEntry> newCheckpoints = new ArrayList<>();
         for (SharedItem item : forFeed) {
+            IndexEntry pos = new IndexEntry(feedSizeRecords, feedSizeBytes + bout.size());
+            if (isCheckpoint(pos)) {
+                newCheckpoints.add(pos);
+                index.add(pos);
+            }
             try {
                 bout.write(item.serialize());
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
+            feedSizeRecords++;
         }
         byte[] data = bout.toByteArray();
         feedSizeBytes += data.length;
         return dataDir.appendToChild(FEED_FILE, data, false, context.network, context.crypto, x -> {})
+                .thenCompose(dir -> newCheckpoints.isEmpty() ?
+                        Futures.of(dir) :
+                        dir.appendToChild(FEED_INDEX, serialize(newCheckpoints), false, context.network, context.crypto, x -> {}))
                 .thenCompose(dir -> {
                     this.dataDir = dir;
                     return commit();
@@ -168,6 +190,75 @@ public class SocialFeed {
                 .thenApply(x -> this);
     }
 
+    private boolean isCheckpoint(IndexEntry pos) {
+        if (pos.index == 0)
+            return false;
+        IndexEntry last = index.isEmpty() ? new IndexEntry(0, 0) : index.get(index.size() - 1);
+        return pos.index - last.index >= INDEX_INTERVAL ||
+                pos.byteOffset / Chunk.MAX_SIZE > last.byteOffset / Chunk.MAX_SIZE;
+    }
+
+    private static byte[] serialize(List<IndexEntry> entries) {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        for (IndexEntry entry : entries) {
+            try {
+                bout.write(entry.serialize());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return bout.toByteArray();
+    }
+
+    private static CompletableFuture<List<IndexEntry>> loadIndex(FileWrapper dataDir, UserContext context) {
+        return dataDir.getChild(FEED_INDEX, context.crypto.hasher, context.network)
+                .thenCompose(fopt -> {
+                    if (fopt.isEmpty())
+                        return Futures.of(Collections.emptyList());
+                    return Serialize.readFully(fopt.get(), context.crypto, context.network)
+                            .thenApply(raw -> {
+                                List<IndexEntry> res = new ArrayList<>();
+                                ByteArrayInputStream in = new ByteArrayInputStream(raw);
+                                while (in.available() > 0)
+                                    res.add(IndexEntry.fromCbor(CborObject.read(in, raw.length)));
+                                return res;
+                            });
+                });
+    }
+
+    /**
+     *
+     * @return the checkpoints within the committed state, in order, without any from an interrupted update
+     */
+    private static List<IndexEntry> validCheckpoints(List<IndexEntry> index, FeedState state) {
+        List<IndexEntry> res = new ArrayList<>();
+        for (IndexEntry e : index) {
+            if (e.index >= state.feedSizeRecords || e.byteOffset >= state.feedSizeBytes)
+                continue;
+            IndexEntry last = res.isEmpty() ? null : res.get(res.size() - 1);
+            if (last == null || (e.index > last.index && e.byteOffset > last.byteOffset))
+                res.add(e);
+        }
+        return res;
+    }
+
+    /** Rewrite the index without any checkpoints from an interrupted update, otherwise new checkpoints would be
+     *  appended after them, and they would become valid once the feed grows past them
+     */
+    private static CompletableFuture<FileWrapper> repairIndex(FileWrapper dataDir,
+                                                              List<IndexEntry> index,
+                                                              FeedState state,
+                                                              UserContext context) {
+        List<IndexEntry> valid = validCheckpoints(index, state);
+        if (valid.size() == index.size())
+            return Futures.of(dataDir);
+        byte[] raw = serialize(valid);
+        return dataDir.getChild(FEED_INDEX, context.crypto.hasher, context.network)
+                .thenCompose(fopt -> fopt.get().overwriteFile(AsyncReader.build(raw), raw.length,
+                        context.network, context.crypto, x -> {}))
+                .thenCompose(f -> dataDir.getUpdated(context.network));
+    }
+
     public static CompletableFuture<SocialFeed> load(FileWrapper dataDir, UserContext context) {
         return dataDir.getChild(FEED_STATE, context.crypto.hasher, context.network)
                 .thenCompose(fopt -> {
@@ -175,7 +266,9 @@ public class SocialFeed {
                         throw new IllegalStateException("Social feed state file not present!");
                     return Serialize.readFully(fopt.get(), context.crypto, context.network)
                             .thenApply(arr -> FeedState.fromCbor(CborObject.fromByteArray(arr)))
-                            .thenApply(s -> new SocialFeed(dataDir, fopt.get(), s, context));
+                            .thenCompose(s -> loadIndex(dataDir, context)
+                                    .thenCompose(index -> repairIndex(dataDir, index, s, context)
+                                            .thenApply(dir -> new SocialFeed(dir, fopt.get(), s, index, context))));
                 });
     }
 
@@ -187,11 +280,36 @@ public class SocialFeed {
                     byte[] rawEmpty = empty.serialize();
                     return feedDir.uploadAndReturnFile(FEED_STATE, AsyncReader.build(rawEmpty), rawEmpty.length,
                             false, c.network, c.crypto)
-                            .thenApply(stateFile -> new SocialFeed(feedDir, stateFile, empty, c))
+                            .thenApply(stateFile -> new SocialFeed(feedDir, stateFile, empty, Collections.emptyList(), c))
                             .thenCompose(SocialFeed::update);
                 });
     }
 
+    private static class IndexEntry implements Cborable {
+        public final int index;
+        public final long byteOffset;
+
+        public IndexEntry(int index, long byteOffset) {
+            this.index = index;
+            this.byteOffset = byteOffset;
+        }
+
+        @Override
+        public CborObject toCbor() {
+            return new CborObject.CborList(Arrays.asList(
+                    new CborObject.CborLong(index),
+                    new CborObject.CborLong(byteOffset)));
+        }
+
+        public static IndexEntry fromCbor(Cborable cbor) {
+            if (! (cbor instanceof CborObject.CborList))
+                throw new IllegalStateException("Invalid cbor for feed IndexEntry! " + cbor);
+            List<? extends Cborable> parts = ((CborObject.CborList) cbor).value;
+            return new IndexEntry((int) ((CborObject.CborLong) parts.get(0)).value,
+                    ((CborObject.CborLong) parts.get(1)).value);
+        }
+    }
+
     private static class FeedState implements Cborable {
         public final int lastSeenIndex, feedSizeRecords;
         public final long feedSizeBytes;
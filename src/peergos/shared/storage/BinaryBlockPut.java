@@ -0,0 +1,94 @@
+package peergos.shared.storage;
+
+import peergos.shared.cbor.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.stream.*;
+
+/** The body and reply of a binary block put.
+ *
+ *  The body is a sequence of frames, one per block, each of which is a 4 byte big endian length followed by a cbor list
+ *  of the signature and the block. The reply is a cbor map with either the list of the resulting hashes under "h", or
+ *  the reason the server rejected the write under "e". A rejection is deterministic, so it is returned in band rather
+ *  than as an HTTP error, which would be retried.
+ */
+public class BinaryBlockPut {
+    public static final int VERSION = 1;
+    // The signature and cbor overhead in each frame
+    public static final int MAX_FRAME_OVERHEAD = 1024;
+
+    public static byte[] serialize(List<byte[]> signatures, List<byte[]> blocks) {
+        if (signatures.size() != blocks.size())
+            throw new IllegalArgumentException("Need one signature per block!");
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream dout = new DataOutputStream(bout);
+        try {
+            for (int i = 0; i < blocks.size(); i++) {
+                byte[] frame = new CborObject.CborList(Arrays.asList(
+                        new CborObject.CborByteArray(signatures.get(i)),
+                        new CborObject.CborByteArray(blocks.get(i)))).serialize();
+                dout.writeInt(frame.length);
+                dout.write(frame);
+            }
+            dout.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return bout.toByteArray();
+    }
+
+    /**
+     *
+     * @param in
+     * @param maxFrameSize
+     * @return the signature and block of the next frame, or empty at the end of the stream
+     * @throws HttpWriteRejectedException if the frame is larger than maxFrameSize
+     * @throws IOException
+     */
+    public static Optional<Pair<byte[], byte[]>> readFrame(DataInputStream in, int maxFrameSize) throws IOException {
+        int first = in.read();
+        if (first < 0)
+            return Optional.empty();
+        int length = (first << 24) | (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+        if (length < 0 || length > maxFrameSize)
+            throw new HttpWriteRejectedException("Invalid block put frame size: " + length);
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        List<? extends Cborable> parts = ((CborObject.CborList) CborObject.fromByteArray(frame)).value;
+        return Optional.of(new Pair<>(((CborObject.CborByteArray) parts.get(0)).value,
+                ((CborObject.CborByteArray) parts.get(1)).value));
+    }
+
+    public static byte[] serializeReply(List<Multihash> hashes) {
+        Map<String, Cborable> reply = new TreeMap<>();
+        reply.put("h", new CborObject.CborList(hashes.stream()
+                .map(CborObject.CborMerkleLink::new)
+                .collect(Collectors.toList())));
+        return CborObject.CborMap.build(reply).serialize();
+    }
+
+    public static byte[] serializeRejection(String reason) {
+        Map<String, Cborable> reply = new TreeMap<>();
+        reply.put("e", new CborObject.CborString(reason));
+        return CborObject.CborMap.build(reply).serialize();
+    }
+
+    /**
+     *
+     * @param raw
+     * @return the hashes of the written blocks
+     * @throws HttpWriteRejectedException if the server rejected the write
+     */
+    public static List<Multihash> parseReply(byte[] raw) {
+        CborObject.CborMap reply = (CborObject.CborMap) CborObject.fromByteArray(raw);
+        Optional<String> rejection = reply.getOptional("e", c -> ((CborObject.CborString) c).value);
+        if (rejection.isPresent())
+            throw new HttpWriteRejectedException(rejection.get());
+        return ((CborObject.CborList) reply.get("h")).value.stream()
+                .map(c -> ((CborObject.CborMerkleLink) c).target)
+                .collect(Collectors.toList());
+    }
+}
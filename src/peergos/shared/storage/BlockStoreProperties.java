@@ -8,17 +8,33 @@ public class BlockStoreProperties implements Cborable {
     public final boolean directWrites, publicReads, authedReads;
     public final Optional<String> basePublicReadUrl;
     public final Optional<String> baseAuthedUrl;
+    // Whether the server accepts block puts in the binary format of ContentAddressedStorage.HTTP.BLOCK_PUT_BINARY
+    public final boolean binaryBlockPuts;
 
     public BlockStoreProperties(boolean directWrites,
                                 boolean publicReads,
                                 boolean authedReads,
                                 Optional<String> basePublicReadUrl,
-                                Optional<String> baseAuthedUrl) {
+                                Optional<String> baseAuthedUrl,
+                                boolean binaryBlockPuts) {
         this.directWrites = directWrites;
         this.publicReads = publicReads;
         this.authedReads = authedReads;
         this.basePublicReadUrl = basePublicReadUrl;
         this.baseAuthedUrl = baseAuthedUrl;
+        this.binaryBlockPuts = binaryBlockPuts;
+    }
+
+    public BlockStoreProperties(boolean directWrites,
+                                boolean publicReads,
+                                boolean authedReads,
+                                Optional<String> basePublicReadUrl,
+                                Optional<String> baseAuthedUrl) {
+        this(directWrites, publicReads, authedReads, basePublicReadUrl, baseAuthedUrl, false);
+    }
+
+    public BlockStoreProperties withBinaryBlockPuts() {
+        return new BlockStoreProperties(directWrites, publicReads, authedReads, basePublicReadUrl, baseAuthedUrl, true);
     }
 
     public boolean useDirectBlockStore() {
@@ -37,6 +53,8 @@ public class BlockStoreProperties implements Cborable {
         props.put("ar", new CborObject.CborBoolean(authedReads));
         basePublicReadUrl.ifPresent(base -> props.put("b", new CborObject.CborString(base)));
         baseAuthedUrl.ifPresent(base -> props.put("ba", new CborObject.CborString(base)));
+        if (binaryBlockPuts)
+            props.put("bp", new CborObject.CborBoolean(true));
         return CborObject.CborMap.build(props);
     }
 
@@ -47,6 +65,7 @@ public class BlockStoreProperties implements Cborable {
         boolean directWrites = map.getBoolean("w");
         boolean publicReads = map.getBoolean("pr");
         boolean authedReads = map.getBoolean("ar");
-        return new BlockStoreProperties(directWrites, publicReads, authedReads, basePublic, baseAuthed);
+        boolean binaryBlockPuts = map.getBoolean("bp", false);
+        return new BlockStoreProperties(directWrites, publicReads, authedReads, basePublic, baseAuthed, binaryBlockPuts);
     }
 }
@@ -333,6 +333,7 @@ public interface ContentAddressedStorage {
         public static final String TRANSACTION_CLOSE = "transaction/close";
         public static final String GC = "repo/gc";
         public static final String BLOCK_PUT = "block/put";
+        public static final String BLOCK_PUT_BINARY = "block/put/v" + BinaryBlockPut.VERSION;
         public static final String BLOCK_GET = "block/get";
         public static final String BLOCK_RM = "block/rm";
         public static final String BLOCK_STAT = "block/stat";
@@ -344,6 +345,9 @@ public interface ContentAddressedStorage {
 
         private final boolean isPeergosServer;
         private final Random r = new Random();
+        // Binary puts carry their signatures in the body rather than the query string, so can be grouped
+        private static final int BINARY_BLOCKS_PER_QUERY = 8;
+        private CompletableFuture<Boolean> binaryPuts;
 
         public HTTP(HttpPoster poster, boolean isPeergosServer) {
             this.poster = poster;
@@ -492,6 +496,42 @@ public interface ContentAddressedStorage {
             // Do 8 fragments per query to spread the 40 fragments in a chunk over the 5 connections in a browser
             // Unless we are talking to IPFS directly, then upload one per query because IPFS doesn't support more than one
             int FRAGMENTs_PER_QUERY = isPeergosServer ? 1 : 1;
+            return supportsBinaryPuts().thenCompose(binary -> {
+                int perQuery = binary ? BINARY_BLOCKS_PER_QUERY : FRAGMENTs_PER_QUERY;
+                return bulkPut(owner, writer, signatures, blocks, format, tid, progressConsumer, perQuery, binary);
+            });
+        }
+
+        /** Binary puts are only used if the server advertises them, which older servers don't
+         *
+         * @return whether the server supports binary block puts
+         */
+        private synchronized CompletableFuture<Boolean> supportsBinaryPuts() {
+            if (! isPeergosServer)
+                return Futures.of(false);
+            if (binaryPuts == null)
+                binaryPuts = blockStoreProperties()
+                        .thenApply(p -> p.binaryBlockPuts);
+            CompletableFuture<Boolean> current = binaryPuts;
+            return current.exceptionally(t -> {
+                // Don't remember a transient failure, ask again on the next put
+                synchronized (this) {
+                    if (binaryPuts == current)
+                        binaryPuts = null;
+                }
+                return false;
+            });
+        }
+
+        private CompletableFuture<List<Multihash>> bulkPut(PublicKeyHash owner,
+                                                           PublicKeyHash writer,
+                                                           List<byte[]> signatures,
+                                                           List<byte[]> blocks,
+                                                           String format,
+                                                           TransactionId tid,
+                                                           ProgressConsumer<Long> progressConsumer,
+                                                           int FRAGMENTs_PER_QUERY,
+                                                           boolean binary) {
             List<List<byte[]>> grouped = ArrayOps.group(blocks, FRAGMENTs_PER_QUERY);
             List<List<byte[]>> groupedSignatures = ArrayOps.group(signatures, FRAGMENTs_PER_QUERY);
             List<Integer> sizes = grouped.stream()
@@ -499,13 +539,9 @@ public interface ContentAddressedStorage {
                     .collect(Collectors.toList());
             List<CompletableFuture<List<Multihash>>> futures = IntStream.range(0, grouped.size())
                     .parallel()
-                    .mapToObj(i -> put(
-                            owner,
-                            writer,
-                            groupedSignatures.get(i),
-                            grouped.get(i),
-                            format,
-                            tid
+                    .mapToObj(i -> (binary ?
+                            putBinary(owner, writer, groupedSignatures.get(i), grouped.get(i), format, tid) :
+                            put(owner, writer, groupedSignatures.get(i), grouped.get(i), format, tid)
                     ).thenApply(hash -> {
                         if (progressConsumer != null)
                             progressConsumer.accept((long) sizes.get(i));
@@ -545,6 +581,31 @@ public interface ContentAddressedStorage {
                     });
         }
 
+        private CompletableFuture<List<Multihash>> putBinary(PublicKeyHash owner,
+                                                             PublicKeyHash writer,
+                                                             List<byte[]> signatures,
+                                                             List<byte[]> blocks,
+                                                             String format,
+                                                             TransactionId tid) {
+            for (byte[] block : blocks) {
+                if (block.length > MAX_BLOCK_SIZE)
+                    throw new IllegalStateException("Invalid block size: " + block.length
+                            + ", blocks must be smaller than 1MiB!");
+            }
+            return poster.postUnzip(apiPrefix + BLOCK_PUT_BINARY + "?format=" + format
+                    + "&owner=" + encode(owner.toString())
+                    + "&transaction=" + encode(tid.toString())
+                    + "&writer=" + encode(writer.toString()), BinaryBlockPut.serialize(signatures, blocks))
+                    .thenApply(BinaryBlockPut::parseReply)
+                    .thenApply(hashes -> {
+                        if (DEBUG_GC)
+                            System.out.println("Added blocks: " + hashes);
+                        if (hashes.size() != blocks.size())
+                            throw new IllegalStateException("Incorrect number of hashes returned from bulk write: " + hashes.size() + " != " + blocks.size());
+                        return hashes;
+                    });
+        }
+
         @Override
         public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
             if (hash.isIdentity())
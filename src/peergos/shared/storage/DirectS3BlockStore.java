@@ -5,7 +5,7 @@ import peergos.shared.cbor.*;
 import peergos.shared.corenode.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.io.ipfs.cid.*;
-import peergos.shared.io.ipfs.multibase.binary.*;
+import peergos.shared.io.ipfs.multibase.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.user.*;
 import peergos.shared.user.fs.*;
@@ -54,14 +54,12 @@ public class DirectS3BlockStore implements ContentAddressedStorage {
 
     public static String hashToKey(Multihash hash) {
         // To be compatible with IPFS we use the same scheme here, the cid bytes encoded as uppercase base32
-        String padded = new Base32().encodeAsString(hash.toBytes());
-        int padStart = padded.indexOf("=");
-        return padStart > 0 ? padded.substring(0, padStart) : padded;
+        return Base32Unpadded.encode(hash.toBytes(), true);
     }
 
     public static Multihash keyToHash(String keyFileName) {
         // To be compatible with IPFS we use the same scheme here, the cid bytes encoded as uppercase base32
-        byte[] decoded = new Base32().decode(keyFileName);
+        byte[] decoded = Base32Unpadded.decode(keyFileName);
         return Cid.cast(decoded);
     }
 
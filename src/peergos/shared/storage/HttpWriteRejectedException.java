@@ -0,0 +1,14 @@
+package peergos.shared.storage;
+
+/** A write which the server has rejected, e.g. because it would exceed the user's quota. Retrying won't help.
+ *
+ */
+public class HttpWriteRejectedException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+    // Set on an error response to mark it as a rejected write, rather than a failure which may succeed if retried
+    public static final String HTTP_HEADER = "X-Write-Rejected";
+
+    public HttpWriteRejectedException(String message) {
+        super(message);
+    }
+}
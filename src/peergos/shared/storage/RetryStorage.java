@@ -53,7 +53,8 @@ public class RetryStorage implements ContentAddressedStorage {
                     .exceptionally(e -> {
                         if (retriesLeft == 1) {
                             res.completeExceptionally(e);
-                        } else if (e instanceof HttpFileNotFoundException) {
+                        } else if (e instanceof HttpFileNotFoundException || e instanceof HttpWriteRejectedException
+                                || e.getCause() instanceof HttpWriteRejectedException) {
                             res.completeExceptionally(e);
                         } else {
                             retryAfter(() -> recurse(retriesLeft - 1, f)
@@ -0,0 +1,68 @@
+package peergos.shared.storage;
+
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Performs all writes in a single transaction, which is opened and closed by the caller. This keeps every block
+ *  written during a long operation safe from garbage collection until it is reachable from a committed pointer, even
+ *  if intermediate versions are never committed.
+ */
+public class SingleTransactionStorage extends DelegatingStorage {
+
+    private final ContentAddressedStorage target;
+    private final TransactionId tid;
+
+    public SingleTransactionStorage(ContentAddressedStorage target, TransactionId tid) {
+        super(target);
+        this.target = target;
+        this.tid = tid;
+    }
+
+    @Override
+    public ContentAddressedStorage directToOrigin() {
+        return new SingleTransactionStorage(target.directToOrigin(), tid);
+    }
+
+    @Override
+    public CompletableFuture<TransactionId> startTransaction(PublicKeyHash owner) {
+        return Futures.of(tid);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> closeTransaction(PublicKeyHash owner, TransactionId ignored) {
+        return Futures.of(true);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> put(PublicKeyHash owner,
+                                                  PublicKeyHash writer,
+                                                  List<byte[]> signedHashes,
+                                                  List<byte[]> blocks,
+                                                  TransactionId ignored) {
+        return target.put(owner, writer, signedHashes, blocks, tid);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> putRaw(PublicKeyHash owner,
+                                                     PublicKeyHash writer,
+                                                     List<byte[]> signatures,
+                                                     List<byte[]> blocks,
+                                                     TransactionId ignored,
+                                                     ProgressConsumer<Long> progressCounter) {
+        return target.putRaw(owner, writer, signatures, blocks, tid, progressCounter);
+    }
+
+    @Override
+    public CompletableFuture<List<PresignedUrl>> authWrites(PublicKeyHash owner,
+                                                            PublicKeyHash writer,
+                                                            List<byte[]> signedHashes,
+                                                            List<Integer> blockSizes,
+                                                            boolean isRaw,
+                                                            TransactionId ignored) {
+        return target.authWrites(owner, writer, signedHashes, blockSizes, isRaw, tid);
+    }
+}
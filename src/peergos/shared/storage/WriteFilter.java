@@ -19,6 +19,23 @@ public class WriteFilter extends DelegatingStorage {
         this.keyFilter = keyFilter;
     }
 
+    /** Reject the write if the writer isn't allowed to write this much to this server, e.g. because it would exceed their
+     *  quota. Such a rejection is final, so the client shouldn't retry it.
+     *
+     * @param writer
+     * @param size
+     */
+    private void checkAllowed(PublicKeyHash writer, int size) {
+        boolean allowed;
+        try {
+            allowed = keyFilter.apply(writer, size);
+        } catch (IllegalStateException e) {
+            throw new HttpWriteRejectedException(e.getMessage());
+        }
+        if (! allowed)
+            throw new HttpWriteRejectedException("Key not allowed to write to this server: " + writer);
+    }
+
     @Override
     public CompletableFuture<List<PresignedUrl>> authWrites(PublicKeyHash owner,
                                                             PublicKeyHash writer,
@@ -26,8 +43,7 @@ public class WriteFilter extends DelegatingStorage {
                                                             List<Integer> blockSizes,
                                                             boolean isRaw,
                                                             TransactionId tid) {
-        if (! keyFilter.apply(writer, blockSizes.stream().mapToInt(x -> x).sum()))
-            throw new IllegalStateException("Key not allowed to write to this server: " + writer);
+        checkAllowed(writer, blockSizes.stream().mapToInt(x -> x).sum());
         return dht.authWrites(owner, writer, signedHashes, blockSizes, isRaw, tid);
     }
 
@@ -42,8 +58,7 @@ public class WriteFilter extends DelegatingStorage {
                                                   List<byte[]> signedHashes,
                                                   List<byte[]> blocks,
                                                   TransactionId tid) {
-        if (! keyFilter.apply(writer, blocks.stream().mapToInt(x -> x.length).sum()))
-            throw new IllegalStateException("Key not allowed to write to this server: " + writer);
+        checkAllowed(writer, blocks.stream().mapToInt(x -> x.length).sum());
         return dht.put(owner, writer, signedHashes, blocks, tid);
     }
 
@@ -54,8 +69,7 @@ public class WriteFilter extends DelegatingStorage {
                                                      List<byte[]> blocks,
                                                      TransactionId tid,
                                                      ProgressConsumer<Long> progressConsumer) {
-        if (! keyFilter.apply(writer, blocks.stream().mapToInt(x -> x.length).sum()))
-            throw new IllegalStateException("Key not allowed to write to this server: " + writer);
+        checkAllowed(writer, blocks.stream().mapToInt(x -> x.length).sum());
         return dht.putRaw(owner, writer, signatures, blocks, tid, progressConsumer);
     }
 }
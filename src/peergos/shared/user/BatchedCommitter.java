@@ -0,0 +1,101 @@
+package peergos.shared.user;
+
+import peergos.shared.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** A Committer for bulk operations which only publishes a writer's pointer every maxUncommitted commits, and on
+ *  flush. Intermediate WriterData are still written to storage so they can be read back, but the pointer is only
+ *  updated (from the last published version) for the last of each batch.
+ *
+ *  flush must be called at the end of the operation, before the Snapshot is returned to the WriteSynchronizer.
+ */
+public class BatchedCommitter implements Committer {
+
+    private final Committer target;
+    private final int maxUncommitted;
+    private final ContentAddressedStorage dht;
+    private final Hasher hasher;
+    private final Map<PublicKeyHash, Pending> pending = new HashMap<>();
+
+    public BatchedCommitter(Committer target, int maxUncommitted, ContentAddressedStorage dht, Hasher hasher) {
+        if (maxUncommitted < 1)
+            throw new IllegalArgumentException("Batch size must be positive!");
+        this.target = target;
+        this.maxUncommitted = maxUncommitted;
+        this.dht = dht;
+        this.hasher = hasher;
+    }
+
+    private static class Pending {
+        public final PublicKeyHash owner;
+        public final SigningPrivateKeyAndPublicHash signer;
+        public final CommittedWriterData published;
+        public final WriterData latest;
+        public final int uncommitted;
+
+        public Pending(PublicKeyHash owner,
+                       SigningPrivateKeyAndPublicHash signer,
+                       CommittedWriterData published,
+                       WriterData latest,
+                       int uncommitted) {
+            this.owner = owner;
+            this.signer = signer;
+            this.published = published;
+            this.latest = latest;
+            this.uncommitted = uncommitted;
+        }
+    }
+
+    @Override
+    public synchronized CompletableFuture<Snapshot> commit(PublicKeyHash owner,
+                                                           SigningPrivateKeyAndPublicHash signer,
+                                                           WriterData wd,
+                                                           CommittedWriterData existing,
+                                                           TransactionId tid) {
+        Pending current = pending.get(signer.publicKeyHash);
+        CommittedWriterData published = current == null ? existing : current.published;
+        int uncommitted = current == null ? 1 : current.uncommitted + 1;
+        if (uncommitted >= maxUncommitted)
+            return target.commit(owner, signer, wd, published, tid)
+                    .thenApply(s -> {
+                        synchronized (this) {
+                            pending.remove(signer.publicKeyHash);
+                        }
+                        return s;
+                    });
+
+        byte[] raw = wd.serialize();
+        return hasher.sha256(raw)
+                .thenCompose(hash -> dht.put(owner, signer.publicKeyHash, signer.secret.signMessage(hash), raw, tid))
+                .thenApply(blobHash -> {
+                    synchronized (this) {
+                        pending.put(signer.publicKeyHash, new Pending(owner, signer, published, wd, uncommitted));
+                    }
+                    return new Snapshot(signer.publicKeyHash, wd.committed(MaybeMultihash.of(blobHash)));
+                });
+    }
+
+    /** Publish the latest version of every writer with uncommitted changes
+     *
+     * @param current
+     * @return current updated with the published versions
+     */
+    public CompletableFuture<Snapshot> flush(Snapshot current) {
+        List<Pending> toCommit;
+        synchronized (this) {
+            toCommit = new ArrayList<>(pending.values());
+            pending.clear();
+        }
+        return Futures.reduceAll(toCommit, current,
+                (s, p) -> IpfsTransaction.call(p.owner,
+                        tid -> target.commit(p.owner, p.signer, p.latest, p.published, tid), dht)
+                        .thenApply(s::mergeAndOverwriteWith),
+                (a, b) -> b);
+    }
+}
@@ -336,31 +336,36 @@ public class WriterData implements Cborable {
                                                                               MutablePointers mutable,
                                                                               ContentAddressedStorage ipfs,
                                                                               Hasher hasher) {
-        return getOwnedKeysRecursive(owner, writer, Collections.emptySet(), mutable, ipfs, hasher);
+        return getOwnedKeysRecursive(owner, Collections.singleton(writer), Collections.emptySet(), mutable, ipfs, hasher);
     }
 
+    /** Breadth first search of owned keys, retrieving the pointers of each layer of writers in a single call
+     *
+     */
     private static CompletableFuture<Set<PublicKeyHash>> getOwnedKeysRecursive(PublicKeyHash owner,
-                                                                               PublicKeyHash writer,
+                                                                               Set<PublicKeyHash> toVisit,
                                                                                Set<PublicKeyHash> alreadyDone,
                                                                                MutablePointers mutable,
                                                                                ContentAddressedStorage ipfs,
                                                                                Hasher hasher) {
-        return getDirectOwnedKeys(owner, writer, mutable, ipfs, hasher)
+        if (toVisit.isEmpty())
+            return CompletableFuture.completedFuture(alreadyDone);
+        List<PublicKeyHash> writers = new ArrayList<>(toVisit);
+        Set<PublicKeyHash> done = new HashSet<>(alreadyDone);
+        done.addAll(toVisit);
+        return mutable.getPointers(owner, writers)
+                .thenCompose(pointers -> Futures.combineAll(writers.stream()
+                        .map(w -> (pointers.containsKey(w) ?
+                                MutablePointers.parsePointerTarget(pointers.get(w), w, ipfs) :
+                                CompletableFuture.completedFuture(MaybeMultihash.empty()))
+                                .thenCompose(root -> getDirectOwnedKeys(w, root, ipfs, hasher)))
+                        .collect(Collectors.toList())))
                 .thenCompose(directOwned -> {
-                    Set<PublicKeyHash> newKeys = directOwned.stream().
-                            filter(h -> ! alreadyDone.contains(h))
+                    Set<PublicKeyHash> newKeys = directOwned.stream()
+                            .flatMap(Set::stream)
+                            .filter(h -> ! done.contains(h))
                             .collect(Collectors.toSet());
-                    Set<PublicKeyHash> done = new HashSet<>(alreadyDone);
-                    done.add(writer);
-                    BiFunction<Set<PublicKeyHash>, PublicKeyHash, CompletableFuture<Set<PublicKeyHash>>> composer =
-                            (a, w) -> getOwnedKeysRecursive(owner, w, a, mutable, ipfs, hasher)
-                                    .thenApply(ws ->
-                                            Stream.concat(ws.stream(), a.stream())
-                                                    .collect(Collectors.toSet()));
-                    return Futures.reduceAll(newKeys, done,
-                            composer,
-                            (a, b) -> Stream.concat(a.stream(), b.stream())
-                                    .collect(Collectors.toSet()));
+                    return getOwnedKeysRecursive(owner, newKeys, done, mutable, ipfs, hasher);
                 });
     }
 
@@ -37,6 +37,8 @@ public class FileWrapper {
 
     private final static int THUMBNAIL_SIZE = 100;
     private static final NativeJSThumbnail thumbnail = new NativeJSThumbnail();
+    // The largest new contents of an overwritten file which are buffered during the upload to generate its thumbnail
+    private static final int MAX_CAPTURED_THUMBNAIL_SOURCE = 100 * 1024 * 1024;
 
     private final RetrievedCapability pointer;
     private final Optional<RetrievedCapability> linkPointer;
@@ -892,103 +894,293 @@ public class FileWrapper {
                                                     throw new IllegalStateException("File already exists with name " + filename);
                                                 FileWrapper child = childOpt.get();
                                                 FileProperties childProps = child.getFileProperties();
-
-                                                TriFunction<FileWrapper, Snapshot, Long, CompletableFuture<Snapshot>> updatePropsIfNecessary =
-                                                        (updatedChild, latestSnapshot, writeEnd) -> {
-                                                    if (childProps.thumbnail.isEmpty()) {
-                                                        if (writeEnd <= childProps.size)
-                                                            return Futures.of(latestSnapshot);
-                                                        // update size only
-                                                        return updatedChild.updateSize(committer, writeEnd, network);
+                                                boolean truncate = truncateExisting && endIndex < childProps.size;
+
+                                                // If every byte of the new contents is being written, capture it as it
+                                                // is uploaded so the thumbnail doesn't require a download afterwards.
+                                                // Only thumbnailable contents of a reasonable size are buffered.
+                                                boolean fullOverwrite = startIndex == 0 && (truncate || endIndex >= childProps.size);
+                                                boolean mayCapture = childProps.thumbnail.isPresent() && fullOverwrite;
+                                                byte[] header = new byte[mayCapture ? (int) Math.min(endIndex, MimeTypes.HEADER_BYTES_TO_IDENTIFY_MIME_TYPE) : 0];
+                                                CompletableFuture<Integer> headerRead = header.length == 0 ?
+                                                        Futures.of(0) :
+                                                        fileData.readIntoArray(header, 0, header.length);
+                                                return headerRead.thenCompose(headerBytes -> {
+                                                    String mimeType = MimeTypes.calculateMimeType(header, filename);
+                                                    Optional<byte[]> written = mayCapture && isThumbnailable(mimeType, endIndex) &&
+                                                            endIndex <= MAX_CAPTURED_THUMBNAIL_SOURCE ?
+                                                            Optional.of(new byte[(int) endIndex]) :
+                                                            Optional.empty();
+                                                    AsyncReader source = mayCapture ?
+                                                            new TeeAsyncReader(header, fileData, written) :
+                                                            fileData;
+
+                                                    TriFunction<FileWrapper, Snapshot, Long, CompletableFuture<Snapshot>> updatePropsIfNecessary =
+                                                            (updatedChild, latestSnapshot, writeEnd) -> {
+                                                        if (childProps.thumbnail.isEmpty()) {
+                                                            if (writeEnd <= childProps.size)
+                                                                return Futures.of(latestSnapshot);
+                                                            // update size only
+                                                            return updatedChild.updateSize(committer, writeEnd, network);
+                                                        }
+                                                        WritableAbsoluteCapability childCap = (WritableAbsoluteCapability) updatedChild.pointer.capability;
+                                                        Optional<byte[]> childStreamSecret = updatedChild.getFileProperties().streamSecret;
+                                                        if (written.isPresent())
+                                                            return updatedChild.thumbnailAndUpdate(latestSnapshot, committer, filename,
+                                                                    written.get(), isHidden, network, childCap, childStreamSecret);
+                                                        if (mayCapture && ! isThumbnailable(mimeType, writeEnd))
+                                                            // the new contents can't have a thumbnail
+                                                            return updatedChild.generateThumbnailAndUpdate(latestSnapshot, committer, childCap,
+                                                                    filename, new byte[0], network, isHidden, mimeType, writeEnd,
+                                                                    LocalDateTime.now(), childStreamSecret);
+                                                        return updatedChild.getInputStream(latestSnapshot.get(updatedChild.writer()).props, network, crypto, l -> {})
+                                                                .thenCompose(is -> updatedChild.recalculateThumbnail(
+                                                                    latestSnapshot, committer, filename, is, isHidden,
+                                                                    updatedChild.getSize(), network, childCap, childStreamSecret));
+                                                    };
+
+                                                    if (truncate) {
+                                                        return child.truncate(current, committer, endIndex, network, crypto).thenCompose( updatedSnapshot ->
+                                                            getUpdated(updatedSnapshot, network).thenCompose( updatedParent ->
+                                                                    child.getUpdated(updatedSnapshot, network).thenCompose( updatedChild ->
+                                                                        updateExistingChild(updatedSnapshot, committer, updatedChild, source,
+                                                                            startIndex, endIndex, network, crypto, monitor)
+                                                                                .thenCompose(latestSnapshot ->  updatePropsIfNecessary.apply(updatedChild, latestSnapshot, endIndex)))));
+                                                    } else {
+                                                        return updateExistingChild(current, committer, child, source,
+                                                                startIndex, endIndex, network, crypto, monitor)
+                                                                .thenCompose( updatedSnapshot -> child.getUpdated(updatedSnapshot, network)
+                                                                        .thenCompose(updatedChild ->
+                                                                                updatePropsIfNecessary.apply(updatedChild, updatedSnapshot, endIndex)));
                                                     }
-                                                    return updatedChild.getInputStream(latestSnapshot.get(updatedChild.writer()).props, network, crypto, l -> {})
-                                                            .thenCompose(is -> updatedChild.recalculateThumbnail(
-                                                                latestSnapshot, committer, filename, is, isHidden,
-                                                                updatedChild.getSize(), network, (WritableAbsoluteCapability)updatedChild.pointer.capability,
-                                                                updatedChild.getFileProperties().streamSecret));
-                                                };
-
-                                                if (truncateExisting && endIndex < childProps.size) {
-                                                    return child.truncate(current, committer, endIndex, network, crypto).thenCompose( updatedSnapshot ->
-                                                        getUpdated(updatedSnapshot, network).thenCompose( updatedParent ->
-                                                                child.getUpdated(updatedSnapshot, network).thenCompose( updatedChild ->
-                                                                    updateExistingChild(updatedSnapshot, committer, updatedChild, fileData,
-                                                                        startIndex, endIndex, network, crypto, monitor)
-                                                                            .thenCompose(latestSnapshot ->  updatePropsIfNecessary.apply(updatedChild, latestSnapshot, endIndex)))));
-                                                } else {
-                                                    return updateExistingChild(current, committer, child, fileData,
-                                                            startIndex, endIndex, network, crypto, monitor)
-                                                            .thenCompose( updatedSnapshot -> child.getUpdated(updatedSnapshot, network)
-                                                                    .thenCompose(updatedChild ->
-                                                                            updatePropsIfNecessary.apply(updatedChild, updatedSnapshot, endIndex)));
-                                                }
+                                                });
                                             }
                                             if (startIndex > 0) {
                                                 // TODO if startIndex > 0 prepend with a zero section
                                                 throw new IllegalStateException("Unimplemented!");
                                             }
-                                            SymmetricKey fileWriteKey = SymmetricKey.random();
-                                            SymmetricKey fileKey = baseKey.orElseGet(SymmetricKey::random);
-                                            SymmetricKey dataKey = SymmetricKey.random();
-                                            SymmetricKey rootRKey = latest.pointer.capability.rBaseKey;
-                                            CryptreeNode dirAccess = latest.pointer.fileAccess;
-                                            SymmetricKey dirParentKey = dirAccess.getParentKey(rootRKey);
-                                            Location parentLocation = getLocation();
-
-                                            return calculateMimeType(fileData, endIndex, filename).thenCompose(mimeType -> fileData.reset()
-                                                    .thenCompose(resetReader -> {
-                                                        Optional<byte[]> streamSecret = Optional.of(crypto.random.randomBytes(32));
-                                                        FileProperties fileProps = new FileProperties(filename,
-                                                                false, false, mimeType, endIndex,
-                                                                LocalDateTime.now(), isHidden, Optional.empty(), streamSecret);
-
-                                                        FileUploader chunks = new FileUploader(filename, mimeType, resetReader,
-                                                                startIndex, endIndex, fileKey, dataKey, parentLocation,
-                                                                dirParentKey, monitor, fileProps, firstChunkMapKey);
-
-                                                        SigningPrivateKeyAndPublicHash signer = signingPair();
-                                                        WritableAbsoluteCapability fileWriteCap = new
-                                                                WritableAbsoluteCapability(owner(),
-                                                                signer.publicKeyHash,
-                                                                firstChunkMapKey, fileKey,
-                                                                fileWriteKey);
-
-                                                        return chunks.upload(current, committer, network, parentLocation.owner, signer, crypto.hasher)
-                                                                .thenCompose(updatedWD -> latest.addChildPointer(updatedWD,
-                                                                        committer, fileWriteCap, new PathElement(filename), network, crypto))
-                                                                .thenCompose(cwd -> fileData.reset().thenCompose(resetAgain ->
-                                                                        generateThumbnailAndUpdate(cwd, committer, fileWriteCap, filename, resetAgain,
-                                                                                network, isHidden, mimeType,
-                                                                                endIndex, LocalDateTime.now(), streamSecret)));
-                                                    }));
+                                            return latest.uploadNewChild(current, committer, filename, fileData, isHidden, endIndex,
+                                                    baseKey, network, crypto, monitor, firstChunkMapKey)
+                                                    .thenCompose(p -> latest.addChildPointer(p.left, committer, p.right,
+                                                            new PathElement(filename), network, crypto));
                                         })
                         )
                 );
     }
 
+    /** Upload the chunks and thumbnail of a new file in this directory, without linking it from the directory.
+     *
+     * @return The updated version and the capability for the new file
+     */
+    private CompletableFuture<Pair<Snapshot, WritableAbsoluteCapability>> uploadNewChild(Snapshot current,
+                                                                                        Committer committer,
+                                                                                        String filename,
+                                                                                        AsyncReader fileData,
+                                                                                        boolean isHidden,
+                                                                                        long fileSize,
+                                                                                        Optional<SymmetricKey> baseKey,
+                                                                                        NetworkAccess network,
+                                                                                        Crypto crypto,
+                                                                                        ProgressConsumer<Long> monitor,
+                                                                                        byte[] firstChunkMapKey) {
+        SymmetricKey fileWriteKey = SymmetricKey.random();
+        SymmetricKey fileKey = baseKey.orElseGet(SymmetricKey::random);
+        SymmetricKey dataKey = SymmetricKey.random();
+        SymmetricKey rootRKey = pointer.capability.rBaseKey;
+        CryptreeNode dirAccess = pointer.fileAccess;
+        SymmetricKey dirParentKey = dirAccess.getParentKey(rootRKey);
+        Location parentLocation = getLocation();
+
+        byte[] header = new byte[(int) Math.min(fileSize, MimeTypes.HEADER_BYTES_TO_IDENTIFY_MIME_TYPE)];
+        return fileData.readIntoArray(header, 0, header.length)
+                .thenCompose(headerRead -> {
+                    String mimeType = MimeTypes.calculateMimeType(header, filename);
+                    boolean hasThumbnail = isThumbnailable(mimeType, fileSize);
+                    // the header and the thumbnail source are taken from the same pass that uploads the chunks
+                    Optional<byte[]> thumbnailSource = hasThumbnail ?
+                            Optional.of(new byte[(int) fileSize]) :
+                            Optional.empty();
+                    AsyncReader singlePass = new TeeAsyncReader(header, fileData, thumbnailSource);
+                    Optional<byte[]> streamSecret = Optional.of(crypto.random.randomBytes(32));
+                    FileProperties fileProps = new FileProperties(filename,
+                            false, false, mimeType, fileSize,
+                            LocalDateTime.now(), isHidden, Optional.empty(), streamSecret);
+
+                    FileUploader chunks = new FileUploader(filename, mimeType, singlePass,
+                            0, fileSize, fileKey, dataKey, parentLocation,
+                            dirParentKey, monitor, fileProps, firstChunkMapKey);
+
+                    SigningPrivateKeyAndPublicHash signer = signingPair();
+                    WritableAbsoluteCapability fileWriteCap = new
+                            WritableAbsoluteCapability(owner(),
+                            signer.publicKeyHash,
+                            firstChunkMapKey, fileKey,
+                            fileWriteKey);
+
+                    return chunks.upload(current, committer, network, parentLocation.owner, signer, crypto.hasher)
+                            .thenCompose(cwd -> thumbnailSource.isEmpty() ?
+                                    Futures.of(cwd) :
+                                    generateThumbnailAndUpdate(cwd, committer, fileWriteCap, filename,
+                                            thumbnailSource.get(), network, isHidden, mimeType,
+                                            fileSize, LocalDateTime.now(), streamSecret))
+                            .thenApply(v -> new Pair<>(v, fileWriteCap));
+                });
+    }
+
+    public static class FileUploadProperties {
+        public final String filename;
+        public final Supplier<AsyncReader> data;
+        public final long length;
+        public final ProgressConsumer<Long> monitor;
+
+        public FileUploadProperties(String filename, Supplier<AsyncReader> data, long length, ProgressConsumer<Long> monitor) {
+            this.filename = filename;
+            this.data = data;
+            this.length = length;
+            this.monitor = monitor;
+        }
+    }
+
+    public static class FolderUploadProperties {
+        public final List<String> relativePath;
+        public final List<FileUploadProperties> files;
+
+        public FolderUploadProperties(List<String> relativePath, List<FileUploadProperties> files) {
+            this.relativePath = relativePath;
+            this.files = files;
+        }
+    }
+
+    /** Upload a tree of directories and files under this directory in a single update of our writer.
+     *  Each directory is created if necessary and all the new files in it are linked with a single update of the
+     *  directory. Pointer commits are batched so there are at most one per commitBatch updates. Existing files with
+     *  the same name are overwritten.
+     *
+     * @param directories The directories, relative to this one, and the files to upload into each
+     * @param commitBatch The maximum number of updates of a writer between pointer commits
+     * @param network
+     * @param crypto
+     * @param filesUploaded Called with 1 after each file has been uploaded
+     * @return The updated version of this directory
+     */
+    public CompletableFuture<FileWrapper> uploadSubtree(List<FolderUploadProperties> directories,
+                                                        int commitBatch,
+                                                        NetworkAccess network,
+                                                        Crypto crypto,
+                                                        ProgressConsumer<Long> filesUploaded) {
+        if (! isWritable())
+            return Futures.errored(new IllegalStateException("Cannot upload to a directory without write access!"));
+        // uncommitted intermediate versions must be protected from GC until the final commit
+        return network.synchronizer.applyComplexUpdate(owner(), signingPair(),
+                (s, committer) -> IpfsTransaction.call(owner(), tid -> {
+                    NetworkAccess inTransaction = network.withTransaction(tid);
+                    BatchedCommitter batched = new BatchedCommitter(committer, commitBatch, inTransaction.dhtClient, crypto.hasher);
+                    return Futures.reduceAll(directories, s,
+                            (v, dir) -> getUpdated(v, inTransaction)
+                                    .thenCompose(us -> us.getOrMkdirs(dir.relativePath.stream()
+                                            .filter(e -> ! e.isEmpty())
+                                            .collect(Collectors.toList()), false, inTransaction, crypto, v, batched))
+                                    .thenCompose(p -> p.right.uploadFolder(p.left, batched, dir.files, inTransaction,
+                                            crypto, filesUploaded)),
+                            (a, b) -> b)
+                            .thenCompose(batched::flush);
+                }, network.dhtClient)).thenCompose(v -> getUpdated(v, network));
+    }
+
+    private CompletableFuture<Snapshot> uploadFolder(Snapshot initial,
+                                                     Committer committer,
+                                                     List<FileUploadProperties> files,
+                                                     NetworkAccess network,
+                                                     Crypto crypto,
+                                                     ProgressConsumer<Long> filesUploaded) {
+        for (FileUploadProperties file : files)
+            if (! isLegalName(file.filename))
+                return Futures.errored(new IllegalStateException("Illegal filename: " + file.filename));
+        return initial.withWriter(owner(), writer(), network)
+                .thenCompose(current -> getUpdated(current, network)
+                        .thenCompose(latest -> latest.pointer.fileAccess.getAllChildrenCapabilities(current,
+                                latest.pointer.capability, crypto.hasher, network)
+                                .thenCompose(children -> {
+                                    Set<String> existingNames = children.stream()
+                                            .map(c -> c.name.name)
+                                            .collect(Collectors.toSet());
+                                    Set<String> newNames = new HashSet<>();
+                                    List<FileUploadProperties> toCreate = new ArrayList<>();
+                                    List<FileUploadProperties> toOverwrite = new ArrayList<>();
+                                    for (FileUploadProperties file : files) {
+                                        if (existingNames.contains(file.filename) || ! newNames.add(file.filename))
+                                            toOverwrite.add(file);
+                                        else
+                                            toCreate.add(file);
+                                    }
+
+                                    WritableAbsoluteCapability us = latest.writableFilePointer();
+                                    return Futures.reduceAll(toCreate, new Pair<>(current, Collections.<NamedRelativeCapability>emptyList()),
+                                            (p, file) -> latest.uploadNewChild(p.left, committer, file.filename, file.data.get(),
+                                                    false, file.length, Optional.empty(), network, crypto, file.monitor,
+                                                    crypto.random.randomBytes(32))
+                                                    .thenApply(res -> {
+                                                        filesUploaded.accept(1L);
+                                                        List<NamedRelativeCapability> caps = new ArrayList<>(p.right);
+                                                        caps.add(new NamedRelativeCapability(file.filename, us.relativise(res.right)));
+                                                        return new Pair<>(res.left, caps);
+                                                    }),
+                                            (a, b) -> b)
+                                            .thenCompose(p -> p.right.isEmpty() ?
+                                                    Futures.of(p.left) :
+                                                    latest.pointer.fileAccess.addChildrenAndCommit(p.left, committer,
+                                                            p.right, us, latest.signingPair(), network, crypto))
+                                            .thenCompose(linked -> Futures.reduceAll(toOverwrite, linked,
+                                                    (v, file) -> latest.uploadFileSection(v, committer, file.filename,
+                                                            file.data.get(), false, 0, file.length, Optional.empty(), true,
+                                                            true, network, crypto, file.monitor, crypto.random.randomBytes(32))
+                                                            .thenApply(res -> {
+                                                                filesUploaded.accept(1L);
+                                                                return res;
+                                                            }),
+                                                    (a, b) -> b));
+                                })));
+    }
+
     private CompletableFuture<Snapshot> recalculateThumbnail(Snapshot snapshot, Committer committer, String filename, AsyncReader fileData
              , boolean isHidden, long fileSize, NetworkAccess network, WritableAbsoluteCapability fileWriteCap, Optional<byte[]> streamSecret
     ) {
-        return fileData.reset()
-                .thenCompose(fileData2 -> calculateMimeType(fileData2, fileSize, filename)
-                        .thenCompose(mimeType -> fileData.reset()
-                                .thenCompose(resetAgain ->
-                                    generateThumbnailAndUpdate(snapshot, committer, fileWriteCap, filename, resetAgain,
-                                            network, isHidden, mimeType, fileSize, LocalDateTime.now(), streamSecret))));
+        byte[] header = new byte[(int) Math.min(fileSize, MimeTypes.HEADER_BYTES_TO_IDENTIFY_MIME_TYPE)];
+        return fileData.readIntoArray(header, 0, header.length).thenCompose(headerRead -> {
+            String mimeType = MimeTypes.calculateMimeType(header, filename);
+            if (! isThumbnailable(mimeType, fileSize))
+                return generateThumbnailAndUpdate(snapshot, committer, fileWriteCap, filename, new byte[0],
+                        network, isHidden, mimeType, fileSize, LocalDateTime.now(), streamSecret);
+            byte[] contents = new byte[(int) fileSize];
+            return new TeeAsyncReader(header, fileData, Optional.empty()).readIntoArray(contents, 0, contents.length)
+                    .thenCompose(read -> generateThumbnailAndUpdate(snapshot, committer, fileWriteCap, filename, contents,
+                            network, isHidden, mimeType, fileSize, LocalDateTime.now(), streamSecret));
+        });
+    }
+
+    private CompletableFuture<Snapshot> thumbnailAndUpdate(Snapshot snapshot, Committer committer, String filename, byte[] contents
+            , boolean isHidden, NetworkAccess network, WritableAbsoluteCapability fileWriteCap, Optional<byte[]> streamSecret
+    ) {
+        String mimeType = MimeTypes.calculateMimeType(contents, filename);
+        return generateThumbnailAndUpdate(snapshot, committer, fileWriteCap, filename, contents,
+                network, isHidden, mimeType, contents.length, LocalDateTime.now(), streamSecret);
     }
 
     private CompletableFuture<Snapshot> generateThumbnailAndUpdate(Snapshot base,
                                                                    Committer committer,
                                                                    WritableAbsoluteCapability cap,
                                                                    String fileName,
-                                                                   AsyncReader fileData,
+                                                                   byte[] fileData,
                                                                    NetworkAccess network,
                                                                    Boolean isHidden,
                                                                    String mimeType,
                                                                    long fileSize,
                                                                    LocalDateTime updatedDateTime,
                                                                    Optional<byte[]> streamSecret) {
-        return generateThumbnail(network, fileData, (int) Math.min(fileSize, Integer.MAX_VALUE), fileName, mimeType)
+        CompletableFuture<Optional<byte[]>> thumbnail = isThumbnailable(mimeType, fileSize) ?
+                generateThumbnail(network, fileData, fileName, mimeType) :
+                Futures.of(Optional.empty());
+        return thumbnail
                 .thenCompose(thumbData -> {
                     FileProperties fileProps = new FileProperties(fileName, false, props.isLink, mimeType, fileSize,
                             updatedDateTime, isHidden, thumbData, streamSecret);
@@ -1705,12 +1897,19 @@ public class FileWrapper {
         return new byte[0];
     }
 
-    private CompletableFuture<Optional<byte[]>> generateThumbnail(NetworkAccess network, AsyncReader fileData, int fileSize, String filename, String mimeType) {
+    private static boolean isThumbnailable(String mimeType, long fileSize) {
+        return fileSize > MimeTypes.HEADER_BYTES_TO_IDENTIFY_MIME_TYPE
+                && fileSize <= Integer.MAX_VALUE
+                && (mimeType.startsWith("image") || mimeType.startsWith("video") || mimeType.startsWith("audio/mpeg"));
+    }
+
+    private CompletableFuture<Optional<byte[]>> generateThumbnail(NetworkAccess network, byte[] fileData, String filename, String mimeType) {
         CompletableFuture<Optional<byte[]>> fut = new CompletableFuture<>();
+        int fileSize = fileData.length;
         if (fileSize > MimeTypes.HEADER_BYTES_TO_IDENTIFY_MIME_TYPE) {
             if (mimeType.startsWith("image")) {
                 if (network.isJavascript()) {
-                    thumbnail.generateThumbnail(fileData, fileSize, filename).thenAccept(base64Str -> {
+                    thumbnail.generateThumbnail(AsyncReader.build(fileData), fileSize, filename).thenAccept(base64Str -> {
                         byte[] bytesOfData = Base64.getDecoder().decode(base64Str);
                         if (bytesOfData.length == 0)
                             fut.complete(Optional.empty());
@@ -1718,14 +1917,11 @@ public class FileWrapper {
                             fut.complete(Optional.of(bytesOfData));
                     });
                 } else {
-                    byte[] bytes = new byte[fileSize];
-                    fileData.readIntoArray(bytes, 0, fileSize).thenAccept(data -> {
-                        fut.complete(generateThumbnail(bytes));
-                    });
+                    fut.complete(generateThumbnail(fileData));
                 }
             } else if (mimeType.startsWith("video")) {
                 if (network.isJavascript()) {
-                    thumbnail.generateVideoThumbnail(fileData, fileSize, filename, mimeType).thenAccept(base64Str -> {
+                    thumbnail.generateVideoThumbnail(AsyncReader.build(fileData), fileSize, filename, mimeType).thenAccept(base64Str -> {
                         if(base64Str == null) {
                             fut.complete(Optional.empty());
                         }
@@ -1736,34 +1932,28 @@ public class FileWrapper {
                             fut.complete(Optional.of(bytesOfData));
                     });
                 } else {
-                    byte[] bytes = new byte[fileSize];
-                    fileData.readIntoArray(bytes, 0, fileSize).thenAccept(data -> {
-                        fut.complete(Optional.of(generateVideoThumbnail(bytes)));
-                    });
+                    fut.complete(Optional.of(generateVideoThumbnail(fileData)));
                 }
             } else if (mimeType.startsWith("audio/mpeg")) {
-                byte[] mp3Data = new byte[fileSize];
-                fileData.readIntoArray(mp3Data, 0, fileSize).thenAccept(read -> {
-                    try {
-                        Mp3CoverImage mp3CoverImage = Mp3CoverImage.extractCoverArt(mp3Data);
-                        if (mp3CoverImage.imageData == null) {
-                            fut.complete(Optional.empty());
+                try {
+                    Mp3CoverImage mp3CoverImage = Mp3CoverImage.extractCoverArt(fileData);
+                    if (mp3CoverImage.imageData == null) {
+                        fut.complete(Optional.empty());
+                    } else {
+                        if (network.isJavascript()) {
+                            AsyncReader.ArrayBacked imageBlob = new AsyncReader.ArrayBacked(mp3CoverImage.imageData);
+                            thumbnail.generateThumbnail(imageBlob, mp3CoverImage.imageData.length, filename)
+                                    .thenAccept(base64Str -> {
+                                        byte[] bytesOfData = Base64.getDecoder().decode(base64Str);
+                                        fut.complete(Optional.of(bytesOfData));
+                                    });
                         } else {
-                            if (network.isJavascript()) {
-                                AsyncReader.ArrayBacked imageBlob = new AsyncReader.ArrayBacked(mp3CoverImage.imageData);
-                                thumbnail.generateThumbnail(imageBlob, mp3CoverImage.imageData.length, filename)
-                                        .thenAccept(base64Str -> {
-                                            byte[] bytesOfData = Base64.getDecoder().decode(base64Str);
-                                            fut.complete(Optional.of(bytesOfData));
-                                        });
-                            } else {
-                                fut.complete(generateThumbnail(mp3CoverImage.imageData));
-                            }
+                            fut.complete(generateThumbnail(mp3CoverImage.imageData));
                         }
-                    } catch(Exception ex) {
-                        fut.complete(Optional.empty());
                     }
-                });
+                } catch(Exception ex) {
+                    fut.complete(Optional.empty());
+                }
             } else {
                 fut.complete(Optional.empty());
             }
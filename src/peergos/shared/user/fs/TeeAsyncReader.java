@@ -0,0 +1,72 @@
+package peergos.shared.user.fs;
+
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** A single pass reader over a source stream.
+ *
+ *  Any bytes which have already been consumed from the source (e.g. to sniff the mime type) are replayed first, and
+ *  everything read through this reader is optionally copied into a buffer at its offset in the stream. This lets the
+ *  mime type calculation, the chunk encryption and the thumbnail generation all consume a single read of the source.
+ */
+public class TeeAsyncReader implements AsyncReader {
+
+    private final byte[] prefix;
+    private final AsyncReader source;
+    private final Optional<byte[]> copy;
+    private long index;
+
+    /**
+     *
+     * @param prefix bytes already read from the start of source
+     * @param source the remainder of the stream
+     * @param copy if present, everything read is also written here
+     */
+    public TeeAsyncReader(byte[] prefix, AsyncReader source, Optional<byte[]> copy) {
+        this.prefix = prefix;
+        this.source = source;
+        this.copy = copy;
+    }
+
+    @Override
+    public CompletableFuture<Integer> readIntoArray(byte[] res, int offset, int length) {
+        long start = index;
+        int fromPrefix = index < prefix.length ? (int) Math.min(length, prefix.length - index) : 0;
+        if (fromPrefix > 0)
+            System.arraycopy(prefix, (int) index, res, offset, fromPrefix);
+        CompletableFuture<Integer> fromSource = fromPrefix == length ?
+                Futures.of(0) :
+                source.readIntoArray(res, offset + fromPrefix, length - fromPrefix);
+        return fromSource.thenApply(read -> {
+            int total = fromPrefix + read;
+            copy.ifPresent(buf -> {
+                if (start < buf.length)
+                    System.arraycopy(res, offset, buf, (int) start, (int) Math.min(total, buf.length - start));
+            });
+            index = start + total;
+            return total;
+        });
+    }
+
+    @Override
+    public CompletableFuture<AsyncReader> seekJS(int high32, int low32) {
+        throw new IllegalStateException("Cannot seek a single pass reader!");
+    }
+
+    /**
+     *  reset the source to its original starting position, the prefix is not replayed
+     * @return
+     */
+    @Override
+    public CompletableFuture<AsyncReader> reset() {
+        return source.reset()
+                .thenApply(r -> new TeeAsyncReader(new byte[0], r, copy));
+    }
+
+    @Override
+    public void close() {
+        source.close();
+    }
+}
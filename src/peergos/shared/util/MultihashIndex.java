@@ -0,0 +1,187 @@
+package peergos.shared.util;
+
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.util.*;
+
+/** A memory-efficient set of Multihashes, which assigns each one a dense index, for indexing large sets of blocks.
+ *
+ *  Sha256 hashes, which is nearly all of them, are packed into 4 longs in a flat array, so there is no object per
+ *  entry, and the original Multihash is rebuilt when retrieved by index. Any other hashes are stored as is.
+ */
+public class MultihashIndex {
+    private static final int DIGEST_LONGS = 4;
+    private static final int MIN_CAPACITY = 16;
+    private static final long OTHER = Long.MIN_VALUE;
+
+    // indexed by entry
+    private long[] digests;
+    // The version and codec of cids, or OTHER for hashes which aren't packed
+    private long[] tags;
+    private final BitSet v0Cids = new BitSet();
+    // open addressing table of entry index + 1, with 0 marking an empty slot
+    private int[] table;
+    private int mask, size;
+    private final Map<Multihash, Integer> otherIndices = new HashMap<>();
+    private final Map<Integer, Multihash> others = new HashMap<>();
+
+    public MultihashIndex(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize)
+            capacity <<= 1;
+        digests = new long[capacity * DIGEST_LONGS];
+        tags = new long[capacity];
+        table = new int[capacity * 2];
+        mask = table.length - 1;
+    }
+
+    public MultihashIndex() {
+        this(MIN_CAPACITY);
+    }
+
+    private static boolean isPacked(Multihash h) {
+        return h.type == Multihash.Type.sha2_256;
+    }
+
+    /** This matches Cid.equals, where a v0 cid is equal to the bare multihash
+     *
+     * @param h
+     * @return
+     */
+    private static long tag(Multihash h) {
+        if (! (h instanceof Cid))
+            return 0;
+        Cid c = (Cid) h;
+        if (c.version == Cid.V0)
+            return 0;
+        return (c.version << 32) | c.codec.type;
+    }
+
+    private static long getLong(byte[] b, int offset) {
+        long res = 0;
+        for (int i = 0; i < 8; i++)
+            res = (res << 8) | (b[offset + i] & 0xff);
+        return res;
+    }
+
+    private static void putLong(long val, byte[] b, int offset) {
+        for (int i = 7; i >= 0; i--) {
+            b[offset + i] = (byte) val;
+            val >>>= 8;
+        }
+    }
+
+    /**
+     *
+     * @return the table slot containing this key, or the empty slot where it would be inserted
+     */
+    private int findSlot(long d0, long d1, long d2, long d3, long tag) {
+        // sha256 digests are uniformly distributed, so the first bits are a good hash
+        int slot = (int) (d0 ^ (d0 >>> 32) ^ tag) & mask;
+        while (true) {
+            int entry = table[slot] - 1;
+            if (entry < 0)
+                return slot;
+            int base = entry * DIGEST_LONGS;
+            if (digests[base] == d0 && digests[base + 1] == d1 && digests[base + 2] == d2 && digests[base + 3] == d3
+                    && tags[entry] == tag)
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     *
+     * @param key
+     * @return the index of the key, which is added if it is not already present
+     */
+    public int add(Multihash key) {
+        if (! isPacked(key)) {
+            Integer existing = otherIndices.get(key);
+            if (existing != null)
+                return existing;
+            int index = newEntry();
+            tags[index] = OTHER;
+            otherIndices.put(key, index);
+            others.put(index, key);
+            return index;
+        }
+        byte[] digest = key.getHash();
+        long d0 = getLong(digest, 0), d1 = getLong(digest, 8), d2 = getLong(digest, 16), d3 = getLong(digest, 24);
+        long tag = tag(key);
+        int slot = findSlot(d0, d1, d2, d3, tag);
+        if (table[slot] > 0)
+            return table[slot] - 1;
+        int index = newEntry();
+        int base = index * DIGEST_LONGS;
+        digests[base] = d0;
+        digests[base + 1] = d1;
+        digests[base + 2] = d2;
+        digests[base + 3] = d3;
+        tags[index] = tag;
+        if (key instanceof Cid && ((Cid) key).version == Cid.V0)
+            v0Cids.set(index);
+        if (size * 2 > table.length)
+            rehash();
+        else
+            table[slot] = index + 1;
+        return index;
+    }
+
+    private int newEntry() {
+        if (size == tags.length) {
+            digests = Arrays.copyOf(digests, digests.length * 2);
+            tags = Arrays.copyOf(tags, tags.length * 2);
+        }
+        return size++;
+    }
+
+    /**
+     *
+     * @param key
+     * @return the index of the key, or -1 if it is absent
+     */
+    public int indexOf(Multihash key) {
+        if (! isPacked(key))
+            return otherIndices.getOrDefault(key, -1);
+        byte[] digest = key.getHash();
+        int slot = findSlot(getLong(digest, 0), getLong(digest, 8), getLong(digest, 16), getLong(digest, 24), tag(key));
+        return table[slot] - 1;
+    }
+
+    public boolean contains(Multihash key) {
+        return indexOf(key) >= 0;
+    }
+
+    public Multihash get(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        long tag = tags[index];
+        if (tag == OTHER)
+            return others.get(index);
+        byte[] digest = new byte[DIGEST_LONGS * 8];
+        for (int i = 0; i < DIGEST_LONGS; i++)
+            putLong(digests[index * DIGEST_LONGS + i], digest, i * 8);
+        if (tag == 0) {
+            Multihash h = new Multihash(Multihash.Type.sha2_256, digest);
+            return v0Cids.get(index) ? Cid.buildV0(h) : h;
+        }
+        return new Cid(tag >>> 32, Cid.Codec.lookup(tag & 0xffffffffL), Multihash.Type.sha2_256, digest);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void rehash() {
+        table = new int[table.length * 2];
+        mask = table.length - 1;
+        for (int i = 0; i < size; i++) {
+            if (tags[i] == OTHER)
+                continue;
+            int base = i * DIGEST_LONGS;
+            table[findSlot(digests[base], digests[base + 1], digests[base + 2], digests[base + 3], tags[i])] = i + 1;
+        }
+    }
+}